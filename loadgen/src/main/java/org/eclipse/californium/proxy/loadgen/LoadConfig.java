@@ -0,0 +1,183 @@
+/******************************************************************************
+ * @title: Load Configuration
+ * 	Parameters of a load generation run
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy.loadgen;
+
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.proxy.SenML;
+
+/**
+ * Parameters of a load generation run, parsed from the command line. Every
+ * option has the form <tt>--name value</tt>; unknown options are rejected.
+ */
+public class LoadConfig {
+
+	// Address of the proxy; if null an embedded proxy is started
+	String proxyHost = null;
+	int proxyPort = 5683;
+
+	/*
+	 * Embedded proxies sharing the end-points, on consecutive ports from
+	 * proxyPort
+	 */
+	int shards = 1;
+
+	// Simulated sleepy nodes and resources delegated by each of them
+	int sleepyNodes = 100;
+	int resourcesPerNode = 4;
+
+	// Time a sleepy node sleeps between two wake-ups, in milliseconds
+	long sleepMillis = 1000;
+
+	// Lifetime sent with every owner PUT, in seconds
+	long lifetime = 60;
+
+	// If true, a wake-up sends a single batched PUT to the container
+	boolean batch = false;
+
+	// Content-format of the batched PUTs: link-format or SenML
+	int batchFormat = MediaTypeRegistry.APPLICATION_LINK_FORMAT;
+
+	/*
+	 * If true, the nodes register with pb=112, so that the responses to
+	 * their PUTs carry the values of the dirty resources, and do not poll
+	 */
+	boolean piggyback = false;
+
+	// Simulated regular nodes, their think time and observers per node
+	int regularNodes = 10;
+	long thinkMillis = 100;
+	int observersPerRegularNode = 1;
+
+	// Duration of the measurement and of the warm-up, in seconds
+	long durationSeconds = 60;
+	long warmupSeconds = 10;
+
+	// Threads driving the simulated nodes
+	int threads = 64;
+
+	// Timeout of a single request, in milliseconds
+	long requestTimeout = 5000;
+
+	/**
+	 * Parses the command line.
+	 *
+	 * @param args
+	 *            the command line arguments
+	 * @return the configuration
+	 * @throws IllegalArgumentException
+	 *             if an option is unknown or malformed
+	 */
+	public static LoadConfig parse(String[] args) {
+		LoadConfig config = new LoadConfig();
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("missing value for " + option);
+			}
+			String value = args[++i];
+			switch (option) {
+			case "--proxy":
+				int colon = value.lastIndexOf(':');
+				config.proxyHost = (colon < 0) ? value : value.substring(0, colon);
+				if (colon >= 0) {
+					config.proxyPort = Integer.parseInt(value.substring(colon + 1));
+				}
+				break;
+			case "--port":
+				config.proxyPort = Integer.parseInt(value);
+				break;
+			case "--shards":
+				config.shards = Integer.parseInt(value);
+				if (config.shards < 1) {
+					throw new IllegalArgumentException("shards " + value);
+				}
+				break;
+			case "--nodes":
+				config.sleepyNodes = Integer.parseInt(value);
+				break;
+			case "--resources":
+				config.resourcesPerNode = Integer.parseInt(value);
+				break;
+			case "--sleep":
+				config.sleepMillis = Long.parseLong(value);
+				break;
+			case "--lifetime":
+				config.lifetime = Long.parseLong(value);
+				break;
+			case "--batch":
+				config.batch = Boolean.parseBoolean(value);
+				break;
+			case "--batch-format":
+				config.batchFormat = batchFormat(value);
+				break;
+			case "--piggyback":
+				config.piggyback = Boolean.parseBoolean(value);
+				break;
+			case "--regular":
+				config.regularNodes = Integer.parseInt(value);
+				break;
+			case "--think":
+				config.thinkMillis = Long.parseLong(value);
+				break;
+			case "--observers":
+				config.observersPerRegularNode = Integer.parseInt(value);
+				break;
+			case "--duration":
+				config.durationSeconds = Long.parseLong(value);
+				break;
+			case "--warmup":
+				config.warmupSeconds = Long.parseLong(value);
+				break;
+			case "--threads":
+				config.threads = Integer.parseInt(value);
+				break;
+			case "--timeout":
+				config.requestTimeout = Long.parseLong(value);
+				break;
+			default:
+				throw new IllegalArgumentException("unknown option " + option);
+			}
+		}
+		return config;
+	}
+
+	private static int batchFormat(String value) {
+		switch (value) {
+		case "link":
+			return MediaTypeRegistry.APPLICATION_LINK_FORMAT;
+		case "senml+json":
+			return SenML.APPLICATION_SENML_JSON;
+		case "senml+cbor":
+			return SenML.APPLICATION_SENML_CBOR;
+		default:
+			throw new IllegalArgumentException("unknown format " + value);
+		}
+	}
+
+	/**
+	 * Returns the usage message.
+	 */
+	public static String usage() {
+		return "usage: LoadGenerator [--proxy host:port] [--port p] [--shards n]"
+				+ " [--nodes n] [--resources r] [--sleep ms] [--lifetime s]"
+				+ " [--batch true|false]"
+				+ " [--batch-format link|senml+json|senml+cbor]"
+				+ " [--piggyback true|false]"
+				+ " [--regular n] [--think ms] [--observers n]"
+				+ " [--duration s] [--warmup s] [--threads n] [--timeout ms]\n"
+				+ "Without --proxy an embedded proxy is started on 127.0.0.1,"
+				+ " or n sharded ones on consecutive ports.";
+	}
+}
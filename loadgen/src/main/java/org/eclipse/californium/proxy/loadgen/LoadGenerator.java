@@ -0,0 +1,160 @@
+/******************************************************************************
+ * @title: Load Generator
+ * 	End-to-end throughput benchmark of the sleepy proxy
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy.loadgen;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.proxy.Proxy;
+import org.eclipse.californium.proxy.ProxyLogger;
+import org.eclipse.californium.proxy.ShardRing;
+
+/**
+ * LoadGenerator simulates a fleet of sleepy nodes and regular nodes talking
+ * to a proxy over loopback UDP, and reports the throughput and the latency
+ * percentiles of every kind of request, together with the heap and thread
+ * usage.
+ * <p>
+ * Sleepy nodes are bound to 127.1.x.y and regular nodes to 127.2.x.y, so
+ * that every simulated node has its own source address, as on a real
+ * network. Unless --proxy is given, the proxy is embedded in this JVM on
+ * 127.0.0.1, so the reported heap and threads include it. With --shards n,
+ * n proxies on consecutive ports split the end-points among them (see
+ * ShardRing): the nodes are spread over all of them, and the sleepy nodes
+ * follow the redirections to the shard owning them.
+ */
+public class LoadGenerator {
+
+	public static void main(String[] args) throws Exception {
+		LoadConfig config;
+		try {
+			config = LoadConfig.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(LoadConfig.usage());
+			System.exit(1);
+			return;
+		}
+
+		List<Proxy> proxies = new ArrayList<Proxy>();
+		if (config.proxyHost == null) {
+			// keep the logging of the embedded proxy out of the measurements
+			ProxyLogger.setLevel(ProxyLogger.Level.WARN);
+			config.proxyHost = "127.0.0.1";
+			List<String> shards = new ArrayList<String>();
+			for (int s = 0; s < config.shards; s++) {
+				shards.add(baseUri(config, s));
+			}
+			for (int s = 0; s < config.shards; s++) {
+				Proxy proxy = new Proxy();
+				proxy.addEndpoint(new CoapEndpoint(new InetSocketAddress(
+						config.proxyHost, config.proxyPort + s)));
+				if (config.shards > 1) {
+					proxy.setShardRing(new ShardRing(shards, shards.get(s)));
+				}
+				proxy.start();
+				proxies.add(proxy);
+			}
+		}
+
+		ScheduledExecutorService scheduler = Executors
+				.newScheduledThreadPool(config.threads, new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r,
+								"LoadGenerator-" + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+
+		LoadReport report = new LoadReport();
+
+		List<SleepyNode> sleepyNodes = new ArrayList<SleepyNode>();
+		for (int i = 0; i < config.sleepyNodes; i++) {
+			sleepyNodes.add(new SleepyNode(i, config, report, scheduler));
+		}
+		List<RegularNode> regularNodes = new ArrayList<RegularNode>();
+		for (int i = 0; i < config.regularNodes; i++) {
+			regularNodes.add(new RegularNode(i, config, report, scheduler));
+		}
+
+		System.out.printf("%d sleepy nodes (%d resources each, sleep %d ms),"
+				+ " %d regular nodes (think %d ms), proxy %s:%d (%d shards)%n",
+				config.sleepyNodes, config.resourcesPerNode,
+				config.sleepMillis, config.regularNodes, config.thinkMillis,
+				config.proxyHost, config.proxyPort, config.shards);
+
+		for (SleepyNode node : sleepyNodes) {
+			node.start();
+		}
+		for (RegularNode node : regularNodes) {
+			node.start();
+		}
+
+		TimeUnit.SECONDS.sleep(config.warmupSeconds);
+		report.start();
+		TimeUnit.SECONDS.sleep(config.durationSeconds);
+		report.stop();
+
+		System.out.print(report);
+
+		for (RegularNode node : regularNodes) {
+			node.stop();
+		}
+		for (SleepyNode node : sleepyNodes) {
+			node.stop();
+		}
+		scheduler.shutdownNow();
+		for (Proxy proxy : proxies) {
+			proxy.destroy();
+		}
+	}
+
+	/*
+	 * Loopback address of the id-th node of a kind: 127.<kind>.x.y, with y
+	 * never 0 nor 255.
+	 */
+	static InetAddress loopback(int kind, int id) throws UnknownHostException {
+		if (id >= 254 * 256) {
+			throw new IllegalArgumentException("too many nodes: " + id);
+		}
+		return InetAddress.getByAddress(new byte[] { 127, (byte) kind,
+				(byte) (id / 254), (byte) (id % 254 + 1) });
+	}
+
+	/*
+	 * Base URI of the shard-th proxy, e.g. coap://127.0.0.1:5683 for the
+	 * first one
+	 */
+	static String baseUri(LoadConfig config, int shard) {
+		String host = config.proxyHost;
+		if (host.indexOf(':') >= 0) {
+			host = "[" + host + "]";
+		}
+		return "coap://" + host + ":" + (config.proxyPort + shard);
+	}
+}
@@ -0,0 +1,169 @@
+/******************************************************************************
+ * @title: Load Report
+ * 	Measurements collected during a load generation run
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy.loadgen;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.californium.proxy.LatencyHistogram;
+
+/**
+ * LoadReport collects, for every kind of request issued by the simulated
+ * nodes, the number of requests, the number of failures and the latency
+ * histogram, as well as the node cycles which failed with an exception.
+ * Recording is lock-free and can be switched off during the
+ * warm-up.
+ */
+public class LoadReport {
+
+	/**
+	 * Kinds of request issued by the simulated nodes.
+	 */
+	public enum Operation {
+		REGISTER, OWNER_PUT, BATCH_PUT, POLL, REGULAR_GET, REGULAR_PUT,
+		DISCOVERY
+	}
+
+	private final LatencyHistogram[] latencies;
+	private final LongAdder[] failures;
+	private final LongAdder notifications;
+	private final LongAdder failedCycles;
+	private final AtomicReference<RuntimeException> firstFailure;
+
+	private volatile boolean recording;
+	private volatile long startNanos;
+	private volatile long stopNanos;
+
+	/**
+	 * Instantiates an empty report, not recording yet.
+	 */
+	public LoadReport() {
+		int n = Operation.values().length;
+		latencies = new LatencyHistogram[n];
+		failures = new LongAdder[n];
+		for (int i = 0; i < n; i++) {
+			latencies[i] = new LatencyHistogram();
+			failures[i] = new LongAdder();
+		}
+		notifications = new LongAdder();
+		failedCycles = new LongAdder();
+		firstFailure = new AtomicReference<RuntimeException>();
+	}
+
+	/**
+	 * Starts recording, e.g. at the end of the warm-up.
+	 */
+	public void start() {
+		startNanos = System.nanoTime();
+		recording = true;
+	}
+
+	/**
+	 * Stops recording.
+	 */
+	public void stop() {
+		recording = false;
+		stopNanos = System.nanoTime();
+	}
+
+	/**
+	 * Records the outcome of a request started at the given time.
+	 *
+	 * @param operation
+	 *            the kind of request
+	 * @param startNanos
+	 *            System.nanoTime() when the request was sent
+	 * @param success
+	 *            false if the request timed out or got an unexpected answer
+	 */
+	public void record(Operation operation, long startNanos, boolean success) {
+		if (!recording) {
+			return;
+		}
+		if (success) {
+			latencies[operation.ordinal()]
+					.recordNanos(System.nanoTime() - startNanos);
+		} else {
+			failures[operation.ordinal()].increment();
+		}
+	}
+
+	/**
+	 * Records an observe notification received by a regular node.
+	 */
+	public void notificationReceived() {
+		if (recording) {
+			notifications.increment();
+		}
+	}
+
+	/**
+	 * Records a cycle of a running node which failed with an exception,
+	 * instead of issuing its requests.
+	 *
+	 * @param failure
+	 *            the exception thrown by the cycle
+	 */
+	public void cycleFailed(RuntimeException failure) {
+		if (recording) {
+			failedCycles.increment();
+			firstFailure.compareAndSet(null, failure);
+		}
+	}
+
+	/**
+	 * Builds the textual report: throughput and latency percentiles per
+	 * operation, followed by the heap and thread usage of this JVM (which
+	 * includes the proxy when it is embedded).
+	 */
+	@Override
+	public String toString() {
+		double seconds = Math.max(1, stopNanos - startNanos) / 1e9;
+		StringBuilder out = new StringBuilder();
+		out.append(String.format("%-12s %10s %10s %9s %9s %9s %9s %8s%n",
+				"operation", "requests", "req/s", "p50(us)", "p99(us)",
+				"p999(us)", "max(us)", "errors"));
+
+		long total = 0;
+		for (Operation op : Operation.values()) {
+			LatencyHistogram h = latencies[op.ordinal()];
+			long count = h.getCount();
+			total += count;
+			out.append(String.format(
+					"%-12s %10d %10.1f %9d %9d %9d %9d %8d%n", op, count,
+					count / seconds, h.getPercentileMicros(50),
+					h.getPercentileMicros(99), h.getPercentileMicros(99.9),
+					h.getMaxMicros(), failures[op.ordinal()].sum()));
+		}
+		out.append(String.format("%-12s %10d %10.1f%n", "total", total,
+				total / seconds));
+		out.append(String.format("notifications received: %d (%.1f/s)%n",
+				notifications.sum(), notifications.sum() / seconds));
+		RuntimeException failure = firstFailure.get();
+		out.append(String.format("failed cycles: %d%s%n", failedCycles.sum(),
+				(failure == null) ? "" : " (first: " + failure + ")"));
+
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean()
+				.getHeapMemoryUsage();
+		out.append(String.format("heap used: %.1f MiB of %.1f MiB committed%n",
+				heap.getUsed() / 1048576.0, heap.getCommitted() / 1048576.0));
+		out.append(String.format("threads: %d live, %d peak%n",
+				ManagementFactory.getThreadMXBean().getThreadCount(),
+				ManagementFactory.getThreadMXBean().getPeakThreadCount()));
+		return out.toString();
+	}
+}
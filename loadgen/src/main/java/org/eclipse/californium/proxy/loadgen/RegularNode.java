@@ -0,0 +1,208 @@
+/******************************************************************************
+ * @title: Regular Node
+ * 	Simulated regular node accessing the delegated resources
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy.loadgen;
+
+import static org.eclipse.californium.core.coap.MediaTypeRegistry.TEXT_PLAIN;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapObserveRelation;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.proxy.LinkFormatParser;
+import org.eclipse.californium.proxy.loadgen.LoadReport.Operation;
+
+/**
+ * RegularNode accesses the resources delegated to the proxy as any CoAP
+ * client would: it discovers them through a filtered GET on /sp, then keeps
+ * reading and writing random resources, one request per think time (one
+ * request out of four is a PUT). It also observes some of the resources,
+ * counting the notifications received. With several shards, the discovery
+ * lists the resources of the other shards with absolute URIs, which are
+ * then accessed directly on their own shard.
+ */
+public class RegularNode implements Runnable {
+
+	private final LoadConfig config;
+	private final LoadReport report;
+	private final ScheduledExecutorService scheduler;
+
+	private final CoapEndpoint endpoint;
+	private final CoapClient client;
+	private final String baseUri;
+
+	// URIs of the discovered resources
+	private List<String> resources;
+	private final List<CoapObserveRelation> relations;
+	private final List<CoapClient> observers;
+
+	private volatile boolean running;
+
+	/**
+	 * Instantiates the id-th regular node.
+	 *
+	 * @param id
+	 *            the identifier, also selecting the loopback address
+	 * @param config
+	 *            the configuration of the run
+	 * @param report
+	 *            the report where the requests are recorded
+	 * @param scheduler
+	 *            the executor running the requests and the endpoint
+	 */
+	public RegularNode(int id, LoadConfig config, LoadReport report,
+			ScheduledExecutorService scheduler) throws IOException {
+		this.config = config;
+		this.report = report;
+		this.scheduler = scheduler;
+
+		endpoint = new CoapEndpoint(
+				new InetSocketAddress(LoadGenerator.loopback(2, id), 0));
+		endpoint.setExecutor(scheduler);
+		endpoint.start();
+
+		client = new CoapClient();
+		client.setEndpoint(endpoint);
+		client.setTimeout(config.requestTimeout);
+		baseUri = LoadGenerator.baseUri(config, id % config.shards);
+
+		resources = new ArrayList<String>();
+		relations = new ArrayList<CoapObserveRelation>();
+		observers = new ArrayList<CoapClient>();
+	}
+
+	/**
+	 * Schedules the first request after a random delay within a think time.
+	 */
+	public void start() {
+		running = true;
+		long delay = (long) (Math.random() * Math.max(1, config.thinkMillis));
+		scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the node, cancelling its observe relations.
+	 */
+	public void stop() {
+		running = false;
+		for (CoapObserveRelation relation : relations) {
+			relation.proactiveCancel();
+		}
+		for (CoapClient observer : observers) {
+			observer.shutdown();
+		}
+		client.shutdown();
+		endpoint.destroy();
+	}
+
+	/**
+	 * A single request: a discovery until some resource is found, then a GET
+	 * or a PUT on a random resource.
+	 */
+	@Override
+	public void run() {
+		if (!running) {
+			return;
+		}
+		try {
+			if (resources.isEmpty()) {
+				discover();
+				observe();
+			} else {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				String uri = resources.get(random.nextInt(resources.size()));
+				if (random.nextInt(4) == 0) {
+					put(uri, random.nextInt());
+				} else {
+					get(uri);
+				}
+			}
+		} catch (RuntimeException e) {
+			// a stopped endpoint may throw, the node is stopping anyway;
+			// otherwise the cycle failed, the node goes on with the next one
+			if (running) {
+				report.cycleFailed(e);
+			}
+		}
+		if (running) {
+			scheduler.schedule(this, config.thinkMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void discover() {
+		long start = System.nanoTime();
+		client.setURI(baseUri + "/sp?rt=" + SleepyNode.RESOURCE_TYPE);
+		CoapResponse response = client.get();
+		boolean success = response != null
+				&& response.getCode() == CoAP.ResponseCode.CONTENT;
+		report.record(Operation.DISCOVERY, start, success);
+		if (success) {
+			List<String> found = new ArrayList<String>();
+			LinkFormatParser parser = new LinkFormatParser(
+					response.getPayload());
+			while (parser.nextLink()) {
+				String path = parser.getPath();
+				found.add(path.startsWith("/") ? baseUri + path : path);
+			}
+			resources = found;
+		}
+	}
+
+	private void observe() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < config.observersPerRegularNode
+				&& !resources.isEmpty(); i++) {
+			String uri = resources.get(random.nextInt(resources.size()));
+			CoapClient observer = new CoapClient(uri);
+			observer.setEndpoint(endpoint);
+			observers.add(observer);
+			relations.add(observer.observe(new CoapHandler() {
+				@Override
+				public void onLoad(CoapResponse response) {
+					report.notificationReceived();
+				}
+
+				@Override
+				public void onError() {
+				}
+			}));
+		}
+	}
+
+	private void get(String uri) {
+		long start = System.nanoTime();
+		client.setURI(uri);
+		CoapResponse response = client.get();
+		report.record(Operation.REGULAR_GET, start, response != null
+				&& response.getCode() == CoAP.ResponseCode.CONTENT);
+	}
+
+	private void put(String uri, int value) {
+		long start = System.nanoTime();
+		client.setURI(uri);
+		CoapResponse response = client.put(Integer.toString(value), TEXT_PLAIN);
+		report.record(Operation.REGULAR_PUT, start, response != null
+				&& response.getCode() == CoAP.ResponseCode.CHANGED);
+	}
+}
@@ -0,0 +1,249 @@
+/******************************************************************************
+ * @title: Sleepy Node
+ * 	Simulated sleepy node delegating its resources to the proxy
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy.loadgen;
+
+import static org.eclipse.californium.core.coap.MediaTypeRegistry.APPLICATION_LINK_FORMAT;
+import static org.eclipse.californium.core.coap.MediaTypeRegistry.TEXT_PLAIN;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.proxy.ContainerResource;
+import org.eclipse.californium.proxy.SenML;
+import org.eclipse.californium.proxy.loadgen.LoadReport.Operation;
+
+/**
+ * SleepyNode behaves like the sleepy nodes of sleepy-node-test.c: it registers
+ * its resources once with a POST on /sp, then at every wake-up it refreshes
+ * each resource with an owner PUT carrying the lifetime, polls its container
+ * with a POST and goes back to sleep. With the batch option, a wake-up sends
+ * instead a single PUT to the container, updating all the resources and
+ * returning the dirty ones, thus without any poll; the batch is sent in
+ * link-format or as a SenML pack, in JSON or CBOR. A registration redirected
+ * by a sharded proxy (4.03 with the URI of the owning shard) is sent again to
+ * the owner, which the node talks to from then on.
+ * <p>
+ * Every node is bound to its own loopback address, since the proxy recognizes
+ * the owner of a resource by its source address only.
+ */
+public class SleepyNode implements Runnable {
+
+	// Resource type of the simulated resources, used by the regular nodes
+	static final String RESOURCE_TYPE = "loadgen";
+
+	private final int id;
+	private final LoadConfig config;
+	private final LoadReport report;
+	private final ScheduledExecutorService scheduler;
+
+	private final CoapEndpoint endpoint;
+	private final CoapClient client;
+
+	// Base URI of the proxy, replaced by the one of the owning shard
+	private String baseUri;
+
+	// Location of the container, known after the registration
+	private String location;
+	private long sequence;
+
+	private volatile boolean running;
+
+	/**
+	 * Instantiates the id-th sleepy node.
+	 *
+	 * @param id
+	 *            the identifier, also selecting the loopback address
+	 * @param config
+	 *            the configuration of the run
+	 * @param report
+	 *            the report where the requests are recorded
+	 * @param scheduler
+	 *            the executor running the wake-ups and the endpoint
+	 */
+	public SleepyNode(int id, LoadConfig config, LoadReport report,
+			ScheduledExecutorService scheduler) throws IOException {
+		this.id = id;
+		this.config = config;
+		this.report = report;
+		this.scheduler = scheduler;
+
+		endpoint = new CoapEndpoint(
+				new InetSocketAddress(LoadGenerator.loopback(1, id), 0));
+		endpoint.setExecutor(scheduler);
+		endpoint.start();
+
+		client = new CoapClient();
+		client.setEndpoint(endpoint);
+		client.setTimeout(config.requestTimeout);
+		baseUri = LoadGenerator.baseUri(config, id % config.shards);
+	}
+
+	/**
+	 * Schedules the first wake-up after a random delay within a sleep
+	 * period, so that the nodes do not wake up all together.
+	 */
+	public void start() {
+		running = true;
+		long delay = (long) (Math.random() * config.sleepMillis);
+		scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the node after the current wake-up.
+	 */
+	public void stop() {
+		running = false;
+		client.shutdown();
+		endpoint.destroy();
+	}
+
+	/**
+	 * A wake-up: registration if needed, owner PUTs, poll (unless the
+	 * responses to the PUTs carry the changes), then sleep.
+	 */
+	@Override
+	public void run() {
+		if (!running) {
+			return;
+		}
+		try {
+			if (location == null) {
+				register();
+			}
+			if (location != null) {
+				sequence++;
+				if (config.batch) {
+					batchUpdate();
+				} else {
+					for (int r = 0; r < config.resourcesPerNode; r++) {
+						update(r);
+					}
+					if (!config.piggyback) {
+						poll();
+					}
+				}
+			}
+		} catch (RuntimeException e) {
+			// a stopped endpoint may throw, the node is stopping anyway;
+			// otherwise the cycle failed, the node goes on with the next one
+			if (running) {
+				report.cycleFailed(e);
+			}
+		}
+		if (running) {
+			scheduler.schedule(this, config.sleepMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void register() {
+		StringBuilder payload = new StringBuilder();
+		for (int r = 0; r < config.resourcesPerNode; r++) {
+			if (r > 0) {
+				payload.append(',');
+			}
+			payload.append("</s/r").append(r).append(">;rt=\"")
+					.append(RESOURCE_TYPE).append("\";if=\"sensor\";obs");
+		}
+
+		long start = System.nanoTime();
+		CoapResponse response = post(payload.toString());
+		if (response != null
+				&& response.getCode() == CoAP.ResponseCode.FORBIDDEN) {
+			// another shard owns the node: "coap://host:port/sp"
+			String owner = response.getResponseText();
+			baseUri = owner.substring(0, owner.lastIndexOf('/'));
+			response = post(payload.toString());
+		}
+		boolean success = response != null
+				&& response.getCode() == CoAP.ResponseCode.CREATED;
+		report.record(Operation.REGISTER, start, success);
+		if (success) {
+			location = response.getOptions().getLocationPathString();
+		}
+	}
+
+	private CoapResponse post(String payload) {
+		client.setURI(baseUri + "/sp?ep=node" + id + (config.piggyback
+				? "&" + ContainerResource.PIGGYBACK + "="
+						+ SenML.APPLICATION_SENML_CBOR
+				: ""));
+		return client.post(payload, APPLICATION_LINK_FORMAT);
+	}
+
+	private void update(int resource) {
+		long start = System.nanoTime();
+		client.setURI(baseUri + "/" + location + "/s/r" + resource + "?lt="
+				+ config.lifetime);
+		CoapResponse response = client.put(Long.toString(sequence), TEXT_PLAIN);
+		report.record(Operation.OWNER_PUT, start, response != null
+				&& (response.getCode() == CoAP.ResponseCode.CHANGED
+						|| response.getCode() == CoAP.ResponseCode.CREATED));
+	}
+
+	private void batchUpdate() {
+		byte[] payload;
+		if (SenML.isSenML(config.batchFormat)) {
+			List<SenML.Record> records = new ArrayList<SenML.Record>();
+			for (int r = 0; r < config.resourcesPerNode; r++) {
+				records.add(new SenML.Record("/s/r" + r, sequence,
+						config.lifetime));
+			}
+			payload = SenML.encode(records, config.batchFormat);
+		} else {
+			StringBuilder links = new StringBuilder();
+			for (int r = 0; r < config.resourcesPerNode; r++) {
+				if (r > 0) {
+					links.append(',');
+				}
+				links.append("</s/r").append(r).append(">;v=\"")
+						.append(sequence).append("\";lt=")
+						.append(config.lifetime);
+			}
+			payload = links.toString().getBytes(StandardCharsets.UTF_8);
+		}
+
+		long start = System.nanoTime();
+		client.setURI(baseUri + "/" + location);
+		CoapResponse response = client.put(payload, config.batchFormat);
+		report.record(Operation.BATCH_PUT, start, response != null
+				&& response.getCode() == CoAP.ResponseCode.CHANGED);
+	}
+
+	private void poll() {
+		long start = System.nanoTime();
+		client.setURI(baseUri + "/" + location);
+		CoapResponse response = client.post("", TEXT_PLAIN);
+		report.record(Operation.POLL, start, response != null
+				&& (response.getCode() == CoAP.ResponseCode.CHANGED
+						|| response.getCode() == CoAP.ResponseCode.VALID));
+	}
+
+	/**
+	 * Returns the source address of this node.
+	 */
+	public InetAddress getAddress() {
+		return endpoint.getAddress().getAddress();
+	}
+}
@@ -0,0 +1,105 @@
+/******************************************************************************
+ * @title: Check Changes Benchmark
+ * 	Cost of collecting the dirty resources of a sleepy node
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks Utilities.checkChanges(), i.e. the list of dirty resources
+ * returned to a sleepy node on every poll, on trees of different size and
+ * dirtiness. Since collecting clears the dirty flags, each invocation marks
+ * the same resources dirty again first: {@link #markOnly()} measures that
+ * part, plus clearing the flags through the dirty index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CheckChangesBenchmark {
+
+	@Param({ "100", "1000", "10000" })
+	int size;
+
+	// Percentage of dirty resources at every poll
+	@Param({ "0", "1", "10" })
+	int dirtyPercent;
+
+	private ProxyFixture fixture;
+	private List<DelegatedResource> dirty;
+	private List<String> filter;
+
+	@Setup
+	public void setup() {
+		fixture = new ProxyFixture(size, 4);
+
+		dirty = new ArrayList<DelegatedResource>();
+		int count = size * dirtyPercent / 100;
+		for (int i = 0; i < count; i++) {
+			// spread over the whole tree
+			dirty.add(fixture.resources.get(i * size / count));
+		}
+		filter = Collections.singletonList("rt=sensor0");
+	}
+
+	@TearDown
+	public void tearDown() {
+		fixture.destroy();
+	}
+
+	@Benchmark
+	public String checkChanges() {
+		mark();
+		return Utilities.checkChanges(fixture.container, null);
+	}
+
+	@Benchmark
+	public String checkChangesFiltered() {
+		mark();
+		return Utilities.checkChanges(fixture.container, filter);
+	}
+
+	@Benchmark
+	public int markOnly() {
+		mark();
+		for (DelegatedResource resource : dirty) {
+			resource.setDirty(false);
+		}
+		return dirty.size();
+	}
+
+	private void mark() {
+		for (DelegatedResource resource : dirty) {
+			resource.setDirty(true);
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/******************************************************************************
+ * @title: CoapTreeBuilder Benchmark
+ * 	Cost of adding and removing resources on deep paths
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks CoapTreeBuilder.add() and remove() on paths of different depth,
+ * in a container already holding 1000 resources. {@link #addRemove()} creates
+ * and removes a whole branch; {@link #replace()} re-adds an existing
+ * resource, as a sleepy node registering again does. The contended variants
+ * run on four threads working under different top-level resources, i.e. on
+ * different lock stripes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CoapTreeBuilderBenchmark {
+
+	@Param({ "2", "8", "16" })
+	int depth;
+
+	private ProxyFixture fixture;
+	private CoapTreeBuilder builder;
+	private SNResourceAttributes attributes;
+
+	@Setup
+	public void setup() {
+		fixture = new ProxyFixture(1000, depth);
+		builder = fixture.container.getCoapTreeBuilder();
+		attributes = new SNResourceAttributes();
+		attributes.addAttribute("rt", "sensor0");
+	}
+
+	@TearDown
+	public void tearDown() {
+		fixture.destroy();
+	}
+
+	/**
+	 * Per-thread path, under its own top-level resource.
+	 */
+	@State(Scope.Thread)
+	public static class ThreadPath {
+
+		private static int next = 0;
+
+		String branch;
+		String existing;
+
+		@Setup
+		public void setup(CoapTreeBuilderBenchmark benchmark) {
+			int id;
+			synchronized (ThreadPath.class) {
+				id = next++;
+			}
+			StringBuilder path = new StringBuilder("/bench").append(id);
+			for (int level = 1; level < benchmark.depth; level++) {
+				path.append("/n").append(level);
+			}
+			branch = path.toString();
+			existing = ProxyFixture.path(id, benchmark.depth);
+		}
+	}
+
+	@Benchmark
+	public boolean addRemove(ThreadPath path) {
+		DelegatedResource resource = new DelegatedResource(null, false,
+				attributes, fixture.container);
+		boolean added = builder.add(resource, path.branch,
+				VisibilityPolicy.ALL_INVISIBLE);
+		builder.remove(resource);
+		return added;
+	}
+
+	@Benchmark
+	public boolean replace(ThreadPath path) {
+		DelegatedResource resource = new DelegatedResource(null, false,
+				attributes, fixture.container);
+		return builder.add(resource, path.existing,
+				VisibilityPolicy.ALL_INVISIBLE);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean addRemoveContended(ThreadPath path) {
+		return addRemove(path);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean replaceContended(ThreadPath path) {
+		return replace(path);
+	}
+}
@@ -0,0 +1,110 @@
+/******************************************************************************
+ * @title: Cold Start Benchmark
+ * 	Time from a restart of the proxy to the first served request
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.server.resources.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the time-to-first-served-request after a restart: a new proxy
+ * opens a store holding the given number of resources, each one with a value
+ * and a lifetime, and serves a GET from a regular node on the last of them.
+ * Binding the endpoints is not included, being independent of the size.
+ * <p>
+ * The target is 1 s for 100000 resources, i.e. 10 microseconds per
+ * resource; 1000000 resources (-p size=1000000) need a larger heap than the
+ * one given to the fork.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ColdStartBenchmark {
+
+	// Depth of the registered paths
+	private static final int DEPTH = 4;
+
+	@Param({ "10000", "100000" })
+	int size;
+
+	private File directory;
+	private Proxy proxy;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		ProxyFixture fixture = new ProxyFixture(size, DEPTH);
+		for (DelegatedResource resource : fixture.resources) {
+			resource.handlePUT(InMemoryExchange.of(CoAP.Code.PUT,
+					ProxyFixture.OWNER, "21.5", resource, "lt=3600"));
+		}
+		directory = Files.createTempDirectory("coldstart").toFile();
+		fixture.proxy.getStore().open(directory);
+		// closing the store takes the snapshot loaded by every restart
+		fixture.destroy();
+	}
+
+	@TearDown(Level.Iteration)
+	public void stop() {
+		proxy.destroy();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Benchmark
+	public Response firstRequest() throws IOException {
+		proxy = new Proxy();
+		proxy.getStore().open(directory);
+
+		Resource resource = proxy.getEPs().get("bench");
+		String path = ProxyFixture.path(size - 1, DEPTH);
+		for (String name : path.substring(1).split("/")) {
+			resource = resource.getChild(name);
+		}
+		InMemoryExchange get = InMemoryExchange.of(CoAP.Code.GET,
+				ProxyFixture.REGULAR, null, (DelegatedResource) resource);
+		((DelegatedResource) resource).handleGET(get);
+		return get.getResponse();
+	}
+}
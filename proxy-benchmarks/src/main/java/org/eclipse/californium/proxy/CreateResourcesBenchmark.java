@@ -0,0 +1,104 @@
+/******************************************************************************
+ * @title: Create Resources Benchmark
+ * 	Cost of parsing a registration and creating its resources
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks SPResource.createResources() on registration payloads with a
+ * different number of links. Since the same payload is registered again and
+ * again, every invocation replaces the resources created by the previous one,
+ * as when a sleepy node reboots and registers again.
+ * <p>
+ * {@link #parse()} and {@link #split()} isolate the parsing: the first uses
+ * the LinkFormatParser, the second the String.split() tokenization that
+ * createResources() used before it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CreateResourcesBenchmark {
+
+	@Param({ "1", "10", "100" })
+	int links;
+
+	private ProxyFixture fixture;
+	private byte[] payload;
+
+	@Setup
+	public void setup() {
+		fixture = new ProxyFixture(0, 1);
+		payload = ProxyFixture.payload(links, 2)
+				.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@TearDown
+	public void tearDown() {
+		fixture.destroy();
+	}
+
+	@Benchmark
+	public void createResources() {
+		fixture.sp.createResources(payload, fixture.container);
+	}
+
+	@Benchmark
+	public void parse(Blackhole bh) {
+		LinkFormatParser parser = new LinkFormatParser(payload);
+		while (parser.nextLink()) {
+			bh.consume(parser.getPath());
+			while (parser.nextAttribute()) {
+				bh.consume(parser.getAttributeName());
+				bh.consume(parser.getAttributeValue());
+			}
+		}
+	}
+
+	@Benchmark
+	public void split(Blackhole bh) {
+		String text = new String(payload, StandardCharsets.UTF_8).trim();
+		for (String r : text.split(",")) {
+			String fields[] = r.split(";");
+			for (String attribute : fields) {
+				if (attribute.compareTo(fields[0]) != 0) { // exclude path name
+					String attr[] = attribute.split("=");
+					bh.consume(attr[0]);
+					// valueless attributes such as 'obs' have no value
+					bh.consume((attr.length > 1) ? attr[1].replace("\"", "")
+							: null);
+				}
+			}
+			bh.consume(fields[0].replace("<", "").replace(">", ""));
+		}
+	}
+}
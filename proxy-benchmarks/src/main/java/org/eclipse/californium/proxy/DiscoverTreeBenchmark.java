@@ -0,0 +1,95 @@
+/******************************************************************************
+ * @title: Discover Tree Benchmark
+ * 	Cost of the discovery of the delegated resources
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the discovery of the resources of a sleepy node:
+ * ContainerResource.discoverTree(), i.e. the serialization of the whole
+ * subtree, with and without a filter, and the GET handlers that regular nodes
+ * actually hit, i.e. the container (served from its link-format cache) and
+ * /sp with a query (served from the discovery index).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiscoverTreeBenchmark {
+
+	@Param({ "100", "1000", "10000" })
+	int size;
+
+	private ProxyFixture fixture;
+	private List<String> noFilter;
+	private List<String> filter;
+
+	@Setup
+	public void setup() {
+		fixture = new ProxyFixture(size, 4);
+		noFilter = Collections.emptyList();
+		filter = Collections.singletonList("rt=sensor0");
+	}
+
+	@TearDown
+	public void tearDown() {
+		fixture.destroy();
+	}
+
+	@Benchmark
+	public String discoverTree() {
+		return fixture.container.discoverTree(fixture.container, noFilter);
+	}
+
+	@Benchmark
+	public String discoverTreeFiltered() {
+		return fixture.container.discoverTree(fixture.container, filter);
+	}
+
+	@Benchmark
+	public Response containerGet() {
+		InMemoryExchange exchange = InMemoryExchange.of(CoAP.Code.GET,
+				ProxyFixture.REGULAR, null, fixture.container, "rt=sensor0");
+		fixture.container.handleGET(exchange);
+		return exchange.getResponse();
+	}
+
+	@Benchmark
+	public Response spDiscovery() {
+		InMemoryExchange exchange = InMemoryExchange.of(CoAP.Code.GET,
+				ProxyFixture.REGULAR, null, fixture.sp, "rt=sensor0");
+		fixture.sp.handleGET(exchange);
+		return exchange.getResponse();
+	}
+}
@@ -0,0 +1,93 @@
+/******************************************************************************
+ * @title: Handle GET Benchmark
+ * 	Cost of the GETs of the regular nodes on a delegated resource
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks DelegatedResource.handleGET() on a resource whose value does
+ * not change: plain reads, reads converted to another content-format by the
+ * Accept option, and revalidations by a client already holding the ETag,
+ * answered 2.03 Valid. With the representations cached per version, none of
+ * them copies nor converts the value.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandleGetBenchmark {
+
+	private ProxyFixture fixture;
+	private DelegatedResource resource;
+	private byte[] etag;
+
+	@Setup
+	public void setup() {
+		fixture = new ProxyFixture(1, 2);
+		resource = fixture.resources.get(0);
+		resource.handlePUT(InMemoryExchange.of(CoAP.Code.PUT,
+				ProxyFixture.OWNER, "21.5", resource, "lt=3600"));
+		etag = get().getOptions().getETags().get(0);
+	}
+
+	@TearDown
+	public void tearDown() {
+		fixture.destroy();
+	}
+
+	@Benchmark
+	public Response get() {
+		InMemoryExchange exchange = InMemoryExchange.of(CoAP.Code.GET,
+				ProxyFixture.REGULAR, null, resource);
+		resource.handleGET(exchange);
+		return exchange.getResponse();
+	}
+
+	@Benchmark
+	public Response getConverted() {
+		InMemoryExchange exchange = InMemoryExchange.of(CoAP.Code.GET,
+				ProxyFixture.REGULAR, null, resource);
+		exchange.getRequestOptions().setAccept(
+				MediaTypeRegistry.APPLICATION_CBOR);
+		resource.handleGET(exchange);
+		return exchange.getResponse();
+	}
+
+	@Benchmark
+	public Response revalidate() {
+		InMemoryExchange exchange = InMemoryExchange.of(CoAP.Code.GET,
+				ProxyFixture.REGULAR, null, resource);
+		exchange.getRequestOptions().addETag(etag);
+		resource.handleGET(exchange);
+		return exchange.getResponse();
+	}
+}
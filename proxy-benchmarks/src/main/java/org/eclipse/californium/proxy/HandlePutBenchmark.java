@@ -0,0 +1,103 @@
+/******************************************************************************
+ * @title: Handle PUT Benchmark
+ * 	Cost of the updates of delegated resources, under contention
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.net.InetAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks DelegatedResource.handlePUT(). The uncontended benchmarks issue
+ * owner PUTs (with lifetime, thus rearming the timer and collecting the dirty
+ * resources) and regular PUTs (marking the resource dirty) from one thread.
+ * The "contention" group runs one owner against three regular nodes, all
+ * updating the same few hot resources, as when a configuration resource is
+ * written by many clients while its sleepy node refreshes it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlePutBenchmark {
+
+	// Number of resources the PUTs are spread on
+	@Param({ "1", "16" })
+	int hotResources;
+
+	private ProxyFixture fixture;
+
+	@Setup
+	public void setup() {
+		fixture = new ProxyFixture(100, 2);
+		fixture.proxy.getLifetimeScheduler().start();
+	}
+
+	@TearDown
+	public void tearDown() {
+		fixture.destroy();
+	}
+
+	@Benchmark
+	public Response ownerPut() {
+		return put(ProxyFixture.OWNER, "lt=3600");
+	}
+
+	@Benchmark
+	public Response regularPut() {
+		return put(ProxyFixture.REGULAR);
+	}
+
+	@Benchmark
+	@Group("contention")
+	@GroupThreads(1)
+	public Response contendedOwnerPut() {
+		return put(ProxyFixture.OWNER, "lt=3600");
+	}
+
+	@Benchmark
+	@Group("contention")
+	@GroupThreads(3)
+	public Response contendedRegularPut() {
+		return put(ProxyFixture.REGULAR);
+	}
+
+	private Response put(InetAddress source, String... queries) {
+		DelegatedResource resource = fixture.resources
+				.get(ThreadLocalRandom.current().nextInt(hotResources));
+		InMemoryExchange exchange = InMemoryExchange.of(CoAP.Code.PUT, source,
+				"42", resource, queries);
+		resource.handlePUT(exchange);
+		return exchange.getResponse();
+	}
+}
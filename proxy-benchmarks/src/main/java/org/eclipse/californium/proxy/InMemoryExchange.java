@@ -0,0 +1,105 @@
+/******************************************************************************
+ * @title: In-Memory Exchange
+ * 	CoapExchange that never touches the network
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.net.InetAddress;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+
+/**
+ * InMemoryExchange lets the benchmarks call the handlers of the resources
+ * directly: the request is built in memory and the response is kept instead of
+ * being sent, so no endpoint nor socket is involved.
+ */
+public class InMemoryExchange extends CoapExchange {
+
+	private Response response;
+
+	// Options set through the CoapExchange API, applied to the response
+	private byte[] etag;
+	private Long maxAge;
+
+	/**
+	 * Wraps the given request, addressed to the given resource.
+	 */
+	public InMemoryExchange(Request request, CoapResource resource) {
+		super(new Exchange(request, Exchange.Origin.REMOTE), resource);
+	}
+
+	/**
+	 * Builds an exchange for a request coming from the given address.
+	 *
+	 * @param code
+	 *            the method of the request
+	 * @param source
+	 *            the address of the client
+	 * @param payload
+	 *            the payload, or null
+	 * @param resource
+	 *            the target resource
+	 * @param queries
+	 *            the URI queries, e.g. "lt=60"
+	 */
+	public static InMemoryExchange of(CoAP.Code code, InetAddress source,
+			String payload, CoapResource resource, String... queries) {
+		Request request = new Request(code);
+		request.setSource(source);
+		request.setSourcePort(5683);
+		if (payload != null) {
+			request.setPayload(payload);
+		}
+		for (String query : queries) {
+			request.getOptions().addUriQuery(query);
+		}
+		return new InMemoryExchange(request, resource);
+	}
+
+	@Override
+	public void setETag(byte[] etag) {
+		this.etag = etag;
+	}
+
+	@Override
+	public void setMaxAge(long maxAge) {
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * Keeps the response instead of sending it, with the options set through
+	 * the CoapExchange API as Californium would.
+	 */
+	@Override
+	public void respond(Response response) {
+		if (etag != null) {
+			response.getOptions().addETag(etag);
+		}
+		if (maxAge != null) {
+			response.getOptions().setMaxAge(maxAge);
+		}
+		this.response = response;
+	}
+
+	/**
+	 * Returns the response given by the resource, if any.
+	 */
+	public Response getResponse() {
+		return response;
+	}
+}
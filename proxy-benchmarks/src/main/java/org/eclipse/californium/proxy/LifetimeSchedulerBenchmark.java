@@ -0,0 +1,147 @@
+/******************************************************************************
+ * @title: Lifetime Scheduler Benchmark
+ * 	Cost of rearming the lifetime of a delegated resource
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the rearm of a lifetime, done on every owner PUT, among a given
+ * number of pending lifetimes. {@link #wheel()} uses the LifetimeScheduler;
+ * {@link #timerPerResource()} reproduces what DelegatedResource did before it,
+ * i.e. cancelling the java.util.Timer of the resource and starting a new one
+ * (with its own thread); {@link #sharedTimer()} cancels and schedules a task
+ * on a single java.util.Timer, the obvious alternative to the wheel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LifetimeSchedulerBenchmark {
+
+	// Lifetime of every timer, long enough never to expire
+	private static final long LIFETIME = TimeUnit.HOURS.toMillis(1);
+
+	private static final Runnable NOTHING = new Runnable() {
+		@Override
+		public void run() {
+		}
+	};
+
+	@Param({ "1000", "100000" })
+	int pending;
+
+	private LifetimeScheduler scheduler;
+	private LifetimeScheduler.Timeout[] timeouts;
+
+	private Timer sharedTimer;
+	private TimerTask[] sharedTasks;
+
+	// only a few per-resource timers, each one owns a thread
+	private Timer[] timers;
+
+	@Setup
+	public void setup() {
+		scheduler = new LifetimeScheduler();
+		scheduler.start();
+		timeouts = new LifetimeScheduler.Timeout[pending];
+		for (int i = 0; i < pending; i++) {
+			timeouts[i] = scheduler.schedule(NOTHING, LIFETIME);
+		}
+
+		sharedTimer = new Timer(true);
+		sharedTasks = new TimerTask[pending];
+		for (int i = 0; i < pending; i++) {
+			sharedTasks[i] = newTask();
+			sharedTimer.schedule(sharedTasks[i], LIFETIME);
+		}
+
+		timers = new Timer[16];
+		for (int i = 0; i < timers.length; i++) {
+			timers[i] = new Timer(true);
+			timers[i].schedule(newTask(), LIFETIME);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		scheduler.stop();
+		sharedTimer.cancel();
+		for (Timer timer : timers) {
+			timer.cancel();
+		}
+	}
+
+	@Benchmark
+	public void wheel() {
+		int i = ThreadLocalRandom.current().nextInt(pending);
+		scheduler.reschedule(timeouts[i], LIFETIME);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void wheelContended() {
+		wheel();
+	}
+
+	@Benchmark
+	public void sharedTimer() {
+		int i = ThreadLocalRandom.current().nextInt(pending);
+		synchronized (sharedTasks) {
+			sharedTasks[i].cancel();
+			sharedTasks[i] = newTask();
+			sharedTimer.schedule(sharedTasks[i], LIFETIME);
+			// cancelled tasks stay in the queue until purged
+			if ((i & 1023) == 0) {
+				sharedTimer.purge();
+			}
+		}
+	}
+
+	@Benchmark
+	public void timerPerResource() {
+		int i = ThreadLocalRandom.current().nextInt(timers.length);
+		timers[i].cancel();
+		timers[i].purge();
+		timers[i] = new Timer(true);
+		timers[i].schedule(newTask(), LIFETIME);
+	}
+
+	private static TimerTask newTask() {
+		return new TimerTask() {
+			@Override
+			public void run() {
+			}
+		};
+	}
+}
@@ -0,0 +1,120 @@
+/******************************************************************************
+ * @title: Observe Fan-out Benchmark
+ * 	Latency of the owner PUT on an observed resource
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.observe.ObserveRelation;
+import org.eclipse.californium.core.observe.ObservingEndpoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the latency of the owner PUT on a resource observed by the given
+ * number of regular nodes, with the notifications delivered by the
+ * {@link NotificationExecutor} or, when it is not started, by the thread
+ * handling the PUT as Californium does. The observers are established
+ * relations: their notifications are built by the real handlers, then
+ * dropped instead of being sent.
+ * <p>
+ * The sample mode reports the percentiles of the latency: with the executor,
+ * the p99 should not depend on the number of observers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObserveFanoutBenchmark {
+
+	@Param({ "1", "100", "1000" })
+	int observers;
+
+	// If true, the notifications are delivered by the notification executor
+	@Param({ "true", "false" })
+	boolean executor;
+
+	private ProxyFixture fixture;
+	private DelegatedResource resource;
+
+	@Setup
+	public void setup() {
+		fixture = new ProxyFixture(1, 2);
+		fixture.proxy.getLifetimeScheduler().start();
+		if (executor) {
+			fixture.proxy.getNotificationExecutor().start();
+		}
+
+		resource = fixture.resources.get(0);
+		for (int i = 0; i < observers; i++) {
+			int port = 10000 + i;
+			Request request = new Request(CoAP.Code.GET);
+			request.setSource(ProxyFixture.REGULAR);
+			request.setSourcePort(port);
+			request.setToken(new byte[] { (byte) (i >>> 8), (byte) i });
+			Exchange exchange = new DroppingExchange(request);
+			ObserveRelation relation = new ObserveRelation(
+					new ObservingEndpoint(new InetSocketAddress(
+							ProxyFixture.REGULAR, port)),
+					resource, exchange);
+			exchange.setRelation(relation);
+			relation.setEstablished(true);
+			resource.addObserveRelation(relation);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		fixture.destroy();
+	}
+
+	@Benchmark
+	public Response ownerPut() {
+		InMemoryExchange exchange = InMemoryExchange.of(CoAP.Code.PUT,
+				ProxyFixture.OWNER, "42", resource, "lt=3600");
+		resource.handlePUT(exchange);
+		return exchange.getResponse();
+	}
+
+	/*
+	 * Exchange of an observer, dropping the notifications
+	 */
+	private static class DroppingExchange extends Exchange {
+		DroppingExchange(Request request) {
+			super(request, Exchange.Origin.REMOTE);
+		}
+
+		@Override
+		public void sendResponse(Response response) {
+			// not sent: only building the notification is measured
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/******************************************************************************
+ * @title: Proxy Fixture
+ * 	Proxy populated with the resources of a sleepy node, for benchmarks
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.server.resources.Resource;
+
+/**
+ * ProxyFixture builds a proxy, without endpoints, where a sleepy node has
+ * registered and initialized a given number of resources. Registration and
+ * initialization go through the real handlers (POST on /sp, then an owner
+ * PUT on every resource), driven by {@link InMemoryExchange}s.
+ * <p>
+ * Resource i is registered as /g(i%16)/l1/.../r(i), with the given depth,
+ * and has resource type "sensor(i%8)".
+ */
+public class ProxyFixture {
+
+	// Number of resource types, i.e. selectivity of a filtered discovery
+	public static final int RESOURCE_TYPES = 8;
+
+	// Sources of the sleepy node and of the regular nodes
+	public static final InetAddress OWNER = address(10, 0, 0, 1);
+	public static final InetAddress REGULAR = address(10, 0, 0, 2);
+
+	public final Proxy proxy;
+	public final SPResource sp;
+	public final ContainerResource container;
+	public final List<DelegatedResource> resources;
+
+	/**
+	 * Builds a proxy with the given number of resources, registered at the
+	 * given depth.
+	 */
+	public ProxyFixture(int size, int depth) {
+		ProxyLogger.setLevel(ProxyLogger.Level.OFF);
+
+		proxy = new Proxy();
+		sp = (SPResource) proxy.getRoot().getChild("sp");
+
+		InMemoryExchange registration = InMemoryExchange.of(CoAP.Code.POST,
+				OWNER, payload(size, depth), sp, "ep=bench");
+		sp.handlePOST(registration);
+		container = proxy.getEPs().get("bench");
+
+		resources = new ArrayList<DelegatedResource>(size);
+		collect(container, resources);
+		for (DelegatedResource resource : resources) {
+			resource.handlePUT(InMemoryExchange.of(CoAP.Code.PUT, OWNER, "0",
+					resource));
+		}
+	}
+
+	/**
+	 * Returns the registration payload of the given number of resources.
+	 */
+	public static String payload(int size, int depth) {
+		StringBuilder payload = new StringBuilder();
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				payload.append(',');
+			}
+			payload.append('<').append(path(i, depth))
+					.append(">;rt=\"sensor").append(i % RESOURCE_TYPES)
+					.append("\";if=\"core.s\";obs");
+		}
+		return payload.toString();
+	}
+
+	/**
+	 * Returns the path of resource i, made of the given number of segments.
+	 */
+	public static String path(int i, int depth) {
+		StringBuilder path = new StringBuilder();
+		if (depth > 1) {
+			path.append("/g").append(i % 16);
+		}
+		for (int level = 1; level < depth - 1; level++) {
+			path.append("/l").append(level);
+		}
+		return path.append("/r").append(i).toString();
+	}
+
+	/**
+	 * Destroys the proxy.
+	 */
+	public void destroy() {
+		proxy.destroy();
+	}
+
+	private static void collect(Resource root, List<DelegatedResource> out) {
+		for (Resource child : root.getChildren()) {
+			if (child instanceof DelegatedResource) {
+				out.add((DelegatedResource) child);
+			}
+			collect(child, out);
+		}
+	}
+
+	private static InetAddress address(int a, int b, int c, int d) {
+		try {
+			return InetAddress.getByAddress(
+					new byte[] { (byte) a, (byte) b, (byte) c, (byte) d });
+		} catch (UnknownHostException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
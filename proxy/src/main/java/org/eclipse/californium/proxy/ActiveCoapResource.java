@@ -47,7 +47,7 @@ public class ActiveCoapResource extends CoapResource {
 	 * sleepy nodes delegating resources to proxies, a delegated resource is
 	 * marked as dirty when it is modified by a node excepts its owner.
 	 */
-	private boolean dirty;
+	private volatile boolean dirty;
 
 	/**
 	 * Constructs a new resource with the specified name and active/inactive
@@ -87,15 +87,37 @@ public class ActiveCoapResource extends CoapResource {
 	}
 
 	/**
-	 * Set this resource with the specified dirtiness state
+	 * Set this resource with the specified dirtiness state. If the resource
+	 * belongs to a ContainerResource, the dirty index of the container is
+	 * updated as well.
 	 * 
 	 * @param dirty
 	 *            true if dirty
 	 */
 	public void setDirty(boolean dirty) {
+		ContainerResource container = getContainer();
+		if (container == null) {
+			this.dirty = dirty;
+		} else {
+			container.getDirtyIndex().update(this, dirty);
+		}
+	}
+
+	/*
+	 * Only sets the flag, used by DirtyIndex while holding its monitor
+	 */
+	void applyDirty(boolean dirty) {
 		this.dirty = dirty;
 	}
 
+	/**
+	 * Returns the ContainerResource this resource belongs to, or null if it
+	 * does not belong to any container (e.g. internal inactive resources).
+	 */
+	public ContainerResource getContainer() {
+		return null;
+	}
+
 	/**
 	 * Returns the values of the "dirty" flag
 	 */
@@ -0,0 +1,363 @@
+/******************************************************************************
+ * @title: CBOR
+ * 	Minimal CBOR (RFC 7049) encoder and decoder
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cbor converts CBOR data items to and from plain Java objects: integers are
+ * mapped to Long, floating point numbers to Double, byte strings to byte[],
+ * text strings to String, arrays to List, maps to Map (keeping the order of
+ * the keys), true and false to Boolean, null and undefined to null. Tags are
+ * skipped.
+ * <p>
+ * Floating point numbers are encoded in single precision whenever this does
+ * not lose information. Indefinite-length arrays and maps are accepted, while
+ * indefinite-length strings are not.
+ */
+public class Cbor {
+
+	// Major types
+	private static final int UNSIGNED = 0;
+	private static final int NEGATIVE = 1;
+	private static final int BYTES = 2;
+	private static final int TEXT = 3;
+	private static final int ARRAY = 4;
+	private static final int MAP = 5;
+	private static final int SIMPLE = 7;
+
+	// Additional information of the indefinite lengths
+	private static final int INDEFINITE = 31;
+
+	// "break" stop code, closing indefinite-length items
+	private static final int BREAK = 0xFF;
+
+	// Maximum nesting of arrays, maps and tags
+	private static final int MAX_DEPTH = 16;
+
+	/**
+	 * Encodes an object as a CBOR data item.
+	 *
+	 * @param value
+	 *            the object, made of the types listed in the class
+	 *            description
+	 * @return the encoded item
+	 * @throws IllegalArgumentException
+	 *             if the object contains a type which cannot be encoded
+	 */
+	public static byte[] encode(Object value) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+		write(out, value);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes a CBOR data item.
+	 *
+	 * @param data
+	 *            the encoded item, with nothing after it
+	 * @return the object
+	 * @throws IllegalArgumentException
+	 *             if the item is malformed or followed by other bytes
+	 */
+	public static Object decode(byte[] data) {
+		Reader reader = new Reader(data);
+		Object value = reader.read(0);
+		if (reader.position != data.length) {
+			throw new IllegalArgumentException("trailing bytes");
+		}
+		return value;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void write(ByteArrayOutputStream out, Object value) {
+		if (value == null) {
+			out.write(SIMPLE << 5 | 22);
+		} else if (value instanceof Boolean) {
+			out.write(SIMPLE << 5 | ((Boolean) value ? 21 : 20));
+		} else if (value instanceof Double || value instanceof Float) {
+			double d = ((Number) value).doubleValue();
+			float f = (float) d;
+			if (f == d || Double.isNaN(d)) {
+				out.write(SIMPLE << 5 | 26);
+				bigEndian(out, Float.floatToIntBits(f), 4);
+			} else {
+				out.write(SIMPLE << 5 | 27);
+				bigEndian(out, Double.doubleToLongBits(d), 8);
+			}
+		} else if (value instanceof Number) {
+			long n = ((Number) value).longValue();
+			if (n >= 0) {
+				head(out, UNSIGNED, n);
+			} else {
+				head(out, NEGATIVE, -1 - n);
+			}
+		} else if (value instanceof String) {
+			byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+			head(out, TEXT, bytes.length);
+			out.write(bytes, 0, bytes.length);
+		} else if (value instanceof byte[]) {
+			byte[] bytes = (byte[]) value;
+			head(out, BYTES, bytes.length);
+			out.write(bytes, 0, bytes.length);
+		} else if (value instanceof List) {
+			List<Object> list = (List<Object>) value;
+			head(out, ARRAY, list.size());
+			for (Object item : list) {
+				write(out, item);
+			}
+		} else if (value instanceof Map) {
+			Map<Object, Object> map = (Map<Object, Object>) value;
+			head(out, MAP, map.size());
+			for (Map.Entry<Object, Object> entry : map.entrySet()) {
+				write(out, entry.getKey());
+				write(out, entry.getValue());
+			}
+		} else {
+			throw new IllegalArgumentException(
+					"cannot encode " + value.getClass().getName());
+		}
+	}
+
+	/*
+	 * Writes the initial byte of an item, followed by its argument in the
+	 * shortest form
+	 */
+	private static void head(ByteArrayOutputStream out, int major, long n) {
+		if (n < 24) {
+			out.write(major << 5 | (int) n);
+		} else if (n < 0x100) {
+			out.write(major << 5 | 24);
+			out.write((int) n);
+		} else if (n < 0x10000) {
+			out.write(major << 5 | 25);
+			bigEndian(out, n, 2);
+		} else if (n < 0x100000000L) {
+			out.write(major << 5 | 26);
+			bigEndian(out, n, 4);
+		} else {
+			out.write(major << 5 | 27);
+			bigEndian(out, n, 8);
+		}
+	}
+
+	private static void bigEndian(ByteArrayOutputStream out, long n,
+			int bytes) {
+		for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+			out.write((int) (n >>> shift));
+		}
+	}
+
+	/*
+	 * Decoder of a buffer, keeping the current position
+	 */
+	private static class Reader {
+		final byte[] data;
+		int position;
+
+		Reader(byte[] data) {
+			this.data = data;
+		}
+
+		Object read(int depth) {
+			if (depth > MAX_DEPTH) {
+				throw new IllegalArgumentException("nested too deep");
+			}
+			int initial = next();
+			if (initial == BREAK) {
+				throw new IllegalArgumentException("unexpected break");
+			}
+			return read(initial, depth);
+		}
+
+		Object read(int initial, int depth) {
+			int major = initial >>> 5;
+			int info = initial & 0x1F;
+
+			if (major == SIMPLE) {
+				switch (info) {
+				case 20:
+					return Boolean.FALSE;
+				case 21:
+					return Boolean.TRUE;
+				case 22:
+				case 23:
+					return null;
+				case 25:
+					return halfToDouble((int) fixed(2));
+				case 26:
+					return (double) Float.intBitsToFloat((int) fixed(4));
+				case 27:
+					return Double.longBitsToDouble(fixed(8));
+				default:
+					throw new IllegalArgumentException(
+							"unsupported simple value " + info);
+				}
+			}
+
+			if (info == INDEFINITE) {
+				if (major == ARRAY || major == MAP) {
+					return container(major, -1, depth);
+				}
+				throw new IllegalArgumentException(
+						"unsupported indefinite length");
+			}
+			long n = argument(info);
+
+			switch (major) {
+			case UNSIGNED:
+				checkLong(n);
+				return n;
+			case NEGATIVE:
+				checkLong(n);
+				return -1 - n;
+			case BYTES:
+				return bytes(n);
+			case TEXT:
+				return new String(bytes(n), StandardCharsets.UTF_8);
+			case ARRAY:
+			case MAP:
+				// every element takes at least one byte
+				return container(major, length(n), depth);
+			default: // TAG, skipped
+				return read(depth + 1);
+			}
+		}
+
+		/*
+		 * Reads an array or a map of the given size, -1 if indefinite
+		 */
+		Object container(int major, int size, int depth) {
+			List<Object> list = (major == ARRAY)
+					? new ArrayList<Object>(Math.max(size, 4)) : null;
+			Map<Object, Object> map = (major == MAP)
+					? new LinkedHashMap<Object, Object>() : null;
+			for (int i = 0; size < 0 || i < size; i++) {
+				if (size < 0 && peek() == BREAK) {
+					position++;
+					break;
+				}
+				if (list != null) {
+					list.add(read(depth + 1));
+				} else {
+					Object key = read(depth + 1);
+					map.put(key, read(depth + 1));
+				}
+			}
+			return (list != null) ? list : map;
+		}
+
+		/*
+		 * Reads the argument of an item, given its additional information
+		 */
+		long argument(int info) {
+			if (info < 24) {
+				return info;
+			}
+			int bytes;
+			switch (info) {
+			case 24:
+				bytes = 1;
+				break;
+			case 25:
+				bytes = 2;
+				break;
+			case 26:
+				bytes = 4;
+				break;
+			case 27:
+				bytes = 8;
+				break;
+			default:
+				throw new IllegalArgumentException(
+						"invalid additional information " + info);
+			}
+			return fixed(bytes);
+		}
+
+		/*
+		 * Reads a big-endian unsigned number of the given size
+		 */
+		long fixed(int bytes) {
+			long n = 0;
+			for (int i = 0; i < bytes; i++) {
+				n = (n << 8) | next();
+			}
+			return n;
+		}
+
+		byte[] bytes(long n) {
+			byte[] bytes = new byte[length(n)];
+			System.arraycopy(data, position, bytes, 0, bytes.length);
+			position += bytes.length;
+			return bytes;
+		}
+
+		/*
+		 * Checks a length read from the data, which cannot exceed the bytes
+		 * left; an 8-byte argument with the top bit set is negative as a
+		 * long
+		 */
+		int length(long n) {
+			if (n < 0) {
+				throw new IllegalArgumentException("length out of range");
+			}
+			if (n > data.length - position) {
+				throw new IllegalArgumentException("truncated item");
+			}
+			return (int) n;
+		}
+
+		int next() {
+			if (position == data.length) {
+				throw new IllegalArgumentException("truncated item");
+			}
+			return data[position++] & 0xFF;
+		}
+
+		int peek() {
+			if (position == data.length) {
+				throw new IllegalArgumentException("truncated item");
+			}
+			return data[position] & 0xFF;
+		}
+
+		private static void checkLong(long n) {
+			if (n < 0) {
+				throw new IllegalArgumentException("integer out of range");
+			}
+		}
+
+		private static double halfToDouble(int half) {
+			int exponent = (half >>> 10) & 0x1F;
+			int mantissa = half & 0x3FF;
+			double value;
+			if (exponent == 0) {
+				value = Math.scalb((double) mantissa, -24);
+			} else if (exponent == 31) {
+				value = (mantissa == 0) ? Double.POSITIVE_INFINITY
+						: Double.NaN;
+			} else {
+				value = Math.scalb((double) (mantissa + 1024), exponent - 25);
+			}
+			return ((half & 0x8000) != 0) ? -value : value;
+		}
+	}
+}
@@ -15,6 +15,9 @@
 
 package org.eclipse.californium.proxy;
 
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
 import org.eclipse.californium.core.CoapResource;
 import org.eclipse.californium.core.server.resources.Resource;
 
@@ -51,10 +54,17 @@ import org.eclipse.californium.core.server.resources.Resource;
  * <p>
  * The CoapTreeBuilder root is built outside the CoapTreeBiulder, and outside
  * the CoapTreeBuilder must be deleted.
+ * <p>
+ * Lookups are lock-free, while <tt>add()</tt> and <tt>remove()</tt> lock only
+ * the subtree below the first piece of the path they work on, so that
+ * operations on different subtrees of the same root proceed in parallel.
  *
  */
 public class CoapTreeBuilder {
 
+	private static final ProxyLogger LOGGER = ProxyLogger
+			.getLogger(CoapTreeBuilder.class);
+
 	// The root of the CoapTreeBuilder
 	private ActiveCoapResource root;
 
@@ -69,6 +79,17 @@ public class CoapTreeBuilder {
 	 */
 	private VisibilityPolicy defaultVisibility;
 
+	// Number of lock stripes (must be a power of two)
+	private static final int STRIPES = 16;
+
+	/*
+	 * Structural changes (add and remove) are serialized per subtree: the
+	 * resources below the same child of the root share the same lock, chosen
+	 * by the hash of the child name. Lookups never lock, since the children
+	 * of every CoapResource are kept in a concurrent map.
+	 */
+	private final Lock[] stripes;
+
 	/**
 	 * Creates a CoapTreeBuilder with the given root and visibility policy.
 	 * 
@@ -82,6 +103,10 @@ public class CoapTreeBuilder {
 			VisibilityPolicy visibility) {
 		this.root = root;
 		this.defaultVisibility = visibility;
+		this.stripes = new Lock[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new ReentrantLock();
+		}
 	}
 
 	/**
@@ -95,63 +120,67 @@ public class CoapTreeBuilder {
 	}
 
 	/*
-	 * InfoPath is a class used internally in the add method in order to
-	 * simplify the handling of the path. The add method scan one piece of the
-	 * path at a time, and at each iteration consider only a single piece, thus
-	 * this class store the remainingPath, the piece of path being currently
-	 * examined, and offers method to 'remove' the first piece of the path from
-	 * the remaining path and making it the 'current' one.
+	 * Method that check the correctness of the parameter. In case problems are
+	 * detected 'false' is returned. A path is not valid if it is empty or made
+	 * of a single character followed only by slashes (e.g. "/" or "a//").
 	 */
-	private class InfoPath {
-		// Path that will be traversed
-		String remainingPath;
-		// resourceName is going to store, iteration after iteration,
-		// the part of the path taken into account in that single iteration
-		String current;
-
-		public InfoPath(String Path) {
-			remainingPath = Path;
+	private boolean parametersAreValid(String path) {
+		if (path == null || path.isEmpty()) {
+			return false;
 		}
-
-		public String getCurrent() {
-			return current;
+		for (int i = 1; i < path.length(); i++) {
+			if (path.charAt(i) != '/') {
+				return true;
+			}
 		}
+		return false;
+	}
 
-		public boolean pathParsingFinished() {
-			return (remainingPath == null) ? true : false;
-		}
+	/*
+	 * Returns the index of the end of the path segment starting at 'from'
+	 * (the leading '/' already skipped), i.e. the index of the next separator
+	 * or the length of the path if the segment is the last one.
+	 */
+	private static int segmentEnd(String path, int from) {
+		int separator = path.indexOf('/', from);
+		return (separator > from) ? separator : path.length();
+	}
 
-		public void removeFirst() {
-			// removes the first '/', it will be added again by in
-			// californium/core/CoapResource.setParent()
-			remainingPath = remainingPath.substring(1);
-			// is resourceName a simple name or a path?
-			int separatorIndex = remainingPath.indexOf('/');
-
-			if (separatorIndex > 0) {
-				// resourceName contains a path. We only need the name
-				current = remainingPath.substring(0, separatorIndex);
-				// remaining_path takes the remaining part of the path
-				remainingPath = remainingPath.substring(separatorIndex);
-			} else {
-				// remainingPath contains only the last part of the path now,
-				// i.e. it's only a simple name now.
-				current = remainingPath;
-				remainingPath = null;
-			}
-		}
+	/*
+	 * Returns the lock guarding the structural changes to the subtree rooted
+	 * in the child of the root with the given name hash. The hash is the one
+	 * computed by String.hashCode(), so that it can be obtained both from a
+	 * portion of a path and from a resource name.
+	 */
+	private Lock stripeOf(int nameHash) {
+		int h = nameHash ^ (nameHash >>> 16);
+		return stripes[h & (stripes.length - 1)];
 	}
 
 	/*
-	 * Method that check the correctness of the parameter. In case problems are
-	 * detected 'false' is returned.
+	 * Same as String.hashCode() on path.substring(from, to), without
+	 * allocating the substring.
 	 */
-	private boolean parametersAreValid(String path) {
+	private static int hashOf(String path, int from, int to) {
+		int h = 0;
+		for (int i = from; i < to; i++) {
+			h = 31 * h + path.charAt(i);
+		}
+		return h;
+	}
 
-		if (path.matches("^./*$")) {
-			return false;
+	/*
+	 * Returns the ancestor of the given resource which is child of the root,
+	 * or null if the resource is not attached to the tree of the root.
+	 */
+	private Resource topLevelAncestor(Resource resource) {
+		Resource top = resource;
+		Resource parent = resource.getParent();
+		while (parent != null && parent != root) {
+			top = parent;
+			parent = top.getParent();
 		}
-		return true;
+		return (parent == null) ? null : top;
 	}
 
 	/**
@@ -199,52 +228,83 @@ public class CoapTreeBuilder {
 	 *            this policy.
 	 * @return true in case of correct creation, false otherwise.
 	 */
-	public synchronized boolean add(ActiveCoapResource newResource, String path,
+	public boolean add(ActiveCoapResource newResource, String path,
 			VisibilityPolicy vPolicy) {
 		if (parametersAreValid(path) == false) {
 			return false;
 		}
+		// Structural changes below the same child of the root are serialized
+		// by the lock of its stripe
+		Lock lock = stripeOf(hashOf(path, 1, segmentEnd(path, 1)));
+		Resource replaced;
+		lock.lock();
+		try {
+			replaced = addResource(newResource, path, vPolicy);
+		} finally {
+			lock.unlock();
+		}
+		if (replaced instanceof DelegatedResource) {
+			// outside the stripe lock, since it takes the resource lock
+			((DelegatedResource) replaced).retire();
+		}
+		invalidateLinkFormat();
+		return true;
+	}
+
+	/*
+	 * Implementation of add(), called holding the proper stripe lock. Returns
+	 * the resource replaced by the new one, if any.
+	 */
+	private Resource addResource(ActiveCoapResource newResource, String path,
+			VisibilityPolicy vPolicy) {
 		// In each iteration, currentFather store the father of the resource
 		// it is going to be created or traversed in that iteration.
 		// Initially it coincides with the root of the subtree
 		Resource currentFather = root;
-		// Class used to memorize remaining path and name of
-		// the resource that is currently being traversed or created.
-		// It also consider if the algorithm is considering the last part
-		// of the path
-		InfoPath iPath = new InfoPath(path);
+		// Offset of the piece of path currently being traversed or created.
+		// The path is scanned in place: only the names of the resources
+		// are extracted from it
+		int start = 0;
 		while (true) {
-			iPath.removeFirst();
-			System.out.println("[add]: "
-					+ "current=" + iPath.current 
-					+ ", remainingPath=" + iPath.remainingPath);
-			if (iPath.pathParsingFinished()) {
+			// skips the first '/', it will be added again by in
+			// californium/core/CoapResource.setParent()
+			start++;
+			int end = segmentEnd(path, start);
+			String current = path.substring(start, end);
+			LOGGER.debug("[add]: current={} of path {}", current, path);
+			if (end == path.length()) {
 				// The user, during newResource creation, should have
 				// set all its fields, like visibility, so the only
 				// fields still to be set is name
-				newResource.setName(iPath.current);
+				newResource.setName(current);
 				// In order to avoid breaking the subtree, if a resource
 				// with the same name of the resource is being created,
 				// its children have to be moved to the new resource
-				Resource toDelete = (currentFather.getChild(iPath.current));
+				Resource toDelete = currentFather.getChild(current);
 				if (toDelete != null) {
 					for (Resource child : toDelete.getChildren()) {
 						newResource.add(child);
 					}
 					currentFather.delete(toDelete);
+					forget(toDelete);
 				}
 				currentFather.add(newResource);
-				return true;
+				if (newResource instanceof DelegatedResource) {
+					DelegatedResource delegated = (DelegatedResource) newResource;
+					delegated.getContainer().getProxy().getDiscoveryIndex()
+							.add(delegated);
+				}
+				return toDelete;
 			} else {
 				// Does a resource with name resourceName already exists as
 				// child of the Resource we are considering?
-				Resource child = currentFather.getChild(iPath.getCurrent());
+				Resource child = currentFather.getChild(current);
 
 				if (child != null) {
 					if (!(child instanceof CoapResource)) {
-						System.err.println("[add]: Resource '" + child.getName()
-								+ "' is not a CoapResource, thus its visibility"
-								+ " will not be affected");
+						LOGGER.warn("[add]: Resource '{}' is not a CoapResource,"
+								+ " thus its visibility will not be affected",
+								child.getName());
 					} else {
 						// The resource already exists. We may need to
 						// change his visibility according to the policy
@@ -253,9 +313,10 @@ public class CoapTreeBuilder {
 					currentFather = child;
 				} else {
 					// The considered resource has to be created
-					currentFather = handleResourceCreation(iPath.getCurrent(),
+					currentFather = handleResourceCreation(current,
 							currentFather, vPolicy);
 				}
+				start = end;
 			}
 		}
 	}
@@ -263,9 +324,9 @@ public class CoapTreeBuilder {
 	// Handle already existing resources along the path
 	private void handleExistingResource(CoapResource child,
 			VisibilityPolicy vPolicy) {
-		System.out.println("[add]: traversing inactive internal resource"
-				+ " '" + child.getName() + "', visibility " + child.isVisible()
-				+ " and son of '" + child.getParent().getName() + "'");
+		LOGGER.debug("[add]: traversing inactive internal resource '{}',"
+				+ " visibility {} and son of '{}'", child.getName(),
+				child.isVisible(), child.getParent().getName());
 		// The intermediate resource was already there
 		switch (vPolicy) {
 		case ALL_VISIBLE:
@@ -294,9 +355,9 @@ public class CoapTreeBuilder {
 			break;
 		}
 		father.add(newResource);
-		System.out.println("[add]: created inactive internal resource" + " '" 
-				+ resourceName + "', visibility " + newResource.isVisible() 
-				+ " and son of '" + father.getName() + "'");
+		LOGGER.debug("[add]: created inactive internal resource '{}',"
+				+ " visibility {} and son of '{}'", resourceName,
+				newResource.isVisible(), father.getName());
 		return newResource;
 	}
 
@@ -310,7 +371,33 @@ public class CoapTreeBuilder {
 	 * @param child
 	 *            The resource to be removed
 	 */
-	public synchronized void remove(ActiveCoapResource child) {
+	public void remove(ActiveCoapResource child) {
+		if (child == null || child.equals(root)) {
+			return;
+		}
+		Resource top = topLevelAncestor(child);
+		if (top == null) {
+			// not (or no more) part of the tree
+			return;
+		}
+		Lock lock = stripeOf(top.getName().hashCode());
+		lock.lock();
+		try {
+			// the resource may have been removed while waiting for the lock
+			if (topLevelAncestor(child) == null) {
+				return;
+			}
+			removeResource(child);
+		} finally {
+			lock.unlock();
+		}
+		invalidateLinkFormat();
+	}
+
+	/*
+	 * Recursive implementation of remove()
+	 */
+	private void removeResource(ActiveCoapResource child) {
 		if (child == null) {
 			return;
 		}
@@ -331,8 +418,7 @@ public class CoapTreeBuilder {
 				 * thus it can to be removed
 				 */
 				parent.delete(child);
-				System.out.println("[remove]: '" 
-							+ child.getName() + "' removed");
+				LOGGER.debug("[remove]: '{}' removed", child.getName());
 				/*
 				 * The method is called recursively on the parent only as
 				 * long as it is a inactive resource.
@@ -347,7 +433,7 @@ public class CoapTreeBuilder {
 					activeParent = (ActiveCoapResource)parent;
 					if (activeParent.isActive() == false) {
 						// the parent is an inactive resource
-						remove(activeParent);
+						removeResource(activeParent);
 					}
 				}
 			} else {
@@ -365,8 +451,8 @@ public class CoapTreeBuilder {
 				 * can delete it and, iff the father is an inactive resource
 				 */
 				parent.delete(child);
-				System.out.println("[remove]: '" 
-						+ child.getName() + "' removed");
+				forget(child);
+				LOGGER.debug("[remove]: '{}' removed", child.getName());
 				/*
 				 * The method is called recursively on the parent only as
 				 * long as it is a inactive resource.
@@ -381,7 +467,7 @@ public class CoapTreeBuilder {
 					activeParent = (ActiveCoapResource)parent;
 					if (activeParent.isActive() == false) {
 						// the parent is an inactive resource
-						remove(activeParent);
+						removeResource(activeParent);
 					}
 				}
 			} else {
@@ -403,9 +489,40 @@ public class CoapTreeBuilder {
 				}
 
 				parent.delete(child);
+				forget(child);
 				parent.add(newInactiveResource);
 
 			}
 		}
 	}
+
+	/*
+	 * Drops a resource no more part of the tree from the indexes of the
+	 * container it belonged to.
+	 */
+	private void forget(Resource resource) {
+		if (resource instanceof ActiveCoapResource) {
+			ContainerResource container = 
+					((ActiveCoapResource) resource).getContainer();
+			if (container != null) {
+				container.getDirtyIndex().forget((ActiveCoapResource) resource);
+			}
+		}
+		if (resource instanceof DelegatedResource) {
+			DelegatedResource delegated = (DelegatedResource) resource;
+			delegated.getContainer().getProxy().getDiscoveryIndex()
+					.remove(delegated);
+		}
+	}
+
+	/*
+	 * The subtree changed: cached link-format serializations of the root are
+	 * no more valid.
+	 */
+	private void invalidateLinkFormat() {
+		ContainerResource container = root.getContainer();
+		if (container != null) {
+			container.getLinkFormatCache().invalidate();
+		}
+	}
 }
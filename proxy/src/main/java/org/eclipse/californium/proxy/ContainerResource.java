@@ -16,12 +16,16 @@ package org.eclipse.californium.proxy;
 import static org.eclipse.californium.core.coap.MediaTypeRegistry.APPLICATION_LINK_FORMAT;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.TreeMap;
+
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
 import org.eclipse.californium.core.coap.LinkFormat;
 import org.eclipse.californium.core.coap.MediaTypeRegistry;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 import org.eclipse.californium.core.server.resources.Resource;
+import org.eclipse.californium.core.server.resources.ResourceAttributes;
 
 /**
  * The ContainerResource implements CoAP's discovery service. It responds to GET
@@ -31,6 +35,15 @@ import org.eclipse.californium.core.server.resources.Resource;
  * subtree used to store the copies of the sleepy node's delegated resources.
  * Thus, the ContainerResource name will be part of the prefix of each
  * resource's complete URI.
+ * <p>
+ * The sleepy node may also update many of its resources with a single PUT on
+ * its ContainerResource, instead of one PUT per resource.
+ * <p>
+ * A ContainerResource holds a lease, given in seconds by the lt attribute of
+ * the registration or by the default of the {@link ContainerSweeper}, and
+ * renewed by every request of its sleepy node. Once the lease has expired and
+ * no delegated resource has a lifetime still running, the end-point is
+ * considered dead and the container is removed by the sweeper.
  */
 public class ContainerResource extends ActiveCoapResource {
 
@@ -38,7 +51,41 @@ public class ContainerResource extends ActiveCoapResource {
 	private CoapTreeBuilder coapTreeBuilder;
 
 	// The IP address of the sleepy node associated with this ContainerResource
-	private InetAddress snIpAddress;
+	private volatile InetAddress snIpAddress;
+
+	// The proxy this ContainerResource belongs to
+	private Proxy proxy;
+
+	// Index of the dirty resources delegated by the sleepy node
+	private DirtyIndex dirtyIndex;
+
+	// Cached link-format serializations of the subtree
+	private LinkFormatCache linkFormatCache;
+
+	// Registration attribute giving the lease of the container, in seconds
+	public static final String LEASE = "lt";
+
+	// Lease of the container, in milliseconds, guarded by the monitor
+	private long leaseMillis;
+
+	// Wall-clock time the lease expires at, guarded by the monitor
+	private long leaseExpiresAt;
+
+	// Set once the container is removed, guarded by the monitor
+	private boolean removed;
+
+	// Cleared while a new container is being added and logged by the
+	// registration creating it, guarded by the monitor
+	private boolean published = true;
+
+	/*
+	 * Registration attribute choosing the content-format of the lists of
+	 * changes sent without Accept option, e.g. pb=112 for SenML in CBOR
+	 */
+	public static final String PIGGYBACK = "pb";
+
+	// Content-format of the lists of changes sent without Accept option
+	private volatile int changesFormat = APPLICATION_LINK_FORMAT;
 
 	/**
 	 * Instantiates a new ContainerResource with the specified name, attributes,
@@ -51,12 +98,17 @@ public class ContainerResource extends ActiveCoapResource {
 	 * @param snIPAddress
 	 *            the address of the sleepy node associated with this
 	 *            ContainerResource
+	 * @param proxy
+	 *            the proxy this ContainerResource belongs to
 	 */
 	public ContainerResource(String name, SNResourceAttributes attributes,
-			InetAddress spIpAddress) {
+			InetAddress spIpAddress, Proxy proxy) {
 		super(name, true, true);
 
 		this.snIpAddress = spIpAddress;
+		this.proxy = proxy;
+		this.dirtyIndex = new DirtyIndex(this);
+		this.linkFormatCache = new LinkFormatCache();
 		this.coapTreeBuilder = new CoapTreeBuilder(this,
 				VisibilityPolicy.ALL_INVISIBLE);
 
@@ -64,6 +116,29 @@ public class ContainerResource extends ActiveCoapResource {
 			getAttributes().addAttribute(attr,
 					attributes.getAttributeValues(attr).get(0));
 		}
+
+		updateChangesFormat(attributes);
+		this.leaseMillis = leaseOf(attributes,
+				proxy.getContainerSweeper().getDefaultLease()) * 1000;
+		this.leaseExpiresAt = System.currentTimeMillis() + leaseMillis;
+	}
+
+	/*
+	 * Returns the lease requested by the lt attribute, in seconds, or the
+	 * default if it is missing or not a positive number
+	 */
+	private static long leaseOf(SNResourceAttributes attributes,
+			long defaultLease) {
+		List<String> values = attributes.getAttributeValues(LEASE);
+		if (values == null || values.isEmpty() || values.get(0) == null) {
+			return defaultLease;
+		}
+		try {
+			long lease = Long.parseLong(values.get(0).trim());
+			return (lease > 0) ? lease : defaultLease;
+		} catch (NumberFormatException e) {
+			return defaultLease;
+		}
 	}
 
 	/**
@@ -75,6 +150,43 @@ public class ContainerResource extends ActiveCoapResource {
 		return coapTreeBuilder;
 	}
 
+	/**
+	 * Get the proxy this ContainerResource belongs to.
+	 * 
+	 * @return the proxy
+	 */
+	public Proxy getProxy() {
+		return proxy;
+	}
+
+	/**
+	 * Get the index of the dirty resources delegated to this
+	 * ContainerResource.
+	 * 
+	 * @return the dirty index
+	 */
+	public DirtyIndex getDirtyIndex() {
+		return dirtyIndex;
+	}
+
+	/**
+	 * Get the cache of the link-format serializations of the subtree of this
+	 * ContainerResource. Whoever changes the subtree must invalidate it.
+	 * 
+	 * @return the link-format cache
+	 */
+	public LinkFormatCache getLinkFormatCache() {
+		return linkFormatCache;
+	}
+
+	/**
+	 * A ContainerResource is the container of itself.
+	 */
+	@Override
+	public ContainerResource getContainer() {
+		return this;
+	}
+
 	/**
 	 * Get the spIpAddress field, representing the IP address of the sleepy node
 	 * associated with this ContainerResource instance.
@@ -85,19 +197,265 @@ public class ContainerResource extends ActiveCoapResource {
 		return snIpAddress;
 	}
 
+	/**
+	 * Set the IP address of the sleepy node associated with this
+	 * ContainerResource, e.g. because the node registered again from a new
+	 * address.
+	 * 
+	 * @param snIpAddress
+	 *            the new address of the sleepy node
+	 */
+	public void setSPIpAddress(InetAddress snIpAddress) {
+		this.snIpAddress = snIpAddress;
+	}
+
+	/**
+	 * Get the content-format of the lists of changes sent to the sleepy node
+	 * in the responses to its PUT and POST requests without Accept option:
+	 * link-format, unless chosen otherwise at registration with the pb
+	 * attribute. With SenML (pb=110 or pb=112) the response to an update
+	 * carries the values of the dirty resources too, so the sleepy node
+	 * does not need to stay awake for a GET per changed resource; long lists
+	 * are sent block-wise by Californium.
+	 * 
+	 * @return the content-format of the lists of changes
+	 */
+	public int getChangesFormat() {
+		return changesFormat;
+	}
+
+	/**
+	 * Returns the content-format named by a value of the pb attribute, or -1
+	 * if it is not a content-format of the lists of changes.
+	 * 
+	 * @param value
+	 *            the value of the attribute
+	 * @return the content-format, or -1
+	 */
+	public static int piggybackFormat(String value) {
+		try {
+			int contentFormat = Integer.parseInt(value.trim());
+			return Utilities.isChangesFormat(contentFormat) ? contentFormat
+					: -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Applies the pb attribute of a new registration, if any.
+	 * 
+	 * @param attributes
+	 *            the attributes of the registration
+	 * @return true if the content-format of the lists of changes changed, so
+	 *         that the container has to be logged again
+	 */
+	public boolean updateChangesFormat(SNResourceAttributes attributes) {
+		List<String> values = attributes.getAttributeValues(PIGGYBACK);
+		if (values == null || values.isEmpty() || values.get(0) == null) {
+			return false;
+		}
+		int contentFormat = piggybackFormat(values.get(0));
+		if (contentFormat < 0 || contentFormat == changesFormat) {
+			return false;
+		}
+		// the snapshots copy the attributes under their monitor
+		ResourceAttributes own = getAttributes();
+		synchronized (own) {
+			own.setAttribute(PIGGYBACK, Integer.toString(contentFormat));
+		}
+		changesFormat = contentFormat;
+		return true;
+	}
+
+	/**
+	 * Get the end-point of the sleepy node, i.e. the key of this
+	 * ContainerResource in the map of the proxy.
+	 * 
+	 * @return the end-point
+	 */
+	public String getEndPoint() {
+		List<String> values = getAttributes()
+				.getAttributeValues(LinkFormat.END_POINT);
+		return (values == null || values.isEmpty()) ? null : values.get(0);
+	}
+
+	/**
+	 * Renews the lease, to be called for every request of the sleepy node
+	 * before acting on it.
+	 * 
+	 * @return false if the container has been removed meanwhile, and the
+	 *         request has to be answered as if it did not exist
+	 */
+	public synchronized boolean renewLease() {
+		if (removed) {
+			return false;
+		}
+		leaseExpiresAt = System.currentTimeMillis() + leaseMillis;
+		return true;
+	}
+
+	/**
+	 * Renews the lease on a new registration of the sleepy node, taking the
+	 * lease given by its lt attribute, if any, from now on. A new container
+	 * is waited for until the registration creating it has added and logged
+	 * it, thus this is never called inside a compute of the map of the
+	 * containers.
+	 * 
+	 * @param attributes
+	 *            the query attributes of the registration
+	 * @return false if the container has been removed meanwhile, and a new
+	 *         one has to be created
+	 */
+	public synchronized boolean renewLease(SNResourceAttributes attributes) {
+		awaitPublished();
+		if (removed) {
+			return false;
+		}
+		List<String> values = attributes.getAttributeValues(LEASE);
+		if (values != null && !values.isEmpty() && values.get(0) != null) {
+			long lease = leaseOf(attributes, leaseMillis / 1000);
+			leaseMillis = lease * 1000;
+			// kept with the container, so that recovery restores it
+			ResourceAttributes own = getAttributes();
+			synchronized (own) {
+				own.setAttribute(LEASE, Long.toString(lease));
+			}
+		}
+		return renewLease();
+	}
+
+	/*
+	 * Holds the other registrations of the end-point until publish() is
+	 * called, so that none of them logs a resource before the container
+	 * itself. Called on a new container, before it is mapped.
+	 */
+	synchronized void unpublish() {
+		published = false;
+	}
+
+	/*
+	 * Releases the registrations held by unpublish(), once the container has
+	 * been added and logged
+	 */
+	synchronized void publish() {
+		published = true;
+		notifyAll();
+	}
+
+	private void awaitPublished() {
+		boolean interrupted = false;
+		while (!published) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * Returns true if the lease has expired at the given wall-clock time
+	 */
+	synchronized boolean isLeaseExpired(long now) {
+		return leaseExpiresAt <= now;
+	}
+
+	synchronized boolean isRemoved() {
+		return removed;
+	}
+
+	/*
+	 * Marks the container as removed if its lease has expired at the given
+	 * wall-clock time, returning true if it did. Called by the sweeper while
+	 * unmapping the container, so that a concurrent renewal either keeps it
+	 * or finds it removed.
+	 */
+	synchronized boolean retireIfExpired(long now) {
+		if (removed || leaseExpiresAt > now) {
+			return false;
+		}
+		removed = true;
+		return true;
+	}
+
+	/*
+	 * Returns true if some delegated resource has a lifetime still running
+	 * at the given wall-clock time. Takes the lock of each resource in turn.
+	 */
+	boolean hasLiveResources(long now) {
+		for (DelegatedResource resource : delegatedResources()) {
+			if (resource.isAlive(now)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Tears down a container already unmapped by the sweeper or by the
+	 * recovery: its resources are retired and dropped from the discovery
+	 * index, their observers are told they are gone, and the container is
+	 * deleted from the tree. Called without holding any lock.
+	 */
+	void dispose() {
+		DiscoveryIndex index = proxy.getDiscoveryIndex();
+		for (DelegatedResource resource : delegatedResources()) {
+			resource.retire();
+			index.remove(resource);
+			resource.clearAndNotifyObserveRelations(ResponseCode.NOT_FOUND);
+		}
+		Resource parent = getParent();
+		if (parent != null) {
+			parent.delete(this);
+		}
+		clearAndNotifyObserveRelations(ResponseCode.NOT_FOUND);
+		linkFormatCache.invalidate();
+	}
+
+	/*
+	 * Returns the delegated resources of the subtree, parents first
+	 */
+	List<DelegatedResource> delegatedResources() {
+		List<DelegatedResource> resources = new ArrayList<DelegatedResource>();
+		collectDelegated(this, resources);
+		return resources;
+	}
+
+	private static void collectDelegated(Resource parent,
+			List<DelegatedResource> resources) {
+		for (Resource child : parent.getChildren()) {
+			if (child instanceof DelegatedResource) {
+				resources.add((DelegatedResource) child);
+			}
+			collectDelegated(child, resources);
+		}
+	}
+
 	/**
 	 * Responds with the list of resources in its subtree, i.e. its descendants.
 	 * Its subtree contain the copy of the resources delegated by the sleepy
 	 * node associated with this ContainerResource (if any). The response is in
-	 * application/link-format.
+	 * application/link-format. Serializations are served from the
+	 * link-format cache whenever the subtree has not changed.
 	 * 
 	 * @param exchange
 	 * 		The exchange object that handles requests/responses
 	 */
 	@Override
 	public void handleGET(CoapExchange exchange) {
-		String tree = discoverTree((Resource) this,
-				exchange.getRequestOptions().getUriQuery());
+		proxy.getMetrics().increment(ProxyMetrics.Counter.DISCOVERIES);
+		List<String> queries = exchange.getRequestOptions().getUriQuery();
+		String key = LinkFormatCache.keyOf(queries);
+		String tree = linkFormatCache.get(key);
+		if (tree == null) {
+			long generation = linkFormatCache.getGeneration();
+			tree = discoverTree((Resource) this, queries);
+			linkFormatCache.put(key, tree, generation);
+		}
 		exchange.respond(ResponseCode.CONTENT, tree,
 				MediaTypeRegistry.APPLICATION_LINK_FORMAT);
 	}
@@ -108,14 +466,18 @@ public class ContainerResource extends ActiveCoapResource {
 	 * a regular node for configuring purpose). The result use - if any - the
 	 * queries specified in the request in order to filter the result. This
 	 * method may only be called by the sleepy node associated with this
-	 * ContainerResource
+	 * ContainerResource. The list is sent in the content-format requested by
+	 * the Accept option, by default in the one chosen at registration (see
+	 * {@link #getChangesFormat()}). A poll renews the lease of
+	 * the container.
 	 * 
 	 * @param exchange
 	 * 		The exchange object that handles requests/responses
 	 */
 	@Override
 	public void handlePOST(CoapExchange exchange) {
-		String response = null;
+		long start = System.nanoTime();
+		byte[] response = null;
 
 		if (getSPIpAddress().equals(exchange.getSourceAddress())) {
 			/*
@@ -123,18 +485,31 @@ public class ContainerResource extends ActiveCoapResource {
 			 * "dirty" resources located in the subtree starting from the
 			 * resource "this" must be returned.
 			 */
+			if (!renewLease()) {
+				// removed as dead meanwhile, the node has to register again
+				exchange.respond(ResponseCode.NOT_FOUND);
+				return;
+			}
+			int accept = PayloadCodec.getAccept(exchange.getRequestOptions(),
+					changesFormat);
+			if (!Utilities.isChangesFormat(accept)) {
+				exchange.respond(ResponseCode.NOT_ACCEPTABLE);
+				return;
+			}
 			List<String> queries = exchange.getRequestOptions().getUriQuery();
-			response = Utilities.checkChanges(this, queries);
+			response = Utilities.checkChanges(this, queries, accept);
 			if (response != null) {
 				// At least one resource has been modified: response code
 				// CHANGED
-				exchange.respond(ResponseCode.CHANGED, response,
-						APPLICATION_LINK_FORMAT);
+				exchange.respond(ResponseCode.CHANGED, response, accept);
 			} else {
 				// No resource has been modified: response code VALID
 				exchange.respond(ResponseCode.VALID);
 			}
 
+			proxy.getMetrics().increment(ProxyMetrics.Counter.POLLS);
+			proxy.getMetrics().record(ProxyMetrics.Timer.POLL, start);
+
 		} else {
 			/*
 			 * The request comes from a node different from the owner of this
@@ -144,6 +519,258 @@ public class ContainerResource extends ActiveCoapResource {
 		}
 	}
 
+	/**
+	 * handlePUT applies a batch of updates sent by the sleepy node associated
+	 * with this ContainerResource, saving the radio time of one PUT per
+	 * resource. The payload lists the resources in link-format, each one
+	 * with its new value and, optionally, its lifetime and the content-format
+	 * of the value, e.g.
+	 * 
+	 * <pre>
+	 * &lt;/sensors/temp&gt;;v="21.5";lt=60,&lt;/sensors/hum&gt;;v="40";ct=0
+	 * </pre>
+	 * 
+	 * or, with the content-format of the request set accordingly, as a SenML
+	 * pack in JSON or CBOR, whose names are the paths of the resources and
+	 * whose records may carry the lifetime with the label "lt":
+	 * 
+	 * <pre>
+	 * [{"bn":"/sensors/","n":"temp","v":21.5,"lt":60},{"n":"hum","v":40}]
+	 * </pre>
+	 * 
+	 * The values of a SenML pack are stored as JSON or CBOR data items
+	 * respectively. Every update has the effect of a PUT from the owner on the resource.
+	 * The batch is atomic: the resources are locked in the order of their
+	 * URIs, and nothing is applied unless all the entries are valid and refer
+	 * to resources still delegated. Observers are notified once per resource,
+	 * after the locks are released, and the response carries the list of
+	 * dirty resources of the whole container, as the response to a PUT, in
+	 * the content-format requested by the Accept option or chosen at
+	 * registration.
+	 * 
+	 * @param exchange
+	 * 		The exchange object that handles requests/responses
+	 */
+	@Override
+	public void handlePUT(CoapExchange exchange) {
+		long start = System.nanoTime();
+
+		if (!getSPIpAddress().equals(exchange.getSourceAddress())) {
+			// only the owner may update its resources
+			exchange.respond(ResponseCode.METHOD_NOT_ALLOWED);
+			return;
+		}
+		if (!renewLease()) {
+			// removed as dead meanwhile, the node has to register again
+			exchange.respond(ResponseCode.NOT_FOUND);
+			return;
+		}
+
+		int accept = PayloadCodec.getAccept(exchange.getRequestOptions(),
+				changesFormat);
+		if (!Utilities.isChangesFormat(accept)) {
+			exchange.respond(ResponseCode.NOT_ACCEPTABLE);
+			return;
+		}
+
+		int contentFormat = exchange.getRequestOptions().hasContentFormat()
+				? exchange.getRequestOptions().getContentFormat()
+				: MediaTypeRegistry.UNDEFINED;
+		List<BatchEntry> entries;
+		try {
+			if (SenML.isSenML(contentFormat)) {
+				entries = parseSenMLBatch(exchange.getRequestPayload(),
+						contentFormat);
+			} else if (contentFormat == MediaTypeRegistry.UNDEFINED
+					|| contentFormat == APPLICATION_LINK_FORMAT) {
+				entries = parseBatch(exchange.getRequestPayload());
+			} else {
+				exchange.respond(ResponseCode.UNSUPPORTED_CONTENT_FORMAT);
+				return;
+			}
+		} catch (IllegalArgumentException e) {
+			exchange.respond(ResponseCode.BAD_REQUEST, e.getMessage());
+			return;
+		}
+
+		// every resource is locked once, in a global order
+		TreeMap<String, DelegatedResource> targets =
+				new TreeMap<String, DelegatedResource>();
+		for (BatchEntry entry : entries) {
+			entry.resource = findDelegated(entry.path);
+			if (entry.resource == null) {
+				exchange.respond(ResponseCode.NOT_FOUND, entry.path);
+				return;
+			}
+			targets.put(entry.resource.getURI(), entry.resource);
+		}
+
+		String missing = null;
+		List<DelegatedResource> locked = new ArrayList<DelegatedResource>(
+				targets.size());
+		try {
+			for (DelegatedResource resource : targets.values()) {
+				resource.getLock().lock();
+				locked.add(resource);
+				if (resource.isExpired()) {
+					missing = resource.getURI();
+					break;
+				}
+			}
+			if (missing == null) {
+				for (BatchEntry entry : entries) {
+					entry.resource.applyOwnerUpdate(entry.value,
+							entry.contentFormat, entry.lifetime);
+				}
+			}
+		} finally {
+			for (int i = locked.size() - 1; i >= 0; i--) {
+				locked.get(i).getLock().unlock();
+			}
+		}
+		if (missing != null) {
+			exchange.respond(ResponseCode.NOT_FOUND, missing);
+			return;
+		}
+
+		// notify the observers of every resource once
+		for (DelegatedResource resource : targets.values()) {
+			resource.valueChanged();
+		}
+
+		// with sync commit, the updates have to be on disk before answering
+		proxy.getStore().commit();
+
+		byte[] response = Utilities.checkChanges(this, null, accept);
+		if (response == null) {
+			exchange.respond(ResponseCode.CHANGED);
+		} else {
+			exchange.respond(ResponseCode.CHANGED, response, accept);
+		}
+		proxy.getMetrics().increment(ProxyMetrics.Counter.BATCH_PUTS);
+		proxy.getMetrics().record(ProxyMetrics.Timer.BATCH_PUT, start);
+	}
+
+	/*
+	 * An update of a batch
+	 */
+	private static class BatchEntry {
+		String path;
+		byte[] value;
+		int contentFormat = MediaTypeRegistry.UNDEFINED;
+		long lifetime = -1;
+		DelegatedResource resource;
+	}
+
+	/*
+	 * Parses the payload of a batch, throwing an IllegalArgumentException if
+	 * it is malformed
+	 */
+	private static List<BatchEntry> parseBatch(byte[] payload) {
+		List<BatchEntry> entries = new ArrayList<BatchEntry>();
+		LinkFormatParser parser = new LinkFormatParser(payload);
+		while (parser.nextLink()) {
+			BatchEntry entry = new BatchEntry();
+			entry.path = parser.getPath();
+			while (parser.nextAttribute()) {
+				if (parser.attributeNameIs("v")) {
+					entry.value = parser.getAttributeValueBytes();
+				} else if (parser.attributeNameIs("lt")) {
+					entry.lifetime = number(parser.getAttributeValue());
+				} else if (parser.attributeNameIs("ct")) {
+					entry.contentFormat = (int) number(
+							parser.getAttributeValue());
+				}
+			}
+			if (entry.value == null) {
+				throw new IllegalArgumentException(
+						"missing value of " + entry.path);
+			}
+			if (entry.value.length > ValueStore.MAX_VALUE_SIZE) {
+				throw new IllegalArgumentException(
+						"value of " + entry.path + " too large");
+			}
+			entries.add(entry);
+		}
+		if (entries.isEmpty()) {
+			throw new IllegalArgumentException("empty batch");
+		}
+		return entries;
+	}
+
+	/*
+	 * Parses a batch sent as a SenML pack, throwing an
+	 * IllegalArgumentException if it is malformed. Every value is stored as a
+	 * data item of the representation of the pack.
+	 */
+	private static List<BatchEntry> parseSenMLBatch(byte[] payload,
+			int contentFormat) {
+		int valueFormat = (contentFormat == SenML.APPLICATION_SENML_CBOR)
+				? MediaTypeRegistry.APPLICATION_CBOR
+				: MediaTypeRegistry.APPLICATION_JSON;
+		List<BatchEntry> entries = new ArrayList<BatchEntry>();
+		for (SenML.Record record : SenML.decode(payload, contentFormat)) {
+			BatchEntry entry = new BatchEntry();
+			entry.path = record.name;
+			if (!entry.path.startsWith("/")) {
+				throw new IllegalArgumentException(
+						"invalid name " + entry.path);
+			}
+			if (record.value == null) {
+				throw new IllegalArgumentException(
+						"missing value of " + entry.path);
+			}
+			entry.value = PayloadCodec.encode(record.value, valueFormat,
+					entry.path);
+			entry.contentFormat = valueFormat;
+			entry.lifetime = record.lifetime;
+			if (entry.value.length > ValueStore.MAX_VALUE_SIZE) {
+				throw new IllegalArgumentException(
+						"value of " + entry.path + " too large");
+			}
+			entries.add(entry);
+		}
+		if (entries.isEmpty()) {
+			throw new IllegalArgumentException("empty batch");
+		}
+		return entries;
+	}
+
+	private static long number(String value) {
+		try {
+			long n = Long.parseLong(value);
+			if (n >= 0) {
+				return n;
+			}
+		} catch (NumberFormatException e) {
+			// rethrown below
+		}
+		throw new IllegalArgumentException("invalid number " + value);
+	}
+
+	/**
+	 * Returns the delegated resource with the given path relative to this
+	 * ContainerResource, e.g. "/sensors/temp", or null if there is none.
+	 * 
+	 * @param path
+	 *            the path of the resource
+	 * @return the resource, or null
+	 */
+	public DelegatedResource findDelegated(String path) {
+		Resource current = this;
+		int start = 1;
+		while (current != null && start < path.length()) {
+			int end = path.indexOf('/', start);
+			if (end < 0) {
+				end = path.length();
+			}
+			current = current.getChild(path.substring(start, end));
+			start = end + 1;
+		}
+		return (current instanceof DelegatedResource)
+				? (DelegatedResource) current : null;
+	}
+
 	/**
 	 * Builds up the list of resources of the specified root resource. Queries
 	 * serve as filter and might prevent undesired resources from appearing on
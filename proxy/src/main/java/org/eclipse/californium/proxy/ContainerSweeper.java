@@ -0,0 +1,204 @@
+/******************************************************************************
+ * @title: Container Sweeper
+ * 	Background removal of the containers of dead end-points
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ContainerSweeper periodically removes the containers of the end-points
+ * which are dead, i.e. whose lease (see {@link ContainerResource}) has
+ * expired and whose delegated resources have no lifetime still running.
+ * <p>
+ * The sweep runs on its own thread. The map of the end-points is scanned
+ * without locking it, and the dead containers are removed in batches: each
+ * one is unmapped atomically with a last check of its lease, so that a
+ * request of its sleepy node arriving meanwhile either keeps it alive or
+ * finds it removed, then it is torn down with no lock of the map held.
+ * Request threads only wait for the removal of the single container they
+ * are looking up.
+ */
+public class ContainerSweeper {
+
+	private static final ProxyLogger LOGGER = ProxyLogger
+			.getLogger(ContainerSweeper.class);
+
+	// Default lease of the containers, in seconds, as the lifetime of CoRE RD
+	public static final long DEFAULT_LEASE = 86400;
+
+	// Default period between two sweeps, in seconds
+	public static final long DEFAULT_PERIOD = 60;
+
+	// Default number of containers removed per batch
+	public static final int DEFAULT_BATCH_SIZE = 256;
+
+	private final Proxy proxy;
+
+	private volatile long defaultLease = DEFAULT_LEASE;
+	private long periodSeconds = DEFAULT_PERIOD;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	private ScheduledExecutorService executor;
+
+	/**
+	 * Instantiates a stopped sweeper for the given proxy.
+	 *
+	 * @param proxy
+	 *            the proxy whose containers are swept
+	 */
+	public ContainerSweeper(Proxy proxy) {
+		this.proxy = proxy;
+	}
+
+	/**
+	 * Returns the lease, in seconds, of the containers registered without
+	 * the lt attribute.
+	 */
+	public long getDefaultLease() {
+		return defaultLease;
+	}
+
+	/**
+	 * Sets the lease, in seconds, of the containers registered from now on
+	 * without the lt attribute.
+	 */
+	public void setDefaultLease(long seconds) {
+		if (seconds < 1) {
+			throw new IllegalArgumentException("lease " + seconds);
+		}
+		this.defaultLease = seconds;
+	}
+
+	/**
+	 * Sets the period between two sweeps, taking effect at the next start.
+	 */
+	public synchronized void setPeriod(long seconds) {
+		if (seconds < 1) {
+			throw new IllegalArgumentException("period " + seconds);
+		}
+		this.periodSeconds = seconds;
+	}
+
+	/**
+	 * Sets the maximum number of containers removed per batch.
+	 */
+	public synchronized void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batch " + batchSize);
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Starts the periodic sweeps. Calling it on a running sweeper has no
+	 * effect.
+	 */
+	public synchronized void start() {
+		if (executor != null) {
+			return;
+		}
+		executor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "ContainerSweeper");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sweep();
+				} catch (RuntimeException e) {
+					// the next sweeps must run anyway
+					LOGGER.error("[sweep]: {}", e);
+				}
+			}
+		}, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stops the periodic sweeps.
+	 */
+	public synchronized void stop() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Removes the containers of the dead end-points, in batches.
+	 *
+	 * @return the number of containers removed
+	 */
+	public int sweep() {
+		int size;
+		synchronized (this) {
+			size = batchSize;
+		}
+		long now = System.currentTimeMillis();
+		List<ContainerResource> batch = new ArrayList<ContainerResource>(size);
+		int removed = 0;
+		for (ContainerResource c : proxy.getEPs().values()) {
+			if (c.isLeaseExpired(now) && !c.hasLiveResources(now)) {
+				batch.add(c);
+				if (batch.size() == size) {
+					removed += remove(batch, now);
+					batch.clear();
+				}
+			}
+		}
+		removed += remove(batch, now);
+		if (removed > 0) {
+			LOGGER.info("[sweep]: {} dead end-points removed", removed);
+		}
+		return removed;
+	}
+
+	/*
+	 * Unmaps the containers still expired, then tears them down
+	 */
+	private int remove(List<ContainerResource> batch, final long now) {
+		ConcurrentMap<String, ContainerResource> eps = proxy.getEPs();
+		List<ContainerResource> dead = new ArrayList<ContainerResource>(
+				batch.size());
+		for (final ContainerResource c : batch) {
+			eps.computeIfPresent(c.getEndPoint(),
+					(ep, current) -> (current == c && c.retireIfExpired(now))
+							? null : current);
+			if (c.isRemoved()) {
+				dead.add(c);
+			}
+		}
+
+		ProxyStore store = proxy.getStore();
+		for (ContainerResource c : dead) {
+			store.logRemoveContainer(c);
+			c.dispose();
+			LOGGER.debug("[remove]: {} ({})", c.getURI(), c.getEndPoint());
+			proxy.getMetrics()
+					.increment(ProxyMetrics.Counter.CONTAINERS_REMOVED);
+		}
+		return dead.size();
+	}
+}
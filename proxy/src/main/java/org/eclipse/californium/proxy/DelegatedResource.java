@@ -17,15 +17,14 @@ package org.eclipse.californium.proxy;
 import org.eclipse.californium.core.coap.CoAP;
 import org.eclipse.californium.core.coap.CoAP.Code;
 import org.eclipse.californium.core.coap.CoAP.ResponseCode;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
 import org.eclipse.californium.core.network.Exchange;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 
-import static org.eclipse.californium.core.coap.MediaTypeRegistry.APPLICATION_LINK_FORMAT;
-
+import java.security.SecureRandom;
+import java.util.Collections;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -54,14 +53,61 @@ import java.util.concurrent.locks.ReentrantLock;
  * of the resource is supposed to send updates at least every 3600 seconds in
  * order for the resource at the proxy to be valid. If the timeout expires, the
  * <tt>CoapTreeBuilder.remove()</tt> method is called on the expired resource.
+ * Timeouts are handled by the {@link LifetimeScheduler} shared by the whole
+ * proxy, so no thread is dedicated to a single resource.
  * Concurrent update requests and lifetime expiration are supported, and handled
  * in a thread-safe way.
+ * <p>
+ * A resource registered with the hs attribute also keeps the history of its
+ * last values in a {@link HistoryRing}, returned by a GET with the since
+ * and/or limit queries. A resource registered with the pmin and/or pmax
+ * attributes limits the rate of its notifications through a
+ * {@link NotificationCoalescer}. Notifications are always sent without
+ * holding the lock of the resource, by the {@link NotificationExecutor} of
+ * the proxy, thus the PUT of the owner is answered without waiting for them.
+ * A resource registered with the wp attribute queues the writes of the
+ * regular nodes in {@link PendingWrites}, which the sleepy node receives
+ * with the list of changes instead of reading the latest value only.
+ * <p>
+ * Every write of the value increments the version of the resource, from
+ * which the ETag of its representations is derived: a GET carrying the
+ * current ETag is answered 2.03 Valid, and the representations are encoded
+ * once per version, so that repeated reads and notifications share them.
+ * Max-Age is the time left before the lifetime expires, i.e. before the
+ * sleepy node is expected to update the resource.
  * 
  */
 public class DelegatedResource extends ActiveCoapResource {
 
-	/* stores the state for the delegated resource */
-	private String value;
+	private static final ProxyLogger LOGGER = ProxyLogger
+			.getLogger(DelegatedResource.class);
+
+	private static final byte[] EMPTY = new byte[0];
+
+	// Largest value of the Max-Age option, a 32-bit unsigned integer
+	private static final long MAX_AGE_LIMIT = 0xFFFFFFFFL;
+
+	/*
+	 * handle of the state of the delegated resource in the value store of
+	 * the proxy, accessed holding the lock
+	 */
+	private long value = ValueStore.NONE;
+
+	/* last values of the resource, null if not requested at registration */
+	private final HistoryRing history;
+
+	/* rate limiting of the notifications, null if not requested */
+	private final NotificationCoalescer coalescer;
+
+	/* writes of the regular nodes not yet polled, null if not requested */
+	private final PendingWrites pendingWrites;
+
+	/* 1 while a notification is waiting in the notification executor */
+	private volatile int notificationQueued;
+
+	private static final AtomicIntegerFieldUpdater<DelegatedResource>
+			NOTIFICATION_QUEUED = AtomicIntegerFieldUpdater.newUpdater(
+					DelegatedResource.class, "notificationQueued");
 
 	/*
 	 * h1ead of the subtree of resources delegated from the sleepy node who is
@@ -75,8 +121,30 @@ public class DelegatedResource extends ActiveCoapResource {
 	/* resource lifetime updated by PUT query attribute */
 	private long lifetime;
 
-	private Timer timer;
-	private ExpiredTimerTask currentTimerTask;
+	/* timeout on the proxy lifetime scheduler, rearmed by every owner PUT */
+	private LifetimeScheduler.Timeout timeout;
+
+	/*
+	 * wall-clock time the lifetime expires at, -1 if there is no lifetime;
+	 * written holding the lock, read without by GET to compute Max-Age
+	 */
+	private volatile long expiresAt = -1;
+
+	/*
+	 * version of the value, incremented by every write holding the lock and
+	 * read without by GET to check the cached representations
+	 */
+	private volatile long version;
+
+	/* the representations of the latest version read, null if none */
+	private volatile Representation representation;
+	private volatile Representation converted;
+
+	/*
+	 * Distinguishes the ETags of this process from the ones of a previous
+	 * run, whose versions restarted from 0
+	 */
+	private static final int INCARNATION = new SecureRandom().nextInt();
 
 	/*
 	 * Lock used in order to guarantee the safety of possible concurrent changes
@@ -116,57 +184,443 @@ public class DelegatedResource extends ActiveCoapResource {
 			getAttributes().addAttribute(attr,
 					attributes.getAttributeValues(attr).get(0));
 		}
+
+		List<String> hs = attributes
+				.getAttributeValues(HistoryRing.ATTRIBUTE);
+		history = (hs == null || hs.isEmpty()) ? null
+				: HistoryRing.forAttribute(hs.get(0));
+		coalescer = NotificationCoalescer.forAttributes(this,
+				container.getProxy().getLifetimeScheduler(),
+				attributes.getAttributeValues(NotificationCoalescer.MIN_PERIOD),
+				attributes.getAttributeValues(NotificationCoalescer.MAX_PERIOD));
+		pendingWrites = PendingWrites.forAttributes(
+				attributes.getAttributeValues(PendingWrites.POLICY),
+				attributes.getAttributeValues(PendingWrites.CAPACITY));
 	}
 
 	/**
-	 * TimerTask that implement a interrupt mechanism. As soon as timer expires
-	 * the delegated resource has to be de-registered unless a PUT request
-	 * arrives and interrupt the task.
+	 * Task run by the lifetime scheduler when the timeout expires: the
+	 * delegated resource has to be de-registered unless a PUT request arrives
+	 * and rearms the timeout. The task never waits for the lock, the worker
+	 * thread being shared by the whole proxy: if the lock is held, the task
+	 * runs again at the next tick.
 	 */
-	private class ExpiredTimerTask extends TimerTask {
-		private AtomicBoolean interrupt = new AtomicBoolean(false);
-
-		public void interrupt() {
-			interrupt.set(true);
-		}
-
+	private class ExpiredTimerTask implements Runnable {
 		@Override
 		public void run() {
-			l.lock();
-			if (interrupt.get()) {
-				/*
-				 * The following sequence of events happened: the resource timer
-				 * expired, thus the task started, but in the middle of this
-				 * process a put request arrived at the resource from his owner
-				 * and set the interrupt flag of the ExpiredTimerTask. Thus, the
-				 * ExpiredTimerTask has to be canceled.
-				 */
-				l.unlock();
+			if (!l.tryLock()) {
+				container.getProxy().getLifetimeScheduler().retry(timeout);
 				return;
 			}
+			try {
+				if (!timeout.isExpired()) {
+					/*
+					 * The following sequence of events happened: the resource
+					 * timer expired, thus the task started, but in the middle
+					 * of this process a put request arrived at the resource
+					 * from his owner and rearmed the timeout. Thus, the
+					 * ExpiredTimerTask has to be canceled.
+					 */
+					return;
+				}
+				expired = true;
+				LOGGER.info("[timer] timer expired for '{}'",
+						DelegatedResource.this.getName());
+				container.getProxy().getStore()
+						.logRemove(DelegatedResource.this);
+				releaseValue();
+				stopNotifications();
+				container.getCoapTreeBuilder().remove(DelegatedResource.this);
+				container.getProxy().getMetrics()
+						.increment(ProxyMetrics.Counter.EXPIRATIONS);
+			} finally {
+				l.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Returns the ContainerResource holding the resources delegated by the
+	 * owner of this resource.
+	 */
+	@Override
+	public ContainerResource getContainer() {
+		return container;
+	}
+
+	/*
+	 * Accessors used by ProxyStore, which reads a consistent state holding
+	 * the lock of the resource
+	 */
+
+	Lock getLock() {
+		return l;
+	}
+
+	byte[] getValue() {
+		return container.getProxy().getValueStore().get(value);
+	}
+
+	int getContentFormat() {
+		return container.getProxy().getValueStore().getContentFormat(value);
+	}
+
+	/*
+	 * Returns the current value with its content-format, as listed in the
+	 * SenML lists of changes. Takes the lock of the resource.
+	 */
+	PendingWrites.Write currentValue() {
+		l.lock();
+		try {
+			return new PendingWrites.Write(getValue(), getContentFormat());
+		} finally {
+			l.unlock();
+		}
+	}
+
+	/*
+	 * Returns the writes of the regular nodes queued since the last poll, and
+	 * empties the queue; the list is empty if the resource has no queue.
+	 * Takes the lock of the resource.
+	 */
+	List<PendingWrites.Write> takePendingWrites() {
+		if (pendingWrites == null) {
+			return Collections.emptyList();
+		}
+		l.lock();
+		try {
+			List<PendingWrites.Write> drained = pendingWrites.drain();
+			if (!drained.isEmpty()) {
+				container.getProxy().getStore().logPending(this);
+			}
+			return drained;
+		} finally {
+			l.unlock();
+		}
+	}
+
+	/*
+	 * Returns the writes of the regular nodes queued since the last poll,
+	 * leaving them queued; called holding the lock
+	 */
+	List<PendingWrites.Write> peekPendingWrites() {
+		return (pendingWrites == null)
+				? Collections.<PendingWrites.Write> emptyList()
+				: pendingWrites.peek();
+	}
+
+	long getLifetime() {
+		return lifetime;
+	}
+
+	long getExpiresAt() {
+		return expiresAt;
+	}
+
+	boolean isExpired() {
+		return expired;
+	}
+
+	/*
+	 * Returns true if the lifetime of the resource is still running at the
+	 * given wall-clock time, as checked by the sweeper of dead end-points.
+	 * Takes the lock of the resource.
+	 */
+	boolean isAlive(long now) {
+		l.lock();
+		try {
+			return !expired && expiresAt > now;
+		} finally {
+			l.unlock();
+		}
+	}
+
+	/*
+	 * Restores the state recovered by ProxyStore. The lifetime left is
+	 * computed from the recovered expiration time, thus a lifetime elapsed
+	 * while the proxy was down expires as soon as the scheduler runs.
+	 */
+	void restoreState(byte[] value, int contentFormat, boolean initialized,
+			long lifetime, long expiresAt) {
+		l.lock();
+		try {
+			if (value != null) {
+				storeValue(value, contentFormat);
+			}
+			this.lifetime = lifetime;
+			this.expiresAt = expiresAt;
+			if (expiresAt >= 0) {
+				long left = Math.max(0,
+						expiresAt - System.currentTimeMillis());
+				LifetimeScheduler scheduler = container.getProxy()
+						.getLifetimeScheduler();
+				if (timeout != null) {
+					scheduler.reschedule(timeout, left);
+				} else {
+					timeout = scheduler.schedule(new ExpiredTimerTask(), left);
+				}
+			}
+			if (initialized && !isVisible()) {
+				setObservable(true);
+				setVisible(true);
+				container.getLinkFormatCache().invalidate();
+			}
+		} finally {
+			l.unlock();
+		}
+	}
+
+	/*
+	 * Replaces the writes queued for the sleepy node with those replicated
+	 * from the primary proxy
+	 */
+	void restorePending(List<PendingWrites.Write> pending) {
+		if (pendingWrites == null) {
+			return;
+		}
+		l.lock();
+		try {
+			pendingWrites.restore(pending);
+		} finally {
+			l.unlock();
+		}
+	}
+
+	/*
+	 * Removes the resource, whose expiration has been recovered by ProxyStore
+	 */
+	void restoreRemoval() {
+		l.lock();
+		try {
+			expired = true;
+			if (timeout != null) {
+				container.getProxy().getLifetimeScheduler().cancel(timeout);
+			}
+			container.getCoapTreeBuilder().remove(this);
+			releaseValue();
+			stopNotifications();
+		} finally {
+			l.unlock();
+		}
+	}
+
+	/*
+	 * Retires a resource replaced by a new registration of the same path:
+	 * requests still reaching it find it expired, its lifetime does not run
+	 * anymore and its value is freed. Called without holding the locks of
+	 * the tree builder.
+	 */
+	void retire() {
+		l.lock();
+		try {
 			expired = true;
-			System.out.println("[timer] timer expired for '"
-					+ DelegatedResource.this.getName() + "'");
-			container.getCoapTreeBuilder().remove(DelegatedResource.this);
+			if (timeout != null) {
+				container.getProxy().getLifetimeScheduler().cancel(timeout);
+			}
+			releaseValue();
+			stopNotifications();
+		} finally {
 			l.unlock();
 		}
 	}
 
+	/*
+	 * Replaces the value, called holding the lock
+	 */
+	private void storeValue(byte[] bytes, int contentFormat) {
+		value = container.getProxy().getValueStore().put(value, bytes,
+				contentFormat);
+		version++;
+	}
+
+	/*
+	 * Cancels the deferred notifications of an expired resource
+	 */
+	private void stopNotifications() {
+		if (coalescer != null) {
+			coalescer.close();
+		}
+	}
+
+	/*
+	 * Frees the value of an expired resource, called holding the lock
+	 */
+	private void releaseValue() {
+		container.getProxy().getValueStore().free(value);
+		value = ValueStore.NONE;
+		version++;
+		representation = null;
+		converted = null;
+	}
+
 	/**
-	 * Returns the state of the resource stored in 'value' variable
+	 * Returns the state of the resource stored in 'value' variable, in the
+	 * content-format it was written with or, if the request has an Accept
+	 * option, converted to the requested one (see {@link PayloadCodec}). The
+	 * response carries the ETag of the representation, and is 2.03 Valid
+	 * without payload if the request already holds it. If the resource has a
+	 * lifetime, Max-Age is the time left before it expires.
 	 * 
 	 * @param exchange
 	 *            Structure maintaining informations about the request
 	 */
 	@Override
 	public void handleGET(CoapExchange exchange) {
+		long start = System.nanoTime();
+		List<String> queries = exchange.getRequestOptions().getUriQuery();
+		if (!queries.isEmpty() && handleHistory(exchange, queries)) {
+			recordGet(start);
+			return;
+		}
 		/*
 		 * The resource is active and visibile, thus it is inizialized. Its
 		 * state can be returned.
 		 * An GET request issued on an invisible DelegatedResource would
 		 * be intercepted and answered by the handleRequest() method.
 		 */
-		exchange.respond(CoAP.ResponseCode.CONTENT, value);
+		int accept = PayloadCodec.getAccept(exchange.getRequestOptions(),
+				MediaTypeRegistry.UNDEFINED);
+		Representation r = represent(accept);
+		if (r == null) {
+			exchange.respond(CoAP.ResponseCode.NOT_ACCEPTABLE);
+			recordGet(start);
+			return;
+		}
+
+		long left = expiresAt;
+		if (left >= 0) {
+			left = Math.max(0, left - System.currentTimeMillis()) / 1000;
+			exchange.setMaxAge(Math.min(left, MAX_AGE_LIMIT));
+		}
+		exchange.setETag(r.etag);
+		if (exchange.getRequestOptions().containsETag(r.etag)) {
+			// the client holds the current representation
+			exchange.respond(CoAP.ResponseCode.VALID);
+			container.getProxy().getMetrics()
+					.increment(ProxyMetrics.Counter.GETS_VALID);
+		} else {
+			exchange.respond(CoAP.ResponseCode.CONTENT, r.payload,
+					r.contentFormat);
+		}
+		recordGet(start);
+	}
+
+	/*
+	 * An encoded value with its ETag, shared by the responses of a version
+	 */
+	private static final class Representation {
+		final long version;
+		final int contentFormat;
+		final byte[] payload;
+		final byte[] etag;
+
+		Representation(long version, int contentFormat, byte[] payload) {
+			this.version = version;
+			this.contentFormat = contentFormat;
+			this.payload = payload;
+			/*
+			 * 8 bytes: the incarnation, in which the content-format is mixed
+			 * (by an odd multiplier, so that two formats never give the same
+			 * word), then the low 32 bits of the version
+			 */
+			int high = INCARNATION ^ (contentFormat * 0x9E3779B1);
+			this.etag = new byte[] { (byte) (high >>> 24),
+					(byte) (high >>> 16), (byte) (high >>> 8), (byte) high,
+					(byte) (version >>> 24), (byte) (version >>> 16),
+					(byte) (version >>> 8), (byte) version };
+		}
+	}
+
+	/*
+	 * Returns the representation of the current version in the given
+	 * content-format (UNDEFINED for the one it was written with), null if
+	 * the value cannot be converted to it. The value is copied from the
+	 * value store holding the lock, once per version; the stored one and
+	 * the latest converted one are kept, the following reads of the same
+	 * version share them.
+	 */
+	private Representation represent(int accept) {
+		Representation r = representation;
+		if (r == null || r.version != version) {
+			l.lock();
+			try {
+				byte[] payload = getValue();
+				int contentFormat = getContentFormat();
+				r = new Representation(version,
+						(contentFormat == MediaTypeRegistry.UNDEFINED)
+								? MediaTypeRegistry.TEXT_PLAIN
+								: contentFormat,
+						(payload == null) ? EMPTY : payload);
+				representation = r;
+			} finally {
+				l.unlock();
+			}
+		}
+		if (accept == MediaTypeRegistry.UNDEFINED
+				|| accept == r.contentFormat) {
+			return r;
+		}
+
+		Representation c = converted;
+		if (c != null && c.version == r.version && c.contentFormat == accept) {
+			return c;
+		}
+		byte[] payload = PayloadCodec.transcode(r.payload, r.contentFormat,
+				accept, getURI());
+		if (payload == null) {
+			return null;
+		}
+		c = new Representation(r.version, accept, payload);
+		converted = c;
+		return c;
+	}
+
+	/*
+	 * Answers a GET with the since and/or limit queries with a batch of the
+	 * history. Returns false if there is neither query, i.e. the GET asks for
+	 * the current value.
+	 */
+	private boolean handleHistory(CoapExchange exchange, List<String> queries) {
+		long since = -1;
+		int limit = -1;
+		try {
+			for (String query : queries) {
+				if (query.startsWith("since=")) {
+					since = Long.parseLong(query.substring(6));
+				} else if (query.startsWith("limit=")) {
+					limit = Integer.parseInt(query.substring(6));
+				}
+			}
+		} catch (NumberFormatException e) {
+			exchange.respond(CoAP.ResponseCode.BAD_REQUEST);
+			return true;
+		}
+		if (since < 0 && limit < 0) {
+			return false;
+		}
+		if (history == null) {
+			exchange.respond(CoAP.ResponseCode.BAD_REQUEST,
+					"no history, register with " + HistoryRing.ATTRIBUTE);
+			return true;
+		}
+
+		byte[] batch;
+		l.lock();
+		try {
+			batch = history.encode(since,
+					(limit < 0) ? Integer.MAX_VALUE : limit);
+		} finally {
+			l.unlock();
+		}
+		exchange.respond(CoAP.ResponseCode.CONTENT, batch,
+				MediaTypeRegistry.APPLICATION_OCTET_STREAM);
+		return true;
+	}
+
+	private void recordGet(long start) {
+		ProxyMetrics metrics = container.getProxy().getMetrics();
+		metrics.increment(ProxyMetrics.Counter.GETS);
+		metrics.record(ProxyMetrics.Timer.GET, start);
 	}
 
 	/**
@@ -176,13 +630,61 @@ public class DelegatedResource extends ActiveCoapResource {
 	 * request executed by the owner of the resource with the purpose of
 	 * updating the resource also has the effect of retrieving the list of
 	 * "dirty" resources, i.e. the list of resource delegated by the sleepy node
-	 * but modified by other nodes (e.g. configuration files).
+	 * but modified by other nodes (e.g. configuration files). The list is
+	 * sent in the content-format requested by the Accept option, by default
+	 * in the one chosen at registration (see
+	 * {@link ContainerResource#getChangesFormat()}). Every PUT of the owner
+	 * renews the lease of its container.
 	 * 
 	 * @param exchange
 	 *            Structure maintaining informations about the request
 	 */
 	@Override
 	public void handlePUT(CoapExchange exchange) {
+		long start = System.nanoTime();
+		boolean fromOwner = container.getSPIpAddress()
+				.equals(exchange.getSourceAddress());
+
+		// the value is kept as raw bytes, with its content-format
+		byte[] payload = exchange.getRequestPayload();
+		if (payload == null) {
+			payload = EMPTY;
+		}
+		if (payload.length > ValueStore.MAX_VALUE_SIZE) {
+			exchange.respond(CoAP.ResponseCode.REQUEST_ENTITY_TOO_LARGE);
+			recordPut(fromOwner, start);
+			return;
+		}
+		int contentFormat = exchange.getRequestOptions().hasContentFormat()
+				? exchange.getRequestOptions().getContentFormat()
+				: MediaTypeRegistry.UNDEFINED;
+		int accept = PayloadCodec.getAccept(exchange.getRequestOptions(),
+				container.getChangesFormat());
+		if (fromOwner && !Utilities.isChangesFormat(accept)) {
+			// refused before applying the update
+			exchange.respond(CoAP.ResponseCode.NOT_ACCEPTABLE);
+			recordPut(fromOwner, start);
+			return;
+		}
+		// the lifetime is checked before taking the lock
+		long lf = -1;
+		if (fromOwner) {
+			try {
+				lf = lifetimeOf(exchange.getRequestOptions().getUriQuery());
+			} catch (IllegalArgumentException e) {
+				LOGGER.debug("[handlePUT]: '{}' refused: {}", getName(),
+						e.getMessage());
+				exchange.respond(CoAP.ResponseCode.BAD_REQUEST);
+				recordPut(fromOwner, start);
+				return;
+			}
+		}
+		if (fromOwner && !container.renewLease()) {
+			// the container has been removed as dead meanwhile
+			exchange.respond(CoAP.ResponseCode.NOT_FOUND);
+			recordPut(fromOwner, start);
+			return;
+		}
 
 		/*
 		 * all the update operations within the handlePut method have to be
@@ -190,123 +692,293 @@ public class DelegatedResource extends ActiveCoapResource {
 		 * between endpoint updates and timer expiration. A PUT executed by the
 		 * owner of the resource
 		 */
-		l.lock();
-
-		String payload = exchange.getRequestText();
-		String response = null;
+		boolean listChanges = false;
+		boolean notify = false;
 		ResponseCode code;
 
-		if (expired) {
-			// resource is expired thus it has been removed from the tree
-			System.out.println("[handlePUT]: '" + getName() + "' expired.");
-			System.out.printf(
-					"If you have seen this, you can play superenalotto");
-
-			code = CoAP.ResponseCode.NOT_FOUND;
-
-		} else { // the resource is not expired yet
+		l.lock();
+		try {
+			if (expired) {
+				// resource is expired thus it has been removed from the tree
+				LOGGER.debug("[handlePUT]: '{}' expired.", getName());
 
-			// update resource value
-			value = payload;
+				code = CoAP.ResponseCode.NOT_FOUND;
 
-			if (container.getSPIpAddress()
-					.equals(exchange.getSourceAddress())) {
-				// Update from the owner sleepy node
+			} else { // the resource is not expired yet
 
-				// get the query attributes from the request
-				String query = exchange.getRequestOptions().getUriQueryString();
-				if (query != null && query.matches("^lt=.*$")) {
+				if (fromOwner) {
+					// Update from the owner sleepy node
+					notify = true;
+					if (applyOwnerUpdate(payload, contentFormat, lf)) {
+						code = CoAP.ResponseCode.CREATED;
+					} else {
+						/*
+						 * the list of "dirty" resources (updated by an
+						 * endpoint different from the delegating sleepy node
+						 * and not notified yet to the owner) is built after
+						 * releasing the lock. This does not happen during
+						 * initialization
+						 */
+						listChanges = true;
+						LOGGER.debug("[handlePUT]: '{}' has been modified",
+								getName());
+						code = CoAP.ResponseCode.CHANGED;
+					}
+				} else {/*
+						 * If the PUT request comes from an end-point different
+						 * from the owner of the resource timers is not
+						 * affected
+						 */
+					if (!isVisible()) {
+						code = CoAP.ResponseCode.NOT_FOUND;
+						storeValue(EMPTY, MediaTypeRegistry.UNDEFINED);
+						recordUpdate(null);
+					} else if (pendingWrites != null) {
+						code = queueWrite(payload, contentFormat);
+						notify = (code == CoAP.ResponseCode.CHANGED);
+					} else {
+						storeValue(payload, contentFormat);
+						setDirty(true); // set the resource as dirty
+						code = CoAP.ResponseCode.CHANGED;
+						recordUpdate(payload);
+						notify = true;
+					}
 					/*
-					 * if the qeury contains something AND query contains
-					 * lifetime attribute
+						System.out.println("PUT Request on '" + getName()
+						+ "' from a Regular Node, answered with " + code);
 					 */
-					long lf = Long.parseLong(query.split("=")[1]);
-					if (lf < 0) {
-						code = CoAP.ResponseCode.BAD_REQUEST;
-						exchange.respond(code);
-						l.unlock();
-						return;
-					}
-					lifetime = lf;
-					System.out.println("[handlePUT]: '" +
-							getName() + "' new lifetime = " + lifetime);
 				}
+			}
+		} finally {
+			l.unlock();
+		}
 
-				/* timer restart if lifetime is specified */
-				if (timer != null) {
-					// there is a running timer that has to be interrupted
-					timer.cancel();
-					timer.purge();
-					currentTimerTask.interrupt();
-					System.out.println("[handlePUT]: '" +
-							getName() + "' previous timer interrupted");
-
-					timer = new Timer();
-					currentTimerTask = new ExpiredTimerTask();
-					timer.schedule(currentTimerTask, lifetime * 1000);
-					System.out.println("[handlePUT]: '" +
-							getName() + "' timer started (" + lifetime + "s)");
-
-				} else { // no timers running
-					if (lifetime >= 0) { // new lifetime specified
-						timer = new Timer();
-						currentTimerTask = new ExpiredTimerTask();
-						timer.schedule(currentTimerTask, lifetime * 1000);
-
-						System.out.println("[handlePUT]: '" + getName() + "' first timer started");
-					}
-				}
+		/*
+		 * notify all the observing node the resource has been updated; the
+		 * notifications are built outside the lock, and possibly coalesced
+		 */
+		if (notify) {
+			valueChanged();
+		}
 
-				if (!isVisible()) { // not initialized yet
-					System.out.println("[handlePUT]: '" + getName()
-							+ "' has been initialized");
-					// set as visible (reachable) and observable
-					setObservable(true);
-					setVisible(true);
-					code = CoAP.ResponseCode.CREATED;
+		/*
+		 * the list may hold the values of other resources, whose locks must
+		 * not be taken holding the lock of this one
+		 */
+		byte[] response = listChanges
+				? Utilities.checkChanges(container, null, accept) : null;
 
-				} else {
-					/*
-					 * get the list of "dirty" resources (updated by an endpoint
-					 * different from the delegating sleepy node and not notified
-					 * yet to the owner). This does not happen during initialization
-					 */
-					response = Utilities.checkChanges(container, null);
+		// with sync commit, the update has to be on disk before answering
+		container.getProxy().getStore().commit();
+
+		// build a response to the request coming from the resource owner
+		if (response == null) {
+			exchange.respond(code);
+		} else {
+			exchange.respond(code, response, accept);
+		}
+		recordPut(fromOwner, start);
+	}
 
-					System.out.println("[handlePUT]: List of dirty resources: "
-							 + response);
-					System.out.println(
-							"[handlePUT]: '" + getName() + "' has been modified");
-					code = CoAP.ResponseCode.CHANGED;
+	/*
+	 * Returns the lifetime given by the lt query of an owner PUT, -1 if
+	 * there is none, throwing an IllegalArgumentException if it is not a
+	 * number or negative
+	 */
+	private static long lifetimeOf(List<String> queries) {
+		long lifetime = -1;
+		for (String query : queries) {
+			if (query.startsWith("lt=")) {
+				String value = query.substring(3);
+				try {
+					lifetime = Long.parseLong(value);
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("invalid lifetime "
+							+ value);
 				}
-			} else {/*
-					 * If the PUT request comes from an end-point different from
-					 * the owner of the resource timers is not affected
-					 */
-				if (!isVisible()) {
-					code = CoAP.ResponseCode.NOT_FOUND;
-					value = "";
-				} else {
-					setDirty(true); // set the resource as dirty
-					code = CoAP.ResponseCode.CHANGED;
+				if (lifetime < 0) {
+					throw new IllegalArgumentException("invalid lifetime "
+							+ value);
 				}
-				/*
-					System.out.println("PUT Request on '" + getName()
-					+ "' from a Regular Node, answered with " + code);
-				 */
 			}
+		}
+		return lifetime;
+	}
 
-			// notify all the observing node the resource has been updated
-			changed();
+	/*
+	 * Queues the write of a regular node and stores the resulting value,
+	 * called holding the lock. Returns the response code: CHANGED, or the
+	 * error refusing the write.
+	 */
+	private ResponseCode queueWrite(byte[] payload, int contentFormat) {
+		if (!pendingWrites.accepts(contentFormat)) {
+			return CoAP.ResponseCode.UNSUPPORTED_CONTENT_FORMAT;
+		}
+		PendingWrites.Write written;
+		try {
+			written = pendingWrites.offer(payload, contentFormat,
+					new PendingWrites.Write(getValue(), getContentFormat()));
+		} catch (IllegalArgumentException e) {
+			LOGGER.debug("[handlePUT]: '{}' refused: {}", getName(),
+					e.getMessage());
+			return CoAP.ResponseCode.BAD_REQUEST;
+		}
+		if (written == null) {
+			// full until the sleepy node polls
+			container.getProxy().getMetrics().increment(
+					ProxyMetrics.Counter.PENDING_WRITES_REJECTED);
+			return CoAP.ResponseCode.SERVICE_UNAVAILABLE;
+		}
+		storeValue(written.value, written.contentFormat);
+		setDirty(true);
+		recordUpdate(written.value);
+		container.getProxy().getStore().logPending(this);
+		return CoAP.ResponseCode.CHANGED;
+	}
+
+	/*
+	 * Notifies the observers of a new value, through the coalescer if the
+	 * resource has been registered with pmin and/or pmax. Called without
+	 * holding the lock, by handlePUT() and by the batched updates of the
+	 * container.
+	 */
+	void valueChanged() {
+		if (coalescer != null) {
+			coalescer.changed();
+		} else {
+			notifyObservers();
 		}
+	}
 
-		l.unlock();
+	/*
+	 * Queues the observe notifications on the notification executor of the
+	 * proxy, called without holding the lock. A resource has at most one
+	 * notification queued: the notification being built when it runs, it
+	 * carries all the changes occurred while it was waiting.
+	 */
+	void notifyObservers() {
+		queueNotification(false);
+	}
 
-		// build a response to the request coming from the resource owner
-		if (response == null) {
-			exchange.respond(code);
+	/*
+	 * Queues the observe notifications as notifyObservers(), called by the
+	 * worker of the lifetime scheduler, which must not deliver them itself:
+	 * if the queue is full the notification is dropped, and the next change
+	 * notifies again.
+	 */
+	void notifyObserversDeferred() {
+		queueNotification(true);
+	}
+
+	private void queueNotification(boolean deferred) {
+		if (getObserverCount() == 0) {
+			return;
+		}
+		if (NOTIFICATION_QUEUED.compareAndSet(this, 0, 1)) {
+			NotificationExecutor executor = container.getProxy()
+					.getNotificationExecutor();
+			if (!deferred) {
+				executor.execute(this::sendNotifications);
+			} else if (!executor.offer(this::sendNotifications)) {
+				notificationQueued = 0;
+			}
+		} else {
+			container.getProxy().getMetrics().increment(
+					ProxyMetrics.Counter.NOTIFICATIONS_SUPPRESSED);
+		}
+	}
+
+	/*
+	 * Notifies the observers, run by the notification executor
+	 */
+	private void sendNotifications() {
+		// a change from now on needs another notification
+		notificationQueued = 0;
+		changed();
+		container.getProxy().getMetrics()
+				.increment(ProxyMetrics.Counter.NOTIFICATIONS);
+	}
+
+	/*
+	 * Applies an update from the owner sleepy node, called holding the lock:
+	 * stores the value, sets the lifetime (if not negative, otherwise the
+	 * current one is kept), rearms the timeout and initializes the resource
+	 * on its first update. Returns true if the resource has just been
+	 * initialized. Used by handlePUT() and by the batched updates of the
+	 * container; notifying the observers is left to the caller.
+	 */
+	boolean applyOwnerUpdate(byte[] payload, int contentFormat,
+			long newLifetime) {
+		storeValue(payload, contentFormat);
+
+		if (newLifetime >= 0) {
+			lifetime = newLifetime;
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug("[handlePUT]: '{}' new lifetime = {}", getName(),
+						lifetime);
+			}
+		}
+
+		/* timer restart if lifetime is specified */
+		LifetimeScheduler scheduler = container.getProxy()
+				.getLifetimeScheduler();
+		if (lifetime >= 0) {
+			expiresAt = System.currentTimeMillis() + lifetime * 1000;
+		}
+		if (timeout != null) {
+			// there is a running timer that has to be rearmed
+			scheduler.reschedule(timeout, lifetime * 1000);
+			if (LOGGER.isDebugEnabled()) {
+				LOGGER.debug("[handlePUT]: '{}' timer restarted ({}s)",
+						getName(), lifetime);
+			}
+
+		} else { // no timers running
+			if (lifetime >= 0) { // new lifetime specified
+				timeout = scheduler.schedule(new ExpiredTimerTask(),
+						lifetime * 1000);
+
+				LOGGER.debug("[handlePUT]: '{}' first timer started",
+						getName());
+			}
+		}
+
+		boolean initialized = false;
+		if (!isVisible()) { // not initialized yet
+			LOGGER.debug("[handlePUT]: '{}' has been initialized", getName());
+			// set as visible (reachable) and observable
+			setObservable(true);
+			setVisible(true);
+			container.getLinkFormatCache().invalidate();
+			initialized = true;
+		}
+
+		recordUpdate(payload);
+		return initialized;
+	}
+
+	/*
+	 * Adds the new value, if any, to the history and logs the new state,
+	 * called holding the lock
+	 */
+	private void recordUpdate(byte[] sample) {
+		if (history != null && sample != null) {
+			history.add(System.currentTimeMillis(), sample);
+		}
+		container.getProxy().getStore().logUpdate(this);
+	}
+
+	/*
+	 * Updates the PUT metrics, distinguishing owner and regular nodes
+	 */
+	private void recordPut(boolean fromOwner, long start) {
+		ProxyMetrics metrics = container.getProxy().getMetrics();
+		if (fromOwner) {
+			metrics.increment(ProxyMetrics.Counter.OWNER_PUTS);
+			metrics.record(ProxyMetrics.Timer.OWNER_PUT, start);
 		} else {
-			exchange.respond(code, response, APPLICATION_LINK_FORMAT);
+			metrics.increment(ProxyMetrics.Counter.REGULAR_PUTS);
+			metrics.record(ProxyMetrics.Timer.REGULAR_PUT, start);
 		}
 	}
 
@@ -319,14 +991,17 @@ public class DelegatedResource extends ActiveCoapResource {
 	 * resource;<br>
 	 * - the result use - if any - the queries specified in the request in order
 	 * to filter the result;<br>
-	 * - no changes to delegated resources occur.
+	 * - no changes to delegated resources occur.<br>
+	 * The list is sent in the content-format requested by the Accept option,
+	 * by default in the one chosen at registration.
 	 * 
 	 * @param exchange
 	 *            Structure maintaining informations about the request
 	 */
 	@Override
 	public void handlePOST(CoapExchange exchange) {
-		String response = null;
+		long start = System.nanoTime();
+		byte[] response = null;
 
 		// if the asker is the delegating sleepy node
 		if (container.getSPIpAddress().equals(exchange.getSourceAddress())) {
@@ -336,15 +1011,28 @@ public class DelegatedResource extends ActiveCoapResource {
 			 * prefix the URI of "this" resource. In our implementation, this
 			 * means we are considering the resources son of this resource.
 			 */
+			if (!container.renewLease()) {
+				// the container has been removed as dead meanwhile
+				exchange.respond(ResponseCode.NOT_FOUND);
+				return;
+			}
+			int accept = PayloadCodec.getAccept(exchange.getRequestOptions(),
+					container.getChangesFormat());
+			if (!Utilities.isChangesFormat(accept)) {
+				exchange.respond(ResponseCode.NOT_ACCEPTABLE);
+				return;
+			}
 			List<String> queries = exchange.getRequestOptions().getUriQuery();
-			response = Utilities.checkChanges(this, queries);
+			response = Utilities.checkChanges(this, queries, accept);
 			if (response != null) {
-				exchange.respond(ResponseCode.CHANGED, response,
-						APPLICATION_LINK_FORMAT);
+				exchange.respond(ResponseCode.CHANGED, response, accept);
 			} else {
 				exchange.respond(ResponseCode.VALID);
 			}
 
+			ProxyMetrics metrics = container.getProxy().getMetrics();
+			metrics.increment(ProxyMetrics.Counter.POLLS);
+			metrics.record(ProxyMetrics.Timer.POLL, start);
 		} else {
 			exchange.respond(ResponseCode.METHOD_NOT_ALLOWED);
 		}
@@ -0,0 +1,145 @@
+/******************************************************************************
+ * @title: Dirty Index
+ * 	Index of the dirty resources delegated by a sleepy node
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.californium.core.coap.LinkFormat;
+import org.eclipse.californium.core.server.resources.Resource;
+
+/**
+ * DirtyIndex keeps track of the dirty resources of a {@link ContainerResource}.
+ * Every ContainerResource owns an index, which is updated each time
+ * <tt>ActiveCoapResource.setDirty()</tt> is called on one of its resources.
+ * This way, the list of dirty resources requested by the sleepy node can be
+ * built in a time proportional to the number of dirty resources, instead of
+ * visiting the whole subtree of the container.
+ * <p>
+ * The dirty flag of a resource and its presence in the index are always
+ * updated together, holding the index monitor.
+ */
+public class DirtyIndex {
+
+	// The container owning the index
+	private final ContainerResource container;
+
+	// Dirty resources, in the order they became dirty
+	private final Set<ActiveCoapResource> dirty;
+
+	/**
+	 * Instantiates an empty index for the given container.
+	 *
+	 * @param container
+	 *            the container owning the index
+	 */
+	public DirtyIndex(ContainerResource container) {
+		this.container = container;
+		this.dirty = new LinkedHashSet<ActiveCoapResource>();
+	}
+
+	/**
+	 * Sets the dirty flag of the given resource and updates the index
+	 * accordingly.
+	 *
+	 * @param resource
+	 *            the resource
+	 * @param isDirty
+	 *            the new value of the dirty flag
+	 */
+	public synchronized void update(ActiveCoapResource resource,
+			boolean isDirty) {
+		resource.applyDirty(isDirty);
+		if (isDirty) {
+			dirty.add(resource);
+		} else {
+			dirty.remove(resource);
+		}
+		log(resource, isDirty);
+	}
+
+	/**
+	 * Removes the given resource from the index, e.g. because it has been
+	 * removed from the tree.
+	 *
+	 * @param resource
+	 *            the resource
+	 */
+	public synchronized void forget(ActiveCoapResource resource) {
+		dirty.remove(resource);
+	}
+
+	/**
+	 * Returns the number of resources currently marked as dirty.
+	 */
+	public synchronized int size() {
+		return dirty.size();
+	}
+
+	/**
+	 * Adds to the list every dirty, visible resource located in the subtree
+	 * of the given root (root excluded) and matching the given queries, in
+	 * the order they became dirty. The listed resources are marked as clean.
+	 *
+	 * @param root
+	 *            the resource whose descendants have to be considered
+	 * @param queries
+	 *            the queries used to filter the result (may be null)
+	 * @param changes
+	 *            the list where the resources are added
+	 */
+	public synchronized void collect(Resource root, List<String> queries,
+			List<ActiveCoapResource> changes) {
+		Iterator<ActiveCoapResource> it = dirty.iterator();
+		while (it.hasNext()) {
+			ActiveCoapResource c = it.next();
+
+			Resource ancestor = c.getParent();
+			while (ancestor != null && ancestor != root
+					&& ancestor != container) {
+				ancestor = ancestor.getParent();
+			}
+			if (ancestor == null) {
+				// the resource is no more attached to the tree
+				c.applyDirty(false);
+				it.remove();
+				continue;
+			}
+			if (ancestor != root) {
+				// not in the requested subtree
+				continue;
+			}
+
+			if (c.isVisible() && LinkFormat.matches(c, queries)) {
+				c.applyDirty(false);
+				it.remove();
+				log(c, false);
+				changes.add(c);
+			}
+		}
+	}
+
+	/*
+	 * Persists a transition of the dirty flag, in the order of the index
+	 */
+	private void log(ActiveCoapResource resource, boolean isDirty) {
+		if (resource instanceof DelegatedResource) {
+			container.getProxy().getStore()
+					.logDirty((DelegatedResource) resource, isDirty);
+		}
+	}
+}
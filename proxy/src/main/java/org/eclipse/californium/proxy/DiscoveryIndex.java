@@ -0,0 +1,203 @@
+/******************************************************************************
+ * @title: Discovery Index
+ * 	Inverted index over the attributes of the delegated resources
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.californium.core.coap.LinkFormat;
+import org.eclipse.californium.core.server.resources.Resource;
+
+/**
+ * DiscoveryIndex is an inverted index, shared by the whole proxy, from the
+ * attributes of the delegated resources (rt, if, ct and the ep of their
+ * container) to the resources themselves. It allows a filtered discovery,
+ * e.g. "all the resources with rt=temperature", to be answered in a time
+ * proportional to the size of the result instead of scanning every container.
+ * <p>
+ * The index is kept up to date by the CoapTreeBuilder, which adds a
+ * DelegatedResource when it is inserted in the tree and removes it when it is
+ * removed (e.g. because its lifetime expired) or replaced.
+ */
+public class DiscoveryIndex {
+
+	// Attributes covered by the index
+	private static final String[] INDEXED_ATTRIBUTES = {
+			LinkFormat.RESOURCE_TYPE, LinkFormat.INTERFACE_DESCRIPTION,
+			LinkFormat.CONTENT_TYPE, LinkFormat.END_POINT };
+
+	// "attribute=value" -> resources having that attribute value
+	private final ConcurrentHashMap<String, Set<DelegatedResource>> postings;
+
+	// Every indexed resource, used when no query can use the postings
+	private final Set<DelegatedResource> all;
+
+	/**
+	 * Instantiates an empty index.
+	 */
+	public DiscoveryIndex() {
+		postings = new ConcurrentHashMap<String, Set<DelegatedResource>>();
+		all = Collections.newSetFromMap(
+				new ConcurrentHashMap<DelegatedResource, Boolean>());
+	}
+
+	/**
+	 * Adds a resource to the index.
+	 *
+	 * @param resource
+	 *            the delegated resource
+	 */
+	public void add(DelegatedResource resource) {
+		all.add(resource);
+		for (String attr : INDEXED_ATTRIBUTES) {
+			List<String> values = valuesOf(resource, attr);
+			if (values == null) {
+				continue;
+			}
+			for (String value : values) {
+				addPosting(attr + "=" + value, resource);
+			}
+		}
+	}
+
+	/**
+	 * Removes a resource from the index.
+	 *
+	 * @param resource
+	 *            the delegated resource
+	 */
+	public void remove(DelegatedResource resource) {
+		if (!all.remove(resource)) {
+			return;
+		}
+		for (String attr : INDEXED_ATTRIBUTES) {
+			List<String> values = valuesOf(resource, attr);
+			if (values == null) {
+				continue;
+			}
+			for (String value : values) {
+				// an empty set is dropped, e.g. the ep of a removed end-point
+				postings.computeIfPresent(attr + "=" + value, (key, set) -> {
+					set.remove(resource);
+					return set.isEmpty() ? null : set;
+				});
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of indexed resources.
+	 */
+	public int size() {
+		return all.size();
+	}
+
+	/**
+	 * Returns the visible resources matching all the given queries. The
+	 * candidates are taken from the smallest posting list among the queries
+	 * on an indexed attribute with an exact value; then every query is
+	 * checked on each candidate.
+	 *
+	 * @param queries
+	 *            the queries, in the "attribute=value" form
+	 * @return the matching resources
+	 */
+	public List<DelegatedResource> query(List<String> queries) {
+		Set<DelegatedResource> candidates = all;
+		for (String query : queries) {
+			int separator = query.indexOf('=');
+			if (separator <= 0 || query.endsWith("*")) {
+				continue;
+			}
+			String attr = query.substring(0, separator);
+			if (!isIndexed(attr)) {
+				continue;
+			}
+			String value = query.substring(separator + 1).replace("\"", "");
+			Set<DelegatedResource> set = postings.get(attr + "=" + value);
+			if (set == null) {
+				return Collections.emptyList();
+			}
+			if (set.size() < candidates.size()) {
+				candidates = set;
+			}
+		}
+
+		List<DelegatedResource> result = new ArrayList<DelegatedResource>();
+		for (DelegatedResource resource : candidates) {
+			if (resource.isVisible() && matches(resource, queries)) {
+				result.add(resource);
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * Checks every query on the resource. The ep attribute belongs to the
+	 * container, thus it is checked there.
+	 */
+	private boolean matches(DelegatedResource resource, List<String> queries) {
+		for (String query : queries) {
+			Resource target = resource;
+			if (query.startsWith(LinkFormat.END_POINT + "=")) {
+				target = resource.getContainer();
+			}
+			if (!LinkFormat.matches(target, Collections.singletonList(query))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isIndexed(String attr) {
+		for (String indexed : INDEXED_ATTRIBUTES) {
+			if (indexed.equals(attr)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static List<String> valuesOf(DelegatedResource resource,
+			String attr) {
+		Resource owner = resource;
+		if (LinkFormat.END_POINT.equals(attr)) {
+			owner = resource.getContainer();
+		}
+		if (!owner.getAttributes().containsAttribute(attr)) {
+			return null;
+		}
+		return owner.getAttributes().getAttributeValues(attr);
+	}
+
+	/*
+	 * Adds a resource to a posting set, created if missing. Done inside
+	 * compute, so that it cannot race with remove() dropping the set once
+	 * empty.
+	 */
+	private void addPosting(String key, DelegatedResource resource) {
+		postings.compute(key, (k, set) -> {
+			if (set == null) {
+				set = Collections.newSetFromMap(
+						new ConcurrentHashMap<DelegatedResource, Boolean>());
+			}
+			set.add(resource);
+			return set;
+		});
+	}
+}
@@ -0,0 +1,190 @@
+/******************************************************************************
+ * @title: History Ring
+ * 	Bounded time series of the values of a delegated resource
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * HistoryRing keeps the last values of a delegated resource, each one with
+ * the time it was written, so that a regular node which was offline can
+ * retrieve the samples it missed. It is enabled by registering the resource
+ * with the attribute hs=&lt;capacity&gt;, e.g. &lt;/temp&gt;;hs=32.
+ * <p>
+ * The ring is made of primitive arrays allocated once: capacity timestamps,
+ * capacity lengths and capacity slots of {@link #MAX_SAMPLE_SIZE} bytes. Its
+ * footprint is thus fixed by the capacity, at most {@link #MAX_CAPACITY}
+ * samples. A value longer than a slot is recorded as omitted, keeping its
+ * timestamp only. Once full, every new sample overwrites the oldest one.
+ * <p>
+ * Samples are returned in a compact batch: the number of samples, then for
+ * each one the difference between its timestamp and the previous one (the
+ * first one from 0, i.e. in milliseconds since the epoch) and its length plus
+ * one (0 if omitted), followed by its bytes. Numbers are unsigned varints
+ * (7 bits per byte, least significant group first), the differences are
+ * zig-zag encoded, since the clock may go backwards.
+ * <p>
+ * A ring is not thread safe: it is guarded by the lock of its resource.
+ */
+public class HistoryRing {
+
+	// Registration attribute enabling the history
+	public static final String ATTRIBUTE = "hs";
+
+	// Maximum number of samples of a ring
+	public static final int MAX_CAPACITY = 1024;
+
+	// Size of the slot of a sample
+	public static final int MAX_SAMPLE_SIZE = 64;
+
+	// Length of a sample too long to be kept
+	private static final short OMITTED = -1;
+
+	private final long[] times;
+	private final short[] lengths;
+	private final byte[] data;
+
+	// index of the next sample to be written, and number of samples
+	private int next;
+	private int count;
+
+	/**
+	 * Instantiates an empty ring.
+	 *
+	 * @param capacity
+	 *            the number of samples kept, between 1 and
+	 *            {@link #MAX_CAPACITY}
+	 */
+	public HistoryRing(int capacity) {
+		if (capacity < 1 || capacity > MAX_CAPACITY) {
+			throw new IllegalArgumentException("capacity " + capacity);
+		}
+		times = new long[capacity];
+		lengths = new short[capacity];
+		data = new byte[capacity * MAX_SAMPLE_SIZE];
+	}
+
+	/**
+	 * Returns the ring requested by the value of the hs attribute, null if
+	 * the value is missing or not a number. Capacities above
+	 * {@link #MAX_CAPACITY} are reduced to it.
+	 */
+	public static HistoryRing forAttribute(String value) {
+		if (value == null) {
+			return null;
+		}
+		try {
+			int capacity = Integer.parseInt(value.trim());
+			if (capacity < 1) {
+				return null;
+			}
+			return new HistoryRing(Math.min(capacity, MAX_CAPACITY));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the maximum number of samples.
+	 */
+	public int getCapacity() {
+		return times.length;
+	}
+
+	/**
+	 * Returns the number of samples currently kept.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Records a sample, overwriting the oldest one if the ring is full.
+	 *
+	 * @param time
+	 *            the wall-clock time of the sample, in milliseconds
+	 * @param value
+	 *            the value
+	 */
+	public void add(long time, byte[] value) {
+		times[next] = time;
+		if (value.length > MAX_SAMPLE_SIZE) {
+			lengths[next] = OMITTED;
+		} else {
+			lengths[next] = (short) value.length;
+			System.arraycopy(value, 0, data, next * MAX_SAMPLE_SIZE,
+					value.length);
+		}
+		next = (next + 1) % times.length;
+		if (count < times.length) {
+			count++;
+		}
+	}
+
+	/**
+	 * Encodes a batch of samples, from the oldest to the newest. With a
+	 * starting time, the batch holds the first samples written after it, so
+	 * that a client can page through the history passing the time of the
+	 * last sample received; without it, the batch holds the latest samples.
+	 *
+	 * @param since
+	 *            only samples strictly newer than this time are returned, -1
+	 *            for all the samples
+	 * @param limit
+	 *            the maximum number of samples returned
+	 * @return the encoded batch
+	 */
+	public byte[] encode(long since, int limit) {
+		int oldest = (next - count + times.length) % times.length;
+
+		// first sample and number of samples of the batch
+		int skip = 0;
+		if (since >= 0) {
+			while (skip < count
+					&& times[(oldest + skip) % times.length] <= since) {
+				skip++;
+			}
+		}
+		int n = Math.min(count - skip, limit);
+		if (since < 0) {
+			skip = count - n;
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(
+				8 + n * (4 + MAX_SAMPLE_SIZE));
+		number(out, n);
+		long previous = 0;
+		for (int i = 0; i < n; i++) {
+			int index = (oldest + skip + i) % times.length;
+			long delta = times[index] - previous;
+			number(out, (delta << 1) ^ (delta >> 63));
+			previous = times[index];
+			if (lengths[index] == OMITTED) {
+				number(out, 0);
+			} else {
+				number(out, lengths[index] + 1);
+				out.write(data, index * MAX_SAMPLE_SIZE, lengths[index]);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	private static void number(ByteArrayOutputStream out, long n) {
+		while ((n & ~0x7FL) != 0) {
+			out.write((int) ((n & 0x7F) | 0x80));
+			n >>>= 7;
+		}
+		out.write((int) n);
+	}
+}
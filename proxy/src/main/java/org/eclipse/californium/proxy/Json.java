@@ -0,0 +1,367 @@
+/******************************************************************************
+ * @title: JSON
+ * 	Minimal JSON (RFC 8259) encoder and decoder
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Json converts JSON texts to and from plain Java objects, with the same
+ * mapping as {@link Cbor}: numbers without fraction and exponent are mapped
+ * to Long, other numbers to Double, objects to Map (keeping the order of the
+ * members), arrays to List, strings to String, true and false to Boolean and
+ * null to null. Since JSON has no byte strings, byte[] values are encoded as
+ * base64url strings without padding, as SenML does.
+ */
+public class Json {
+
+	// Maximum nesting of arrays and objects
+	private static final int MAX_DEPTH = 16;
+
+	/**
+	 * Encodes an object as a JSON text, in UTF-8.
+	 *
+	 * @param value
+	 *            the object, made of the types listed in the class
+	 *            description
+	 * @return the encoded text
+	 * @throws IllegalArgumentException
+	 *             if the object contains a type which cannot be encoded
+	 */
+	public static byte[] encode(Object value) {
+		StringBuilder buffer = new StringBuilder(64);
+		write(buffer, value);
+		return buffer.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Decodes a JSON text in UTF-8.
+	 *
+	 * @param data
+	 *            the text, possibly surrounded by white spaces
+	 * @return the object
+	 * @throws IllegalArgumentException
+	 *             if the text is malformed
+	 */
+	public static Object decode(byte[] data) {
+		Reader reader = new Reader(new String(data, StandardCharsets.UTF_8));
+		Object value = reader.read(0);
+		reader.skipSpaces();
+		if (reader.position != reader.text.length()) {
+			throw new IllegalArgumentException("trailing characters");
+		}
+		return value;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void write(StringBuilder buffer, Object value) {
+		if (value == null) {
+			buffer.append("null");
+		} else if (value instanceof Boolean) {
+			buffer.append(value);
+		} else if (value instanceof Double || value instanceof Float) {
+			double d = ((Number) value).doubleValue();
+			if (Double.isNaN(d) || Double.isInfinite(d)) {
+				buffer.append("null");
+			} else {
+				buffer.append(d);
+			}
+		} else if (value instanceof Number) {
+			buffer.append(((Number) value).longValue());
+		} else if (value instanceof String) {
+			string(buffer, (String) value);
+		} else if (value instanceof byte[]) {
+			buffer.append('"').append(Base64.getUrlEncoder().withoutPadding()
+					.encodeToString((byte[]) value)).append('"');
+		} else if (value instanceof List) {
+			buffer.append('[');
+			boolean first = true;
+			for (Object item : (List<Object>) value) {
+				if (!first) {
+					buffer.append(',');
+				}
+				first = false;
+				write(buffer, item);
+			}
+			buffer.append(']');
+		} else if (value instanceof Map) {
+			buffer.append('{');
+			boolean first = true;
+			for (Map.Entry<Object, Object> entry : ((Map<Object, Object>) value)
+					.entrySet()) {
+				if (!first) {
+					buffer.append(',');
+				}
+				first = false;
+				string(buffer, String.valueOf(entry.getKey()));
+				buffer.append(':');
+				write(buffer, entry.getValue());
+			}
+			buffer.append('}');
+		} else {
+			throw new IllegalArgumentException(
+					"cannot encode " + value.getClass().getName());
+		}
+	}
+
+	private static void string(StringBuilder buffer, String s) {
+		buffer.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				buffer.append("\\\"");
+				break;
+			case '\\':
+				buffer.append("\\\\");
+				break;
+			case '\n':
+				buffer.append("\\n");
+				break;
+			case '\r':
+				buffer.append("\\r");
+				break;
+			case '\t':
+				buffer.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					buffer.append(String.format("\\u%04x", (int) c));
+				} else {
+					buffer.append(c);
+				}
+			}
+		}
+		buffer.append('"');
+	}
+
+	/*
+	 * Decoder of a text, keeping the current position
+	 */
+	private static class Reader {
+		final String text;
+		int position;
+
+		Reader(String text) {
+			this.text = text;
+		}
+
+		Object read(int depth) {
+			if (depth > MAX_DEPTH) {
+				throw new IllegalArgumentException("nested too deep");
+			}
+			skipSpaces();
+			char c = peek();
+			switch (c) {
+			case '{':
+				position++;
+				return object(depth);
+			case '[':
+				position++;
+				return array(depth);
+			case '"':
+				return string();
+			case 't':
+				literal("true");
+				return Boolean.TRUE;
+			case 'f':
+				literal("false");
+				return Boolean.FALSE;
+			case 'n':
+				literal("null");
+				return null;
+			default:
+				return number();
+			}
+		}
+
+		Map<Object, Object> object(int depth) {
+			Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+			skipSpaces();
+			if (peek() == '}') {
+				position++;
+				return map;
+			}
+			while (true) {
+				skipSpaces();
+				String key = string();
+				skipSpaces();
+				expect(':');
+				map.put(key, read(depth + 1));
+				skipSpaces();
+				if (peek() == '}') {
+					position++;
+					return map;
+				}
+				expect(',');
+			}
+		}
+
+		List<Object> array(int depth) {
+			List<Object> list = new ArrayList<Object>();
+			skipSpaces();
+			if (peek() == ']') {
+				position++;
+				return list;
+			}
+			while (true) {
+				list.add(read(depth + 1));
+				skipSpaces();
+				if (peek() == ']') {
+					position++;
+					return list;
+				}
+				expect(',');
+			}
+		}
+
+		String string() {
+			expect('"');
+			StringBuilder buffer = null;
+			int start = position;
+			while (true) {
+				char c = next();
+				if (c == '"') {
+					break;
+				}
+				if (c < 0x20) {
+					throw new IllegalArgumentException("control character");
+				}
+				if (c != '\\') {
+					if (buffer != null) {
+						buffer.append(c);
+					}
+					continue;
+				}
+				if (buffer == null) {
+					buffer = new StringBuilder(
+							text.substring(start, position - 1));
+				}
+				c = next();
+				switch (c) {
+				case 'b':
+					buffer.append('\b');
+					break;
+				case 'f':
+					buffer.append('\f');
+					break;
+				case 'n':
+					buffer.append('\n');
+					break;
+				case 'r':
+					buffer.append('\r');
+					break;
+				case 't':
+					buffer.append('\t');
+					break;
+				case 'u':
+					if (position + 4 > text.length()) {
+						throw new IllegalArgumentException("truncated escape");
+					}
+					try {
+						buffer.append((char) Integer.parseInt(
+								text.substring(position, position + 4), 16));
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("invalid escape");
+					}
+					position += 4;
+					break;
+				case '"':
+				case '\\':
+				case '/':
+					buffer.append(c);
+					break;
+				default:
+					throw new IllegalArgumentException("invalid escape");
+				}
+			}
+			return (buffer != null) ? buffer.toString()
+					: text.substring(start, position - 1);
+		}
+
+		Object number() {
+			int start = position;
+			boolean integer = true;
+			while (position < text.length()) {
+				char c = text.charAt(position);
+				if (c == '.' || c == 'e' || c == 'E') {
+					integer = false;
+				} else if (c != '-' && c != '+' && (c < '0' || c > '9')) {
+					break;
+				}
+				position++;
+			}
+			String number = text.substring(start, position);
+			if (number.isEmpty()) {
+				throw new IllegalArgumentException(
+						"unexpected character at " + start);
+			}
+			try {
+				if (integer) {
+					try {
+						return Long.parseLong(number);
+					} catch (NumberFormatException e) {
+						// too large for a long
+					}
+				}
+				return Double.parseDouble(number);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("invalid number " + number);
+			}
+		}
+
+		void literal(String literal) {
+			if (!text.startsWith(literal, position)) {
+				throw new IllegalArgumentException(
+						"unexpected character at " + position);
+			}
+			position += literal.length();
+		}
+
+		void expect(char c) {
+			if (next() != c) {
+				throw new IllegalArgumentException(
+						"expected " + c + " at " + (position - 1));
+			}
+		}
+
+		void skipSpaces() {
+			while (position < text.length()) {
+				char c = text.charAt(position);
+				if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+					return;
+				}
+				position++;
+			}
+		}
+
+		char peek() {
+			if (position == text.length()) {
+				throw new IllegalArgumentException("truncated text");
+			}
+			return text.charAt(position);
+		}
+
+		char next() {
+			char c = peek();
+			position++;
+			return c;
+		}
+	}
+}
@@ -0,0 +1,161 @@
+/******************************************************************************
+ * @title: Latency Histogram
+ * 	Lock-free, allocation-free histogram of latencies
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram records latencies in a fixed set of log-linear buckets, in
+ * the style of HdrHistogram: every power of two is split into 32 linear
+ * sub-buckets, so any recorded value is known within about 3% of its actual
+ * value, from one microsecond up to several days.
+ * <p>
+ * Recording a value is lock-free and does not allocate, so histograms can be
+ * kept enabled on every request path. Reading the percentiles scans the
+ * buckets without stopping the writers, thus concurrent recordings may or
+ * may not be included.
+ */
+public class LatencyHistogram {
+
+	// Sub-buckets per power of two: 2^SUB_BITS
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	// Enough buckets to represent any positive long
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts;
+	private final LongAdder count;
+	private final LongAdder sum;
+	private final AtomicLong max;
+
+	/**
+	 * Instantiates an empty histogram.
+	 */
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(BUCKETS);
+		count = new LongAdder();
+		sum = new LongAdder();
+		max = new AtomicLong();
+	}
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param nanos
+	 *            the latency, in nanoseconds
+	 */
+	public void recordNanos(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		counts.incrementAndGet(indexOf(micros));
+		count.increment();
+		sum.add(micros);
+
+		long current = max.get();
+		while (micros > current && !max.compareAndSet(current, micros)) {
+			current = max.get();
+		}
+	}
+
+	/**
+	 * Returns the number of recorded values.
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the sum of the recorded values, in microseconds.
+	 */
+	public long getSumMicros() {
+		return sum.sum();
+	}
+
+	/**
+	 * Returns the highest recorded value, in microseconds.
+	 */
+	public long getMaxMicros() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the value below which the given percentage of the recorded
+	 * values fall, in microseconds (upper bound of the bucket).
+	 *
+	 * @param percentile
+	 *            the percentile, between 0 and 100
+	 * @return the value at the percentile, or 0 if nothing has been recorded
+	 */
+	public long getPercentileMicros(double percentile) {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			total += counts.get(i);
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * Math.min(100, percentile) / 100);
+		rank = Math.max(1, rank);
+
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBoundOf(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Resets the histogram.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+
+	/*
+	 * Bucket of a value: values below SUB_BUCKETS have a bucket each, then
+	 * each power of two is divided in SUB_BUCKETS linear buckets.
+	 */
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BITS;
+		int sub = (int) (value >>> shift) - SUB_BUCKETS;
+		return (shift + 1) * SUB_BUCKETS + sub;
+	}
+
+	/*
+	 * Highest value falling in the given bucket
+	 */
+	private static long upperBoundOf(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long sub = index % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,359 @@
+/******************************************************************************
+ * @title: Lifetime Scheduler
+ * 	Proxy-wide hashed timing wheel used to expire delegated resources
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LifetimeScheduler is a hashed timing wheel shared by all the resources of a
+ * proxy. It replaces the per-resource <tt>java.util.Timer</tt>: a single
+ * worker thread advances the wheel one tick at a time and runs the tasks whose
+ * deadline has passed.
+ * <p>
+ * The wheel is an array of buckets, each one holding a doubly linked list of
+ * {@link Timeout}s. A timeout whose deadline is farther than one revolution
+ * stays in its bucket with a number of remaining rounds, which is decremented
+ * every time the wheel passes over it. Thus scheduling, rearming and
+ * cancelling a timeout are O(1) operations, independently of the number of
+ * pending timeouts.
+ * <p>
+ * Tasks are run by the worker thread, outside the wheel lock: they are
+ * supposed to be short (e.g. removing a resource from the tree), and must
+ * never block, since every other timeout of the proxy waits for them. A task
+ * finding a lock busy gives up and runs again at the next tick (see
+ * {@link #retry(Timeout)}); a longer work is handed to an executor.
+ */
+public class LifetimeScheduler {
+
+	private static final ProxyLogger LOGGER = ProxyLogger
+			.getLogger(LifetimeScheduler.class);
+
+	// Default tick duration, in milliseconds
+	public static final long DEFAULT_TICK_MILLIS = 100;
+
+	// Default number of buckets of the wheel (must be a power of two)
+	public static final int DEFAULT_WHEEL_SIZE = 512;
+
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+
+	// Reference time, all the deadlines are relative to it
+	private final long startTime;
+
+	// Number of ticks already processed by the worker
+	private long tick;
+
+	private Thread worker;
+	private volatile boolean running;
+
+	/**
+	 * Instantiates a LifetimeScheduler with default tick duration and wheel
+	 * size.
+	 */
+	public LifetimeScheduler() {
+		this(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+	}
+
+	/**
+	 * Instantiates a LifetimeScheduler with the given tick duration and wheel
+	 * size.
+	 *
+	 * @param tickMillis
+	 *            the duration of a tick, i.e. the resolution of the scheduler
+	 * @param wheelSize
+	 *            the number of buckets, rounded up to a power of two
+	 */
+	public LifetimeScheduler(long tickMillis, int wheelSize) {
+		if (tickMillis <= 0 || wheelSize <= 0) {
+			throw new IllegalArgumentException(
+					"tick duration and wheel size must be positive");
+		}
+		int size = 1;
+		while (size < wheelSize) {
+			size <<= 1;
+		}
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		this.mask = size - 1;
+		this.startTime = System.nanoTime();
+		this.tick = 0;
+	}
+
+	/**
+	 * A task scheduled on the wheel. The same Timeout can be rearmed any number
+	 * of times, thus a resource only needs one of them for its whole life.
+	 */
+	public static class Timeout {
+		private static final int PENDING = 0;
+		private static final int EXPIRED = 1;
+		private static final int CANCELLED = 2;
+
+		private final Runnable task;
+
+		// The fields below are guarded by the scheduler lock
+		private long deadline;
+		private long remainingRounds;
+		private Bucket bucket;
+		private Timeout prev;
+		private Timeout next;
+
+		private volatile int state;
+
+		private Timeout(Runnable task) {
+			this.task = task;
+			this.state = CANCELLED;
+		}
+
+		/**
+		 * Returns true if the timeout is waiting on the wheel.
+		 */
+		public boolean isPending() {
+			return state == PENDING;
+		}
+
+		/**
+		 * Returns true if the deadline has been reached and the timeout has
+		 * not been rearmed since then.
+		 */
+		public boolean isExpired() {
+			return state == EXPIRED;
+		}
+
+		/**
+		 * Returns true if the timeout has been cancelled.
+		 */
+		public boolean isCancelled() {
+			return state == CANCELLED;
+		}
+	}
+
+	/*
+	 * A slot of the wheel: a doubly linked list of timeouts
+	 */
+	private static class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		void append(Timeout t) {
+			t.bucket = this;
+			t.prev = tail;
+			t.next = null;
+			if (tail == null) {
+				head = t;
+			} else {
+				tail.next = t;
+			}
+			tail = t;
+		}
+
+		void unlink(Timeout t) {
+			if (t.prev == null) {
+				head = t.next;
+			} else {
+				t.prev.next = t.next;
+			}
+			if (t.next == null) {
+				tail = t.prev;
+			} else {
+				t.next.prev = t.prev;
+			}
+			t.bucket = null;
+			t.prev = null;
+			t.next = null;
+		}
+	}
+
+	/**
+	 * Creates a new timeout for the given task and schedules it.
+	 *
+	 * @param task
+	 *            the task to run when the delay elapses
+	 * @param delayMillis
+	 *            the delay, in milliseconds
+	 * @return the Timeout, which can be rearmed or cancelled
+	 */
+	public Timeout schedule(Runnable task, long delayMillis) {
+		Timeout timeout = new Timeout(task);
+		reschedule(timeout, delayMillis);
+		return timeout;
+	}
+
+	/**
+	 * Rearms the given timeout, so that it will expire after the given delay
+	 * from now. It works whatever the current state of the timeout is: a
+	 * pending timeout is moved, an expired or cancelled one is scheduled
+	 * again.
+	 *
+	 * @param timeout
+	 *            the timeout to rearm
+	 * @param delayMillis
+	 *            the delay, in milliseconds
+	 */
+	public void reschedule(Timeout timeout, long delayMillis) {
+		long deadline = System.nanoTime() - startTime
+				+ TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+		synchronized (this) {
+			if (timeout.bucket != null) {
+				timeout.bucket.unlink(timeout);
+			}
+			timeout.deadline = deadline;
+			long ticks = Math.max(deadline / tickNanos, tick);
+			timeout.remainingRounds = (ticks - tick) / wheel.length;
+			wheel[(int) (ticks & mask)].append(timeout);
+			timeout.state = Timeout.PENDING;
+		}
+	}
+
+	/**
+	 * Rearms an expired timeout for the next tick, so that its task runs
+	 * again, unless it has been rearmed or cancelled since it expired. Used
+	 * by a task which cannot complete without blocking the worker thread,
+	 * e.g. because the lock it needs is held.
+	 *
+	 * @param timeout
+	 *            the timeout whose task is running
+	 * @return true if the timeout has been rearmed, false otherwise
+	 */
+	public boolean retry(Timeout timeout) {
+		long deadline = System.nanoTime() - startTime;
+		synchronized (this) {
+			if (timeout.state != Timeout.EXPIRED) {
+				return false;
+			}
+			// the bucket processed at the next tick
+			timeout.deadline = deadline;
+			timeout.remainingRounds = 0;
+			wheel[(int) (tick & mask)].append(timeout);
+			timeout.state = Timeout.PENDING;
+			return true;
+		}
+	}
+
+	/**
+	 * Cancels the given timeout.
+	 *
+	 * @param timeout
+	 *            the timeout to cancel
+	 * @return true if the timeout was pending, false otherwise
+	 */
+	public boolean cancel(Timeout timeout) {
+		synchronized (this) {
+			boolean wasPending = timeout.state == Timeout.PENDING;
+			if (timeout.bucket != null) {
+				timeout.bucket.unlink(timeout);
+			}
+			timeout.state = Timeout.CANCELLED;
+			return wasPending;
+		}
+	}
+
+	/**
+	 * Starts the worker thread. Calling it on a running scheduler has no
+	 * effect.
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				work();
+			}
+		}, "LifetimeScheduler");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Stops the worker thread. Pending timeouts are kept and will be processed
+	 * if the scheduler is started again.
+	 */
+	public void stop() {
+		Thread w;
+		synchronized (this) {
+			running = false;
+			w = worker;
+			worker = null;
+		}
+		if (w != null) {
+			w.interrupt();
+		}
+	}
+
+	/*
+	 * Body of the worker thread: waits for the next tick and expires the
+	 * timeouts of the corresponding bucket.
+	 */
+	private void work() {
+		List<Timeout> expired = new ArrayList<Timeout>();
+		while (running) {
+			long nextTick;
+			synchronized (this) {
+				nextTick = tick + 1;
+			}
+			long sleepNanos = nextTick * tickNanos
+					- (System.nanoTime() - startTime);
+			if (sleepNanos > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleepNanos);
+				} catch (InterruptedException e) {
+					continue;
+				}
+			}
+
+			synchronized (this) {
+				collectExpired(wheel[(int) (tick & mask)], expired);
+				tick++;
+			}
+
+			for (Timeout t : expired) {
+				try {
+					t.task.run();
+				} catch (RuntimeException e) {
+					LOGGER.error("[LifetimeScheduler]: task failed: {}", e);
+				}
+			}
+			expired.clear();
+		}
+	}
+
+	/*
+	 * Moves the expired timeouts of the bucket into the given list. Must be
+	 * called holding the scheduler lock.
+	 */
+	private void collectExpired(Bucket bucket, List<Timeout> expired) {
+		long now = System.nanoTime() - startTime;
+		Timeout t = bucket.head;
+		while (t != null) {
+			Timeout next = t.next;
+			if (t.remainingRounds <= 0 && t.deadline <= now) {
+				bucket.unlink(t);
+				t.state = Timeout.EXPIRED;
+				expired.add(t);
+			} else if (t.remainingRounds > 0) {
+				t.remainingRounds--;
+			}
+			t = next;
+		}
+	}
+}
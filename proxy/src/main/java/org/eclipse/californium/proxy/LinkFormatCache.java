@@ -0,0 +1,136 @@
+/******************************************************************************
+ * @title: Link Format Cache
+ * 	Cache of the link-format description of a container subtree
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LinkFormatCache stores the link-format serialization of the subtree of a
+ * {@link ContainerResource}, so that discovery requests do not need to
+ * serialize the whole subtree every time.
+ * <p>
+ * The unfiltered serialization and the filtered ones (one for each distinct
+ * list of queries, e.g. rt=... or if=...) are cached. The number of filtered
+ * variants is bounded: the least recently used one is evicted when the bound
+ * is reached.
+ * <p>
+ * Every change to the subtree (resources added or removed, visibility or
+ * attributes changed) must call <tt>invalidate()</tt>. A generation counter
+ * guarantees that a serialization computed before an invalidation is never
+ * stored in the cache.
+ */
+public class LinkFormatCache {
+
+	// Default maximum number of filtered variants kept in the cache
+	public static final int DEFAULT_MAX_VARIANTS = 64;
+
+	// Key used for the unfiltered serialization
+	private static final String NO_QUERY = "";
+
+	private final Map<String, String> variants;
+
+	// Incremented at every invalidation
+	private long generation;
+
+	/**
+	 * Instantiates a cache with the default bound on the filtered variants.
+	 */
+	public LinkFormatCache() {
+		this(DEFAULT_MAX_VARIANTS);
+	}
+
+	/**
+	 * Instantiates a cache with the given bound on the filtered variants.
+	 *
+	 * @param maxVariants
+	 *            the maximum number of cached serializations
+	 */
+	public LinkFormatCache(final int maxVariants) {
+		this.variants = new LinkedHashMap<String, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, String> eldest) {
+				return size() > maxVariants;
+			}
+		};
+		this.generation = 0;
+	}
+
+	/**
+	 * Builds the cache key corresponding to the given queries.
+	 *
+	 * @param queries
+	 *            the queries (may be null)
+	 * @return the key
+	 */
+	public static String keyOf(List<String> queries) {
+		if (queries == null || queries.isEmpty()) {
+			return NO_QUERY;
+		}
+		if (queries.size() == 1) {
+			return queries.get(0);
+		}
+		StringBuilder key = new StringBuilder();
+		for (String query : queries) {
+			key.append(query).append('&');
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Returns the cached serialization for the given key, or null.
+	 */
+	public synchronized String get(String key) {
+		return variants.get(key);
+	}
+
+	/**
+	 * Returns the current generation, to be passed to <tt>put()</tt> after
+	 * the serialization has been computed.
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Stores a serialization, unless the cache has been invalidated after the
+	 * given generation has been read.
+	 *
+	 * @param key
+	 *            the key, as returned by <tt>keyOf()</tt>
+	 * @param serialization
+	 *            the serialized subtree
+	 * @param generation
+	 *            the generation read before computing the serialization
+	 */
+	public synchronized void put(String key, String serialization,
+			long generation) {
+		if (this.generation == generation) {
+			variants.put(key, serialization);
+		}
+	}
+
+	/**
+	 * Drops every cached serialization.
+	 */
+	public synchronized void invalidate() {
+		generation++;
+		variants.clear();
+	}
+}
@@ -0,0 +1,283 @@
+/******************************************************************************
+ * @title: Link Format Parser
+ * 	Single-pass tokenizer for link-format payloads
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * LinkFormatParser is a single-pass, index-based tokenizer for link-format
+ * payloads (RFC 6690), working directly on the bytes of the request payload.
+ * No intermediate strings or arrays are created: only the path, the names and
+ * the values actually requested by the caller are decoded.
+ * <p>
+ * Typical usage:
+ *
+ * <pre>
+ * LinkFormatParser parser = new LinkFormatParser(payload);
+ * while (parser.nextLink()) {
+ * 	String path = parser.getPath();
+ * 	while (parser.nextAttribute()) {
+ * 		String name = parser.getAttributeName();
+ * 		String value = parser.getAttributeValue();
+ * 	}
+ * }
+ * </pre>
+ *
+ * Quoted values may contain commas and semicolons. Whitespace (including the
+ * NUL terminator sent by the Contiki sleepy nodes) is ignored between tokens.
+ * A malformed payload causes an IllegalArgumentException.
+ */
+public class LinkFormatParser {
+
+	private final byte[] payload;
+	private final int end;
+	private int pos;
+
+	// true after nextLink() returned true, until the link is fully consumed
+	private boolean inLink;
+
+	// Boundaries of the current tokens (end excluded)
+	private int pathStart;
+	private int pathEnd;
+	private int nameStart;
+	private int nameEnd;
+	private int valueStart;
+	private int valueEnd;
+	// true if the current value is quoted and holds escaped characters
+	private boolean valueEscaped;
+
+	/**
+	 * Instantiates a parser over the whole payload.
+	 *
+	 * @param payload
+	 *            the link-format payload (may be null)
+	 */
+	public LinkFormatParser(byte[] payload) {
+		this(payload, 0, payload == null ? 0 : payload.length);
+	}
+
+	/**
+	 * Instantiates a parser over a portion of the given buffer.
+	 *
+	 * @param payload
+	 *            the buffer
+	 * @param offset
+	 *            the first byte to be parsed
+	 * @param length
+	 *            the number of bytes to be parsed
+	 */
+	public LinkFormatParser(byte[] payload, int offset, int length) {
+		this.payload = payload;
+		this.pos = offset;
+		this.end = offset + length;
+		this.inLink = false;
+	}
+
+	/**
+	 * Moves to the next link, skipping the attributes of the current one not
+	 * read yet.
+	 *
+	 * @return true if a link is available, false at the end of the payload
+	 */
+	public boolean nextLink() {
+		if (inLink) {
+			while (nextAttribute()) {
+				// skip the remaining attributes
+			}
+			skipWhitespace();
+			if (pos < end) {
+				expect(',');
+			}
+			inLink = false;
+		}
+		skipWhitespace();
+		if (pos >= end) {
+			return false;
+		}
+
+		expect('<');
+		pathStart = pos;
+		while (pos < end && payload[pos] != '>') {
+			pos++;
+		}
+		if (pos >= end) {
+			throw error("unterminated link target");
+		}
+		pathEnd = pos++;
+		inLink = true;
+		return true;
+	}
+
+	/**
+	 * Moves to the next attribute of the current link.
+	 *
+	 * @return true if an attribute is available, false if the current link
+	 *         has no more attributes
+	 */
+	public boolean nextAttribute() {
+		if (!inLink) {
+			return false;
+		}
+		skipWhitespace();
+		if (pos >= end || payload[pos] != ';') {
+			return false;
+		}
+		pos++;
+		skipWhitespace();
+
+		nameStart = pos;
+		while (pos < end && payload[pos] != '=' && payload[pos] != ';'
+				&& payload[pos] != ',') {
+			pos++;
+		}
+		nameEnd = trimEnd(nameStart, pos);
+		if (nameEnd == nameStart) {
+			throw error("empty attribute name");
+		}
+
+		if (pos < end && payload[pos] == '=') {
+			pos++;
+			skipWhitespace();
+			valueEscaped = false;
+			if (pos < end && payload[pos] == '"') {
+				valueStart = ++pos;
+				while (pos < end && payload[pos] != '"') {
+					if (payload[pos] == '\\') {
+						valueEscaped = true;
+						pos++;
+					}
+					pos++;
+				}
+				if (pos >= end) {
+					throw error("unterminated quoted value");
+				}
+				valueEnd = pos++;
+			} else {
+				valueStart = pos;
+				while (pos < end && payload[pos] != ';'
+						&& payload[pos] != ',') {
+					pos++;
+				}
+				valueEnd = trimEnd(valueStart, pos);
+			}
+		} else {
+			// attribute without value, e.g. "obs"
+			valueStart = -1;
+			valueEnd = -1;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the target of the current link, without angle brackets.
+	 */
+	public String getPath() {
+		return decode(pathStart, pathEnd);
+	}
+
+	/**
+	 * Returns the name of the current attribute.
+	 */
+	public String getAttributeName() {
+		return decode(nameStart, nameEnd);
+	}
+
+	/**
+	 * Returns the value of the current attribute, without quotes, or null if
+	 * the attribute has no value.
+	 */
+	public String getAttributeValue() {
+		if (valueStart < 0) {
+			return null;
+		}
+		return decode(valueStart, valueEnd);
+	}
+
+	/**
+	 * Returns a copy of the bytes of the value of the current attribute,
+	 * without quotes and without decoding them, or null if the attribute has
+	 * no value. Unlike {@link #getAttributeValue()}, which keeps the value as
+	 * written in link-format, the escaped characters of a quoted value are
+	 * unescaped, e.g. \" becomes ".
+	 */
+	public byte[] getAttributeValueBytes() {
+		if (valueStart < 0) {
+			return null;
+		}
+		if (!valueEscaped) {
+			return Arrays.copyOfRange(payload, valueStart, valueEnd);
+		}
+		byte[] value = new byte[valueEnd - valueStart];
+		int length = 0;
+		for (int i = valueStart; i < valueEnd; i++) {
+			if (payload[i] == '\\') {
+				// a quoted value never ends with a lone backslash
+				i++;
+			}
+			value[length++] = payload[i];
+		}
+		return Arrays.copyOf(value, length);
+	}
+
+	/**
+	 * Checks whether the name of the current attribute is the given one,
+	 * without decoding it.
+	 *
+	 * @param name
+	 *            an ASCII attribute name
+	 * @return true if the name of the current attribute is equal to name
+	 */
+	public boolean attributeNameIs(String name) {
+		if (name.length() != nameEnd - nameStart) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			if (payload[nameStart + i] != name.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String decode(int from, int to) {
+		return new String(payload, from, to - from, StandardCharsets.UTF_8);
+	}
+
+	private void skipWhitespace() {
+		while (pos < end && (payload[pos] & 0xFF) <= ' ') {
+			pos++;
+		}
+	}
+
+	private int trimEnd(int from, int to) {
+		while (to > from && (payload[to - 1] & 0xFF) <= ' ') {
+			to--;
+		}
+		return to;
+	}
+
+	private void expect(char c) {
+		if (pos >= end || payload[pos] != c) {
+			throw error("'" + c + "' expected");
+		}
+		pos++;
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException(
+				"Malformed link-format at offset " + pos + ": " + message);
+	}
+}
@@ -0,0 +1,243 @@
+/******************************************************************************
+ * @title: Log Ring Buffer
+ * 	Lock-free queue of log events, drained by a background thread
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LogRingBuffer is a bounded, lock-free, multi-producer single-consumer queue
+ * of log events. Request threads claim a slot with a compare-and-set on the
+ * tail sequence and fill it with the template and the arguments of the event;
+ * a single background thread formats the published events and hands them in
+ * batches to a {@link LogSink}.
+ * <p>
+ * Producers never block: if the buffer is full, the event is dropped and
+ * counted. Slots are preallocated and reused, so publishing an event does not
+ * allocate. Once the buffer is closed, the events published are dropped as
+ * well, while the ones which claimed a slot before are still written.
+ */
+public class LogRingBuffer {
+
+	// Maximum number of events formatted before handing them to the sink
+	private static final int MAX_BATCH = 512;
+
+	// Sleep time of the background thread when the buffer is empty
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(1);
+
+	/*
+	 * A slot of the buffer. The sequence field is written last by the
+	 * producer, so that the consumer sees a complete event once it reads the
+	 * expected sequence.
+	 */
+	private static class Event {
+		volatile long sequence = -1;
+		ProxyLogger.Level level;
+		long timestamp;
+		String thread;
+		String logger;
+		String template;
+		Object arg1;
+		Object arg2;
+		Object arg3;
+	}
+
+	private final Event[] slots;
+	private final int mask;
+	private final LogSink sink;
+
+	// Next sequence to be claimed by a producer, SEALED once closed
+	private final AtomicLong tail = new AtomicLong();
+
+	// Value of the tail once the background thread has stopped claiming
+	private static final long SEALED = -1;
+
+	// Next sequence to be consumed, only written by the background thread
+	private volatile long head = 0;
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final Thread consumer;
+	private volatile boolean running;
+
+	/**
+	 * Instantiates a buffer with the given capacity and starts its background
+	 * thread.
+	 *
+	 * @param capacity
+	 *            the number of slots, rounded up to a power of two
+	 * @param sink
+	 *            the destination of the events
+	 */
+	public LogRingBuffer(int capacity, LogSink sink) {
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		this.slots = new Event[size];
+		for (int i = 0; i < size; i++) {
+			slots[i] = new Event();
+		}
+		this.mask = size - 1;
+		this.sink = sink;
+
+		this.running = true;
+		this.consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "ProxyLogger");
+		consumer.setDaemon(true);
+		consumer.start();
+	}
+
+	/**
+	 * Publishes an event.
+	 *
+	 * @return true if the event has been queued, false if it has been dropped
+	 *         because the buffer is full or closed
+	 */
+	public boolean publish(ProxyLogger.Level level, String logger,
+			String template, Object arg1, Object arg2, Object arg3) {
+		long sequence;
+		do {
+			sequence = tail.get();
+			if (sequence == SEALED || sequence - head >= slots.length) {
+				dropped.incrementAndGet();
+				return false;
+			}
+		} while (!tail.compareAndSet(sequence, sequence + 1));
+
+		Event e = slots[(int) (sequence & mask)];
+		e.level = level;
+		e.timestamp = System.currentTimeMillis();
+		e.thread = Thread.currentThread().getName();
+		e.logger = logger;
+		e.template = template;
+		e.arg1 = arg1;
+		e.arg2 = arg2;
+		e.arg3 = arg3;
+		e.sequence = sequence;
+		return true;
+	}
+
+	/**
+	 * Returns the number of events dropped because the buffer was full or
+	 * closed.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Returns true once the buffer no longer accepts events.
+	 */
+	public boolean isClosed() {
+		return tail.get() == SEALED;
+	}
+
+	/**
+	 * Stops the background thread, after all the published events have been
+	 * written, and closes the sink.
+	 */
+	public void close() {
+		running = false;
+		LockSupport.unpark(consumer);
+		try {
+			consumer.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * Body of the background thread
+	 */
+	private void drain() {
+		StringBuilder batch = new StringBuilder(MAX_BATCH * 128);
+		SimpleDateFormat dateFormat = new SimpleDateFormat(
+				"yyyy-MM-dd HH:mm:ss.SSS");
+		Date date = new Date();
+		int count = 0;
+		// the last sequence claimed before sealing, -1 while running
+		long end = -1;
+
+		while (true) {
+			long sequence = head;
+			Event e = slots[(int) (sequence & mask)];
+			if (e.sequence == sequence && count < MAX_BATCH) {
+				date.setTime(e.timestamp);
+				batch.append(dateFormat.format(date)).append(' ')
+						.append(e.level).append(" [").append(e.thread)
+						.append("] ").append(e.logger).append(": ");
+				format(batch, e.template, e.arg1, e.arg2, e.arg3);
+				batch.append('\n');
+				e.arg1 = null;
+				e.arg2 = null;
+				e.arg3 = null;
+				head = sequence + 1;
+				count++;
+				continue;
+			}
+
+			if (count > 0) {
+				try {
+					sink.write(batch);
+				} catch (IOException ex) {
+					System.err.println("[ProxyLogger]: cannot write log: "
+							+ ex);
+				}
+				batch.setLength(0);
+				count = 0;
+			} else if (!running) {
+				if (end < 0) {
+					// the producers holding a slot still fill it
+					end = tail.getAndSet(SEALED);
+				}
+				if (head == end) {
+					sink.close();
+					return;
+				}
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+			} else {
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+			}
+		}
+	}
+
+	/*
+	 * Replaces the "{}" placeholders of the template with the arguments
+	 */
+	private static void format(StringBuilder buffer, String template,
+			Object arg1, Object arg2, Object arg3) {
+		int argument = 0;
+		int from = 0;
+		int placeholder;
+		while ((placeholder = template.indexOf("{}", from)) >= 0
+				&& argument < 3) {
+			buffer.append(template, from, placeholder);
+			buffer.append(argument == 0 ? arg1 : argument == 1 ? arg2 : arg3);
+			argument++;
+			from = placeholder + 2;
+		}
+		buffer.append(template, from, template.length());
+	}
+}
@@ -0,0 +1,41 @@
+/******************************************************************************
+ * @title: Log Sink
+ * 	Destination of the log events of the proxy
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.io.IOException;
+
+/**
+ * A LogSink receives the formatted log events from the background thread of
+ * the {@link LogRingBuffer}. Events are delivered in batches, so that a sink
+ * writing to a file performs one write per batch instead of one per event.
+ * Methods are only called by the background thread.
+ */
+public interface LogSink {
+
+	/**
+	 * Writes a batch of formatted events, each one terminated by a newline.
+	 *
+	 * @param batch
+	 *            the formatted events
+	 * @throws IOException
+	 *             if the events cannot be written
+	 */
+	void write(CharSequence batch) throws IOException;
+
+	/**
+	 * Releases the resources held by the sink.
+	 */
+	void close();
+}
@@ -0,0 +1,189 @@
+/******************************************************************************
+ * @title: Notification Coalescer
+ * 	Rate limiting of the observe notifications of a delegated resource
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.util.List;
+
+/**
+ * NotificationCoalescer limits the rate of the observe notifications of a
+ * delegated resource, as requested at registration with the pmin and pmax
+ * attributes (in seconds, as the conditional attributes of CoRE
+ * Dynamic Linking), e.g. &lt;/temp&gt;;obs;pmin=5;pmax=60.
+ * <p>
+ * Two notifications are at least pmin apart: a change occurring earlier is
+ * deferred to the end of the period, and the following changes of the same
+ * period are coalesced into it, so that the observers only receive the
+ * latest value. If pmax is given, the observers are notified again after
+ * pmax without changes, the notification carrying the current value.
+ * <p>
+ * Deferred notifications are run by the {@link LifetimeScheduler} of the
+ * proxy, through a single timeout reused for the whole life of the resource;
+ * notifications are always sent without holding the lock of the resource.
+ */
+public class NotificationCoalescer {
+
+	// Registration attributes
+	public static final String MIN_PERIOD = "pmin";
+	public static final String MAX_PERIOD = "pmax";
+
+	private final DelegatedResource resource;
+	private final LifetimeScheduler scheduler;
+	private final long pminMillis;
+	private final long pmaxMillis;
+
+	// The fields below are guarded by the monitor
+	private LifetimeScheduler.Timeout timeout;
+	private long lastNotified = Long.MIN_VALUE / 2;
+	private boolean pending;
+	private boolean closed;
+
+	/**
+	 * Instantiates a coalescer for the given resource.
+	 *
+	 * @param resource
+	 *            the resource whose observers are notified
+	 * @param scheduler
+	 *            the scheduler running the deferred notifications
+	 * @param pminMillis
+	 *            the minimum period between two notifications, 0 for none
+	 * @param pmaxMillis
+	 *            the maximum period without notifications, 0 for none
+	 */
+	public NotificationCoalescer(DelegatedResource resource,
+			LifetimeScheduler scheduler, long pminMillis, long pmaxMillis) {
+		this.resource = resource;
+		this.scheduler = scheduler;
+		this.pminMillis = pminMillis;
+		this.pmaxMillis = pmaxMillis;
+	}
+
+	/**
+	 * Returns the coalescer requested by the pmin and pmax attributes, null
+	 * if neither is given. Values which are not positive numbers are
+	 * ignored, as pmax if not greater than pmin.
+	 *
+	 * @param resource
+	 *            the resource whose observers are notified
+	 * @param scheduler
+	 *            the scheduler running the deferred notifications
+	 * @param pmin
+	 *            the values of the pmin attribute, possibly null
+	 * @param pmax
+	 *            the values of the pmax attribute, possibly null
+	 * @return the coalescer, or null
+	 */
+	public static NotificationCoalescer forAttributes(
+			DelegatedResource resource, LifetimeScheduler scheduler,
+			List<String> pmin, List<String> pmax) {
+		long min = millis(pmin);
+		long max = millis(pmax);
+		if (max <= min) {
+			max = 0;
+		}
+		if (min == 0 && max == 0) {
+			return null;
+		}
+		return new NotificationCoalescer(resource, scheduler, min, max);
+	}
+
+	private static long millis(List<String> values) {
+		if (values == null || values.isEmpty() || values.get(0) == null) {
+			return 0;
+		}
+		try {
+			double seconds = Double.parseDouble(values.get(0).trim());
+			return (seconds > 0) ? Math.round(seconds * 1000) : 0;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Notifies the observers of a change, now or at the end of the current
+	 * minimum period. Must be called without holding the lock of the
+	 * resource.
+	 */
+	public void changed() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			if (pending) {
+				// the deferred notification will carry this change too
+				resource.getContainer().getProxy().getMetrics().increment(
+						ProxyMetrics.Counter.NOTIFICATIONS_SUPPRESSED);
+				return;
+			}
+			long now = System.nanoTime() / 1000000;
+			long wait = lastNotified + pminMillis - now;
+			if (wait > 0) {
+				pending = true;
+				arm(wait);
+				return;
+			}
+			notified(now);
+		}
+		resource.notifyObservers();
+	}
+
+	/**
+	 * Stops the notifications, e.g. because the resource has expired.
+	 */
+	public synchronized void close() {
+		closed = true;
+		if (timeout != null) {
+			scheduler.cancel(timeout);
+		}
+	}
+
+	/*
+	 * Records a notification and arms the maximum period, called holding the
+	 * monitor
+	 */
+	private void notified(long now) {
+		lastNotified = now;
+		pending = false;
+		if (pmaxMillis > 0) {
+			arm(pmaxMillis);
+		} else if (timeout != null) {
+			scheduler.cancel(timeout);
+		}
+	}
+
+	private void arm(long delayMillis) {
+		if (timeout == null) {
+			timeout = scheduler.schedule(new Task(), delayMillis);
+		} else {
+			scheduler.reschedule(timeout, delayMillis);
+		}
+	}
+
+	/*
+	 * Sends the deferred notification, or the one of the maximum period
+	 */
+	private class Task implements Runnable {
+		@Override
+		public void run() {
+			synchronized (NotificationCoalescer.this) {
+				if (closed || !timeout.isExpired()) {
+					// closed or rearmed in the meantime
+					return;
+				}
+				notified(System.nanoTime() / 1000000);
+			}
+			resource.notifyObserversDeferred();
+		}
+	}
+}
@@ -0,0 +1,189 @@
+/******************************************************************************
+ * @title: Notification Executor
+ * 	Bounded executor delivering the observe notifications
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NotificationExecutor delivers the observe notifications of the delegated
+ * resources on its own small pool of threads, so that the PUT of a sleepy
+ * node is answered without waiting for its observers to be notified.
+ * <p>
+ * The queue is bounded. When it is full, the notification is delivered by
+ * the thread submitting it, which is thus slowed down instead of letting the
+ * queue grow: every such notification is counted as backpressure. Since a
+ * resource has at most one notification queued (see
+ * {@link DelegatedResource#notifyObservers()}), the queue only fills up when
+ * more resources than its capacity change faster than their observers can
+ * be notified. The notifications deferred by a {@link NotificationCoalescer}
+ * are never delivered by the worker of the {@link LifetimeScheduler}, which
+ * every timeout of the proxy waits for: with the queue full they are dropped
+ * instead (see {@link #offer(Runnable)}).
+ * <p>
+ * Before {@link #start()} and after {@link #stop()} notifications are
+ * delivered by the submitting thread, as Californium does.
+ */
+public class NotificationExecutor {
+
+	private static final ProxyLogger LOGGER = ProxyLogger
+			.getLogger(NotificationExecutor.class);
+
+	// Default number of threads
+	public static final int DEFAULT_THREADS = 2;
+
+	// Default number of queued notifications
+	public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+
+	private final ProxyMetrics metrics;
+
+	private int threads = DEFAULT_THREADS;
+	private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+	private volatile ThreadPoolExecutor executor;
+
+	/**
+	 * Instantiates a stopped executor.
+	 *
+	 * @param metrics
+	 *            the metrics of the proxy
+	 */
+	public NotificationExecutor(ProxyMetrics metrics) {
+		this.metrics = metrics;
+		metrics.registerGauge("notification_queue_depth", () -> {
+			ThreadPoolExecutor e = executor;
+			return (e == null) ? 0 : e.getQueue().size();
+		});
+	}
+
+	/**
+	 * Sets the number of threads, taking effect at the next start.
+	 */
+	public synchronized void setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads " + threads);
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * Sets the capacity of the queue, taking effect at the next start.
+	 */
+	public synchronized void setQueueCapacity(int queueCapacity) {
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("capacity " + queueCapacity);
+		}
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * Starts the threads. Calling it on a running executor has no effect.
+	 */
+	public synchronized void start() {
+		if (executor != null) {
+			return;
+		}
+		final AtomicInteger count = new AtomicInteger();
+		ThreadFactory factory = new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r,
+						"notifier-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		executor = new ThreadPoolExecutor(threads, threads, 0,
+				TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), factory,
+				new ThreadPoolExecutor.AbortPolicy());
+		LOGGER.info("[start]: {} threads, queue of {}", threads,
+				queueCapacity);
+	}
+
+	/**
+	 * Stops the threads, after the queued notifications are delivered.
+	 */
+	public void stop() {
+		ThreadPoolExecutor e;
+		synchronized (this) {
+			e = executor;
+			executor = null;
+		}
+		if (e == null) {
+			return;
+		}
+		e.shutdown();
+		try {
+			if (!e.awaitTermination(1, TimeUnit.SECONDS)) {
+				LOGGER.warn("[stop]: {} notifications not delivered",
+						e.shutdownNow().size());
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Delivers a notification, on the threads of the executor if running
+	 * and if the queue is not full, otherwise on the calling thread.
+	 *
+	 * @param notification
+	 *            the task notifying the observers
+	 */
+	public void execute(Runnable notification) {
+		ThreadPoolExecutor e = executor;
+		if (e != null) {
+			try {
+				e.execute(notification);
+				return;
+			} catch (RejectedExecutionException ree) {
+				// queue full, or stopping
+				metrics.increment(
+						ProxyMetrics.Counter.NOTIFICATION_BACKPRESSURE);
+			}
+		}
+		notification.run();
+	}
+
+	/**
+	 * Delivers a notification on the threads of the executor if running,
+	 * but never on the calling thread while it is running: if the queue is
+	 * full, the notification is dropped and counted.
+	 *
+	 * @param notification
+	 *            the task notifying the observers
+	 * @return false if the notification has been dropped
+	 */
+	public boolean offer(Runnable notification) {
+		ThreadPoolExecutor e = executor;
+		if (e == null) {
+			notification.run();
+			return true;
+		}
+		try {
+			e.execute(notification);
+			return true;
+		} catch (RejectedExecutionException ree) {
+			// queue full, or stopping
+			metrics.increment(ProxyMetrics.Counter.NOTIFICATIONS_DROPPED);
+			return false;
+		}
+	}
+}
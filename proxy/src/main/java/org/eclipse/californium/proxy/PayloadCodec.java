@@ -0,0 +1,226 @@
+/******************************************************************************
+ * @title: Payload Codec
+ * 	Conversion of the values among the supported content-formats
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.OptionSet;
+
+/**
+ * PayloadCodec converts the value of a resource from the content-format it
+ * was written with to the one requested by a reader through the Accept
+ * option. Values are stored as received, thus a conversion only happens
+ * when a reader asks for a different content-format.
+ * <p>
+ * A value is converted passing through a plain Java object: text/plain is
+ * read as a number when it looks like a JSON number, as a boolean for true
+ * and false, as a string otherwise; JSON and CBOR are read with {@link Json}
+ * and {@link Cbor}; a SenML pack gives the value of its first record;
+ * application/octet-stream gives the bytes themselves. Structured values
+ * (arrays and maps) can only be converted between JSON and CBOR.
+ */
+public class PayloadCodec {
+
+	// Numbers written as text/plain
+	private static final Pattern NUMBER = Pattern
+			.compile("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?");
+
+	/**
+	 * Returns the content-format requested by the Accept option, or the
+	 * given default if there is no Accept option.
+	 */
+	public static int getAccept(OptionSet options, int defaultFormat) {
+		return options.hasAccept() ? options.getAccept() : defaultFormat;
+	}
+
+	/**
+	 * Returns true for the content-formats a value can be converted to.
+	 */
+	public static boolean isValueFormat(int contentFormat) {
+		switch (contentFormat) {
+		case MediaTypeRegistry.TEXT_PLAIN:
+		case MediaTypeRegistry.APPLICATION_OCTET_STREAM:
+		case MediaTypeRegistry.APPLICATION_JSON:
+		case MediaTypeRegistry.APPLICATION_CBOR:
+		case SenML.APPLICATION_SENML_JSON:
+		case SenML.APPLICATION_SENML_CBOR:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Converts a value to another content-format.
+	 *
+	 * @param value
+	 *            the value
+	 * @param from
+	 *            its content-format, MediaTypeRegistry.UNDEFINED being read
+	 *            as text/plain
+	 * @param to
+	 *            the requested content-format
+	 * @param name
+	 *            the name of the resource, used by SenML records
+	 * @return the converted value, null if the value cannot be represented
+	 *         in the requested content-format
+	 */
+	public static byte[] transcode(byte[] value, int from, int to,
+			String name) {
+		if (from == to) {
+			return value;
+		}
+		if (!isValueFormat(to)) {
+			return null;
+		}
+		try {
+			return encode(decode(value, from), to, name);
+		} catch (IllegalArgumentException e) {
+			// malformed value, or with a type unknown to the target format
+			return null;
+		}
+	}
+
+	/**
+	 * Decodes a value.
+	 *
+	 * @param value
+	 *            the value
+	 * @param contentFormat
+	 *            its content-format, MediaTypeRegistry.UNDEFINED being read
+	 *            as text/plain
+	 * @return the value as a plain Java object, see {@link Cbor}
+	 * @throws IllegalArgumentException
+	 *             if the value is malformed or its content-format unknown
+	 */
+	public static Object decode(byte[] value, int contentFormat) {
+		switch (contentFormat) {
+		case MediaTypeRegistry.UNDEFINED:
+		case MediaTypeRegistry.TEXT_PLAIN:
+			return parseText(new String(value, StandardCharsets.UTF_8));
+		case MediaTypeRegistry.APPLICATION_OCTET_STREAM:
+			return value;
+		case MediaTypeRegistry.APPLICATION_JSON:
+			return Json.decode(value);
+		case MediaTypeRegistry.APPLICATION_CBOR:
+			return Cbor.decode(value);
+		case SenML.APPLICATION_SENML_JSON:
+		case SenML.APPLICATION_SENML_CBOR:
+			List<SenML.Record> records = SenML.decode(value, contentFormat);
+			if (records.isEmpty()) {
+				throw new IllegalArgumentException("empty pack");
+			}
+			return records.get(0).value;
+		default:
+			throw new IllegalArgumentException(
+					"unsupported content-format " + contentFormat);
+		}
+	}
+
+	/**
+	 * Encodes a value.
+	 *
+	 * @param value
+	 *            the value as a plain Java object
+	 * @param contentFormat
+	 *            the content-format, one accepted by
+	 *            {@link #isValueFormat(int)}
+	 * @param name
+	 *            the name of the resource, used by SenML records
+	 * @return the encoded value, null if the value cannot be represented in
+	 *         the given content-format
+	 */
+	public static byte[] encode(Object value, int contentFormat,
+			String name) {
+		switch (contentFormat) {
+		case MediaTypeRegistry.TEXT_PLAIN:
+			if (value instanceof Number || value instanceof String
+					|| value instanceof Boolean) {
+				return value.toString().getBytes(StandardCharsets.UTF_8);
+			}
+			return null;
+		case MediaTypeRegistry.APPLICATION_OCTET_STREAM:
+			return (value instanceof byte[]) ? (byte[]) value : null;
+		case MediaTypeRegistry.APPLICATION_JSON:
+			return Json.encode(value);
+		case MediaTypeRegistry.APPLICATION_CBOR:
+			return Cbor.encode(value);
+		case SenML.APPLICATION_SENML_JSON:
+		case SenML.APPLICATION_SENML_CBOR:
+			if (!SenML.isValue(value)) {
+				return null;
+			}
+			return SenML.encode(Collections.singletonList(
+					new SenML.Record(name, value)), contentFormat);
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the SenML record carrying a value: the value itself if it can
+	 * be decoded into a number, a string or a boolean, otherwise its bytes
+	 * with their content-format.
+	 *
+	 * @param name
+	 *            the name of the record
+	 * @param value
+	 *            the value, possibly null
+	 * @param contentFormat
+	 *            its content-format
+	 * @return the record
+	 */
+	public static SenML.Record toRecord(String name, byte[] value,
+			int contentFormat) {
+		if (value == null) {
+			return new SenML.Record(name, null);
+		}
+		try {
+			Object decoded = decode(value, contentFormat);
+			if (SenML.isValue(decoded)) {
+				return new SenML.Record(name, decoded);
+			}
+		} catch (IllegalArgumentException e) {
+			// sent as raw bytes
+		}
+		return new SenML.Record(name, value, -1, contentFormat);
+	}
+
+	/*
+	 * Reads a text/plain value
+	 */
+	private static Object parseText(String text) {
+		String trimmed = text.trim();
+		if (NUMBER.matcher(trimmed).matches()) {
+			if (trimmed.indexOf('.') < 0 && trimmed.indexOf('e') < 0
+					&& trimmed.indexOf('E') < 0) {
+				try {
+					return Long.parseLong(trimmed);
+				} catch (NumberFormatException e) {
+					// too large for a long
+				}
+			}
+			return Double.parseDouble(trimmed);
+		}
+		if (trimmed.equals("true") || trimmed.equals("false")) {
+			return Boolean.valueOf(trimmed);
+		}
+		return text;
+	}
+}
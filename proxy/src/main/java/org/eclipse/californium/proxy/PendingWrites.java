@@ -0,0 +1,377 @@
+/******************************************************************************
+ * @title: Pending Writes
+ * 	Writes of the regular nodes waiting for the sleepy node to wake up
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+
+/**
+ * PendingWrites keeps the writes of the regular nodes on a delegated
+ * resource until its sleepy node polls for them, so that they reach the
+ * node inline with the list of changes instead of being read back with a
+ * GET each. It is enabled by registering the resource with the wp attribute,
+ * naming the policy used to merge a write with the pending ones:
+ * <ul>
+ * <li>lww (last writer wins): only the latest write is kept;</li>
+ * <li>append: every write is kept, in order, up to the capacity given by the
+ * wq attribute (e.g. &lt;/cmd&gt;;wp=append;wq=16); further writes are
+ * refused until the node polls;</li>
+ * <li>merge: writes are JSON Merge Patches (RFC 7396), in JSON or CBOR,
+ * applied to the value of the resource and composed into a single pending
+ * patch.</li>
+ * </ul>
+ * Composing two patches is exact unless the second one patches a member
+ * the first one deleted or replaced with a non-object: since a merge patch
+ * cannot replace a member with an object, the composed patch then merges
+ * into the member the node had instead.
+ * <p>
+ * A queue is not thread safe: it is guarded by the lock of its resource.
+ */
+public class PendingWrites {
+
+	// Registration attributes enabling the queue and giving its capacity
+	public static final String POLICY = "wp";
+	public static final String CAPACITY = "wq";
+
+	// Default and maximum number of writes kept by the append policy
+	public static final int DEFAULT_CAPACITY = 8;
+	public static final int MAX_CAPACITY = 64;
+
+	// Content-format of JSON Merge Patches
+	public static final int APPLICATION_MERGE_PATCH_JSON = 52;
+
+	/**
+	 * Policies merging a write with the pending ones.
+	 */
+	public enum Policy {
+		LAST_WRITER_WINS("lww"), APPEND("append"), MERGE_PATCH("merge");
+
+		private final String name;
+
+		private Policy(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Returns the policy with the given attribute value, null if none.
+		 */
+		public static Policy forName(String name) {
+			for (Policy policy : values()) {
+				if (policy.name.equals(name)) {
+					return policy;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * A value with its content-format.
+	 */
+	public static class Write {
+		// null for a resource without value
+		public final byte[] value;
+		public final int contentFormat;
+
+		public Write(byte[] value, int contentFormat) {
+			this.value = value;
+			this.contentFormat = contentFormat;
+		}
+	}
+
+	private final Policy policy;
+	private final int capacity;
+
+	// The writes, oldest first
+	private final ArrayDeque<Write> writes;
+
+	// The composed patch of the merge policy, null if none is pending
+	private Map<Object, Object> patch;
+
+	/**
+	 * Instantiates an empty queue.
+	 *
+	 * @param policy
+	 *            the policy merging the writes
+	 * @param capacity
+	 *            the number of writes kept by the append policy, between 1
+	 *            and {@link #MAX_CAPACITY}
+	 */
+	public PendingWrites(Policy policy, int capacity) {
+		if (capacity < 1 || capacity > MAX_CAPACITY) {
+			throw new IllegalArgumentException("capacity " + capacity);
+		}
+		this.policy = policy;
+		this.capacity = (policy == Policy.APPEND) ? capacity : 1;
+		this.writes = new ArrayDeque<Write>(this.capacity);
+	}
+
+	/**
+	 * Returns the queue requested by the wp and wq attributes, null if wp is
+	 * missing or names no policy. A capacity which is not a number is
+	 * replaced by the default, one above {@link #MAX_CAPACITY} is reduced to
+	 * it.
+	 *
+	 * @param policy
+	 *            the values of the wp attribute, possibly null
+	 * @param capacity
+	 *            the values of the wq attribute, possibly null
+	 * @return the queue, or null
+	 */
+	public static PendingWrites forAttributes(List<String> policy,
+			List<String> capacity) {
+		if (policy == null || policy.isEmpty() || policy.get(0) == null) {
+			return null;
+		}
+		Policy p = Policy.forName(policy.get(0).trim());
+		if (p == null) {
+			return null;
+		}
+		int size = DEFAULT_CAPACITY;
+		if (capacity != null && !capacity.isEmpty()
+				&& capacity.get(0) != null) {
+			try {
+				size = Integer.parseInt(capacity.get(0).trim());
+			} catch (NumberFormatException e) {
+				// default capacity
+			}
+		}
+		return new PendingWrites(p,
+				Math.max(1, Math.min(size, MAX_CAPACITY)));
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Returns true if a write in the given content-format can be queued: any
+	 * content-format, except for the merge policy which takes patches in
+	 * JSON or CBOR.
+	 */
+	public boolean accepts(int contentFormat) {
+		if (policy != Policy.MERGE_PATCH) {
+			return true;
+		}
+		return contentFormat == APPLICATION_MERGE_PATCH_JSON
+				|| contentFormat == MediaTypeRegistry.APPLICATION_JSON
+				|| contentFormat == MediaTypeRegistry.APPLICATION_CBOR;
+	}
+
+	/**
+	 * Queues a write, returning the new value of the resource: the write
+	 * itself, or for the merge policy the current value patched.
+	 *
+	 * @param value
+	 *            the value written, in a content-format accepted by
+	 *            {@link #accepts(int)}
+	 * @param contentFormat
+	 *            its content-format
+	 * @param current
+	 *            the current value of the resource, used by the merge policy
+	 * @return the new value of the resource, null if the queue is full
+	 * @throws IllegalArgumentException
+	 *             if the write is not a valid patch, or the patched value is
+	 *             too large
+	 */
+	public Write offer(byte[] value, int contentFormat, Write current) {
+		switch (policy) {
+		case LAST_WRITER_WINS:
+			writes.clear();
+			// fall through
+		case APPEND:
+			if (writes.size() == capacity) {
+				return null;
+			}
+			Write write = new Write(value, contentFormat);
+			writes.add(write);
+			return write;
+		default:
+			return merge(value, contentFormat, current);
+		}
+	}
+
+	/**
+	 * Returns the pending writes, oldest first, and empties the queue. The
+	 * pending patch of the merge policy is returned as merge-patch+json.
+	 */
+	public List<Write> drain() {
+		List<Write> drained = peek();
+		patch = null;
+		writes.clear();
+		return drained;
+	}
+
+	/**
+	 * Returns the pending writes as {@link #drain()} does, but leaving them
+	 * queued.
+	 */
+	public List<Write> peek() {
+		if (patch != null) {
+			return Collections.singletonList(new Write(Json.encode(patch),
+					APPLICATION_MERGE_PATCH_JSON));
+		}
+		if (writes.isEmpty()) {
+			return Collections.emptyList();
+		}
+		return new ArrayList<Write>(writes);
+	}
+
+	/**
+	 * Replaces the pending writes with the given ones, as returned by
+	 * {@link #peek()}, e.g. by another proxy. The writes beyond the capacity
+	 * are dropped.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the pending patch of the merge policy is not valid
+	 */
+	public void restore(List<Write> pending) {
+		writes.clear();
+		patch = null;
+		if (policy == Policy.MERGE_PATCH) {
+			if (!pending.isEmpty()) {
+				Object decoded = Json.decode(pending.get(0).value);
+				if (!(decoded instanceof Map)) {
+					throw new IllegalArgumentException(
+							"a patch must be an object");
+				}
+				patch = members(decoded);
+			}
+			return;
+		}
+		for (Write write : pending) {
+			if (writes.size() == capacity) {
+				break;
+			}
+			writes.add(write);
+		}
+	}
+
+	/**
+	 * Returns the number of pending writes.
+	 */
+	public int size() {
+		return (patch != null) ? 1 : writes.size();
+	}
+
+	/*
+	 * Applies a patch to the current value and composes it with the pending
+	 * one. The value keeps its content-format if JSON or CBOR, otherwise it
+	 * becomes JSON.
+	 */
+	private Write merge(byte[] value, int contentFormat, Write current) {
+		Object decoded = (contentFormat == MediaTypeRegistry.APPLICATION_CBOR)
+				? Cbor.decode(value) : Json.decode(value);
+		if (!(decoded instanceof Map)) {
+			throw new IllegalArgumentException("a patch must be an object");
+		}
+		Map<Object, Object> update = members(decoded);
+
+		int format = current.contentFormat;
+		Object target = null;
+		if (format == MediaTypeRegistry.APPLICATION_CBOR
+				|| format == MediaTypeRegistry.APPLICATION_JSON) {
+			try {
+				target = PayloadCodec.decode(current.value, format);
+			} catch (IllegalArgumentException e) {
+				// replaced by the patch
+			}
+		} else {
+			format = MediaTypeRegistry.APPLICATION_JSON;
+		}
+		byte[] patched = PayloadCodec.encode(apply(target, update), format,
+				null);
+		Map<Object, Object> composed = (patch == null) ? update
+				: compose(patch, update);
+		if (patched.length > ValueStore.MAX_VALUE_SIZE
+				|| Json.encode(composed).length > ValueStore.MAX_VALUE_SIZE) {
+			throw new IllegalArgumentException("patched value too large");
+		}
+		patch = composed;
+		return new Write(patched, format);
+	}
+
+	/*
+	 * Returns the members of an object, checking that their names are
+	 * strings
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<Object, Object> members(Object object) {
+		Map<Object, Object> map = (Map<Object, Object>) object;
+		for (Map.Entry<Object, Object> member : map.entrySet()) {
+			if (!(member.getKey() instanceof String)) {
+				throw new IllegalArgumentException(
+						"invalid member " + member.getKey());
+			}
+			if (member.getValue() instanceof Map) {
+				members(member.getValue());
+			}
+		}
+		return map;
+	}
+
+	/*
+	 * Applies a merge patch to a target, as defined by RFC 7396
+	 */
+	@SuppressWarnings("unchecked")
+	private static Object apply(Object target, Object patch) {
+		if (!(patch instanceof Map)) {
+			return patch;
+		}
+		Map<Object, Object> result = (target instanceof Map)
+				? new LinkedHashMap<Object, Object>((Map<Object, Object>) target)
+				: new LinkedHashMap<Object, Object>();
+		for (Map.Entry<Object, Object> member : ((Map<Object, Object>) patch)
+				.entrySet()) {
+			if (member.getValue() == null) {
+				result.remove(member.getKey());
+			} else {
+				result.put(member.getKey(),
+						apply(result.get(member.getKey()), member.getValue()));
+			}
+		}
+		return result;
+	}
+
+	/*
+	 * Composes two patches into one having the effect of the first followed
+	 * by the second, when it can be expressed by a merge patch
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<Object, Object> compose(Map<Object, Object> first,
+			Map<Object, Object> second) {
+		Map<Object, Object> result = new LinkedHashMap<Object, Object>(first);
+		for (Map.Entry<Object, Object> member : second.entrySet()) {
+			Object key = member.getKey();
+			Object value = member.getValue();
+			if (value instanceof Map && result.get(key) instanceof Map) {
+				result.put(key, compose((Map<Object, Object>) result.get(key),
+						(Map<Object, Object>) value));
+			} else if (value instanceof Map && result.containsKey(key)) {
+				// deleted or replaced by the first: the nulls are dropped
+				result.put(key, apply(null, value));
+			} else {
+				result.put(key, value);
+			}
+		}
+		return result;
+	}
+}
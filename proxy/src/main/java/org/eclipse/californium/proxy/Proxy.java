@@ -14,9 +14,12 @@
 
 package org.eclipse.californium.proxy;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.californium.core.CoapServer;
 import org.eclipse.californium.core.network.CoapEndpoint;
@@ -36,6 +39,10 @@ import org.eclipse.californium.core.network.CoapEndpoint;
  *
  */
 public class Proxy extends CoapServer {
+
+	private static final ProxyLogger LOGGER = ProxyLogger
+			.getLogger(Proxy.class);
+
 	/*
 	 * Every sleepy node has a reserved space in the proxy, represented by a
 	 * resource, which is the base path for the resources delegated by the
@@ -51,7 +58,41 @@ public class Proxy extends CoapServer {
 	private ConcurrentHashMap<String, ContainerResource> EPs;
 
 	// Counter: accessed atomically to obtain a new identifier
-	private int counter = 0;
+	private final AtomicInteger counter = new AtomicInteger();
+
+	/*
+	 * Timing wheel shared by all the delegated resources of this proxy, used
+	 * to handle their lifetime.
+	 */
+	private LifetimeScheduler lifetimeScheduler;
+
+	/*
+	 * Index over the attributes of every resource delegated to this proxy,
+	 * used to answer filtered discovery requests.
+	 */
+	private DiscoveryIndex discoveryIndex;
+
+	// Counters and latency histograms, exposed as /sp/stats
+	private ProxyMetrics metrics;
+
+	// Durable state, persisted only once the store is opened
+	private ProxyStore store;
+
+	// Off-heap values of the delegated resources
+	private ValueStore valueStore;
+
+	// Threads delivering the observe notifications
+	private NotificationExecutor notificationExecutor;
+
+	// Removes the containers of the dead end-points
+	private ContainerSweeper containerSweeper;
+
+	/*
+	 * Shards among which the end-points are split, null if this proxy owns
+	 * all of them, and the scatter/gather of the discoveries over them.
+	 */
+	private volatile ShardRing shardRing;
+	private ShardDiscovery shardDiscovery;
 
 	/**
 	 * Constructs a new proxy, initializing an EP map and associating it the
@@ -61,6 +102,25 @@ public class Proxy extends CoapServer {
 		super();
 
 		EPs = new ConcurrentHashMap<String, ContainerResource>();
+		lifetimeScheduler = new LifetimeScheduler();
+		discoveryIndex = new DiscoveryIndex();
+		valueStore = new ValueStore();
+		containerSweeper = new ContainerSweeper(this);
+		shardDiscovery = new ShardDiscovery(this);
+
+		metrics = new ProxyMetrics();
+		metrics.registerGauge("endpoints", () -> EPs.size());
+		metrics.registerGauge("indexed_resources",
+				() -> discoveryIndex.size());
+		metrics.registerGauge("log_dropped_events",
+				() -> ProxyLogger.getDroppedCount());
+		metrics.registerGauge("value_store_allocated_bytes",
+				() -> valueStore.getAllocatedBytes());
+		metrics.registerGauge("value_store_used_bytes",
+				() -> valueStore.getUsedBytes());
+
+		store = new ProxyStore(this);
+		notificationExecutor = new NotificationExecutor(metrics);
 
 		/*
 		 * Each proxy use a sp (sleepy proxy) resource, representing the base
@@ -72,41 +132,311 @@ public class Proxy extends CoapServer {
 		// setMessageDeliverer(new ProxyMessageDeliverer(sp));
 	}
 
-	public static void main(String[] args) {
+	public static void main(String[] args) throws IOException {
+		/*
+		 * Logging is configured by the system properties proxy.log.level
+		 * (DEBUG, INFO, WARN, ERROR or OFF) and proxy.log.file (if missing,
+		 * events are written on the standard output).
+		 */
+		ProxyLogger.Level level = ProxyLogger.Level.valueOf(
+				System.getProperty("proxy.log.level", "INFO").toUpperCase());
+		String logFile = System.getProperty("proxy.log.file");
+		ProxyLogger.configure(level, (logFile == null)
+				? new StreamLogSink(System.out)
+				: StreamLogSink.toFile(logFile));
+
 		Proxy proxy = new Proxy();
+
+		/*
+		 * If the system property proxy.metrics.file is set, metrics are
+		 * also dumped to that file every proxy.metrics.period seconds.
+		 */
+		String metricsFile = System.getProperty("proxy.metrics.file");
+		if (metricsFile != null) {
+			proxy.getMetrics().startDump(metricsFile,
+					Long.getLong("proxy.metrics.period", 10));
+		}
+		/*
+		 * Notifications are delivered by proxy.notify.threads threads, with
+		 * up to proxy.notify.queue notifications waiting.
+		 */
+		NotificationExecutor notifier = proxy.getNotificationExecutor();
+		notifier.setThreads(Integer.getInteger("proxy.notify.threads",
+				NotificationExecutor.DEFAULT_THREADS));
+		notifier.setQueueCapacity(Integer.getInteger("proxy.notify.queue",
+				NotificationExecutor.DEFAULT_QUEUE_CAPACITY));
+
+		/*
+		 * Containers registered without the lt attribute hold a lease of
+		 * proxy.lease seconds. Every proxy.sweep.period seconds the
+		 * containers of the dead end-points are removed, proxy.sweep.batch
+		 * at a time.
+		 */
+		ContainerSweeper sweeper = proxy.getContainerSweeper();
+		sweeper.setDefaultLease(Long.getLong("proxy.lease",
+				ContainerSweeper.DEFAULT_LEASE));
+		sweeper.setPeriod(Long.getLong("proxy.sweep.period",
+				ContainerSweeper.DEFAULT_PERIOD));
+		sweeper.setBatchSize(Integer.getInteger("proxy.sweep.batch",
+				ContainerSweeper.DEFAULT_BATCH_SIZE));
+
+		/*
+		 * If the system property proxy.store.dir is set, the state of the
+		 * proxy is persisted in that directory and recovered from it on
+		 * startup. With proxy.store.sync=true requests are answered only once
+		 * their changes are on disk.
+		 */
+		String storeDir = System.getProperty("proxy.store.dir");
+		if (storeDir != null) {
+			ProxyStore store = proxy.getStore();
+			store.setSyncCommit(Boolean.getBoolean("proxy.store.sync"));
+			store.setCommitInterval(Long.getLong("proxy.store.commit.interval",
+					ProxyStore.DEFAULT_COMMIT_INTERVAL));
+			store.setSnapshotPeriod(Long.getLong("proxy.store.snapshot.period",
+					ProxyStore.DEFAULT_SNAPSHOT_PERIOD));
+			store.open(new File(storeDir));
+		}
+
 		/*
 		 * An endpoint is used by the server to expose resources to clients. I-s
-		 * bound to a particular IP address and port
+		 * bound to a particular IP address and port, given by proxy.address
+		 * and proxy.port
 		 */
+		String address = System.getProperty("proxy.address", "aaaa::1");
+		int port = Integer.getInteger("proxy.port", 5683);
 		proxy.addEndpoint(
-				new CoapEndpoint(new InetSocketAddress("aaaa::1", 5683)));
+				new CoapEndpoint(new InetSocketAddress(address, port)));
+
+		/*
+		 * With proxy.shards, the comma-separated base URIs of several
+		 * proxies, the end-points are split among them. proxy.shard.self is
+		 * the base URI of this one, by default built from its address and
+		 * port; the other shards are waited for proxy.shard.timeout ms by
+		 * the discoveries.
+		 */
+		String shards = System.getProperty("proxy.shards");
+		if (shards != null) {
+			String host = (address.indexOf(':') >= 0) ? "[" + address + "]"
+					: address;
+			proxy.setShardRing(ShardRing.parse(shards, System.getProperty(
+					"proxy.shard.self", "coap://" + host + ":" + port)));
+			proxy.getShardDiscovery().setTimeout(Long.getLong(
+					"proxy.shard.timeout", ShardDiscovery.DEFAULT_TIMEOUT));
+		}
+
+		/*
+		 * With proxy.replication.listen (host:port, or only the port for the
+		 * loopback), the changes are streamed to a standby proxy connecting
+		 * there, with up to proxy.replication.queue records waiting to be
+		 * sent. The standby is not authenticated: the address must only be
+		 * reachable by it.
+		 */
+		String listen = System.getProperty("proxy.replication.listen");
+		ReplicationPrimary replication = null;
+		if (listen != null) {
+			replication = (listen.indexOf(':') < 0)
+					? new ReplicationPrimary(proxy, Integer.parseInt(listen))
+					: new ReplicationPrimary(proxy, socketAddress(listen));
+			replication.setQueueCapacity(Integer.getInteger(
+					"proxy.replication.queue",
+					ReplicationPrimary.DEFAULT_QUEUE_CAPACITY));
+		}
+
+		/*
+		 * With proxy.replication.primary (host:port), this proxy is the
+		 * standby of that primary: it only replicates its state, and starts
+		 * once the primary has been silent for proxy.replication.failover
+		 * ms. Once promoted, it is a primary in turn if
+		 * proxy.replication.listen is set.
+		 */
+		String primary = System.getProperty("proxy.replication.primary");
+		if (primary != null) {
+			ReplicationStandby standby = new ReplicationStandby(proxy,
+					socketAddress(primary));
+			standby.setFailover(Long.getLong("proxy.replication.failover",
+					ReplicationStandby.DEFAULT_FAILOVER));
+			final ReplicationPrimary next = replication;
+			standby.setPromotion(() -> {
+				proxy.start();
+				if (next != null) {
+					try {
+						next.start();
+					} catch (IOException e) {
+						LOGGER.error("[promote]: replication not started: {}",
+								e);
+					}
+				}
+			});
+			standby.start();
+			return;
+		}
 
+		if (replication != null) {
+			replication.start();
+		}
 		proxy.start();
 	}
+
+	/*
+	 * Parses a socket address given as host:port, with an IPv6 host
+	 * possibly in brackets
+	 */
+	private static InetSocketAddress socketAddress(String value) {
+		int colon = value.lastIndexOf(':');
+		if (colon < 0) {
+			throw new IllegalArgumentException("missing port in " + value);
+		}
+		String host = value.substring(0, colon);
+		if (host.startsWith("[") && host.endsWith("]")) {
+			host = host.substring(1, host.length() - 1);
+		}
+		return new InetSocketAddress(host,
+				Integer.parseInt(value.substring(colon + 1)));
+	}
 	
 	/**
 	 * Starts the proxy.
 	 */
 	@Override
 	public void start() {
+		lifetimeScheduler.start();
+		notificationExecutor.start();
+		containerSweeper.start();
 		super.start();
 	}
 
+	/**
+	 * Destroys the proxy, stopping also the lifetime scheduler, the
+	 * notification executor and the container sweeper, and closing the store.
+	 */
+	@Override
+	public void destroy() {
+		super.destroy();
+		containerSweeper.stop();
+		lifetimeScheduler.stop();
+		notificationExecutor.stop();
+		shardDiscovery.stop();
+		metrics.stopDump();
+		store.close();
+	}
+
 	/**
 	 * Gets the map of base paths for currently registered sleepy nodes.
 	 * 
 	 * @return the map of base paths for the registered nodes
 	 */
-	public Map<String, ContainerResource> getEPs() {
+	public ConcurrentMap<String, ContainerResource> getEPs() {
 		return EPs;
 	}
 
-	/* Synchronous because multiple threads access counter */
 	/**
-	 * Atomically returns a new EP identifier.
+	 * Gets the scheduler handling the lifetime of the delegated resources.
+	 * 
+	 * @return the lifetime scheduler of this proxy
+	 */
+	public LifetimeScheduler getLifetimeScheduler() {
+		return lifetimeScheduler;
+	}
+
+	/**
+	 * Gets the metrics of this proxy.
+	 * 
+	 * @return the metrics
+	 */
+	public ProxyMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Gets the store persisting the state of this proxy.
+	 * 
+	 * @return the store of this proxy
+	 */
+	public ProxyStore getStore() {
+		return store;
+	}
+
+	/**
+	 * Gets the off-heap store of the values of the delegated resources.
+	 * 
+	 * @return the value store of this proxy
+	 */
+	public ValueStore getValueStore() {
+		return valueStore;
+	}
+
+	/**
+	 * Gets the executor delivering the observe notifications.
+	 * 
+	 * @return the notification executor of this proxy
+	 */
+	public NotificationExecutor getNotificationExecutor() {
+		return notificationExecutor;
+	}
+
+	/**
+	 * Gets the sweeper removing the containers of the dead end-points.
+	 * 
+	 * @return the container sweeper of this proxy
+	 */
+	public ContainerSweeper getContainerSweeper() {
+		return containerSweeper;
+	}
+
+	/**
+	 * Gets the shards among which the end-points are split.
+	 * 
+	 * @return the ring of the shards, null if this proxy is not sharded
+	 */
+	public ShardRing getShardRing() {
+		return shardRing;
+	}
+
+	/**
+	 * Sets the shards among which the end-points are split, null to own all
+	 * of them. Registrations of the end-points of the other shards are
+	 * redirected, and discoveries are forwarded to them.
+	 * 
+	 * @param shardRing
+	 *            the ring of the shards, including this proxy
+	 */
+	public void setShardRing(ShardRing shardRing) {
+		this.shardRing = shardRing;
+	}
+
+	/**
+	 * Gets the scatter/gather of the discoveries over the shards.
+	 * 
+	 * @return the shard discovery of this proxy
+	 */
+	public ShardDiscovery getShardDiscovery() {
+		return shardDiscovery;
+	}
+
+	/**
+	 * Gets the index over the attributes of the delegated resources.
+	 * 
+	 * @return the discovery index of this proxy
+	 */
+	public DiscoveryIndex getDiscoveryIndex() {
+		return discoveryIndex;
+	}
+
+	/**
+	 * Atomically returns a new EP identifier. Lock-free, since multiple
+	 * threads may register new end points at the same time.
 	 * @return the new generated identifier
 	 */
-	public synchronized int newEPId() {
-		return counter++;
+	public int newEPId() {
+		return counter.getAndIncrement();
+	}
+
+	/**
+	 * Makes sure the given identifier, e.g. recovered from the store, will
+	 * not be returned by newEPId().
+	 * @param id the identifier already in use
+	 */
+	public void reserveEPId(int id) {
+		counter.accumulateAndGet(id + 1, Math::max);
 	}
 }
\ No newline at end of file
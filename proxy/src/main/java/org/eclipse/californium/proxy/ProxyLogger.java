@@ -0,0 +1,200 @@
+/******************************************************************************
+ * @title: Proxy Logger
+ * 	Level-gated, asynchronous logger used by the proxy
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+/**
+ * ProxyLogger is the logging facade of the proxy. Request handlers do not
+ * write to the standard output directly: they publish log events on a
+ * lock-free {@link LogRingBuffer}, which is drained by a background thread
+ * writing them in batches to a {@link LogSink} (the console or a file).
+ * <p>
+ * Messages are templates with "{}" placeholders, formatted by the background
+ * thread. Events below the configured level are discarded before anything is
+ * built, so a disabled debug line costs a single comparison. Callers passing
+ * primitive arguments (which would be boxed anyway) should guard the call
+ * with <tt>isDebugEnabled()</tt>.
+ * <p>
+ * The configuration is global to the process and can be changed at any time
+ * with <tt>configure()</tt>.
+ */
+public class ProxyLogger {
+
+	/**
+	 * Severity of a log event.
+	 */
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR, OFF
+	}
+
+	// Default capacity of the ring buffer (must be a power of two)
+	public static final int DEFAULT_CAPACITY = 8192;
+
+	private static volatile Level threshold = Level.INFO;
+	private static volatile LogRingBuffer buffer;
+
+	// Name printed with every event of this logger
+	private final String name;
+
+	private ProxyLogger(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Returns a logger for the given class.
+	 *
+	 * @param clazz
+	 *            the class using the logger
+	 * @return the logger
+	 */
+	public static ProxyLogger getLogger(Class<?> clazz) {
+		return new ProxyLogger(clazz.getSimpleName());
+	}
+
+	/**
+	 * Sets the level and the destination of the log events. The events
+	 * already published on the previous destination are flushed, once the
+	 * new one has replaced it.
+	 *
+	 * @param level
+	 *            the minimum level of the events to be logged
+	 * @param sink
+	 *            the destination of the events
+	 */
+	public static synchronized void configure(Level level, LogSink sink) {
+		LogRingBuffer old = buffer;
+		buffer = new LogRingBuffer(DEFAULT_CAPACITY, sink);
+		threshold = level;
+		if (old != null) {
+			old.close();
+		}
+	}
+
+	/**
+	 * Sets the minimum level of the events to be logged.
+	 *
+	 * @param level
+	 *            the new level
+	 */
+	public static void setLevel(Level level) {
+		threshold = level;
+	}
+
+	/**
+	 * Returns the number of events dropped because the ring buffer was full.
+	 */
+	public static long getDroppedCount() {
+		LogRingBuffer b = buffer;
+		return (b == null) ? 0 : b.getDroppedCount();
+	}
+
+	/**
+	 * Returns true if the events of the given level are logged.
+	 */
+	public boolean isEnabled(Level level) {
+		return level.compareTo(threshold) >= 0 && threshold != Level.OFF;
+	}
+
+	/**
+	 * Returns true if the debug events are logged.
+	 */
+	public boolean isDebugEnabled() {
+		return isEnabled(Level.DEBUG);
+	}
+
+	public void debug(String message) {
+		log(Level.DEBUG, message, null, null, null);
+	}
+
+	public void debug(String template, Object arg) {
+		log(Level.DEBUG, template, arg, null, null);
+	}
+
+	public void debug(String template, Object arg1, Object arg2) {
+		log(Level.DEBUG, template, arg1, arg2, null);
+	}
+
+	public void debug(String template, Object arg1, Object arg2,
+			Object arg3) {
+		log(Level.DEBUG, template, arg1, arg2, arg3);
+	}
+
+	public void info(String message) {
+		log(Level.INFO, message, null, null, null);
+	}
+
+	public void info(String template, Object arg) {
+		log(Level.INFO, template, arg, null, null);
+	}
+
+	public void info(String template, Object arg1, Object arg2) {
+		log(Level.INFO, template, arg1, arg2, null);
+	}
+
+	public void info(String template, Object arg1, Object arg2,
+			Object arg3) {
+		log(Level.INFO, template, arg1, arg2, arg3);
+	}
+
+	public void warn(String message) {
+		log(Level.WARN, message, null, null, null);
+	}
+
+	public void warn(String template, Object arg) {
+		log(Level.WARN, template, arg, null, null);
+	}
+
+	public void warn(String template, Object arg1, Object arg2) {
+		log(Level.WARN, template, arg1, arg2, null);
+	}
+
+	public void error(String template, Object arg) {
+		log(Level.ERROR, template, arg, null, null);
+	}
+
+	public void error(String template, Object arg1, Object arg2) {
+		log(Level.ERROR, template, arg1, arg2, null);
+	}
+
+	/*
+	 * Publishes the event on the ring buffer, if its level is enabled
+	 */
+	private void log(Level level, String template, Object arg1, Object arg2,
+			Object arg3) {
+		if (!isEnabled(level)) {
+			return;
+		}
+		LogRingBuffer b = buffer;
+		if (b == null) {
+			b = defaultBuffer();
+		}
+		if (!b.publish(level, name, template, arg1, arg2, arg3)
+				&& b.isClosed() && buffer != b) {
+			// read before configure() replaced it, published on the new one
+			buffer.publish(level, name, template, arg1, arg2, arg3);
+		}
+	}
+
+	/*
+	 * Lazily creates the buffer writing on the standard output, used if the
+	 * logger has not been configured.
+	 */
+	private static synchronized LogRingBuffer defaultBuffer() {
+		if (buffer == null) {
+			buffer = new LogRingBuffer(DEFAULT_CAPACITY,
+					new StreamLogSink(System.out));
+		}
+		return buffer;
+	}
+}
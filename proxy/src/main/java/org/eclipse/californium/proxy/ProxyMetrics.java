@@ -0,0 +1,291 @@
+/******************************************************************************
+ * @title: Proxy Metrics
+ * 	Counters and latency histograms of the proxy
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * ProxyMetrics collects the counters and the latency histograms of a proxy.
+ * Counters are striped (LongAdder) and histograms are lock-free, so recording
+ * never allocates nor blocks and can stay enabled in production.
+ * <p>
+ * Metrics are exposed by the {@link StatsResource} in the Prometheus text
+ * format and, optionally, periodically dumped to a file with the same format.
+ */
+public class ProxyMetrics {
+
+	private static final ProxyLogger LOGGER = ProxyLogger
+			.getLogger(ProxyMetrics.class);
+
+	/**
+	 * Events counted by the proxy.
+	 */
+	public enum Counter {
+		REGISTRATIONS("registrations", "Resource registrations (POST /sp)"),
+		DISCOVERIES("discoveries", "Discovery requests (GET on /sp or containers)"),
+		OWNER_PUTS("owner_puts", "PUT requests from the owner sleepy node"),
+		REGULAR_PUTS("regular_puts", "PUT requests from regular nodes"),
+		GETS("gets", "GET requests on delegated resources"),
+		GETS_VALID("gets_valid",
+				"GETs answered 2.03 Valid, the client holding the ETag"),
+		POLLS("polls", "Dirty-resources polls from sleepy nodes"),
+		BATCH_PUTS("batch_puts", "Batched updates (PUT on containers)"),
+		EXPIRATIONS("expirations", "Delegated resources removed by lifetime expiry"),
+		NOTIFICATIONS("notifications", "Observe notifications triggered"),
+		NOTIFICATIONS_SUPPRESSED("notifications_suppressed",
+				"Changes coalesced into a pending notification"),
+		NOTIFICATION_BACKPRESSURE("notification_backpressure",
+				"Notifications delivered inline, the queue being full"),
+		NOTIFICATIONS_DROPPED("notifications_dropped",
+				"Deferred notifications dropped, the queue being full"),
+		CONTAINERS_REMOVED("containers_removed",
+				"Containers of dead end-points removed by the sweeper"),
+		PENDING_WRITES_REJECTED("pending_writes_rejected",
+				"Writes of regular nodes refused, the pending queue being full"),
+		REDIRECTS("redirects",
+				"Registrations redirected to the shard owning the end-point"),
+		SHARDS_UNREACHABLE("shards_unreachable",
+				"Shards missing from a gathered discovery"),
+		REPLICATION_RESYNCS("replication_resyncs",
+				"Whole states sent to a standby"),
+		REPLICATION_OVERFLOWS("replication_overflows",
+				"Standbys disconnected, the replication queue being full");
+
+		private final String name;
+		private final String help;
+
+		private Counter(String name, String help) {
+			this.name = name;
+			this.help = help;
+		}
+	}
+
+	/**
+	 * Operations whose latency is measured by the proxy.
+	 */
+	public enum Timer {
+		REGISTRATION("registration"),
+		OWNER_PUT("owner_put"),
+		REGULAR_PUT("regular_put"),
+		GET("get"),
+		POLL("poll"),
+		BATCH_PUT("batch_put");
+
+		private final String name;
+
+		private Timer(String name) {
+			this.name = name;
+		}
+	}
+
+	// Prefix of every exported metric name
+	private static final String PREFIX = "sleepy_proxy_";
+
+	// Percentiles exported for every histogram
+	private static final double[] QUANTILES = { 50, 90, 99, 99.9 };
+
+	private final LongAdder[] counters;
+	private final LatencyHistogram[] timers;
+
+	// Values sampled only when the metrics are exported, e.g. map sizes
+	private final Map<String, LongSupplier> gauges;
+
+	private ScheduledExecutorService dumper;
+
+	/**
+	 * Instantiates a set of metrics with every counter at zero.
+	 */
+	public ProxyMetrics() {
+		counters = new LongAdder[Counter.values().length];
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = new LongAdder();
+		}
+		timers = new LatencyHistogram[Timer.values().length];
+		for (int i = 0; i < timers.length; i++) {
+			timers[i] = new LatencyHistogram();
+		}
+		gauges = new ConcurrentHashMap<String, LongSupplier>();
+	}
+
+	/**
+	 * Increments a counter.
+	 *
+	 * @param counter
+	 *            the counter
+	 */
+	public void increment(Counter counter) {
+		counters[counter.ordinal()].increment();
+	}
+
+	/**
+	 * Adds the given amount to a counter.
+	 *
+	 * @param counter
+	 *            the counter
+	 * @param amount
+	 *            the amount
+	 */
+	public void add(Counter counter, long amount) {
+		counters[counter.ordinal()].add(amount);
+	}
+
+	/**
+	 * Returns the current value of a counter.
+	 */
+	public long get(Counter counter) {
+		return counters[counter.ordinal()].sum();
+	}
+
+	/**
+	 * Records the latency of an operation started at the given time.
+	 *
+	 * @param timer
+	 *            the operation
+	 * @param startNanos
+	 *            the value of System.nanoTime() when the operation started
+	 */
+	public void record(Timer timer, long startNanos) {
+		timers[timer.ordinal()].recordNanos(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Returns the histogram of an operation.
+	 */
+	public LatencyHistogram getHistogram(Timer timer) {
+		return timers[timer.ordinal()];
+	}
+
+	/**
+	 * Registers a gauge, i.e. a value sampled every time the metrics are
+	 * exported.
+	 *
+	 * @param name
+	 *            the name of the gauge, without prefix
+	 * @param supplier
+	 *            the supplier of the value
+	 */
+	public void registerGauge(String name, LongSupplier supplier) {
+		gauges.put(name, supplier);
+	}
+
+	/**
+	 * Writes every metric in the Prometheus text exposition format.
+	 *
+	 * @param out
+	 *            the buffer where the metrics are appended
+	 */
+	public void writePrometheus(StringBuilder out) {
+		for (Counter c : Counter.values()) {
+			out.append("# HELP ").append(PREFIX).append(c.name).append("_total ")
+					.append(c.help).append('\n');
+			out.append("# TYPE ").append(PREFIX).append(c.name)
+					.append("_total counter\n");
+			out.append(PREFIX).append(c.name).append("_total ")
+					.append(get(c)).append('\n');
+		}
+		for (Timer t : Timer.values()) {
+			LatencyHistogram h = getHistogram(t);
+			String name = PREFIX + t.name + "_latency_microseconds";
+			out.append("# TYPE ").append(name).append(" summary\n");
+			for (double q : QUANTILES) {
+				out.append(name).append("{quantile=\"").append(q / 100)
+						.append("\"} ").append(h.getPercentileMicros(q))
+						.append('\n');
+			}
+			out.append(name).append("_sum ").append(h.getSumMicros())
+					.append('\n');
+			out.append(name).append("_count ").append(h.getCount())
+					.append('\n');
+		}
+		for (Map.Entry<String, LongSupplier> g : gauges.entrySet()) {
+			out.append("# TYPE ").append(PREFIX).append(g.getKey())
+					.append(" gauge\n");
+			out.append(PREFIX).append(g.getKey()).append(' ')
+					.append(g.getValue().getAsLong()).append('\n');
+		}
+	}
+
+	/**
+	 * Starts dumping the metrics to the given file every period. The file is
+	 * replaced atomically, so readers never see a partial dump.
+	 *
+	 * @param fileName
+	 *            the name of the dump file
+	 * @param periodSeconds
+	 *            the period between two dumps
+	 */
+	public synchronized void startDump(final String fileName,
+			long periodSeconds) {
+		stopDump();
+		dumper = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "ProxyMetricsDump");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		dumper.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				dump(Paths.get(fileName));
+			}
+		}, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stops the periodic dump, if any.
+	 */
+	public synchronized void stopDump() {
+		if (dumper != null) {
+			dumper.shutdownNow();
+			dumper = null;
+		}
+	}
+
+	private void dump(Path file) {
+		StringBuilder out = new StringBuilder(4096);
+		writePrometheus(out);
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try {
+			Writer writer = Files.newBufferedWriter(tmp,
+					StandardCharsets.UTF_8);
+			try {
+				writer.append(out);
+			} finally {
+				writer.close();
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOGGER.warn("[dump]: cannot write metrics to {}: {}", file, e);
+		}
+	}
+}
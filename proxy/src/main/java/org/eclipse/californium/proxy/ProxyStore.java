@@ -0,0 +1,586 @@
+/******************************************************************************
+ * @title: Proxy Store
+ * 	Durable state of the proxy: write-ahead log plus periodic snapshots
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ProxyStore makes the state of the proxy survive a restart: containers,
+ * delegated resources with their value, dirty flag and lifetime. Every change
+ * is appended to a {@link WriteAheadLog} by the handler making it, while it
+ * still holds the locks that order the changes of the same resource. The log
+ * is periodically compacted into a {@link TreeSnapshot} of the whole state, and
+ * on startup the latest snapshot is loaded and the log written after it is
+ * replayed.
+ * <p>
+ * Records are group-committed by the log, so by default handlers never wait
+ * for the disk and a crash may lose the changes of the last commit interval.
+ * With the sync commit option, handlers wait for their records to be durable
+ * before answering; the wait is still shared by all the requests of a commit
+ * interval.
+ * <p>
+ * Lifetimes are stored as wall-clock expiration times, so the time the proxy
+ * was down counts: resources whose lifetime elapsed meanwhile expire right
+ * after the restart. The leases of the containers are not stored, and start
+ * again at the restart.
+ * <p>
+ * The same records, plus the writes queued for the sleepy nodes, can be
+ * streamed to a standby proxy by a {@link ReplicationPrimary}, with or
+ * without the store open; the standby applies them as on recovery.
+ */
+public class ProxyStore {
+
+	private static final ProxyLogger LOGGER = ProxyLogger
+			.getLogger(ProxyStore.class);
+
+	// Default maximum delay between an append and its commit, in milliseconds
+	public static final long DEFAULT_COMMIT_INTERVAL = 10;
+
+	// Default period between two snapshots, in seconds
+	public static final long DEFAULT_SNAPSHOT_PERIOD = 300;
+
+	private final Proxy proxy;
+
+	private File directory;
+	private boolean syncCommit;
+	private long commitIntervalMillis = DEFAULT_COMMIT_INTERVAL;
+	private long snapshotPeriodSeconds = DEFAULT_SNAPSHOT_PERIOD;
+
+	// null until the store is opened, i.e. while persistence is disabled
+	private volatile WriteAheadLog wal;
+
+	// Streams the changes to a standby, null if this proxy is not a primary
+	private volatile ReplicationPrimary replication;
+	private ScheduledExecutorService snapshotter;
+
+	// Serializes the snapshots
+	private final Object snapshotLock = new Object();
+
+	// Set by recover(): no record has been replayed over a tree snapshot
+	private boolean snapshotUpToDate;
+	private volatile long recoveryMillis;
+
+	/**
+	 * Instantiates a closed store for the given proxy. Until it is opened,
+	 * nothing is persisted.
+	 *
+	 * @param proxy
+	 *            the proxy whose state is stored
+	 */
+	public ProxyStore(Proxy proxy) {
+		this.proxy = proxy;
+	}
+
+	/**
+	 * If true, handlers wait for their changes to be on disk before
+	 * answering. To be set before opening the store.
+	 */
+	public void setSyncCommit(boolean syncCommit) {
+		this.syncCommit = syncCommit;
+	}
+
+	/**
+	 * Sets the maximum delay between a change and its commit to disk. To be
+	 * set before opening the store.
+	 */
+	public void setCommitInterval(long millis) {
+		this.commitIntervalMillis = millis;
+	}
+
+	/**
+	 * Sets the period between two snapshots. To be set before opening the
+	 * store.
+	 */
+	public void setSnapshotPeriod(long seconds) {
+		this.snapshotPeriodSeconds = seconds;
+	}
+
+	/**
+	 * Attaches the replication streaming every change to a standby proxy,
+	 * whether the store is open or not; null detaches it.
+	 */
+	void setReplication(ReplicationPrimary replication) {
+		this.replication = replication;
+	}
+
+	/**
+	 * Returns true if the store is open, i.e. changes are persisted.
+	 */
+	public boolean isOpen() {
+		return wal != null;
+	}
+
+	/**
+	 * Opens the store in the given directory: the state found there, if any,
+	 * is loaded into the proxy, then a new snapshot is taken and every
+	 * following change is logged. To be called before starting the proxy.
+	 *
+	 * @param dir
+	 *            the directory of the store, created if missing
+	 * @throws IOException
+	 *             if the state cannot be read or the log cannot be created
+	 */
+	public synchronized void open(File dir) throws IOException {
+		if (wal != null) {
+			throw new IllegalStateException("store already open");
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("cannot create " + dir);
+		}
+		directory = dir;
+
+		long start = System.nanoTime();
+		long next = recover();
+		recoveryMillis = TimeUnit.NANOSECONDS
+				.toMillis(System.nanoTime() - start);
+		LOGGER.info("[open]: {} end-points recovered from {} in {} ms",
+				proxy.getEPs().size(), directory, recoveryMillis);
+
+		// compact what has been recovered, then log from a new segment
+		long latest = latestSnapshot();
+		if (snapshotUpToDate) {
+			// the log after the snapshot is empty: renaming it is enough
+			if (latest != next) {
+				Files.move(snapshotFile(latest).toPath(),
+						snapshotFile(next).toPath(),
+						StandardCopyOption.ATOMIC_MOVE);
+			}
+		} else {
+			writeSnapshot(next);
+		}
+		wal = new WriteAheadLog(directory, next,
+				WriteAheadLog.DEFAULT_SEGMENT_SIZE, commitIntervalMillis);
+		deleteBefore(next);
+
+		proxy.getMetrics().registerGauge("store_pending_bytes", () -> {
+			WriteAheadLog log = wal;
+			return (log == null) ? 0 : log.getPendingBytes();
+		});
+		proxy.getMetrics().registerGauge("store_recovery_millis",
+				() -> recoveryMillis);
+
+		snapshotter = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "ProxyStore");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		snapshotter.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					snapshot();
+				} catch (IOException e) {
+					LOGGER.error("[snapshot]: {}", e);
+				}
+			}
+		}, snapshotPeriodSeconds, snapshotPeriodSeconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Takes a last snapshot and closes the store. To be called once the proxy
+	 * does not handle requests anymore.
+	 */
+	public synchronized void close() {
+		if (wal == null) {
+			return;
+		}
+		snapshotter.shutdownNow();
+		try {
+			snapshot();
+		} catch (IOException e) {
+			LOGGER.error("[close]: final snapshot failed: {}", e);
+		}
+		wal.close();
+		wal = null;
+	}
+
+	/**
+	 * Compacts the log: writes a snapshot of the current state and deletes
+	 * the log segments it makes useless. Requests are handled meanwhile: the
+	 * changes made while the snapshot is being written are in the log written
+	 * after it, and replaying them over the snapshot is harmless.
+	 *
+	 * @throws IOException
+	 *             if the snapshot cannot be written
+	 */
+	public void snapshot() throws IOException {
+		synchronized (snapshotLock) {
+			WriteAheadLog log = wal;
+			if (log == null) {
+				return;
+			}
+			long start = System.nanoTime();
+			long segment = log.roll();
+			writeSnapshot(segment);
+			deleteBefore(segment);
+			LOGGER.info("[snapshot]: written in {} ms",
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		}
+	}
+
+	/*
+	 * Hooks called by the handlers. Each one returns immediately if the store
+	 * is not open and no standby is replicated. A failed append is logged and
+	 * does not fail the request.
+	 */
+
+	void logContainer(ContainerResource container) {
+		if (isRecording()) {
+			append(StoreRecord.container(container.getName(),
+					container.getSPIpAddress(), container.getAttributes()));
+		}
+	}
+
+	void logCreate(DelegatedResource resource) {
+		if (isRecording()) {
+			append(StoreRecord.create(resource.getContainer().getName(),
+					pathOf(resource), resource.getAttributes()));
+		}
+	}
+
+	void logUpdate(DelegatedResource resource) {
+		if (isRecording()) {
+			append(StoreRecord.update(resource.getContainer().getName(),
+					pathOf(resource), resource.getValue(),
+					resource.getContentFormat(), resource.isVisible(),
+					resource.getLifetime(), resource.getExpiresAt()));
+		}
+	}
+
+	void logDirty(DelegatedResource resource, boolean dirty) {
+		if (isRecording()) {
+			append(StoreRecord.dirty(resource.getContainer().getName(),
+					pathOf(resource), dirty));
+		}
+	}
+
+	void logRemove(DelegatedResource resource) {
+		if (isRecording()) {
+			append(StoreRecord.remove(resource.getContainer().getName(),
+					pathOf(resource)));
+		}
+	}
+
+	void logRemoveContainer(ContainerResource container) {
+		if (isRecording()) {
+			append(StoreRecord.removeContainer(container.getName()));
+		}
+	}
+
+	/*
+	 * Called holding the lock of the resource. The pending writes are only
+	 * streamed to the standby, not persisted.
+	 */
+	void logPending(DelegatedResource resource) {
+		ReplicationPrimary primary = replication;
+		if (primary != null) {
+			primary.publish(StoreRecord.pending(
+					resource.getContainer().getName(), pathOf(resource),
+					resource.peekPendingWrites()));
+		}
+	}
+
+	/**
+	 * With sync commit, waits until every change logged so far is on disk.
+	 * To be called by the handlers before answering, without holding locks.
+	 */
+	void commit() {
+		WriteAheadLog log = wal;
+		if (syncCommit && log != null) {
+			try {
+				log.awaitDurable(log.getPosition());
+			} catch (InterruptedIOException e) {
+				// answer anyway, the interrupt status is preserved
+			}
+		}
+	}
+
+	private boolean isRecording() {
+		return wal != null || replication != null;
+	}
+
+	private void append(byte[] record) {
+		ReplicationPrimary primary = replication;
+		if (primary != null) {
+			primary.publish(record);
+		}
+		WriteAheadLog log = wal;
+		if (log == null) {
+			return;
+		}
+		try {
+			log.append(record);
+		} catch (IOException e) {
+			LOGGER.error("[append]: {}", e);
+		}
+	}
+
+	/*
+	 * Path of a resource relative to its container, e.g. /sensors/temp
+	 */
+	static String pathOf(DelegatedResource resource) {
+		String uri = resource.getURI();
+		return uri.substring(resource.getContainer().getURI().length());
+	}
+
+	/*
+	 * Returns the handler applying to this proxy, a standby, the records
+	 * streamed by the primary, as they are applied on recovery. The primary
+	 * streaming its whole state first, the containers left by a previous
+	 * stream are removed. Called before the standby handles requests.
+	 */
+	StoreRecord.Handler newReplica() {
+		for (ContainerResource c : proxy.getEPs().values()) {
+			if (proxy.getEPs().remove(c.getEndPoint(), c)) {
+				c.dispose();
+			}
+		}
+		return new Recovery();
+	}
+
+	/*
+	 * Loads the latest snapshot and replays the log written after it.
+	 * Returns the number of the first segment to be written.
+	 */
+	private long recover() throws IOException {
+		long next = 0;
+		long snapshot = latestSnapshot();
+		if (snapshot >= 0) {
+			readSnapshot(snapshotFile(snapshot));
+			next = snapshot;
+		}
+
+		// created after the snapshot, so that it knows its containers
+		Recovery recovery = new Recovery();
+		long replayed = 0;
+		for (long segment : WriteAheadLog.segments(directory)) {
+			if (segment >= next) {
+				long records = WriteAheadLog.read(
+						WriteAheadLog.segmentFile(directory, segment),
+						recovery);
+				LOGGER.debug("[recover]: {} records from segment {}", records,
+						segment);
+				replayed += records;
+				next = segment + 1;
+			}
+		}
+		snapshotUpToDate = snapshot >= 0 && replayed == 0;
+		return next;
+	}
+
+	/*
+	 * Applies the recovered records to the proxy
+	 */
+	private class Recovery
+			implements StoreRecord.Handler, WriteAheadLog.RecordHandler {
+
+		private final Map<String, ContainerResource> containers;
+		private final SPResource sp;
+
+		Recovery() {
+			containers = new HashMap<String, ContainerResource>();
+			for (ContainerResource c : proxy.getEPs().values()) {
+				containers.put(c.getName(), c);
+			}
+			sp = (SPResource) proxy.getRoot().getChild("sp");
+		}
+
+		@Override
+		public void handle(ByteBuffer record) throws IOException {
+			StoreRecord.decode(record, this);
+		}
+
+		@Override
+		public void container(String name, InetAddress address,
+				SNResourceAttributes attributes) {
+			ContainerResource c = containers.get(name);
+			if (c == null) {
+				containers.put(name,
+						sp.restoreContainer(name, attributes, address));
+			} else {
+				c.setSPIpAddress(address);
+				c.updateChangesFormat(attributes);
+			}
+		}
+
+		@Override
+		public void create(String container, String path,
+				SNResourceAttributes attributes) {
+			ContainerResource c = containers.get(container);
+			if (c == null) {
+				LOGGER.warn("[recover]: unknown container {}", container);
+				return;
+			}
+			DelegatedResource resource = new DelegatedResource(null, false,
+					attributes, c);
+			c.getCoapTreeBuilder().add(resource, path,
+					VisibilityPolicy.ALL_INVISIBLE);
+		}
+
+		@Override
+		public void update(String container, String path, byte[] value,
+				int contentFormat, boolean initialized, long lifetime,
+				long expiresAt) {
+			DelegatedResource resource = find(container, path);
+			if (resource != null) {
+				resource.restoreState(value, contentFormat, initialized,
+						lifetime, expiresAt);
+			}
+		}
+
+		@Override
+		public void dirty(String container, String path, boolean dirty) {
+			DelegatedResource resource = find(container, path);
+			if (resource != null) {
+				resource.setDirty(dirty);
+			}
+		}
+
+		@Override
+		public void remove(String container, String path) {
+			DelegatedResource resource = find(container, path);
+			if (resource != null) {
+				resource.restoreRemoval();
+			}
+		}
+
+		@Override
+		public void removeContainer(String name) {
+			ContainerResource c = containers.remove(name);
+			if (c != null) {
+				proxy.getEPs().remove(c.getEndPoint(), c);
+				c.dispose();
+			}
+		}
+
+		@Override
+		public void pending(String container, String path,
+				List<PendingWrites.Write> writes) {
+			DelegatedResource resource = find(container, path);
+			if (resource != null) {
+				resource.restorePending(writes);
+			}
+		}
+
+		private DelegatedResource find(String container, String path) {
+			ContainerResource c = containers.get(container);
+			return (c == null) ? null : c.findDelegated(path);
+		}
+	}
+
+	/*
+	 * Writes the snapshot of the current state, to be followed by the log
+	 * segments from the given one on.
+	 */
+	private void writeSnapshot(long segment) throws IOException {
+		File file = snapshotFile(segment);
+		File tmp = new File(directory, file.getName() + ".tmp");
+
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			long resources = TreeSnapshot.write(proxy, fos);
+			fos.getFD().sync();
+			LOGGER.debug("[snapshot]: {} resources written to {}", resources,
+					file);
+		} finally {
+			fos.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/*
+	 * Loads a snapshot
+	 */
+	private void readSnapshot(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+			long resources = TreeSnapshot.load(proxy, in);
+			LOGGER.debug("[recover]: {} resources from {}", resources, file);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private File snapshotFile(long segment) {
+		return new File(directory,
+				String.format("snapshot-%016d.bin", segment));
+	}
+
+	/*
+	 * Number of the latest snapshot, -1 if there is none
+	 */
+	private long latestSnapshot() {
+		long latest = -1;
+		String[] names = directory.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith("snapshot-") && name.endsWith(".bin")) {
+					try {
+						latest = Math.max(latest, Long.parseLong(
+								name.substring(9, name.length() - 4)));
+					} catch (NumberFormatException e) {
+						// not a snapshot
+					}
+				}
+			}
+		}
+		return latest;
+	}
+
+	/*
+	 * Deletes the snapshots and the segments older than the given segment
+	 */
+	private void deleteBefore(long segment) {
+		for (long s : WriteAheadLog.segments(directory)) {
+			if (s < segment) {
+				WriteAheadLog.segmentFile(directory, s).delete();
+			}
+		}
+		String current = snapshotFile(segment).getName();
+		String[] names = directory.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith("snapshot-") && !name.equals(current)) {
+					new File(directory, name).delete();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,444 @@
+/******************************************************************************
+ * @title: Replication Primary
+ * 	Streaming of the changes of the proxy state to a standby proxy
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ReplicationPrimary streams every change of the state of the proxy to a
+ * standby proxy (see {@link ReplicationStandby}), over a TCP connection
+ * opened by the standby: the same records the {@link ProxyStore} appends to
+ * its log, plus the writes queued for the sleepy nodes, which are not
+ * persisted.
+ * <p>
+ * Replication is asynchronous: the handlers only put their records on a
+ * bounded queue, without waiting for the standby nor for the network, and a
+ * thread sends them in batches, each one flushed at once. When the standby
+ * connects, the whole state is sent first, as records walking the tree,
+ * followed by the changes made meanwhile; records being idempotent, a change
+ * already read by the walk is harmlessly applied again. If the standby does
+ * not keep up and the queue fills, the connection is dropped and the state
+ * is sent again at the next one.
+ * <p>
+ * The standby acknowledges the records it applied. The replication_lag_records
+ * gauge is the number of records not acknowledged yet, replication_lag_millis
+ * the age of the oldest one.
+ * <p>
+ * Frames are a length followed by a record; a length of zero is a heartbeat,
+ * sent at the end of the state and then when there is nothing to replicate,
+ * so that the standby detects a primary which is gone.
+ * <p>
+ * The standby is not authenticated: any client connecting replaces the
+ * current standby and receives the whole state. Thus the address must only
+ * be reachable by the standby; by default, given only a port, the primary
+ * listens on the loopback.
+ */
+public class ReplicationPrimary {
+
+	private static final ProxyLogger LOGGER = ProxyLogger
+			.getLogger(ReplicationPrimary.class);
+
+	// Header of the stream: "SPR1"
+	static final int MAGIC = 0x53505231;
+
+	// Maximum size of a record: larger than a list of pending writes, the
+	// largest one, at most 64 values of 64 KiB
+	static final int MAX_RECORD_SIZE = 8 * 1024 * 1024;
+
+	// Default number of records waiting to be sent
+	public static final int DEFAULT_QUEUE_CAPACITY = 65536;
+
+	// Period of the heartbeats, in milliseconds
+	static final long HEARTBEAT_MILLIS = 500;
+
+	// Maximum number of records sent in a batch
+	private static final int MAX_BATCH = 1024;
+
+	private final Proxy proxy;
+	private final InetSocketAddress address;
+
+	private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+	private ServerSocket server;
+	private Thread acceptor;
+
+	// The connected standby, null if none
+	private volatile Session session;
+
+	/**
+	 * Instantiates the replication of the given proxy, accepting the standby
+	 * on the given port of the loopback once started.
+	 *
+	 * @param proxy
+	 *            the proxy whose state is replicated
+	 * @param port
+	 *            the port to listen on
+	 */
+	public ReplicationPrimary(Proxy proxy, int port) {
+		this(proxy, new InetSocketAddress(InetAddress.getLoopbackAddress(),
+				port));
+	}
+
+	/**
+	 * Instantiates the replication of the given proxy, accepting the standby
+	 * on the given address once started. The address must not be reachable
+	 * by other clients than the standby.
+	 *
+	 * @param proxy
+	 *            the proxy whose state is replicated
+	 * @param address
+	 *            the address to listen on
+	 */
+	public ReplicationPrimary(Proxy proxy, InetSocketAddress address) {
+		this.proxy = proxy;
+		this.address = address;
+
+		ProxyMetrics metrics = proxy.getMetrics();
+		metrics.registerGauge("replication_lag_records", () -> {
+			Session s = session;
+			return (s == null) ? 0 : s.lagRecords();
+		});
+		metrics.registerGauge("replication_lag_millis", () -> {
+			Session s = session;
+			return (s == null) ? 0 : s.lagMillis();
+		});
+		metrics.registerGauge("replication_standby_connected",
+				() -> (session == null) ? 0 : 1);
+	}
+
+	/**
+	 * Sets the number of records waiting to be sent, beyond which the standby
+	 * is disconnected. To be set before starting.
+	 */
+	public void setQueueCapacity(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity " + capacity);
+		}
+		this.queueCapacity = capacity;
+	}
+
+	/**
+	 * Starts listening for the standby, and replicating the changes from now
+	 * on.
+	 *
+	 * @throws IOException
+	 *             if the address cannot be bound
+	 */
+	public synchronized void start() throws IOException {
+		if (server != null) {
+			return;
+		}
+		server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(address);
+		proxy.getStore().setReplication(this);
+
+		final ServerSocket listening = server;
+		acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept(listening);
+			}
+		}, "ReplicationPrimary");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		LOGGER.info("[start]: waiting for the standby on {}", address);
+	}
+
+	/**
+	 * Stops replicating and disconnects the standby.
+	 */
+	public synchronized void stop() {
+		if (server == null) {
+			return;
+		}
+		proxy.getStore().setReplication(null);
+		try {
+			server.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+		server = null;
+		Session s = session;
+		if (s != null) {
+			s.close();
+		}
+	}
+
+	/*
+	 * Queues a record for the standby, called by the handlers holding the
+	 * locks that order the changes. Never blocks.
+	 */
+	void publish(byte[] record) {
+		Session s = session;
+		if (s != null) {
+			s.offer(record);
+		}
+	}
+
+	/*
+	 * Accepts the standby, one at a time: a new connection replaces the
+	 * current one
+	 */
+	private void accept(ServerSocket listening) {
+		while (!listening.isClosed()) {
+			Socket socket;
+			try {
+				socket = listening.accept();
+			} catch (IOException e) {
+				// closed by stop()
+				return;
+			}
+			Session previous = session;
+			if (previous != null) {
+				previous.close();
+			}
+			LOGGER.info("[accept]: standby connected from {}",
+					socket.getRemoteSocketAddress());
+			new Session(socket).start();
+		}
+	}
+
+	/*
+	 * A queued record, with the time it was queued at
+	 */
+	private static class Entry {
+		final byte[] record;
+		final long queuedAt;
+
+		Entry(byte[] record, long queuedAt) {
+			this.record = record;
+			this.queuedAt = queuedAt;
+		}
+	}
+
+	/*
+	 * The connection to a standby: a thread sending the state and then the
+	 * queued records, another one reading the acknowledgements
+	 */
+	private class Session {
+
+		private final Socket socket;
+		private final ArrayBlockingQueue<Entry> queue;
+
+		// Sequence number and time of the first record of the batches sent
+		// and not acknowledged yet, guarded by itself
+		private final ArrayDeque<long[]> inflight = new ArrayDeque<long[]>();
+
+		// Records sent, written by the sending thread only
+		private long sent;
+		private volatile long acknowledged;
+		private volatile boolean closed;
+
+		Session(Socket socket) {
+			this.socket = socket;
+			this.queue = new ArrayBlockingQueue<Entry>(queueCapacity);
+		}
+
+		void start() {
+			// queued from now on, before the state is read
+			session = this;
+			Thread sender = new Thread(this::send, "ReplicationSender");
+			sender.setDaemon(true);
+			sender.start();
+			Thread receiver = new Thread(this::receive, "ReplicationAcks");
+			receiver.setDaemon(true);
+			receiver.start();
+		}
+
+		void offer(byte[] record) {
+			if (!queue.offer(new Entry(record, System.nanoTime()))
+					&& !closed) {
+				LOGGER.warn("[publish]: standby too slow, disconnected");
+				proxy.getMetrics().increment(
+						ProxyMetrics.Counter.REPLICATION_OVERFLOWS);
+				close();
+			}
+		}
+
+		void close() {
+			closed = true;
+			if (session == this) {
+				session = null;
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+
+		long lagRecords() {
+			synchronized (inflight) {
+				return queue.size() + inflightRecords();
+			}
+		}
+
+		long lagMillis() {
+			long oldest;
+			synchronized (inflight) {
+				long[] batch = inflight.peekFirst();
+				if (batch != null) {
+					oldest = batch[1];
+				} else {
+					Entry next = queue.peek();
+					if (next == null) {
+						return 0;
+					}
+					oldest = next.queuedAt;
+				}
+			}
+			return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest);
+		}
+
+		private long inflightRecords() {
+			long[] last = inflight.peekLast();
+			return (last == null) ? 0 : last[0] - acknowledged;
+		}
+
+		private void send() {
+			try {
+				DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(socket.getOutputStream(),
+								65536));
+				out.writeInt(MAGIC);
+				sendState(out);
+
+				List<Entry> batch = new ArrayList<Entry>(MAX_BATCH);
+				while (!closed) {
+					Entry first = queue.poll(HEARTBEAT_MILLIS,
+							TimeUnit.MILLISECONDS);
+					if (first == null) {
+						out.writeInt(0);
+						out.flush();
+						continue;
+					}
+					batch.add(first);
+					queue.drainTo(batch, MAX_BATCH - 1);
+					for (Entry entry : batch) {
+						out.writeInt(entry.record.length);
+						out.write(entry.record);
+					}
+					sent(batch.size(), first.queuedAt);
+					out.flush();
+					batch.clear();
+				}
+			} catch (IOException | InterruptedException e) {
+				if (!closed) {
+					LOGGER.info("[send]: standby disconnected: {}",
+							e.getMessage());
+				}
+			} finally {
+				close();
+			}
+		}
+
+		/*
+		 * Sends the whole state, parents first
+		 */
+		private void sendState(DataOutputStream out) throws IOException {
+			long start = System.nanoTime();
+			long records = 0;
+			List<byte[]> state = new ArrayList<byte[]>();
+			for (ContainerResource c : proxy.getEPs().values()) {
+				state.add(StoreRecord.container(c.getName(),
+						c.getSPIpAddress(), c.getAttributes()));
+				for (DelegatedResource r : c.delegatedResources()) {
+					appendState(c, r, state);
+				}
+				for (byte[] record : state) {
+					out.writeInt(record.length);
+					out.write(record);
+				}
+				records += state.size();
+				state.clear();
+			}
+			sent(records, start);
+			// a heartbeat ends the state
+			out.writeInt(0);
+			out.flush();
+			proxy.getMetrics().increment(
+					ProxyMetrics.Counter.REPLICATION_RESYNCS);
+			LOGGER.info("[send]: state sent to the standby in {} ms",
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		}
+
+		private void appendState(ContainerResource c, DelegatedResource r,
+				List<byte[]> state) {
+			String path = ProxyStore.pathOf(r);
+			r.getLock().lock();
+			try {
+				if (r.isExpired()) {
+					return;
+				}
+				state.add(StoreRecord.create(c.getName(), path,
+						r.getAttributes()));
+				state.add(StoreRecord.update(c.getName(), path, r.getValue(),
+						r.getContentFormat(), r.isVisible(), r.getLifetime(),
+						r.getExpiresAt()));
+				state.add(StoreRecord.dirty(c.getName(), path, r.isDirty()));
+				List<PendingWrites.Write> pending = r.peekPendingWrites();
+				if (!pending.isEmpty()) {
+					state.add(StoreRecord.pending(c.getName(), path, pending));
+				}
+			} finally {
+				r.getLock().unlock();
+			}
+		}
+
+		private void sent(long records, long firstQueuedAt) {
+			if (records == 0) {
+				return;
+			}
+			synchronized (inflight) {
+				sent += records;
+				inflight.addLast(new long[] { sent, firstQueuedAt });
+			}
+		}
+
+		private void receive() {
+			try {
+				DataInputStream in = new DataInputStream(
+						socket.getInputStream());
+				while (!closed) {
+					long applied = in.readLong();
+					synchronized (inflight) {
+						acknowledged = applied;
+						while (!inflight.isEmpty()
+								&& inflight.peekFirst()[0] <= applied) {
+							inflight.removeFirst();
+						}
+					}
+				}
+			} catch (IOException e) {
+				// the sender sees it too
+			} finally {
+				close();
+			}
+		}
+	}
+}
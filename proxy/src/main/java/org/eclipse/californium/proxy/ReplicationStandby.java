@@ -0,0 +1,264 @@
+/******************************************************************************
+ * @title: Replication Standby
+ * 	Hot standby proxy applying the changes streamed by the primary
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * ReplicationStandby keeps a proxy which does not handle requests yet, a
+ * standby, up to date with a primary proxy (see {@link ReplicationPrimary}):
+ * it connects to the primary, receives its whole state and then every
+ * change, and applies them to its own tree as they are applied on recovery
+ * by the {@link ProxyStore}. Every batch applied is acknowledged, so that
+ * the primary measures the replication lag.
+ * <p>
+ * When the primary is gone, i.e. the connection is closed or no frame (not
+ * even a heartbeat) arrives, the standby tries to connect again; once the
+ * primary has not been heard for the failover timeout, the standby is
+ * promoted: it stops replicating and runs the promotion task, which starts
+ * the proxy, its state being already in memory. A standby which has never
+ * received the state of a primary is not promoted. If the store of the
+ * standby is open, a snapshot is taken right after the promotion.
+ * <p>
+ * The observe relations are not replicated: the observers of the primary
+ * register again with the promoted standby when their notifications stop.
+ */
+public class ReplicationStandby {
+
+	private static final ProxyLogger LOGGER = ProxyLogger
+			.getLogger(ReplicationStandby.class);
+
+	// Default time the primary may be silent before the promotion, in ms
+	public static final long DEFAULT_FAILOVER = 3000;
+
+	// Delay between two connection attempts, in milliseconds
+	private static final long RETRY_MILLIS = 200;
+
+	private final Proxy proxy;
+	private final InetSocketAddress primary;
+
+	private long failoverMillis = DEFAULT_FAILOVER;
+	private Runnable promotion;
+
+	private Thread thread;
+	private volatile Socket socket;
+	private volatile boolean promoteRequested;
+	private volatile boolean promoted;
+
+	// Set once the whole state sent on the current connection has been
+	// received, cleared when a new one starts replacing the tree
+	private volatile boolean synced;
+	private volatile long appliedRecords;
+
+	// Last time a frame was received, used by the replication thread only
+	private long lastHeard;
+
+	/**
+	 * Instantiates the standby of the given primary.
+	 *
+	 * @param proxy
+	 *            the standby proxy, not started
+	 * @param primary
+	 *            the replication address of the primary
+	 */
+	public ReplicationStandby(Proxy proxy, InetSocketAddress primary) {
+		this.proxy = proxy;
+		this.primary = primary;
+
+		ProxyMetrics metrics = proxy.getMetrics();
+		metrics.registerGauge("replication_applied_records",
+				() -> appliedRecords);
+		metrics.registerGauge("replication_primary_connected",
+				() -> (socket == null) ? 0 : 1);
+	}
+
+	/**
+	 * Sets the time the primary may be silent before the standby is
+	 * promoted, 0 to promote only by {@link #promote()}. To be set before
+	 * starting.
+	 */
+	public void setFailover(long millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("failover " + millis);
+		}
+		this.failoverMillis = millis;
+	}
+
+	/**
+	 * Sets the task run at the promotion, e.g. starting the proxy. To be set
+	 * before starting.
+	 */
+	public void setPromotion(Runnable promotion) {
+		this.promotion = promotion;
+	}
+
+	/**
+	 * Returns true once the standby has been promoted.
+	 */
+	public boolean isPromoted() {
+		return promoted;
+	}
+
+	/**
+	 * Starts replicating the primary.
+	 */
+	public synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		thread = new Thread(this::run, "ReplicationStandby");
+		thread.start();
+		LOGGER.info("[start]: replicating {}", primary);
+	}
+
+	/**
+	 * Promotes the standby now, whatever the state of the primary. The
+	 * promotion runs on the replication thread, once the current batch is
+	 * applied.
+	 */
+	public void promote() {
+		if (promoted) {
+			return;
+		}
+		promoteRequested = true;
+		closeSocket();
+		Thread t;
+		synchronized (this) {
+			t = thread;
+		}
+		if (t != null) {
+			t.interrupt();
+		}
+	}
+
+	private void run() {
+		lastHeard = System.currentTimeMillis();
+		while (!promoteRequested) {
+			try {
+				replicate();
+			} catch (IOException e) {
+				if (socket != null) {
+					LOGGER.info("[run]: primary lost: {}", e);
+				}
+			} catch (RuntimeException e) {
+				// the state is sent again at the next connection
+				LOGGER.error("[run]: replication failed: {}", e);
+			} finally {
+				closeSocket();
+			}
+			if (synced && failoverMillis > 0 && System.currentTimeMillis()
+					- lastHeard >= failoverMillis) {
+				break;
+			}
+			try {
+				Thread.sleep(RETRY_MILLIS);
+			} catch (InterruptedException e) {
+				// promote() requested it
+			}
+		}
+		// clears the interrupt of promote(), if any
+		Thread.interrupted();
+		runPromotion();
+	}
+
+	/*
+	 * Connects to the primary and applies its stream until it fails
+	 */
+	private void replicate() throws IOException {
+		Socket s = new Socket();
+		s.setTcpNoDelay(true);
+		s.connect(primary, (int) Math.max(RETRY_MILLIS, failoverMillis));
+		s.setSoTimeout((int) Math.max(
+				4 * ReplicationPrimary.HEARTBEAT_MILLIS, failoverMillis));
+		socket = s;
+		lastHeard = System.currentTimeMillis();
+		if (promoteRequested) {
+			return;
+		}
+
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(s.getInputStream(), 65536));
+		DataOutputStream out = new DataOutputStream(s.getOutputStream());
+		if (in.readInt() != ReplicationPrimary.MAGIC) {
+			throw new IOException(primary + " is not a primary proxy");
+		}
+		LOGGER.info("[replicate]: connected to {}", primary);
+
+		// the tree is replaced: not promotable until the new state is whole
+		synced = false;
+		StoreRecord.Handler replica = proxy.getStore().newReplica();
+		long applied = 0;
+		while (!promoteRequested) {
+			int length = in.readInt();
+			lastHeard = System.currentTimeMillis();
+			if (length > ReplicationPrimary.MAX_RECORD_SIZE) {
+				// not allocated: the stream is corrupted, or not a primary
+				throw new IOException("frame too large: " + length);
+			} else if (length > 0) {
+				byte[] record = new byte[length];
+				in.readFully(record);
+				StoreRecord.decode(ByteBuffer.wrap(record), replica);
+				applied++;
+				appliedRecords = applied;
+			} else if (length == 0) {
+				// a heartbeat, the first one ending the state
+				synced = true;
+			} else {
+				throw new IOException("invalid frame length " + length);
+			}
+			if (in.available() == 0) {
+				// end of a batch
+				out.writeLong(applied);
+				out.flush();
+			}
+		}
+	}
+
+	private void runPromotion() {
+		long start = System.nanoTime();
+		promoted = true;
+		LOGGER.info("[promote]: {} end-points, taking over from {}",
+				proxy.getEPs().size(), primary);
+		if (promotion != null) {
+			promotion.run();
+		}
+		LOGGER.info("[promote]: promoted in {} ms",
+				(System.nanoTime() - start) / 1000000);
+		try {
+			// the store has not logged the replicated records
+			proxy.getStore().snapshot();
+		} catch (IOException e) {
+			LOGGER.error("[promote]: snapshot failed: {}", e);
+		}
+	}
+
+	private void closeSocket() {
+		Socket s = socket;
+		socket = null;
+		if (s != null) {
+			try {
+				s.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+	}
+}
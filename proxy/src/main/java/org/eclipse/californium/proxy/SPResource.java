@@ -15,14 +15,20 @@
 package org.eclipse.californium.proxy;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
 import org.eclipse.californium.core.CoapResource;
 import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.LinkFormat;
 import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.core.server.resources.ResourceAttributes;
 
 import static org.eclipse.californium.core.coap.MediaTypeRegistry.APPLICATION_LINK_FORMAT;
+import static org.eclipse.californium.core.coap.MediaTypeRegistry.TEXT_PLAIN;
 
 /**
  * This class implements the SP (Sleepy Proxy) resource of the proxy. This
@@ -35,6 +41,9 @@ import static org.eclipse.californium.core.coap.MediaTypeRegistry.APPLICATION_LI
  */
 public class SPResource extends CoapResource {
 
+	private static final ProxyLogger LOGGER = ProxyLogger
+			.getLogger(SPResource.class);
+
 	private Proxy proxy;
 
 	/**
@@ -52,6 +61,9 @@ public class SPResource extends CoapResource {
 		getAttributes().addAttribute("rt", "core.sp");
 
 		setObservable(false);
+
+		// metrics of the proxy, exposed as /sp/stats
+		add(new StatsResource(proxy.getMetrics()));
 	}
 
 	/**
@@ -59,14 +71,28 @@ public class SPResource extends CoapResource {
 	 * successful, it returns a '2.05 Content' response code, along with 
 	 * a payload including the name and the list of the attribute-value pairs 
 	 * of the resource's attributes, in link-format content.
+	 * <p>
+	 * If the request carries some queries (e.g. rt=temperature or ep=node1),
+	 * the SP resource acts as a discovery service over all the resources
+	 * delegated to the proxy: the payload lists every initialized delegated
+	 * resource matching all the queries, each one with the ep of its owner.
+	 * The answer is built from the proxy discovery index. On a sharded proxy
+	 * the discovery is also forwarded to the other shards (see
+	 * {@link ShardDiscovery}), whose resources are listed with absolute URIs.
 	 * 
 	 * @param exchange
 	 * 		The exchange object that handles requests/responses
 	 */
 	@Override
 	public void handleGET(CoapExchange exchange) {
-		System.out.println("***SleepyProxyResource.handleGET called. Handled"
-				+ "	by thread" + java.lang.Thread.currentThread().toString());
+		LOGGER.debug("[handleGET]: handled by thread {}",
+				Thread.currentThread());
+
+		List<String> queries = exchange.getRequestOptions().getUriQuery();
+		if (!queries.isEmpty()) {
+			discover(exchange, queries);
+			return;
+		}
 
 		String attributes = "";
 		Set<String> attributeSet = getAttributes().getAttributeKeySet();
@@ -80,20 +106,69 @@ public class SPResource extends CoapResource {
 				APPLICATION_LINK_FORMAT);
 	}
 
+	/*
+	 * Answers a filtered discovery request through the discovery index
+	 */
+	private void discover(CoapExchange exchange, List<String> queries) {
+		proxy.getMetrics().increment(ProxyMetrics.Counter.DISCOVERIES);
+		ShardRing ring = proxy.getShardRing();
+		List<String> peers = Collections.emptyList();
+		if (queries.contains(ShardRing.LOCAL_SCOPE)) {
+			// forwarded by another shard: only the local resources
+			queries = new ArrayList<String>(queries);
+			queries.remove(ShardRing.LOCAL_SCOPE);
+		} else if (ring != null) {
+			peers = ShardDiscovery.peers(ring, queries);
+		}
+		List<DelegatedResource> resources = proxy.getDiscoveryIndex()
+				.query(queries);
+
+		StringBuilder buffer = new StringBuilder();
+		for (DelegatedResource resource : resources) {
+			Utilities.appendLink(resource, buffer);
+			ResourceAttributes owner = resource.getContainer()
+					.getAttributes();
+			if (owner.containsAttribute(LinkFormat.END_POINT)) {
+				buffer.append(";").append(LinkFormat.END_POINT).append("=\"")
+						.append(owner.getAttributeValues(LinkFormat.END_POINT)
+								.get(0))
+						.append("\"");
+			}
+			buffer.append(",");
+		}
+		if (buffer.length() > 0) {
+			// remove last comma
+			buffer.setLength(buffer.length() - 1);
+		}
+
+		if (!peers.isEmpty()) {
+			proxy.getShardDiscovery().gather(exchange, queries,
+					buffer.toString(), peers);
+			return;
+		}
+		exchange.respond(CoAP.ResponseCode.CONTENT, buffer.toString(),
+				APPLICATION_LINK_FORMAT);
+	}
+
 	/**
 	 * The handlePOST method handles POST requests performed on the SP resource.
 	 * These requests correspond to the resource registration process by a 
 	 * certain sleepy node.
 	 * If successful, it returns a '2.01 Created Location: /sp/x' response code,
 	 * where x is a local identifier for the registering sleepy node.
+	 * <p>
+	 * On a sharded proxy, an end-point owned by another shard is answered
+	 * with '4.03 Forbidden', whose payload is the URI of the SP resource of
+	 * the owner, where the node has to register instead.
 	 * 
 	 * @param exchange
 	 * 		The exchange object that handles requests/responses
 	 */
 	@Override
 	public void handlePOST(CoapExchange exchange) {
-		System.out.println("***SleepyProxyResource.handlePOST called. Handled"
-				+ "	by thread" + java.lang.Thread.currentThread().toString());
+		long start = System.nanoTime();
+		LOGGER.debug("[handlePOST]: handled by thread {}",
+				Thread.currentThread());
 
 		// We retrieve queries contained in the URI
 		List<String> uriQueries = exchange.getRequestOptions().getUriQuery();
@@ -111,6 +186,33 @@ public class SPResource extends CoapResource {
 			exchange.respond(CoAP.ResponseCode.BAD_REQUEST);
 			return;
 		}
+		ShardRing ring = proxy.getShardRing();
+		if (ring != null && !ring.isLocal(epValue)) {
+			String owner = ring.ownerOf(epValue);
+			LOGGER.debug("[handlePOST]: {} redirected to {}", epValue, owner);
+			proxy.getMetrics().increment(ProxyMetrics.Counter.REDIRECTS);
+			exchange.respond(CoAP.ResponseCode.FORBIDDEN,
+					owner + "/" + getName(), TEXT_PLAIN);
+			return;
+		}
+		List<String> piggyback = queryAttributes
+				.getAttributeValues(ContainerResource.PIGGYBACK);
+		if (piggyback != null && !piggyback.isEmpty()
+				&& ContainerResource.piggybackFormat(piggyback.get(0)) < 0) {
+			// not a content-format of the lists of changes
+			exchange.respond(CoAP.ResponseCode.BAD_REQUEST);
+			return;
+		}
+
+		// the whole payload is parsed before changing anything
+		List<Link> links;
+		try {
+			links = parseLinks(exchange.getRequestPayload());
+		} catch (IllegalArgumentException e) {
+			LOGGER.info("[handlePOST]: {}", e.getMessage());
+			exchange.respond(CoAP.ResponseCode.BAD_REQUEST);
+			return;
+		}
 
 		/*
 		 * The endpoint was specified. We try to understand if this endpoint
@@ -121,17 +223,29 @@ public class SPResource extends CoapResource {
 				epValue, queryAttributes, exchange.getSourceAddress());
 
 		// Create the delegated resources, but do not initialize them
-		createResources(exchange.getRequestText().trim(), containerResource);
+		createResources(links, containerResource);
+
+		// with sync commit, the registration has to be on disk first
+		proxy.getStore().commit();
 
 		// I add the "Location" option to the answer,
 		// set with the URI of the resource container
 		exchange.setLocationPath(containerResource.getURI());
 		exchange.respond(CoAP.ResponseCode.CREATED);
+
+		proxy.getMetrics().increment(ProxyMetrics.Counter.REGISTRATIONS);
+		proxy.getMetrics().record(ProxyMetrics.Timer.REGISTRATION, start);
 	}
 
 	/**
 	 * Retrieve the container resource for a specific sleepy node (based on
-	 * end-point value). If not existing yet create a new container.
+	 * end-point value). If not existing yet create a new container. The
+	 * lookup and the creation are performed atomically, thus concurrent
+	 * registrations of the same end-point always get the same container and
+	 * only one identifier is allocated. If the node registers again from a
+	 * different address, the address of the container is updated, as the
+	 * content-format of its lists of changes if given again. The lease of an
+	 * existing container is renewed, with the new lt if given.
 	 * 
 	 * @param EPs
 	 *            Map of containers
@@ -143,62 +257,167 @@ public class SPResource extends CoapResource {
 	 *            Address of the delegating node
 	 * @return The proper container
 	 */
-	private ContainerResource getContainer(Map<String, ContainerResource> EPs,
-			String ep, SNResourceAttributes queryAttributes,
-			InetAddress address) {
+	private ContainerResource getContainer(
+			ConcurrentMap<String, ContainerResource> EPs, String ep,
+			SNResourceAttributes queryAttributes, InetAddress address) {
 		ContainerResource containerResource = EPs.get(ep);
 
-		if (containerResource == null) { // the node has never delegated before
-			String newContainerId = "" + proxy.newEPId();
+		while (containerResource == null
+				|| !containerResource.renewLease(queryAttributes)) {
+			/*
+			 * The node has never delegated before, or its container is being
+			 * removed as dead: a live container is kept, otherwise a new one
+			 * is created. Nothing waits inside compute: the registration
+			 * whose container is mapped adds and logs it once compute has
+			 * returned, the others renew the lease afterwards.
+			 */
+			ContainerResource[] created = new ContainerResource[1];
+			containerResource = EPs.compute(ep,
+					(key, current) -> (current != null && !current.isRemoved())
+							? current
+							: (created[0] = newContainer(queryAttributes,
+									address)));
+			if (containerResource == created[0]) {
+				addContainer(containerResource, queryAttributes);
+				break;
+			}
+		}
+
+		boolean changed = containerResource
+				.updateChangesFormat(queryAttributes)
+				|| !queryAttributes.getAttributeValues(
+						ContainerResource.LEASE).isEmpty();
+		if (!containerResource.getSPIpAddress().equals(address)) {
+			// the node registered again from a different address
+			LOGGER.info("[Moved] {} from {} to {}",
+					containerResource.getName(),
+					containerResource.getSPIpAddress(), address);
+			containerResource.setSPIpAddress(address);
+			changed = true;
+		}
+		if (changed) {
+			proxy.getStore().logContainer(containerResource);
+		}
+		return containerResource;
+	}
+
+	/*
+	 * Creates the container for a new end-point, held until added. Called
+	 * inside compute, thus at most once per end-point until its container is
+	 * removed by the sweeper; it has no other side effect.
+	 */
+	private ContainerResource newContainer(
+			SNResourceAttributes queryAttributes, InetAddress address) {
+		String newContainerId = "" + proxy.newEPId();
 
-			queryAttributes.addContentType(APPLICATION_LINK_FORMAT);
-			containerResource = new ContainerResource(newContainerId,
-					queryAttributes, address);
+		queryAttributes.addContentType(APPLICATION_LINK_FORMAT);
+		ContainerResource containerResource = new ContainerResource(
+				newContainerId, queryAttributes, address, proxy);
+		containerResource.unpublish();
+		return containerResource;
+	}
 
-			// Add the new <endPoint, locationRerouce> pair to the map
-			EPs.put(ep, containerResource);
-			// Add the newly created resource as child of his container resource
+	/*
+	 * Adds a new container as child of the SP resource and logs it, then
+	 * releases the other registrations of its end-point
+	 */
+	private void addContainer(ContainerResource containerResource,
+			SNResourceAttributes queryAttributes) {
+		try {
 			add(containerResource);
+			proxy.getStore().logContainer(containerResource);
+		} finally {
+			containerResource.publish();
+		}
+
+		LOGGER.info("[Added] {} (visible: {})\n{}", containerResource.getURI(),
+				containerResource.isVisible(), queryAttributes);
+	}
+
+	/*
+	 * A resource to delegate, as listed in the payload of a registration
+	 */
+	private static class Link {
+		final String path;
+		final SNResourceAttributes attributes = new SNResourceAttributes();
 
-			System.out.println("[Added] " + newContainerId + " (visible: "
-					+ containerResource.isVisible() + ") "
-					+ containerResource.getName() + "\n-"
-					+ containerResource.getPath() + "\n-"
-					+ containerResource.getURI() + "\n" + queryAttributes);
+		Link(String path) {
+			this.path = path;
 		}
-		return containerResource;
+	}
+
+	/*
+	 * Parses the payload of a registration, tokenized in a single pass
+	 * directly on its bytes, throwing an IllegalArgumentException if it is
+	 * not valid link-format
+	 */
+	private static List<Link> parseLinks(byte[] payload) {
+		List<Link> links = new ArrayList<Link>();
+		LinkFormatParser parser = new LinkFormatParser(payload);
+		while (parser.nextLink()) {
+			Link link = new Link(parser.getPath());
+			while (parser.nextAttribute()) {
+				String value = parser.getAttributeValue();
+				if (value == null) {
+					link.attributes.addAttribute(parser.getAttributeName());
+				} else {
+					link.attributes.addAttribute(parser.getAttributeName(),
+							value);
+				}
+			}
+			links.add(link);
+		}
+		return links;
 	}
 
 	/**
-	 * Used to delegate the resources passed in a POST request payload.
+	 * Used to delegate the resources passed in a POST request payload. The
+	 * whole payload is parsed first: a malformed one delegates nothing.
 	 * 
 	 * @param payload
-	 *            Payload of the request. It has to be parsed to collect the
-	 *            different resources.
+	 *            Payload of the request, in link-format. It has to be parsed
+	 *            to collect the different resources.
 	 * @param containerResource
 	 *            Base resource of the specific sleepy node.
+	 * @throws IllegalArgumentException
+	 *             if the payload is not valid link-format
 	 */
-	private void createResources(String payload,
+	void createResources(byte[] payload,
 			ContainerResource containerResource) {
-		// Fills a string array with the delegated resources
-		String resources[] = payload.split(",");
-		for (String r : resources) {
-			String fields[] = r.split(";");
-
-			SNResourceAttributes attributes = new SNResourceAttributes();
-			for (String attribute : fields) {
-				if (attribute.compareTo(fields[0]) != 0) { // exclude path name
-					String attr[] = attribute.split("=");
-					attributes.addAttribute(attr[0], attr[1].replace("\"", ""));
-				}
-			}
-			String cleanedPath = fields[0].replace("<", "").replace(">", "");
+		createResources(parseLinks(payload), containerResource);
+	}
 
+	private void createResources(List<Link> links,
+			ContainerResource containerResource) {
+		for (Link link : links) {
+			String path = link.path;
 			DelegatedResource newResource = new DelegatedResource(null, false,
-					attributes, containerResource);
+					link.attributes, containerResource);
 
-			containerResource.getCoapTreeBuilder().add(newResource, cleanedPath,
-					VisibilityPolicy.ALL_INVISIBLE);
+			// held until the CREATE is logged, so that an update reaching
+			// the resource as soon as it is added is logged after it
+			newResource.getLock().lock();
+			try {
+				containerResource.getCoapTreeBuilder().add(newResource, path,
+						VisibilityPolicy.ALL_INVISIBLE);
+				proxy.getStore().logCreate(newResource);
+			} finally {
+				newResource.getLock().unlock();
+			}
 		}
 	}
+
+	/*
+	 * Re-creates a container recovered by the ProxyStore, with its original
+	 * name, so that the URIs known by the nodes stay valid.
+	 */
+	ContainerResource restoreContainer(String name,
+			SNResourceAttributes attributes, InetAddress address) {
+		ContainerResource containerResource = new ContainerResource(name,
+				attributes, address, proxy);
+		add(containerResource);
+		proxy.getEPs().put(attributes.getEndPoint(), containerResource);
+		proxy.reserveEPId(Integer.parseInt(name));
+		return containerResource;
+	}
 }
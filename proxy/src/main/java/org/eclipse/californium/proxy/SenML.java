@@ -0,0 +1,278 @@
+/******************************************************************************
+ * @title: SenML
+ * 	SenML (RFC 8428) packs in JSON and CBOR
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+
+/**
+ * SenML encodes and decodes the packs exchanged with the sleepy nodes and
+ * the regular nodes: a pack is an array of records, each one naming a
+ * resource (base name followed by name) and carrying its value as a number
+ * (v), a string (vs), a boolean (vb) or a byte string (vd). Times, units and
+ * sums are not used by the proxy and are ignored.
+ * <p>
+ * Besides the fields of RFC 8428, a record may carry the lifetime of the
+ * resource, in seconds, with the label "lt" in both representations, and
+ * the content-format of a byte string value, as a string with the label "ct"
+ * in both representations (RFC 9193).
+ */
+public class SenML {
+
+	// Content-formats of SenML packs
+	public static final int APPLICATION_SENML_JSON = 110;
+	public static final int APPLICATION_SENML_CBOR = 112;
+
+	// Labels of the fields, as used by JSON
+	private static final String BASE_NAME = "bn";
+	private static final String NAME = "n";
+	private static final String VALUE = "v";
+	private static final String STRING_VALUE = "vs";
+	private static final String BOOLEAN_VALUE = "vb";
+	private static final String DATA_VALUE = "vd";
+	private static final String LIFETIME = "lt";
+	private static final String CONTENT_FORMAT = "ct";
+
+	// Labels of the same fields, as used by CBOR
+	private static final long CBOR_BASE_NAME = -2;
+	private static final long CBOR_NAME = 0;
+	private static final long CBOR_VALUE = 2;
+	private static final long CBOR_STRING_VALUE = 3;
+	private static final long CBOR_BOOLEAN_VALUE = 4;
+	private static final long CBOR_DATA_VALUE = 8;
+
+	/**
+	 * A record of a pack, with its name already resolved.
+	 */
+	public static class Record {
+		public final String name;
+
+		// Long, Double, String, Boolean, byte[] or null
+		public final Object value;
+
+		// lifetime in seconds, -1 if not given
+		public final long lifetime;
+
+		// content-format of a byte[] value, UNDEFINED if not given
+		public final int contentFormat;
+
+		public Record(String name, Object value) {
+			this(name, value, -1);
+		}
+
+		public Record(String name, Object value, long lifetime) {
+			this(name, value, lifetime, MediaTypeRegistry.UNDEFINED);
+		}
+
+		public Record(String name, Object value, long lifetime,
+				int contentFormat) {
+			this.name = name;
+			this.value = value;
+			this.lifetime = lifetime;
+			this.contentFormat = contentFormat;
+		}
+	}
+
+	/**
+	 * Returns true for the content-formats of SenML packs.
+	 */
+	public static boolean isSenML(int contentFormat) {
+		return contentFormat == APPLICATION_SENML_JSON
+				|| contentFormat == APPLICATION_SENML_CBOR;
+	}
+
+	/**
+	 * Returns true if the given object can be the value of a record.
+	 */
+	public static boolean isValue(Object value) {
+		return value instanceof Number || value instanceof String
+				|| value instanceof Boolean || value instanceof byte[];
+	}
+
+	/**
+	 * Decodes a pack.
+	 *
+	 * @param payload
+	 *            the encoded pack
+	 * @param contentFormat
+	 *            APPLICATION_SENML_JSON or APPLICATION_SENML_CBOR
+	 * @return the records, with the base names applied
+	 * @throws IllegalArgumentException
+	 *             if the pack is malformed
+	 */
+	public static List<Record> decode(byte[] payload, int contentFormat) {
+		boolean cbor = (contentFormat == APPLICATION_SENML_CBOR);
+		Object pack = cbor ? Cbor.decode(payload) : Json.decode(payload);
+		if (!(pack instanceof List)) {
+			throw new IllegalArgumentException("a pack must be an array");
+		}
+
+		List<Record> records = new ArrayList<Record>();
+		String baseName = "";
+		for (Object item : (List<?>) pack) {
+			if (!(item instanceof Map)) {
+				throw new IllegalArgumentException(
+						"a record must be a map");
+			}
+			Map<?, ?> fields = (Map<?, ?>) item;
+
+			Object bn = field(fields, cbor, BASE_NAME, CBOR_BASE_NAME);
+			if (bn != null) {
+				baseName = text(bn, BASE_NAME);
+			}
+			Object n = field(fields, cbor, NAME, CBOR_NAME);
+			String name = (n != null) ? baseName + text(n, NAME) : baseName;
+
+			Object value = field(fields, cbor, VALUE, CBOR_VALUE);
+			if (value != null && !(value instanceof Number)) {
+				throw new IllegalArgumentException("invalid v of " + name);
+			}
+			Object vs = field(fields, cbor, STRING_VALUE, CBOR_STRING_VALUE);
+			if (vs != null) {
+				value = text(vs, STRING_VALUE);
+			}
+			Object vb = field(fields, cbor, BOOLEAN_VALUE,
+					CBOR_BOOLEAN_VALUE);
+			if (vb != null) {
+				if (!(vb instanceof Boolean)) {
+					throw new IllegalArgumentException(
+							"invalid vb of " + name);
+				}
+				value = vb;
+			}
+			Object vd = field(fields, cbor, DATA_VALUE, CBOR_DATA_VALUE);
+			if (vd != null) {
+				value = data(vd, cbor, name);
+			}
+
+			long lifetime = -1;
+			Object lt = fields.get(LIFETIME);
+			if (lt != null) {
+				if (!(lt instanceof Number)
+						|| ((Number) lt).longValue() < 0) {
+					throw new IllegalArgumentException(
+							"invalid lt of " + name);
+				}
+				lifetime = ((Number) lt).longValue();
+			}
+			int valueFormat = MediaTypeRegistry.UNDEFINED;
+			Object ct = fields.get(CONTENT_FORMAT);
+			if (ct != null) {
+				try {
+					valueFormat = Integer.parseInt(text(ct, CONTENT_FORMAT));
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException(
+							"invalid ct of " + name);
+				}
+			}
+			records.add(new Record(name, value, lifetime, valueFormat));
+		}
+		return records;
+	}
+
+	/**
+	 * Encodes a pack. The common prefix of the names, up to the last slash,
+	 * is sent once as base name.
+	 *
+	 * @param records
+	 *            the records, whose values must be accepted by
+	 *            {@link #isValue(Object)} or be null
+	 * @param contentFormat
+	 *            APPLICATION_SENML_JSON or APPLICATION_SENML_CBOR
+	 * @return the encoded pack
+	 */
+	public static byte[] encode(List<Record> records, int contentFormat) {
+		boolean cbor = (contentFormat == APPLICATION_SENML_CBOR);
+
+		String baseName = "";
+		if (records.size() > 1) {
+			baseName = records.get(0).name;
+			for (Record record : records) {
+				int i = 0;
+				int max = Math.min(baseName.length(), record.name.length());
+				while (i < max && baseName.charAt(i) == record.name.charAt(i)) {
+					i++;
+				}
+				baseName = baseName.substring(0, i);
+			}
+			baseName = baseName.substring(0, baseName.lastIndexOf('/') + 1);
+		}
+
+		List<Object> pack = new ArrayList<Object>(records.size());
+		for (Record record : records) {
+			Map<Object, Object> fields = new LinkedHashMap<Object, Object>();
+			if (!baseName.isEmpty() && pack.isEmpty()) {
+				fields.put(cbor ? CBOR_BASE_NAME : BASE_NAME, baseName);
+			}
+			fields.put(cbor ? CBOR_NAME : NAME,
+					record.name.substring(baseName.length()));
+
+			Object value = record.value;
+			if (value instanceof Number) {
+				fields.put(cbor ? CBOR_VALUE : VALUE, value);
+			} else if (value instanceof String) {
+				fields.put(cbor ? CBOR_STRING_VALUE : STRING_VALUE, value);
+			} else if (value instanceof Boolean) {
+				fields.put(cbor ? CBOR_BOOLEAN_VALUE : BOOLEAN_VALUE, value);
+			} else if (value instanceof byte[]) {
+				// Json encodes byte[] as base64url, as vd requires
+				fields.put(cbor ? CBOR_DATA_VALUE : DATA_VALUE, value);
+				if (record.contentFormat != MediaTypeRegistry.UNDEFINED) {
+					fields.put(CONTENT_FORMAT,
+							Integer.toString(record.contentFormat));
+				}
+			}
+			if (record.lifetime >= 0) {
+				fields.put(LIFETIME, record.lifetime);
+			}
+			pack.add(fields);
+		}
+		return cbor ? Cbor.encode(pack) : Json.encode(pack);
+	}
+
+	/*
+	 * Returns a field of a record, given its labels
+	 */
+	private static Object field(Map<?, ?> fields, boolean cbor, String label,
+			long cborLabel) {
+		return cbor ? fields.get(cborLabel) : fields.get(label);
+	}
+
+	private static String text(Object value, String label) {
+		if (!(value instanceof String)) {
+			throw new IllegalArgumentException("invalid " + label);
+		}
+		return (String) value;
+	}
+
+	private static byte[] data(Object value, boolean cbor, String name) {
+		if (cbor) {
+			if (!(value instanceof byte[])) {
+				throw new IllegalArgumentException("invalid vd of " + name);
+			}
+			return (byte[]) value;
+		}
+		try {
+			return Base64.getUrlDecoder().decode(text(value, DATA_VALUE));
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("invalid vd of " + name);
+		}
+	}
+}
@@ -0,0 +1,274 @@
+/******************************************************************************
+ * @title: Shard Discovery
+ * 	Scatter/gather of the discovery requests over the shards
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import static org.eclipse.californium.core.coap.MediaTypeRegistry.APPLICATION_LINK_FORMAT;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.LinkFormat;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+
+/**
+ * ShardDiscovery answers a filtered discovery on a sharded proxy (see
+ * {@link ShardRing}) with the resources of every shard. The request is
+ * forwarded, with the same queries plus {@link ShardRing#LOCAL_SCOPE}, to
+ * the other shards in parallel; their links are rewritten as absolute URIs
+ * and appended to the local ones. A query on the ep attribute is forwarded
+ * only to the shard owning that end-point.
+ * <p>
+ * The exchange is accepted at once and answered by a separate response when
+ * the last shard has answered, or when the timeout expires: the shards which
+ * did not answer in time, or answered with an error, are left out, as with a
+ * multicast discovery, and counted by the shards_unreachable metric. No
+ * thread waits for the shards.
+ * <p>
+ * The requests are sent by a single client, shared by all the discoveries.
+ * A discovery timing out is answered by a thread of its own, not by the
+ * lifetime scheduler, whose worker must never block.
+ */
+public class ShardDiscovery {
+
+	private static final ProxyLogger LOGGER = ProxyLogger
+			.getLogger(ShardDiscovery.class);
+
+	// Default time waited for the other shards, in milliseconds
+	public static final long DEFAULT_TIMEOUT = 2000;
+
+	private final Proxy proxy;
+	private final CoapClient client;
+
+	// Answers the discoveries timing out, its thread started on first use
+	private final ExecutorService responder;
+
+	private volatile long timeoutMillis = DEFAULT_TIMEOUT;
+
+	/**
+	 * Instantiates the scatter/gather of the given proxy.
+	 *
+	 * @param proxy
+	 *            the proxy answering the discoveries
+	 */
+	public ShardDiscovery(Proxy proxy) {
+		this.proxy = proxy;
+		this.client = new CoapClient();
+		this.responder = Executors.newSingleThreadExecutor(
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "shard-gather");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Stops the client and the responder. The discoveries still waiting for
+	 * the other shards are not answered.
+	 */
+	public void stop() {
+		client.shutdown();
+		responder.shutdownNow();
+	}
+
+	/**
+	 * Sets the time waited for the other shards, in milliseconds.
+	 */
+	public void setTimeout(long millis) {
+		if (millis < 1) {
+			throw new IllegalArgumentException("timeout " + millis);
+		}
+		this.timeoutMillis = millis;
+	}
+
+	/**
+	 * Returns the other shards to ask for a discovery with the given
+	 * queries: the owner of the end-point if an ep is given, otherwise all of
+	 * them. Empty if the discovery is answered by this proxy alone.
+	 */
+	static List<String> peers(ShardRing ring, List<String> queries) {
+		String prefix = LinkFormat.END_POINT + "=";
+		for (String query : queries) {
+			if (query.startsWith(prefix)) {
+				String owner = ring.ownerOf(query.substring(prefix.length()));
+				return owner.equals(ring.getSelf())
+						? Collections.<String> emptyList()
+						: Collections.singletonList(owner);
+			}
+		}
+		List<String> peers = new ArrayList<String>(ring.getShards());
+		peers.remove(ring.getSelf());
+		return peers;
+	}
+
+	/**
+	 * Forwards a discovery to the given shards and answers it with the local
+	 * links followed by theirs.
+	 *
+	 * @param exchange
+	 *            the discovery, not answered yet
+	 * @param queries
+	 *            its queries
+	 * @param links
+	 *            the links of the local resources matching the queries, in
+	 *            link-format
+	 * @param peers
+	 *            the base URIs of the shards to ask
+	 */
+	public void gather(CoapExchange exchange, List<String> queries,
+			String links, List<String> peers) {
+		exchange.accept();
+
+		final Gather gather = new Gather(exchange, links, peers.size());
+		gather.timeout = proxy.getLifetimeScheduler().schedule(gather,
+				timeoutMillis);
+
+		for (final String peer : peers) {
+			Request request = Request.newGet();
+			request.setURI(peer + "/sp");
+			for (String query : queries) {
+				request.getOptions().addUriQuery(query);
+			}
+			request.getOptions().addUriQuery(ShardRing.LOCAL_SCOPE);
+
+			client.advanced(new CoapHandler() {
+				@Override
+				public void onLoad(CoapResponse response) {
+					gather.add(peer, response);
+				}
+
+				@Override
+				public void onError() {
+					gather.add(peer, null);
+				}
+			}, request);
+		}
+	}
+
+	/*
+	 * Appends links in link-format, prefixing the relative URIs with the base
+	 * URI of their shard. Quoted values may contain '<'.
+	 */
+	static void appendAbsolute(String links, String base, StringBuilder out) {
+		boolean quoted = false;
+		for (int i = 0; i < links.length(); i++) {
+			char c = links.charAt(i);
+			out.append(c);
+			if (quoted && c == '\\' && i + 1 < links.length()) {
+				out.append(links.charAt(++i));
+			} else if (c == '"') {
+				quoted = !quoted;
+			} else if (c == '<' && !quoted && i + 1 < links.length()
+					&& links.charAt(i + 1) == '/') {
+				out.append(base);
+			}
+		}
+	}
+
+	/*
+	 * A discovery waiting for the other shards. Run by the lifetime
+	 * scheduler when the timeout expires, then handing the answer to the
+	 * responder.
+	 */
+	private final class Gather implements Runnable {
+
+		private final CoapExchange exchange;
+		private final StringBuilder links;
+
+		// guarded by this
+		private int remaining;
+		private boolean done;
+
+		private LifetimeScheduler.Timeout timeout;
+
+		Gather(CoapExchange exchange, String links, int remaining) {
+			this.exchange = exchange;
+			this.links = new StringBuilder(links);
+			this.remaining = remaining;
+		}
+
+		void add(String peer, CoapResponse response) {
+			String payload = null;
+			if (response != null
+					&& response.getCode() == CoAP.ResponseCode.CONTENT) {
+				payload = response.getResponseText();
+			} else {
+				LOGGER.info("[gather]: no answer from {}", peer);
+				proxy.getMetrics().increment(
+						ProxyMetrics.Counter.SHARDS_UNREACHABLE);
+			}
+			String answer;
+			synchronized (this) {
+				if (done) {
+					return;
+				}
+				if (payload != null && !payload.isEmpty()) {
+					if (links.length() > 0) {
+						links.append(',');
+					}
+					appendAbsolute(payload, peer, links);
+				}
+				if (--remaining > 0) {
+					return;
+				}
+				answer = finish();
+			}
+			proxy.getLifetimeScheduler().cancel(timeout);
+			respond(answer);
+		}
+
+		@Override
+		public void run() {
+			String answer;
+			synchronized (this) {
+				if (done) {
+					return;
+				}
+				LOGGER.info("[gather]: {} shards did not answer in time",
+						remaining);
+				proxy.getMetrics().add(ProxyMetrics.Counter.SHARDS_UNREACHABLE,
+						remaining);
+				answer = finish();
+			}
+			try {
+				responder.execute(() -> respond(answer));
+			} catch (RejectedExecutionException e) {
+				// the proxy is stopping
+			}
+		}
+
+		private String finish() {
+			done = true;
+			return links.toString();
+		}
+
+		private void respond(String answer) {
+			exchange.respond(CoAP.ResponseCode.CONTENT, answer,
+					APPLICATION_LINK_FORMAT);
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/******************************************************************************
+ * @title: Shard Ring
+ * 	Consistent hashing of the end-points over a set of proxies
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * ShardRing splits the ep namespace among several proxies (the shards), each
+ * one identified by its base URI (e.g. coap://[aaaa::1]:5683). Every shard
+ * is placed on a ring of 64-bit hashes at {@link #VIRTUAL_NODES} points, and
+ * an end-point belongs to the shard of the first point following the hash of
+ * its name. Adding or removing a shard thus moves only the end-points of its
+ * own arcs, about 1/n of them.
+ * <p>
+ * The hash depends only on the names, so every proxy configured with the
+ * same list of shards, in any order, agrees on the owner of each end-point.
+ * A ring is immutable, thus safe to share among threads.
+ */
+public class ShardRing {
+
+	// Points of each shard on the ring
+	public static final int VIRTUAL_NODES = 128;
+
+	// Query marking a discovery forwarded by another shard, answered locally
+	public static final String LOCAL_SCOPE = "scope=local";
+
+	private final String self;
+	private final List<String> shards;
+	private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+	/**
+	 * Instantiates the ring of the given shards.
+	 *
+	 * @param shards
+	 *            the base URIs of all the shards, without trailing slash
+	 * @param self
+	 *            the base URI of this proxy, one of the shards
+	 * @throws IllegalArgumentException
+	 *             if self is not one of the shards
+	 */
+	public ShardRing(List<String> shards, String self) {
+		List<String> list = new ArrayList<String>();
+		for (String shard : shards) {
+			String uri = normalize(shard);
+			if (!uri.isEmpty() && !list.contains(uri)) {
+				list.add(uri);
+			}
+		}
+		this.self = normalize(self);
+		if (!list.contains(this.self)) {
+			throw new IllegalArgumentException(
+					self + " is not one of the shards " + list);
+		}
+		this.shards = Collections.unmodifiableList(list);
+
+		for (String shard : this.shards) {
+			for (int i = 0; i < VIRTUAL_NODES; i++) {
+				// on a collision the lowest URI wins, whatever the order
+				ring.merge(hash(shard + "#" + i), shard,
+						(a, b) -> a.compareTo(b) <= 0 ? a : b);
+			}
+		}
+	}
+
+	/**
+	 * Returns the ring described by a comma-separated list of base URIs, or
+	 * null if it holds only this proxy, i.e. no sharding.
+	 */
+	public static ShardRing parse(String shards, String self) {
+		List<String> list = new ArrayList<String>();
+		for (String shard : shards.split(",")) {
+			if (!shard.trim().isEmpty()) {
+				list.add(shard);
+			}
+		}
+		ShardRing ring = new ShardRing(list, self);
+		return (ring.shards.size() > 1) ? ring : null;
+	}
+
+	/**
+	 * Returns the base URI of this proxy.
+	 */
+	public String getSelf() {
+		return self;
+	}
+
+	/**
+	 * Returns the base URIs of all the shards, this proxy included.
+	 */
+	public List<String> getShards() {
+		return shards;
+	}
+
+	/**
+	 * Returns the base URI of the shard owning an end-point.
+	 */
+	public String ownerOf(String ep) {
+		Map.Entry<Long, String> point = ring.ceilingEntry(hash(ep));
+		return (point != null) ? point.getValue() : ring.firstEntry()
+				.getValue();
+	}
+
+	/**
+	 * Returns true if the end-point belongs to this proxy.
+	 */
+	public boolean isLocal(String ep) {
+		return self.equals(ownerOf(ep));
+	}
+
+	/*
+	 * FNV-1a over the UTF-8 bytes, followed by the finalizer of MurmurHash3
+	 * to spread the close names (node1, node2...) over the whole ring
+	 */
+	static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+			h ^= (b & 0xff);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static String normalize(String uri) {
+		String trimmed = uri.trim();
+		while (trimmed.endsWith("/")) {
+			trimmed = trimmed.substring(0, trimmed.length() - 1);
+		}
+		return trimmed;
+	}
+}
@@ -0,0 +1,62 @@
+/******************************************************************************
+ * @title: Stats Resource
+ * 	Exposes the metrics of the proxy
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import static org.eclipse.californium.core.coap.MediaTypeRegistry.TEXT_PLAIN;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+
+/**
+ * StatsResource exposes the {@link ProxyMetrics} of the proxy as /sp/stats.
+ * A GET returns every counter, latency summary and gauge in the Prometheus
+ * text format. The resource name cannot clash with the containers, which are
+ * named with numeric identifiers.
+ */
+public class StatsResource extends CoapResource {
+
+	private final ProxyMetrics metrics;
+
+	/**
+	 * Constructs the stats resource for the given metrics.
+	 *
+	 * @param metrics
+	 *            the metrics to be exposed
+	 */
+	public StatsResource(ProxyMetrics metrics) {
+		super("stats");
+
+		this.metrics = metrics;
+
+		getAttributes().setTitle("Sleepy Proxy Statistics");
+		getAttributes().addAttribute("rt", "core.sp.stats");
+
+		setObservable(false);
+	}
+
+	/**
+	 * Returns the current metrics, in Prometheus text format.
+	 *
+	 * @param exchange
+	 *            The exchange object that handles requests/responses
+	 */
+	@Override
+	public void handleGET(CoapExchange exchange) {
+		StringBuilder out = new StringBuilder(4096);
+		metrics.writePrometheus(out);
+		exchange.respond(CoAP.ResponseCode.CONTENT, out.toString(), TEXT_PLAIN);
+	}
+}
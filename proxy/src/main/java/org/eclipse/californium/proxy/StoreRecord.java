@@ -0,0 +1,342 @@
+/******************************************************************************
+ * @title: Store Record
+ * 	Binary encoding of the changes of the proxy state
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.californium.core.server.resources.ResourceAttributes;
+
+/**
+ * StoreRecord encodes and decodes the records written by the
+ * {@link ProxyStore}, both in the write-ahead log and in the snapshots. Every
+ * record describes one change of the state of the proxy and is idempotent,
+ * i.e. it assigns the state instead of modifying it, so replaying a record
+ * whose effect is already part of a snapshot is harmless.
+ * <p>
+ * Resources are identified by the name of their container and by their path
+ * relative to it, e.g. "0" and "/sensors/temp" for /sp/0/sensors/temp.
+ */
+public class StoreRecord {
+
+	// Types of record
+	static final byte CONTAINER = 1;
+	static final byte CREATE = 2;
+	static final byte UPDATE = 3;
+	static final byte DIRTY = 4;
+	static final byte REMOVE = 5;
+	static final byte REMOVE_CONTAINER = 6;
+	static final byte PENDING = 7;
+
+	/**
+	 * Receives the decoded records.
+	 */
+	public interface Handler {
+
+		/**
+		 * A container has been created, or its owner changed address.
+		 */
+		void container(String name, InetAddress address,
+				SNResourceAttributes attributes) throws IOException;
+
+		/**
+		 * A resource has been registered, not yet initialized.
+		 */
+		void create(String container, String path,
+				SNResourceAttributes attributes) throws IOException;
+
+		/**
+		 * The value or the lifetime of a resource changed. The value is kept
+		 * as raw bytes with its content-format. The expiration is a
+		 * wall-clock time in milliseconds, -1 if there is no lifetime.
+		 */
+		void update(String container, String path, byte[] value,
+				int contentFormat, boolean initialized, long lifetime,
+				long expiresAt) throws IOException;
+
+		/**
+		 * A resource has been marked dirty or clean.
+		 */
+		void dirty(String container, String path, boolean dirty)
+				throws IOException;
+
+		/**
+		 * A resource has been removed, since its lifetime expired.
+		 */
+		void remove(String container, String path) throws IOException;
+
+		/**
+		 * A container has been removed with all its resources, since its
+		 * end-point is dead.
+		 */
+		void removeContainer(String name) throws IOException;
+
+		/**
+		 * The writes of the regular nodes queued on a resource changed. Only
+		 * streamed to a standby proxy, never persisted.
+		 */
+		void pending(String container, String path,
+				List<PendingWrites.Write> writes) throws IOException;
+	}
+
+	private StoreRecord() {
+	}
+
+	static byte[] container(String name, InetAddress address,
+			ResourceAttributes attributes) {
+		Encoder out = new Encoder(CONTAINER);
+		out.string(name);
+		byte[] raw = address.getAddress();
+		out.bytes(raw, raw.length);
+		out.attributes(attributes);
+		return out.toByteArray();
+	}
+
+	static byte[] create(String container, String path,
+			ResourceAttributes attributes) {
+		Encoder out = new Encoder(CREATE);
+		out.string(container);
+		out.string(path);
+		out.attributes(attributes);
+		return out.toByteArray();
+	}
+
+	static byte[] update(String container, String path, byte[] value,
+			int contentFormat, boolean initialized, long lifetime,
+			long expiresAt) {
+		Encoder out = new Encoder(UPDATE);
+		out.string(container);
+		out.string(path);
+		if (value == null) {
+			out.number32(-1);
+		} else {
+			out.bytes(value, value.length);
+		}
+		out.number32(contentFormat);
+		out.bool(initialized);
+		out.number(lifetime);
+		out.number(expiresAt);
+		return out.toByteArray();
+	}
+
+	static byte[] dirty(String container, String path, boolean dirty) {
+		Encoder out = new Encoder(DIRTY);
+		out.string(container);
+		out.string(path);
+		out.bool(dirty);
+		return out.toByteArray();
+	}
+
+	static byte[] remove(String container, String path) {
+		Encoder out = new Encoder(REMOVE);
+		out.string(container);
+		out.string(path);
+		return out.toByteArray();
+	}
+
+	static byte[] removeContainer(String name) {
+		Encoder out = new Encoder(REMOVE_CONTAINER);
+		out.string(name);
+		return out.toByteArray();
+	}
+
+	static byte[] pending(String container, String path,
+			List<PendingWrites.Write> writes) {
+		Encoder out = new Encoder(PENDING);
+		out.string(container);
+		out.string(path);
+		out.number32(writes.size());
+		for (PendingWrites.Write write : writes) {
+			if (write.value == null) {
+				out.number32(-1);
+			} else {
+				out.bytes(write.value, write.value.length);
+			}
+			out.number32(write.contentFormat);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes a record and passes it to the handler.
+	 *
+	 * @param in
+	 *            the record
+	 * @param handler
+	 *            the handler
+	 * @throws IOException
+	 *             if the record is malformed, or thrown by the handler
+	 */
+	public static void decode(ByteBuffer in, Handler handler)
+			throws IOException {
+		try {
+			byte type = in.get();
+			switch (type) {
+			case CONTAINER:
+				String name = string(in);
+				byte[] raw = new byte[in.getInt()];
+				in.get(raw);
+				handler.container(name, InetAddress.getByAddress(raw),
+						attributes(in));
+				break;
+			case CREATE:
+				handler.create(string(in), string(in), attributes(in));
+				break;
+			case UPDATE:
+				String container = string(in);
+				String path = string(in);
+				byte[] value = bytes(in);
+				int contentFormat = in.getInt();
+				boolean initialized = in.get() != 0;
+				long lifetime = in.getLong();
+				long expiresAt = in.getLong();
+				handler.update(container, path, value, contentFormat,
+						initialized, lifetime, expiresAt);
+				break;
+			case DIRTY:
+				handler.dirty(string(in), string(in), in.get() != 0);
+				break;
+			case REMOVE:
+				handler.remove(string(in), string(in));
+				break;
+			case REMOVE_CONTAINER:
+				handler.removeContainer(string(in));
+				break;
+			case PENDING:
+				container = string(in);
+				path = string(in);
+				int count = in.getInt();
+				List<PendingWrites.Write> writes = new ArrayList<PendingWrites.Write>(
+						count);
+				for (int i = 0; i < count; i++) {
+					writes.add(new PendingWrites.Write(bytes(in), in.getInt()));
+				}
+				handler.pending(container, path, writes);
+				break;
+			default:
+				throw new IOException("unknown record type " + type);
+			}
+		} catch (RuntimeException e) {
+			// e.g. BufferUnderflowException
+			throw new IOException("malformed record", e);
+		}
+	}
+
+	private static String string(ByteBuffer in) {
+		byte[] bytes = bytes(in);
+		return (bytes == null) ? null
+				: new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static byte[] bytes(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return bytes;
+	}
+
+	private static SNResourceAttributes attributes(ByteBuffer in) {
+		SNResourceAttributes attributes = new SNResourceAttributes();
+		int count = in.getInt();
+		for (int i = 0; i < count; i++) {
+			String key = string(in);
+			int values = in.getInt();
+			for (int v = 0; v < values; v++) {
+				attributes.addAttribute(key, string(in));
+			}
+		}
+		return attributes;
+	}
+
+	/*
+	 * Big-endian encoder of a record, matching the decoding above
+	 */
+	private static class Encoder {
+		private final ByteArrayOutputStream bytes;
+		private final DataOutputStream out;
+
+		Encoder(byte type) {
+			bytes = new ByteArrayOutputStream(64);
+			out = new DataOutputStream(bytes);
+			try {
+				out.writeByte(type);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		void string(String s) {
+			if (s == null) {
+				number32(-1);
+				return;
+			}
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			bytes(b, b.length);
+		}
+
+		void bytes(byte[] b, int length) {
+			number32(length);
+			bytes.write(b, 0, length);
+		}
+
+		void bool(boolean b) {
+			bytes.write(b ? 1 : 0);
+		}
+
+		void number(long n) {
+			try {
+				out.writeLong(n);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		void number32(int n) {
+			try {
+				out.writeInt(n);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		void attributes(ResourceAttributes attributes) {
+			// counted and written from the same copy
+			List<Map.Entry<String, List<String>>> copy = TreeSnapshot
+					.copyAttributes(attributes);
+			number32(copy.size());
+			for (Map.Entry<String, List<String>> attribute : copy) {
+				string(attribute.getKey());
+				number32(attribute.getValue().size());
+				for (String value : attribute.getValue()) {
+					string(value);
+				}
+			}
+		}
+
+		byte[] toByteArray() {
+			return bytes.toByteArray();
+		}
+	}
+}
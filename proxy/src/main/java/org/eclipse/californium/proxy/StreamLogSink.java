@@ -0,0 +1,82 @@
+/******************************************************************************
+ * @title: Stream Log Sink
+ * 	Log sink writing on an output stream (console or file)
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * StreamLogSink writes the log events on an output stream, flushing it once
+ * per batch. It is used both for the console and for local log files.
+ */
+public class StreamLogSink implements LogSink {
+
+	private final Writer writer;
+	private final boolean closeStream;
+
+	/**
+	 * Instantiates a sink writing on the given stream, e.g. System.out. The
+	 * stream is not closed by the sink.
+	 *
+	 * @param stream
+	 *            the output stream
+	 */
+	public StreamLogSink(OutputStream stream) {
+		this(stream, false);
+	}
+
+	private StreamLogSink(OutputStream stream, boolean closeStream) {
+		this.writer = new BufferedWriter(
+				new OutputStreamWriter(stream, StandardCharsets.UTF_8), 65536);
+		this.closeStream = closeStream;
+	}
+
+	/**
+	 * Instantiates a sink appending to the given file.
+	 *
+	 * @param fileName
+	 *            the name of the log file
+	 * @return the sink
+	 * @throws IOException
+	 *             if the file cannot be opened
+	 */
+	public static StreamLogSink toFile(String fileName) throws IOException {
+		return new StreamLogSink(new FileOutputStream(fileName, true), true);
+	}
+
+	@Override
+	public void write(CharSequence batch) throws IOException {
+		writer.append(batch);
+		writer.flush();
+	}
+
+	@Override
+	public void close() {
+		try {
+			if (closeStream) {
+				writer.close();
+			} else {
+				writer.flush();
+			}
+		} catch (IOException e) {
+			// nothing else can be done
+		}
+	}
+}
@@ -0,0 +1,531 @@
+/******************************************************************************
+ * @title: Tree Snapshot
+ * 	Compact binary image of the /sp tree, and its bulk loader
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.server.resources.Resource;
+import org.eclipse.californium.core.server.resources.ResourceAttributes;
+
+/**
+ * TreeSnapshot writes the whole /sp tree as a compact binary image and loads
+ * it back, building the Californium resources directly.
+ * <p>
+ * The image follows the shape of the tree: every container is followed by its
+ * resources in pre-order, each one carrying only its own name, so paths are
+ * never repeated nor parsed. Numbers are variable-length, attribute keys and
+ * values are written once and then referenced by index, resource values are
+ * copied as raw bytes from the {@link ValueStore}, and expirations are
+ * stored as the lifetime left when the snapshot was taken. The whole image is
+ * checked by a single CRC32 at its end.
+ * <p>
+ * Since resources come in pre-order, the loader attaches every resource to a
+ * parent already in the tree and before its own children: each attach is a
+ * single map insertion, with no lookup of the path, no lock of the tree
+ * builder and no invalidation of the link-format cache, which is invalidated
+ * once per container at the end.
+ *
+ * <pre>
+ * snapshot  := MAGIC takenAt container* END crc
+ * container := CONTAINER name address attributes children
+ * children  := count node*
+ * node      := INNER name children
+ *            | INNER_VISIBLE name children
+ *            | DELEGATED name attributes flags [value] [format] [lifetime] [left]
+ *              children
+ * </pre>
+ */
+public class TreeSnapshot {
+
+	// Header of the snapshot files
+	static final int MAGIC = 0x53505332; // "SPS2"
+
+	// Markers of the containers
+	private static final byte END = 0;
+	private static final byte CONTAINER = 1;
+
+	// Kinds of node
+	private static final byte INNER = 0;
+	private static final byte INNER_VISIBLE = 1;
+	private static final byte DELEGATED = 2;
+
+	// Flags of a delegated resource
+	private static final int INITIALIZED = 1;
+	private static final int DIRTY = 2;
+	private static final int HAS_VALUE = 4;
+	private static final int HAS_LIFETIME = 8;
+	private static final int HAS_EXPIRATION = 16;
+	private static final int HAS_FORMAT = 32;
+
+	// References to strings: 0 is null, then literals, then the table
+	private static final int LITERAL_INTERNED = 1;
+	private static final int LITERAL = 2;
+	private static final int FIRST_REFERENCE = 3;
+
+	// Maximum number of interned strings, bounding the table of the loader
+	private static final int MAX_INTERNED = 65536;
+
+	private TreeSnapshot() {
+	}
+
+	/**
+	 * Writes the snapshot of the containers of the given proxy. Requests may
+	 * be handled meanwhile: the state of every delegated resource is read
+	 * under its lock, so each one is consistent, while the image as a whole
+	 * is not, and has to be completed by the log written after it.
+	 *
+	 * @param proxy
+	 *            the proxy
+	 * @param stream
+	 *            where the snapshot is written; it is not closed
+	 * @return the number of delegated resources written
+	 * @throws IOException
+	 *             if the snapshot cannot be written
+	 */
+	public static long write(Proxy proxy, OutputStream stream)
+			throws IOException {
+		Writer out = new Writer(stream);
+		out.int32(MAGIC);
+		long takenAt = System.currentTimeMillis();
+		out.number(takenAt);
+		for (ContainerResource c : proxy.getEPs().values()) {
+			out.put(CONTAINER);
+			out.string(c.getName());
+			byte[] raw = c.getSPIpAddress().getAddress();
+			out.number(raw.length);
+			out.put(raw, 0, raw.length);
+			out.attributes(c.getAttributes());
+			writeChildren(out, c, takenAt);
+		}
+		out.put(END);
+		out.finish();
+		return out.resources;
+	}
+
+	/*
+	 * Copies the attributes of a resource, which a registration may change
+	 * while they are written: the count written has to match the entries.
+	 * Taken under the monitor of the attributes, as they are changed.
+	 */
+	static List<Map.Entry<String, List<String>>> copyAttributes(
+			ResourceAttributes attributes) {
+		List<Map.Entry<String, List<String>>> copy;
+		copy = new ArrayList<Map.Entry<String, List<String>>>();
+		synchronized (attributes) {
+			for (String key : attributes.getAttributeKeySet()) {
+				List<String> values = attributes.getAttributeValues(key);
+				if (values != null) {
+					copy.add(new AbstractMap.SimpleImmutableEntry<>(key,
+							new ArrayList<String>(values)));
+				}
+			}
+		}
+		return copy;
+	}
+
+	private static void writeChildren(Writer out, Resource parent,
+			long takenAt) throws IOException {
+		List<ActiveCoapResource> children = new ArrayList<ActiveCoapResource>();
+		for (Resource child : parent.getChildren()) {
+			if (child instanceof ActiveCoapResource) {
+				children.add((ActiveCoapResource) child);
+			}
+		}
+		out.number(children.size());
+		for (ActiveCoapResource child : children) {
+			if (child instanceof DelegatedResource) {
+				writeDelegated(out, (DelegatedResource) child, takenAt);
+			} else {
+				out.put(child.isVisible() ? INNER_VISIBLE : INNER);
+				out.string(child.getName());
+			}
+			writeChildren(out, child, takenAt);
+		}
+	}
+
+	private static void writeDelegated(Writer out, DelegatedResource r,
+			long takenAt) throws IOException {
+		byte[] value;
+		int contentFormat;
+		boolean initialized;
+		long lifetime, expiresAt;
+		r.getLock().lock();
+		try {
+			if (r.isExpired()) {
+				// removed meanwhile: its children, if any, still need a parent
+				out.put(INNER);
+				out.string(r.getName());
+				return;
+			}
+			value = r.getValue();
+			contentFormat = r.getContentFormat();
+			initialized = r.isVisible();
+			lifetime = r.getLifetime();
+			expiresAt = r.getExpiresAt();
+		} finally {
+			r.getLock().unlock();
+		}
+
+		int flags = 0;
+		flags |= initialized ? INITIALIZED : 0;
+		flags |= r.isDirty() ? DIRTY : 0;
+		flags |= (value != null) ? HAS_VALUE : 0;
+		flags |= (lifetime >= 0) ? HAS_LIFETIME : 0;
+		flags |= (expiresAt >= 0) ? HAS_EXPIRATION : 0;
+		flags |= (contentFormat >= 0) ? HAS_FORMAT : 0;
+
+		out.put(DELEGATED);
+		out.string(r.getName());
+		out.attributes(r.getAttributes());
+		out.put((byte) flags);
+		if (value != null) {
+			// same encoding as a string, which the first images used
+			out.number(value.length + 1);
+			out.put(value, 0, value.length);
+		}
+		if (contentFormat >= 0) {
+			out.number(contentFormat);
+		}
+		if (lifetime >= 0) {
+			out.number(lifetime);
+		}
+		if (expiresAt >= 0) {
+			out.signed(expiresAt - takenAt);
+		}
+		out.resources++;
+	}
+
+	/**
+	 * Loads a snapshot into the given proxy, which must not have any
+	 * container yet. The image is verified before anything is built.
+	 *
+	 * @param proxy
+	 *            the proxy
+	 * @param in
+	 *            the whole snapshot, magic number included
+	 * @return the number of delegated resources loaded
+	 * @throws IOException
+	 *             if the snapshot is corrupted or malformed
+	 */
+	public static long load(Proxy proxy, ByteBuffer in) throws IOException {
+		if (in.remaining() < 8) {
+			throw new IOException("snapshot truncated");
+		}
+		ByteBuffer body = in.duplicate();
+		body.limit(in.limit() - 4);
+		CRC32 crc = new CRC32();
+		crc.update(body.duplicate());
+		if ((int) crc.getValue() != in.getInt(in.limit() - 4)) {
+			throw new IOException("snapshot corrupted");
+		}
+
+		try {
+			Reader reader = new Reader(body, proxy);
+			if (body.getInt() != MAGIC) {
+				throw new IOException("not a tree snapshot");
+			}
+			reader.load();
+			return reader.resources;
+		} catch (RuntimeException e) {
+			// e.g. BufferUnderflowException
+			throw new IOException("malformed snapshot", e);
+		}
+	}
+
+	/*
+	 * Builds the tree while decoding the image
+	 */
+	private static class Reader {
+		private final ByteBuffer in;
+		private final SPResource sp;
+		private final DiscoveryIndex discoveryIndex;
+		private final List<String> table = new ArrayList<String>();
+		private byte[] scratch = new byte[256];
+		private long takenAt;
+		long resources;
+
+		Reader(ByteBuffer in, Proxy proxy) {
+			this.in = in;
+			this.sp = (SPResource) proxy.getRoot().getChild("sp");
+			this.discoveryIndex = proxy.getDiscoveryIndex();
+		}
+
+		void load() throws IOException {
+			takenAt = number();
+			while (true) {
+				byte marker = in.get();
+				if (marker == END) {
+					return;
+				}
+				if (marker != CONTAINER) {
+					throw new IOException("unknown marker " + marker);
+				}
+				String name = string();
+				byte[] raw = new byte[(int) number()];
+				in.get(raw);
+				InetAddress address = InetAddress.getByAddress(raw);
+				ContainerResource c = sp.restoreContainer(name, attributes(),
+						address);
+				loadChildren(c, c);
+				c.getLinkFormatCache().invalidate();
+			}
+		}
+
+		private void loadChildren(ActiveCoapResource parent,
+				ContainerResource c) throws IOException {
+			long count = number();
+			for (long i = 0; i < count; i++) {
+				byte kind = in.get();
+				String name = string();
+				ActiveCoapResource node;
+				switch (kind) {
+				case INNER:
+				case INNER_VISIBLE:
+					node = new ActiveCoapResource(name, false,
+							kind == INNER_VISIBLE);
+					parent.add(node);
+					break;
+				case DELEGATED:
+					node = loadDelegated(name, parent, c);
+					break;
+				default:
+					throw new IOException("unknown node kind " + kind);
+				}
+				loadChildren(node, c);
+			}
+		}
+
+		private DelegatedResource loadDelegated(String name,
+				ActiveCoapResource parent, ContainerResource c) {
+			SNResourceAttributes attributes = attributes();
+			int flags = in.get();
+			byte[] value = ((flags & HAS_VALUE) != 0) ? bytes() : null;
+			int contentFormat = ((flags & HAS_FORMAT) != 0) ? (int) number()
+					: MediaTypeRegistry.UNDEFINED;
+			long lifetime = ((flags & HAS_LIFETIME) != 0) ? number() : -1;
+			long expiresAt = ((flags & HAS_EXPIRATION) != 0)
+					? takenAt + signed() : -1;
+			boolean initialized = (flags & INITIALIZED) != 0;
+
+			// created already visible, so that restoring it does not
+			// invalidate the link-format cache once per resource
+			DelegatedResource r = new DelegatedResource(name, initialized,
+					attributes, c);
+			if (initialized) {
+				r.setObservable(true);
+			}
+			parent.add(r);
+			r.restoreState(value, contentFormat, initialized, lifetime,
+					expiresAt);
+			if ((flags & DIRTY) != 0) {
+				r.setDirty(true);
+			}
+			discoveryIndex.add(r);
+			resources++;
+			return r;
+		}
+
+		private SNResourceAttributes attributes() {
+			SNResourceAttributes attributes = new SNResourceAttributes();
+			long count = number();
+			for (long i = 0; i < count; i++) {
+				String key = reference();
+				long values = number();
+				for (long v = 0; v < values; v++) {
+					attributes.addAttribute(key, reference());
+				}
+			}
+			return attributes;
+		}
+
+		private String reference() {
+			int ref = (int) number();
+			switch (ref) {
+			case 0:
+				return null;
+			case LITERAL_INTERNED:
+				String s = string();
+				table.add(s);
+				return s;
+			case LITERAL:
+				return string();
+			default:
+				return table.get(ref - FIRST_REFERENCE);
+			}
+		}
+
+		private String string() {
+			int length = (int) number() - 1;
+			if (length < 0) {
+				return null;
+			}
+			if (scratch.length < length) {
+				scratch = new byte[Math.max(length, 2 * scratch.length)];
+			}
+			in.get(scratch, 0, length);
+			return new String(scratch, 0, length, StandardCharsets.UTF_8);
+		}
+
+		private byte[] bytes() {
+			byte[] bytes = new byte[(int) number() - 1];
+			in.get(bytes);
+			return bytes;
+		}
+
+		private long number() {
+			long n = 0;
+			for (int shift = 0;; shift += 7) {
+				byte b = in.get();
+				n |= (long) (b & 0x7F) << shift;
+				if (b >= 0) {
+					return n;
+				}
+			}
+		}
+
+		private long signed() {
+			long n = number();
+			return (n >>> 1) ^ -(n & 1);
+		}
+	}
+
+	/*
+	 * Buffered encoder computing the CRC of what it writes
+	 */
+	private static class Writer {
+		private final OutputStream out;
+		private final byte[] buffer = new byte[65536];
+		private final CRC32 crc = new CRC32();
+		private final Map<String, Integer> table = new HashMap<String, Integer>();
+		private int position;
+		long resources;
+
+		Writer(OutputStream out) {
+			this.out = out;
+		}
+
+		void put(byte b) throws IOException {
+			if (position == buffer.length) {
+				drain();
+			}
+			buffer[position++] = b;
+		}
+
+		void put(byte[] b, int offset, int length) throws IOException {
+			if (length > buffer.length - position) {
+				drain();
+				if (length > buffer.length) {
+					crc.update(b, offset, length);
+					out.write(b, offset, length);
+					return;
+				}
+			}
+			System.arraycopy(b, offset, buffer, position, length);
+			position += length;
+		}
+
+		void int32(int n) throws IOException {
+			put((byte) (n >>> 24));
+			put((byte) (n >>> 16));
+			put((byte) (n >>> 8));
+			put((byte) n);
+		}
+
+		void number(long n) throws IOException {
+			while ((n & ~0x7FL) != 0) {
+				put((byte) ((n & 0x7F) | 0x80));
+				n >>>= 7;
+			}
+			put((byte) n);
+		}
+
+		void signed(long n) throws IOException {
+			number((n << 1) ^ (n >> 63));
+		}
+
+		void string(String s) throws IOException {
+			if (s == null) {
+				number(0);
+				return;
+			}
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			number(b.length + 1);
+			put(b, 0, b.length);
+		}
+
+		/*
+		 * Writes a string likely to repeat, e.g. an attribute
+		 */
+		void reference(String s) throws IOException {
+			if (s == null) {
+				number(0);
+				return;
+			}
+			Integer index = table.get(s);
+			if (index != null) {
+				number(FIRST_REFERENCE + index);
+			} else if (table.size() < MAX_INTERNED) {
+				table.put(s, table.size());
+				number(LITERAL_INTERNED);
+				string(s);
+			} else {
+				number(LITERAL);
+				string(s);
+			}
+		}
+
+		void attributes(ResourceAttributes attributes) throws IOException {
+			List<Map.Entry<String, List<String>>> copy = copyAttributes(
+					attributes);
+			number(copy.size());
+			for (Map.Entry<String, List<String>> attribute : copy) {
+				reference(attribute.getKey());
+				number(attribute.getValue().size());
+				for (String value : attribute.getValue()) {
+					reference(value);
+				}
+			}
+		}
+
+		/*
+		 * Writes what is buffered and the CRC of the whole image
+		 */
+		void finish() throws IOException {
+			drain();
+			int value = (int) crc.getValue();
+			out.write(new byte[] { (byte) (value >>> 24),
+					(byte) (value >>> 16), (byte) (value >>> 8),
+					(byte) value });
+			out.flush();
+		}
+
+		private void drain() throws IOException {
+			crc.update(buffer, 0, position);
+			out.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+}
@@ -1,20 +1,25 @@
 package org.eclipse.californium.proxy;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.eclipse.californium.core.coap.LinkFormat;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
 import org.eclipse.californium.core.server.resources.Resource;
+import org.eclipse.californium.core.server.resources.ResourceAttributes;
 
 /**
  * This class contains static methods useful for the proxy implementation.
  */
 public class Utilities {
 	/*
-	 * Private method called internally by checkChanges
+	 * Private method called internally by collectChanges when the resource
+	 * does not belong to any container, thus no dirty index is available.
 	 */
-	private static String recursiveCheckChanges(Resource root,
-			List<String> queries) {
-		StringBuilder buffer = new StringBuilder();
+	private static void recursiveCheckChanges(Resource root,
+			List<String> queries, List<ActiveCoapResource> changes) {
 		for (Resource child : root.getChildren()) {
 			// all the resource of the subtree must be ActiveCoapResource
 			ActiveCoapResource c = (ActiveCoapResource) child;
@@ -22,16 +27,36 @@ public class Utilities {
 			if (c.isVisible() && c.isDirty()
 					&& LinkFormat.matches(c, queries)) {
 				c.setDirty(false);
-				buffer.append("<").append(child.getPath())
-						.append(child.getName()).append(">").append(",");
+				changes.add(c);
 			}
-			buffer.append(recursiveCheckChanges(child, queries));
+			recursiveCheckChanges(child, queries, changes);
 		}
-		return buffer.toString();
+	}
+
+	/*
+	 * Lists the dirty resources and marks them as clean. If the root belongs
+	 * to a ContainerResource, the list is built from the dirty index of the
+	 * container, so that the cost is proportional to the number of dirty
+	 * resources rather than to the size of the tree.
+	 */
+	private static List<ActiveCoapResource> collectChanges(Resource root,
+			List<String> queries) {
+		List<ActiveCoapResource> changes = new ArrayList<ActiveCoapResource>();
+		ContainerResource container = null;
+		if (root instanceof ActiveCoapResource) {
+			container = ((ActiveCoapResource) root).getContainer();
+		}
+
+		if (container != null) {
+			container.getDirtyIndex().collect(root, queries, changes);
+		} else {
+			recursiveCheckChanges(root, queries, changes);
+		}
+		return changes;
 	}
 
 	/**
-	 * Build the String listing dirty resources.
+	 * Build the String listing dirty resources, in link-format.
 	 * 
 	 * @param root
 	 *            Starting point for the resource scan.
@@ -41,12 +66,131 @@ public class Utilities {
 	 * 			prefix the URI of the resource passed as argument.
 	 */
 	public static String checkChanges(Resource root, List<String> queries) {
-		String s = recursiveCheckChanges(root, queries);
-		if (s.length() != 0) {
-			// remove last comma
-			return s.substring(0, s.length() - 1);
-		} else {
+		List<ActiveCoapResource> changes = collectChanges(root, queries);
+		return changes.isEmpty() ? null : linkFormat(changes);
+	}
+
+	/**
+	 * Build the list of dirty resources in the given content-format:
+	 * link-format, a JSON or CBOR array of URIs, or a SenML pack holding the
+	 * current value of every resource, which saves the sleepy node a GET per
+	 * changed resource. For a resource with a queue of {@link PendingWrites},
+	 * the pack holds a record per pending write instead, in the order they
+	 * were written; the queue is emptied whatever the content-format, since
+	 * the other formats list URIs only. Must not be called holding the lock
+	 * of a delegated resource, since the listed ones are locked in turn.
+	 * 
+	 * @param root
+	 *            Starting point for the resource scan.
+	 * @param queries
+	 * 			  List of queries sent by the user in order to filtering results.
+	 * @param contentFormat
+	 *            a content-format accepted by {@link #isChangesFormat(int)}
+	 * @return the encoded list, null if no resource is dirty
+	 */
+	public static byte[] checkChanges(Resource root, List<String> queries,
+			int contentFormat) {
+		List<ActiveCoapResource> changes = collectChanges(root, queries);
+		if (changes.isEmpty()) {
 			return null;
 		}
+		if (!SenML.isSenML(contentFormat)) {
+			for (ActiveCoapResource c : changes) {
+				if (c instanceof DelegatedResource) {
+					// the node reads the latest value with a GET
+					((DelegatedResource) c).takePendingWrites();
+				}
+			}
+		}
+
+		switch (contentFormat) {
+		case MediaTypeRegistry.APPLICATION_LINK_FORMAT:
+			return linkFormat(changes).getBytes(StandardCharsets.UTF_8);
+		case MediaTypeRegistry.APPLICATION_JSON:
+		case MediaTypeRegistry.APPLICATION_CBOR:
+			List<Object> uris = new ArrayList<Object>(changes.size());
+			for (ActiveCoapResource c : changes) {
+				uris.add(c.getURI());
+			}
+			return (contentFormat == MediaTypeRegistry.APPLICATION_JSON)
+					? Json.encode(uris) : Cbor.encode(uris);
+		case SenML.APPLICATION_SENML_JSON:
+		case SenML.APPLICATION_SENML_CBOR:
+			List<SenML.Record> records = new ArrayList<SenML.Record>(
+					changes.size());
+			for (ActiveCoapResource c : changes) {
+				if (!(c instanceof DelegatedResource)) {
+					records.add(new SenML.Record(c.getURI(), null));
+					continue;
+				}
+				DelegatedResource d = (DelegatedResource) c;
+				List<PendingWrites.Write> writes = d.takePendingWrites();
+				if (writes.isEmpty()) {
+					writes = Collections.singletonList(d.currentValue());
+				}
+				for (PendingWrites.Write write : writes) {
+					records.add(PayloadCodec.toRecord(c.getURI(), write.value,
+							write.contentFormat));
+				}
+			}
+			return SenML.encode(records, contentFormat);
+		default:
+			throw new IllegalArgumentException(
+					"unsupported content-format " + contentFormat);
+		}
+	}
+
+	/**
+	 * Returns true for the content-formats of the lists of dirty resources.
+	 */
+	public static boolean isChangesFormat(int contentFormat) {
+		switch (contentFormat) {
+		case MediaTypeRegistry.APPLICATION_LINK_FORMAT:
+		case MediaTypeRegistry.APPLICATION_JSON:
+		case MediaTypeRegistry.APPLICATION_CBOR:
+		case SenML.APPLICATION_SENML_JSON:
+		case SenML.APPLICATION_SENML_CBOR:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private static String linkFormat(List<ActiveCoapResource> changes) {
+		StringBuilder buffer = new StringBuilder();
+		for (ActiveCoapResource c : changes) {
+			if (buffer.length() != 0) {
+				buffer.append(",");
+			}
+			buffer.append("<").append(c.getPath()).append(c.getName())
+					.append(">");
+		}
+		return buffer.toString();
+	}
+
+	/**
+	 * Appends to the buffer the link of the given resource, followed by its
+	 * attributes, in link-format.
+	 * 
+	 * @param resource
+	 *            the resource to be described
+	 * @param buffer
+	 *            the buffer where the link is appended
+	 */
+	public static void appendLink(Resource resource, StringBuilder buffer) {
+		buffer.append("<").append(resource.getPath())
+				.append(resource.getName()).append(">");
+		ResourceAttributes attributes = resource.getAttributes();
+		for (String key : attributes.getAttributeKeySet()) {
+			for (String value : attributes.getAttributeValues(key)) {
+				buffer.append(";").append(key);
+				if (value != null && !value.isEmpty()) {
+					buffer.append("=\"").append(value).append("\"");
+				}
+			}
+		}
+		if (resource.isObservable()) {
+			buffer.append(";").append(LinkFormat.OBSERVABLE);
+		}
 	}
 }
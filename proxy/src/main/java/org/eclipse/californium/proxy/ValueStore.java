@@ -0,0 +1,241 @@
+/******************************************************************************
+ * @title: Value Store
+ * 	Off-heap slab store of the values of the delegated resources
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+
+/**
+ * ValueStore keeps the values of the delegated resources off the heap, as
+ * the raw bytes received with the PUT requests, together with their
+ * content-format. Values are neither decoded nor encoded: a GET copies the
+ * stored bytes into the payload of the response.
+ * <p>
+ * Memory is organized in slabs of 1 MiB, allocated as direct buffers and
+ * split in slots of a single size class, from 16 bytes to 64 KiB in powers
+ * of two. Every slot holds the length and the content-format of its value,
+ * followed by the value itself. A value is identified by a handle, which
+ * stays the same as long as the new values fit the same size class; freed
+ * slots are reused by the following allocations of their class, while slabs
+ * are never given back.
+ * <p>
+ * Allocations and releases synchronize on the size class. The contents of a
+ * slot are not synchronized: every handle belongs to a single resource,
+ * which accesses it holding its own lock.
+ */
+public class ValueStore {
+
+	// Handle of no value
+	public static final long NONE = -1;
+
+	// Length and content-format in front of every value
+	private static final int HEADER = 6;
+
+	// Size of the smallest and of the largest slot, as powers of two
+	private static final int MIN_SHIFT = 4;
+	private static final int MAX_SHIFT = 16;
+
+	// Size of a slab, as a power of two
+	private static final int SLAB_SHIFT = 20;
+
+	// Largest value that can be stored
+	public static final int MAX_VALUE_SIZE = (1 << MAX_SHIFT) - HEADER;
+
+	private final SizeClass[] classes;
+
+	/**
+	 * Instantiates an empty store; slabs are allocated when needed.
+	 */
+	public ValueStore() {
+		classes = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+		for (int i = 0; i < classes.length; i++) {
+			classes[i] = new SizeClass(MIN_SHIFT + i);
+		}
+	}
+
+	/**
+	 * Stores a value, replacing the one of the given handle.
+	 *
+	 * @param handle
+	 *            the handle of the value being replaced, or {@link #NONE}
+	 * @param value
+	 *            the bytes of the new value, at most {@link #MAX_VALUE_SIZE}
+	 * @param contentFormat
+	 *            the content-format of the new value, or
+	 *            MediaTypeRegistry.UNDEFINED
+	 * @return the handle of the new value, possibly the same as before
+	 */
+	public long put(long handle, byte[] value, int contentFormat) {
+		if (value.length > MAX_VALUE_SIZE) {
+			throw new IllegalArgumentException(
+					"value too large: " + value.length);
+		}
+		int c = sizeClassOf(value.length + HEADER);
+		if (handle != NONE && classOf(handle) != c) {
+			free(handle);
+			handle = NONE;
+		}
+		if (handle == NONE) {
+			handle = ((long) c << 32) | classes[c].allocate();
+		}
+
+		ByteBuffer slot = slot(handle);
+		slot.putInt(value.length);
+		slot.putShort((short) contentFormat);
+		slot.put(value);
+		return handle;
+	}
+
+	/**
+	 * Returns a copy of the bytes of a value, null for {@link #NONE}.
+	 */
+	public byte[] get(long handle) {
+		if (handle == NONE) {
+			return null;
+		}
+		ByteBuffer slot = slot(handle);
+		byte[] value = new byte[slot.getInt()];
+		slot.getShort();
+		slot.get(value);
+		return value;
+	}
+
+	/**
+	 * Returns the content-format of a value, MediaTypeRegistry.UNDEFINED if
+	 * not known or for {@link #NONE}.
+	 */
+	public int getContentFormat(long handle) {
+		if (handle == NONE) {
+			return MediaTypeRegistry.UNDEFINED;
+		}
+		ByteBuffer slot = slot(handle);
+		char format = slot.getChar(slot.position() + 4);
+		return (format == 0xFFFF) ? MediaTypeRegistry.UNDEFINED : format;
+	}
+
+	/**
+	 * Frees the slot of a value. The handle must not be used anymore.
+	 */
+	public void free(long handle) {
+		if (handle != NONE) {
+			classes[classOf(handle)].release((int) handle);
+		}
+	}
+
+	/**
+	 * Returns the bytes of the slabs allocated so far.
+	 */
+	public long getAllocatedBytes() {
+		long bytes = 0;
+		for (SizeClass c : classes) {
+			bytes += (long) c.getSlabCount() << SLAB_SHIFT;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns the bytes of the slots currently in use.
+	 */
+	public long getUsedBytes() {
+		long bytes = 0;
+		for (SizeClass c : classes) {
+			bytes += (long) c.getUsedCount() << c.shift;
+		}
+		return bytes;
+	}
+
+	/*
+	 * Smallest size class holding the given number of bytes
+	 */
+	private static int sizeClassOf(int bytes) {
+		int shift = 32 - Integer.numberOfLeadingZeros(bytes - 1);
+		return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+	}
+
+	private static int classOf(long handle) {
+		return (int) (handle >>> 32);
+	}
+
+	/*
+	 * View of the slot of a handle, positioned at its start and limited to
+	 * its end
+	 */
+	private ByteBuffer slot(long handle) {
+		SizeClass c = classes[classOf(handle)];
+		int index = (int) handle;
+		ByteBuffer slot = c.slabOf(index).duplicate();
+		int offset = (index & (c.slotsPerSlab - 1)) << c.shift;
+		slot.limit(offset + (1 << c.shift));
+		slot.position(offset);
+		return slot;
+	}
+
+	/*
+	 * Slabs of the slots of a given size
+	 */
+	private static class SizeClass {
+		final int shift;
+		final int slotsPerSlab;
+
+		// replaced on growth, so that it can be read without locking
+		private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+
+		// The fields below are guarded by the monitor
+		private int[] free = new int[16];
+		private int freeCount;
+		private int next;
+		private int used;
+
+		SizeClass(int shift) {
+			this.shift = shift;
+			this.slotsPerSlab = 1 << (SLAB_SHIFT - shift);
+		}
+
+		synchronized int allocate() {
+			used++;
+			if (freeCount > 0) {
+				return free[--freeCount];
+			}
+			if (next == slabs.length * slotsPerSlab) {
+				ByteBuffer[] grown = Arrays.copyOf(slabs, slabs.length + 1);
+				grown[slabs.length] = ByteBuffer.allocateDirect(1 << SLAB_SHIFT);
+				slabs = grown;
+			}
+			return next++;
+		}
+
+		synchronized void release(int index) {
+			used--;
+			if (freeCount == free.length) {
+				free = Arrays.copyOf(free, 2 * free.length);
+			}
+			free[freeCount++] = index;
+		}
+
+		ByteBuffer slabOf(int index) {
+			return slabs[index >>> (SLAB_SHIFT - shift)];
+		}
+
+		int getSlabCount() {
+			return slabs.length;
+		}
+
+		synchronized int getUsedCount() {
+			return used;
+		}
+	}
+}
@@ -0,0 +1,417 @@
+/******************************************************************************
+ * @title: Write-Ahead Log
+ * 	Append-only, memory-mapped log with group commit
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * WriteAheadLog is an append-only log of records, split in segments of fixed
+ * size. Each segment is a file mapped in memory, thus appending a record only
+ * copies it into the mapping, holding the log monitor for a few hundreds of
+ * nanoseconds.
+ * <p>
+ * Records are made durable by a flusher thread, which forces the mapping to
+ * disk at most every commit interval: all the records appended in the
+ * meanwhile are committed by the same force (group commit), so no request
+ * ever pays for a synchronous write of its own. Who needs to know its record
+ * is on disk calls {@link #awaitDurable(long)} with the position returned by
+ * {@link #append(byte[])}.
+ * <p>
+ * Every record is framed by its length and its CRC32: a torn write at the end
+ * of the last segment, e.g. after a crash, is detected and ignored when the
+ * log is read.
+ */
+public class WriteAheadLog {
+
+	private static final ProxyLogger LOGGER = ProxyLogger
+			.getLogger(WriteAheadLog.class);
+
+	// Default size of a segment
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	// Length and CRC of every record
+	static final int FRAME_HEADER = 8;
+
+	/**
+	 * Receives the records read from a log or from a snapshot.
+	 */
+	public interface RecordHandler {
+		void handle(ByteBuffer record) throws IOException;
+	}
+
+	private final File directory;
+	private final int segmentSize;
+	private final long commitIntervalMillis;
+
+	// The fields below are guarded by the log monitor
+	private long segment;
+	private RandomAccessFile file;
+	private MappedByteBuffer buffer;
+	// bytes appended, and bytes known to be on disk, since the log opened
+	private long written;
+	private long durable;
+	private boolean closed;
+	// set while the flusher waits for a record to force
+	private boolean flusherIdle;
+
+	private Thread flusher;
+
+	/**
+	 * Opens a log in the given directory, starting a new segment with the
+	 * given number.
+	 *
+	 * @param directory
+	 *            the directory of the segments
+	 * @param firstSegment
+	 *            the number of the first segment written by this log
+	 * @param segmentSize
+	 *            the size of a segment, i.e. of its file
+	 * @param commitIntervalMillis
+	 *            the maximum time a record waits before being forced to disk
+	 * @throws IOException
+	 *             if the segment cannot be created
+	 */
+	public WriteAheadLog(File directory, long firstSegment, int segmentSize,
+			long commitIntervalMillis) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.commitIntervalMillis = commitIntervalMillis;
+
+		synchronized (this) {
+			openSegment(firstSegment);
+		}
+		flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, "WriteAheadLog");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Appends a record. It does not wait for the record to be durable.
+	 *
+	 * @param record
+	 *            the record
+	 * @return the position following the record, to be passed to
+	 *         {@link #awaitDurable(long)}
+	 * @throws IOException
+	 *             if the log is closed or a new segment cannot be created
+	 */
+	public synchronized long append(byte[] record) throws IOException {
+		if (closed) {
+			throw new IOException("log closed");
+		}
+		int size = FRAME_HEADER + record.length;
+		if (size > segmentSize) {
+			throw new IOException("record too large: " + record.length);
+		}
+		if (buffer.remaining() < size) {
+			rollSegment();
+		}
+		buffer.putInt(record.length);
+		buffer.putInt(crcOf(record, 0, record.length));
+		buffer.put(record);
+		written += size;
+		if (flusherIdle) {
+			// only the first record after a force wakes the flusher up
+			flusherIdle = false;
+			notifyAll();
+		}
+		return written;
+	}
+
+	/**
+	 * Waits until every record appended up to the given position is on disk.
+	 *
+	 * @param position
+	 *            a position returned by {@link #append(byte[])}
+	 * @throws InterruptedIOException
+	 *             if interrupted while waiting
+	 */
+	public synchronized void awaitDurable(long position)
+			throws InterruptedIOException {
+		while (durable < position && !closed) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+	}
+
+	/**
+	 * Returns the position following the last appended record.
+	 */
+	public synchronized long getPosition() {
+		return written;
+	}
+
+	/**
+	 * Returns the number of appended bytes not yet on disk.
+	 */
+	public synchronized long getPendingBytes() {
+		return written - durable;
+	}
+
+	/**
+	 * Closes the current segment, forcing it to disk, and starts a new one.
+	 *
+	 * @return the number of the new segment: every record appended from now
+	 *         on belongs to it or to a following one
+	 * @throws IOException
+	 *             if the new segment cannot be created
+	 */
+	public synchronized long roll() throws IOException {
+		rollSegment();
+		return segment;
+	}
+
+	/**
+	 * Forces every appended record to disk and closes the log.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			buffer.force();
+			durable = written;
+			closeFile();
+			notifyAll();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the numbers of the segments found in the given directory, in
+	 * increasing order.
+	 */
+	public static List<Long> segments(File directory) {
+		List<Long> numbers = new ArrayList<Long>();
+		String[] names = directory.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith("wal-") && name.endsWith(".log")) {
+					try {
+						numbers.add(Long.parseLong(
+								name.substring(4, name.length() - 4)));
+					} catch (NumberFormatException e) {
+						// not a segment
+					}
+				}
+			}
+		}
+		Collections.sort(numbers);
+		return numbers;
+	}
+
+	/**
+	 * Returns the file of the given segment.
+	 */
+	public static File segmentFile(File directory, long segment) {
+		return new File(directory, String.format("wal-%016d.log", segment));
+	}
+
+	/**
+	 * Reads the records of a segment, stopping at its end or at the first
+	 * torn or corrupted record.
+	 *
+	 * @param file
+	 *            the segment
+	 * @param handler
+	 *            the handler of the records
+	 * @return the number of records read
+	 * @throws IOException
+	 *             if the file cannot be read, or thrown by the handler
+	 */
+	public static long read(File file, RecordHandler handler)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+			return readFrames(mapped, handler, file.getName());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/*
+	 * Reads the frames from the current position of the buffer
+	 */
+	private static long readFrames(ByteBuffer in, RecordHandler handler,
+			String source) throws IOException {
+		long count = 0;
+		while (in.remaining() >= FRAME_HEADER) {
+			int length = in.getInt();
+			if (length == 0) {
+				// end of the written part
+				break;
+			}
+			int crc = in.getInt();
+			if (length < 0 || length > in.remaining()) {
+				LOGGER.warn("[read]: {} truncated after {} records", source,
+						count);
+				break;
+			}
+			ByteBuffer record = in.slice();
+			record.limit(length);
+			if (crcOf(record) != crc) {
+				LOGGER.warn("[read]: {} corrupted after {} records", source,
+						count);
+				break;
+			}
+			in.position(in.position() + length);
+			handler.handle(record);
+			count++;
+		}
+		return count;
+	}
+
+	/*
+	 * Writes a record with the same framing used by the log
+	 */
+	static void writeFrame(DataOutputStream out, byte[] record)
+			throws IOException {
+		out.writeInt(record.length);
+		out.writeInt(crcOf(record, 0, record.length));
+		out.write(record);
+	}
+
+	static int crcOf(byte[] data, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(data, offset, length);
+		return (int) crc.getValue();
+	}
+
+	private static int crcOf(ByteBuffer data) {
+		CRC32 crc = new CRC32();
+		crc.update(data.duplicate());
+		return (int) crc.getValue();
+	}
+
+	/*
+	 * Called holding the monitor
+	 */
+	private void rollSegment() throws IOException {
+		// a zero length, if there is room for it, marks the end
+		if (buffer.remaining() >= 4) {
+			buffer.putInt(0);
+		}
+		buffer.force();
+		durable = written;
+		closeFile();
+		openSegment(segment + 1);
+		notifyAll();
+	}
+
+	private void openSegment(long number) throws IOException {
+		File f = segmentFile(directory, number);
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.setLength(segmentSize);
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					segmentSize);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+		file = raf;
+		segment = number;
+		LOGGER.debug("[open]: segment {}", f);
+	}
+
+	private void closeFile() {
+		try {
+			file.close();
+		} catch (IOException e) {
+			LOGGER.warn("[close]: segment {}: {}", segment, e);
+		}
+	}
+
+	/*
+	 * Body of the flusher thread: waits for new records, lets the records of
+	 * a commit interval accumulate, then forces them all at once.
+	 */
+	private void flush() {
+		while (true) {
+			MappedByteBuffer toForce;
+			long target;
+			synchronized (this) {
+				while (!closed && written == durable) {
+					flusherIdle = true;
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// only closing stops the flusher
+					}
+				}
+				flusherIdle = false;
+				if (closed) {
+					return;
+				}
+			}
+
+			if (commitIntervalMillis > 0) {
+				try {
+					Thread.sleep(commitIntervalMillis);
+				} catch (InterruptedException e) {
+					// commit earlier
+				}
+			}
+
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				toForce = buffer;
+				target = written;
+			}
+			/*
+			 * Forcing outside the monitor, appends go on in the meanwhile. A
+			 * concurrent roll forces the previous segment itself, so the
+			 * buffer still covers every record up to the target.
+			 */
+			toForce.force();
+			synchronized (this) {
+				if (target > durable) {
+					durable = target;
+				}
+				notifyAll();
+			}
+		}
+	}
+}
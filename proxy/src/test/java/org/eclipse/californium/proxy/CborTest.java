@@ -0,0 +1,121 @@
+/******************************************************************************
+ * @title: CBOR Test
+ * 	Tests of the CBOR decoder on malformed and nested items
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class CborTest {
+
+	private static byte[] bytes(int... values) {
+		byte[] bytes = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			bytes[i] = (byte) values[i];
+		}
+		return bytes;
+	}
+
+	/*
+	 * Checks that the data is refused with an IllegalArgumentException, the
+	 * only exception the handlers of the payloads catch
+	 */
+	private static void assertMalformed(byte[] data) {
+		try {
+			Cbor.decode(data);
+			fail("decoded " + Arrays.toString(data));
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void roundTrip() {
+		Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+		map.put(-2L, "/s/");
+		map.put(2L, 21.5);
+		map.put("big", 1L << 40);
+		map.put("neg", -500L);
+		map.put("list", Arrays.<Object> asList(true, false, null, "\u00e9"));
+		byte[] data = Cbor.encode(map);
+
+		assertEquals(map, Cbor.decode(data));
+		assertArrayEquals(bytes(1, 2),
+				(byte[]) Cbor.decode(Cbor.encode(bytes(1, 2))));
+	}
+
+	@Test
+	public void truncatedItems() {
+		byte[] data = Cbor.encode(Arrays.<Object> asList("text", 1L << 40));
+		for (int length = 0; length < data.length; length++) {
+			assertMalformed(Arrays.copyOf(data, length));
+		}
+		// a byte string announcing more bytes than left
+		assertMalformed(bytes(0x45, 1, 2));
+		// a map missing the value of its key
+		assertMalformed(bytes(0xA1, 0x01));
+	}
+
+	@Test
+	public void negativeLengths() {
+		// 8-byte arguments with the top bit set, negative as a long
+		for (int major : new int[] { 2, 3, 4, 5 }) {
+			assertMalformed(bytes(major << 5 | 27, 0xFF, 0xFF, 0xFF, 0xFF,
+					0xFF, 0xFF, 0xFF, 0xFF));
+			assertMalformed(bytes(major << 5 | 27, 0x80, 0, 0, 0, 0, 0, 0,
+					4, 1, 2, 3, 4));
+		}
+		// an integer beyond the range of a long
+		assertMalformed(bytes(0x1B, 0x80, 0, 0, 0, 0, 0, 0, 0));
+	}
+
+	@Test
+	public void indefiniteContainers() {
+		// [_ 1, [2, 3], {_ "a": 4}]
+		List<?> list = (List<?>) Cbor.decode(bytes(0x9F, 0x01, 0x82, 0x02,
+				0x03, 0xBF, 0x61, 'a', 0x04, 0xFF, 0xFF));
+		assertEquals(3, list.size());
+		assertEquals(1L, list.get(0));
+		assertEquals(Arrays.asList(2L, 3L), list.get(1));
+		assertEquals(4L, ((Map<?, ?>) list.get(2)).get("a"));
+
+		// unclosed, a break out of a container, indefinite strings
+		assertMalformed(bytes(0x9F, 0x01));
+		assertMalformed(bytes(0xFF));
+		assertMalformed(bytes(0x82, 0x01, 0xFF));
+		assertMalformed(bytes(0x5F, 0x41, 0x00, 0xFF));
+	}
+
+	@Test
+	public void nestedItems() {
+		// tags are skipped
+		assertEquals(1L, Cbor.decode(bytes(0xC1, 0x01)));
+		assertNull(Cbor.decode(bytes(0xF6)));
+
+		byte[] deep = new byte[40];
+		Arrays.fill(deep, (byte) 0x81);
+		deep[deep.length - 1] = 0x01;
+		assertMalformed(deep);
+		assertMalformed(bytes(0x01, 0x02));
+	}
+}
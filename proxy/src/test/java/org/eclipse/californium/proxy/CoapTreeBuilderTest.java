@@ -0,0 +1,312 @@
+/******************************************************************************
+ * @title: CoapTreeBuilder Test
+ * 	Tests of the trees built by add() and remove(), also concurrently
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.californium.core.server.resources.Resource;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the trees built with the striped locks are the ones the
+ * builder made when add() and remove() were serialized on its monitor: the
+ * intermediate resources, the replacement of a resource keeping its
+ * children, the pruning of the inactive parents, and the same tree when the
+ * changes are made concurrently, below one segment or across many.
+ */
+public class CoapTreeBuilderTest {
+
+	private ActiveCoapResource root;
+	private CoapTreeBuilder builder;
+
+	@Before
+	public void setUp() {
+		root = new ActiveCoapResource("root", true);
+		builder = new CoapTreeBuilder(root, VisibilityPolicy.ALL_INVISIBLE);
+	}
+
+	private static ActiveCoapResource active() {
+		return new ActiveCoapResource("unnamed", true);
+	}
+
+	/*
+	 * Returns the resource at the given path below the root, null if none
+	 */
+	private Resource find(String path) {
+		Resource current = root;
+		for (String name : path.substring(1).split("/")) {
+			current = current.getChild(name);
+			if (current == null) {
+				return null;
+			}
+		}
+		return current;
+	}
+
+	private static void assertInternal(Resource resource, boolean visible) {
+		assertTrue(resource instanceof ActiveCoapResource);
+		assertFalse(((ActiveCoapResource) resource).isActive());
+		assertEquals(visible, resource.isVisible());
+	}
+
+	@Test
+	public void rejectsInvalidPaths() {
+		assertFalse(builder.add(active(), null));
+		assertFalse(builder.add(active(), ""));
+		assertFalse(builder.add(active(), "/"));
+		assertFalse(builder.add(active(), "a//"));
+		assertTrue(root.getChildren().isEmpty());
+	}
+
+	@Test
+	public void deepAddUnderInvisibleParents() {
+		ActiveCoapResource leaf = active();
+		assertTrue(builder.add(leaf, "/a/b/c"));
+
+		assertEquals("c", leaf.getName());
+		assertSame(leaf, find("/a/b/c"));
+		assertInternal(find("/a"), false);
+		assertInternal(find("/a/b"), false);
+		assertSame(find("/a/b"), leaf.getParent());
+
+		// traversed parents become visible with the ALL_VISIBLE policy only
+		ActiveCoapResource sibling = active();
+		builder.add(sibling, "/a/b/d", VisibilityPolicy.ALL_VISIBLE);
+		assertSame(sibling, find("/a/b/d"));
+		assertInternal(find("/a"), true);
+		assertInternal(find("/a/b"), true);
+		builder.add(active(), "/a/e/f");
+		assertInternal(find("/a/e"), false);
+	}
+
+	@Test
+	public void replaceMovesTheChildren() {
+		ActiveCoapResource c = active();
+		ActiveCoapResource d = active();
+		builder.add(c, "/a/b/c");
+		builder.add(d, "/a/b/d");
+		Resource internal = find("/a/b");
+
+		// an active resource replaces the internal one, keeping its children
+		ActiveCoapResource b = active();
+		builder.add(b, "/a/b");
+		assertSame(b, find("/a/b"));
+		assertNull(internal.getParent());
+		assertEquals(2, b.getChildren().size());
+		assertSame(b, c.getParent());
+		assertSame(b, d.getParent());
+		assertSame(c, find("/a/b/c"));
+
+		// as does a new registration of the same path
+		ActiveCoapResource again = active();
+		builder.add(again, "/a/b");
+		assertSame(again, find("/a/b"));
+		assertNull(b.getParent());
+		assertSame(again, c.getParent());
+		assertSame(again, d.getParent());
+	}
+
+	@Test
+	public void removePrunesInactiveParents() {
+		ActiveCoapResource c = active();
+		ActiveCoapResource d = active();
+		builder.add(c, "/a/b/c");
+		builder.add(d, "/a/d");
+
+		// b has no other child and is pruned, a still holds d
+		builder.remove(c);
+		assertNull(c.getParent());
+		assertNull(find("/a/b"));
+		assertInternal(find("/a"), false);
+
+		builder.remove(d);
+		assertNull(find("/a"));
+		assertTrue(root.getChildren().isEmpty());
+
+		// removing twice, or a resource out of the tree, does nothing
+		builder.remove(d);
+		builder.remove(active());
+		assertTrue(root.getChildren().isEmpty());
+	}
+
+	@Test
+	public void removeKeepsTheChildrenOfAnActiveResource() {
+		ActiveCoapResource a = active();
+		ActiveCoapResource b = active();
+		builder.add(a, "/a");
+		builder.add(b, "/a/b");
+
+		// a is replaced by an internal resource holding b
+		builder.remove(a);
+		Resource internal = find("/a");
+		assertNotNull(internal);
+		assertInternal(internal, false);
+		assertSame(internal, b.getParent());
+		assertSame(b, find("/a/b"));
+
+		// once b is removed nothing is left
+		builder.remove(b);
+		assertTrue(root.getChildren().isEmpty());
+	}
+
+	@Test
+	public void concurrentAddAndRemoveUnderOneSegment() throws Exception {
+		final int threads = 8;
+		final int resources = 2000;
+		final ActiveCoapResource[][] leaves =
+				new ActiveCoapResource[threads][resources];
+		for (int t = 0; t < threads; t++) {
+			for (int i = 0; i < resources; i++) {
+				leaves[t][i] = active();
+			}
+		}
+
+		/*
+		 * Every thread works below /t, thus on the same stripe, adding its
+		 * own resources and removing the odd ones: some in a subtree of its
+		 * own, some in a subtree shared with the others and pruned as soon
+		 * as it is empty
+		 */
+		run(threads, t -> {
+			for (int i = 0; i < resources; i++) {
+				String path = (i % 4 < 2) ? "/t/own" + t + "/r" + i
+						: "/t/shared/g" + t + "r" + i;
+				assertTrue(builder.add(leaves[t][i], path));
+				if (i % 2 == 1) {
+					builder.remove(leaves[t][i]);
+				}
+			}
+		});
+
+		// the tree a sequential run would have built
+		Resource shared = find("/t/shared");
+		assertInternal(shared, false);
+		assertEquals(threads * resources / 4, shared.getChildren().size());
+		for (int t = 0; t < threads; t++) {
+			assertEquals(resources / 4, find("/t/own" + t).getChildren()
+					.size());
+			for (int i = 0; i < resources; i++) {
+				String path = (i % 4 < 2) ? "/t/own" + t + "/r" + i
+						: "/t/shared/g" + t + "r" + i;
+				if (i % 2 == 0) {
+					assertSame(leaves[t][i], find(path));
+				} else {
+					assertNull(find(path));
+					assertNull(leaves[t][i].getParent());
+				}
+			}
+		}
+
+		// removing the rest concurrently leaves no internal resource behind
+		run(threads, t -> {
+			for (int i = 0; i < resources; i += 2) {
+				builder.remove(leaves[t][i]);
+			}
+		});
+		assertTrue(root.getChildren().isEmpty());
+	}
+
+	@Test
+	public void concurrentAddAndRemoveAcrossSegments() throws Exception {
+		final int threads = 8;
+		final int resources = 2000;
+		final int segments = 64;
+		final ActiveCoapResource[][] leaves =
+				new ActiveCoapResource[threads][resources];
+		for (int t = 0; t < threads; t++) {
+			for (int i = 0; i < resources; i++) {
+				leaves[t][i] = active();
+			}
+		}
+
+		/*
+		 * Every thread goes through many top-level segments, thus through
+		 * every stripe, all of them adding and pruning the children of the
+		 * root: the even resources are kept below /s<k>, the odd ones are
+		 * removed at once from /p<k>, which is pruned whenever it is empty
+		 */
+		run(threads, t -> {
+			for (int i = 0; i < resources; i++) {
+				assertTrue(builder.add(leaves[t][i],
+						segmentPath(t, i, segments)));
+				if (i % 2 == 1) {
+					builder.remove(leaves[t][i]);
+				}
+			}
+		});
+
+		assertEquals(segments, root.getChildren().size());
+		for (int k = 0; k < segments; k++) {
+			assertInternal(find("/s" + k), false);
+			assertNull(find("/p" + k));
+		}
+		for (int t = 0; t < threads; t++) {
+			for (int i = 0; i < resources; i++) {
+				if (i % 2 == 0) {
+					assertSame(leaves[t][i],
+							find(segmentPath(t, i, segments)));
+				} else {
+					assertNull(leaves[t][i].getParent());
+				}
+			}
+		}
+
+		// removing the rest concurrently prunes every segment
+		run(threads, t -> {
+			for (int i = 0; i < resources; i += 2) {
+				builder.remove(leaves[t][i]);
+			}
+		});
+		assertTrue(root.getChildren().isEmpty());
+	}
+
+	/*
+	 * The path of the i-th resource of a thread: /s<k> if kept, /p<k> if
+	 * removed, the segment k changing with every resource
+	 */
+	private static String segmentPath(int thread, int i, int segments) {
+		int k = (i + thread) % segments;
+		return ((i % 2 == 0) ? "/s" : "/p") + k + "/g" + thread + "r" + i;
+	}
+
+	private interface Work {
+		void run(int thread);
+	}
+
+	private static void run(int threads, final Work work) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		Future<?>[] futures = new Future<?>[threads];
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			futures[t] = pool.submit(() -> work.run(thread));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,89 @@
+/******************************************************************************
+ * @title: JSON Test
+ * 	Tests of the JSON decoder on malformed and nested texts
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class JsonTest {
+
+	private static Object decode(String text) {
+		return Json.decode(text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void assertMalformed(String text) {
+		try {
+			decode(text);
+			fail("decoded " + text);
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void nestedValues() {
+		Map<?, ?> map = (Map<?, ?>) decode(
+				" {\"a\": [1, -2.5e1, true, null],"
+						+ " \"b\": {\"c\": \"\\u00e9\\n\"}} ");
+		assertEquals(Arrays.<Object> asList(1L, -25.0, true, null),
+				map.get("a"));
+		assertEquals("\u00e9\n", ((Map<?, ?>) map.get("b")).get("c"));
+		assertEquals(Arrays.asList("a", "b"),
+				Arrays.asList(map.keySet().toArray()));
+		assertNull(decode("null"));
+		// too large for a long
+		assertEquals(1e20, decode("100000000000000000000"));
+
+		// byte strings become base64url strings
+		List<?> list = (List<?>) Json.decode(Json.encode(Arrays
+				.<Object> asList(new byte[] { 0, (byte) 0xFF }, "q\"")));
+		assertEquals(Arrays.asList("AP8", "q\""), list);
+	}
+
+	@Test
+	public void truncatedTexts() {
+		String text = "{\"a\":[1,\"xy\",{\"b\":true}]}";
+		for (int length = 0; length < text.length(); length++) {
+			assertMalformed(text.substring(0, length));
+		}
+		assertMalformed("\"\\u00\"");
+		assertMalformed("tru");
+	}
+
+	@Test
+	public void malformedTexts() {
+		assertMalformed("{a:1}");
+		assertMalformed("[1,]");
+		assertMalformed("[1 2]");
+		assertMalformed("\"\\x\"");
+		assertMalformed("\"a\u0001\"");
+		assertMalformed("1-");
+		assertMalformed("[1] 2");
+
+		StringBuilder deep = new StringBuilder();
+		for (int i = 0; i < 40; i++) {
+			deep.append('[');
+		}
+		assertMalformed(deep.toString());
+	}
+}
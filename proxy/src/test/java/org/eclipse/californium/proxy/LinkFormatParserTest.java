@@ -0,0 +1,89 @@
+/******************************************************************************
+ * @title: Link Format Parser Test
+ * 	Tests of the link-format tokenizer
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class LinkFormatParserTest {
+
+	private static LinkFormatParser parser(String payload) {
+		return new LinkFormatParser(payload.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static byte[] bytes(String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void parsesLinksAndAttributes() {
+		LinkFormatParser parser = parser(
+				"</dev/mfg>;rt=\"ipso;dev\";obs, </s/t>;ct=0\0");
+
+		assertTrue(parser.nextLink());
+		assertEquals("/dev/mfg", parser.getPath());
+		assertTrue(parser.nextAttribute());
+		assertTrue(parser.attributeNameIs("rt"));
+		assertEquals("ipso;dev", parser.getAttributeValue());
+		assertTrue(parser.nextAttribute());
+		assertEquals("obs", parser.getAttributeName());
+		assertNull(parser.getAttributeValue());
+		assertNull(parser.getAttributeValueBytes());
+		assertFalse(parser.nextAttribute());
+
+		assertTrue(parser.nextLink());
+		assertEquals("/s/t", parser.getPath());
+		assertFalse(parser.nextLink());
+	}
+
+	@Test
+	public void batchValueWithEscapedQuote() {
+		// a batch PUT: the value of v is the new representation
+		LinkFormatParser parser = parser("</a>;v=\"say \\\"hi\\\"\";ct=0,"
+				+ "</b>;v=\"c:\\\\tmp\",</c>;v=\"plain\"");
+
+		assertTrue(parser.nextLink());
+		assertTrue(parser.nextAttribute());
+		assertArrayEquals(bytes("say \"hi\""), parser.getAttributeValueBytes());
+		// the string value is kept as written in link-format
+		assertEquals("say \\\"hi\\\"", parser.getAttributeValue());
+		assertTrue(parser.nextAttribute());
+		assertEquals("0", parser.getAttributeValue());
+
+		assertTrue(parser.nextLink());
+		assertEquals("/b", parser.getPath());
+		assertTrue(parser.nextAttribute());
+		assertArrayEquals(bytes("c:\\tmp"), parser.getAttributeValueBytes());
+
+		assertTrue(parser.nextLink());
+		assertTrue(parser.nextAttribute());
+		assertArrayEquals(bytes("plain"), parser.getAttributeValueBytes());
+		assertFalse(parser.nextLink());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsEscapedClosingQuote() {
+		LinkFormatParser parser = parser("</a>;v=\"open\\\"");
+		parser.nextLink();
+		parser.nextAttribute();
+	}
+}
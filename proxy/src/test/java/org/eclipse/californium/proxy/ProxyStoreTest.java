@@ -0,0 +1,363 @@
+/******************************************************************************
+ * @title: Proxy Store Test
+ * 	Tests of the recovery of the proxy state from snapshots and log
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.californium.core.CoapResource;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.core.server.resources.ResourceAttributes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Writes the state of a proxy, through its handlers or as raw records, and
+ * checks what a new proxy recovers from it: a snapshot followed by the log,
+ * a log whose last record is torn or corrupted, a removal followed by a
+ * stale update, and a snapshot with no record after it, which is renamed
+ * instead of being written again.
+ */
+public class ProxyStoreTest {
+
+	private static final int SEGMENT_SIZE = 64 * 1024;
+
+	private static final InetAddress OWNER = InetAddress.getLoopbackAddress();
+
+	private final List<Proxy> proxies = new ArrayList<Proxy>();
+	private final List<File> directories = new ArrayList<File>();
+
+	@Before
+	public void setUp() {
+		ProxyLogger.setLevel(ProxyLogger.Level.WARN);
+	}
+
+	@After
+	public void tearDown() {
+		for (Proxy proxy : proxies) {
+			proxy.destroy();
+		}
+		for (File directory : directories) {
+			delete(directory);
+		}
+		ProxyLogger.setLevel(ProxyLogger.Level.INFO);
+	}
+
+	private File newDirectory() throws IOException {
+		File directory = Files.createTempDirectory("proxy-store").toFile();
+		directories.add(directory);
+		return directory;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/*
+	 * Returns a new proxy whose store is open on the given directory
+	 */
+	private Proxy open(File directory) throws IOException {
+		Proxy proxy = new Proxy();
+		proxies.add(proxy);
+		proxy.getStore().setSyncCommit(true);
+		proxy.getStore().open(directory);
+		return proxy;
+	}
+
+	private static byte[] bytes(String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String text(DelegatedResource resource) {
+		return new String(resource.getValue(), StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Writes the given records in the first segment of a log
+	 */
+	private static long[] writeLog(File directory, byte[]... records)
+			throws IOException {
+		long[] positions = new long[records.length];
+		WriteAheadLog log = new WriteAheadLog(directory, 0, SEGMENT_SIZE, 0);
+		for (int i = 0; i < records.length; i++) {
+			positions[i] = log.append(records[i]);
+		}
+		log.close();
+		return positions;
+	}
+
+	private static byte[] container(String name, String ep) {
+		SNResourceAttributes attributes = new SNResourceAttributes();
+		attributes.setEndPoint(ep);
+		return StoreRecord.container(name, OWNER, attributes);
+	}
+
+	private static byte[] create(String path) {
+		ResourceAttributes attributes = new ResourceAttributes();
+		attributes.addAttribute("rt", "t");
+		return StoreRecord.create("0", path, attributes);
+	}
+
+	private static byte[] update(String path, String value) {
+		return StoreRecord.update("0", path, bytes(value),
+				MediaTypeRegistry.TEXT_PLAIN, true, -1, -1);
+	}
+
+	private static DelegatedResource find(Proxy proxy, String ep,
+			String path) {
+		ContainerResource c = proxy.getEPs().get(ep);
+		assertNotNull(ep, c);
+		return c.findDelegated(path);
+	}
+
+	@Test
+	public void snapshotThenLogRoundTrip() throws Exception {
+		File directory = newDirectory();
+		Proxy proxy = open(directory);
+		SPResource sp = (SPResource) proxy.getRoot().getChild("sp");
+
+		LocalExchange registration = new LocalExchange(post("node0",
+				"</t>;rt=\"t\",</h>;rt=\"h\""), sp);
+		sp.handlePOST(registration);
+		assertEquals(CoAP.ResponseCode.CREATED,
+				registration.response.getCode());
+		put(proxy, "/t", "21.5", OWNER, "lt=600");
+		put(proxy, "/h", "on", OWNER);
+
+		// more records after the snapshot, replayed over it
+		proxy.getStore().snapshot();
+		put(proxy, "/t", "22.0", OWNER);
+		put(proxy, "/h", "off", InetAddress.getByName("127.0.0.2"));
+
+		// the files as a crash would leave them, the store being open
+		File copy = newDirectory();
+		for (File file : directory.listFiles()) {
+			Files.copy(file.toPath(), new File(copy, file.getName())
+					.toPath());
+		}
+		DelegatedResource before = find(proxy, "node0", "/t");
+
+		Proxy recovered = open(copy);
+		ContainerResource c = recovered.getEPs().get("node0");
+		assertNotNull(c);
+		assertEquals(proxy.getEPs().get("node0").getName(), c.getName());
+		assertEquals(OWNER, c.getSPIpAddress());
+		assertTrue(recovered.newEPId() > Integer.parseInt(c.getName()));
+
+		DelegatedResource t = c.findDelegated("/t");
+		assertEquals("22.0", text(t));
+		assertEquals(MediaTypeRegistry.TEXT_PLAIN, t.getContentFormat());
+		assertEquals(600, t.getLifetime());
+		assertEquals(before.getExpiresAt(), t.getExpiresAt());
+		assertTrue(t.isVisible());
+		assertFalse(t.isDirty());
+
+		DelegatedResource h = c.findDelegated("/h");
+		assertEquals("off", text(h));
+		assertTrue(h.isVisible());
+		assertTrue(h.isDirty());
+	}
+
+	@Test
+	public void corruptedLastRecordIsIgnored() throws Exception {
+		File directory = newDirectory();
+		byte[] last = update("/t", "22.0");
+		long[] positions = writeLog(directory, container("0", "node0"),
+				create("/t"), update("/t", "21.5"), last);
+		long frame = positions[positions.length - 2];
+
+		// a bit flipped in the payload of the last record
+		RandomAccessFile file = new RandomAccessFile(
+				WriteAheadLog.segmentFile(directory, 0), "rw");
+		try {
+			long offset = frame + WriteAheadLog.FRAME_HEADER
+					+ last.length - 1;
+			file.seek(offset);
+			int b = file.read();
+			file.seek(offset);
+			file.write(b ^ 0x01);
+		} finally {
+			file.close();
+		}
+
+		Proxy recovered = open(directory);
+		assertEquals("21.5", text(find(recovered, "node0", "/t")));
+	}
+
+	@Test
+	public void tornLastRecordIsIgnored() throws Exception {
+		File directory = newDirectory();
+		byte[] last = update("/t", "22.0");
+		long[] positions = writeLog(directory, container("0", "node0"),
+				create("/t"), update("/t", "21.5"), last);
+		long frame = positions[positions.length - 2];
+
+		// only the header and half of the payload reached the disk
+		RandomAccessFile file = new RandomAccessFile(
+				WriteAheadLog.segmentFile(directory, 0), "rw");
+		try {
+			file.seek(frame + WriteAheadLog.FRAME_HEADER + last.length / 2);
+			file.write(new byte[last.length - last.length / 2]);
+		} finally {
+			file.close();
+		}
+
+		Proxy recovered = open(directory);
+		assertEquals("21.5", text(find(recovered, "node0", "/t")));
+
+		// the next open starts from what has been recovered
+		recovered.getStore().close();
+		Proxy reopened = open(directory);
+		assertEquals("21.5", text(find(reopened, "node0", "/t")));
+	}
+
+	@Test
+	public void updateAfterRemoveIsIgnored() throws Exception {
+		File directory = newDirectory();
+		writeLog(directory, container("0", "node0"), create("/t"),
+				update("/t", "21.5"), create("/u"), update("/u", "1"),
+				StoreRecord.remove("0", "/t"), update("/t", "22.0"),
+				StoreRecord.dirty("0", "/t", true));
+
+		Proxy recovered = open(directory);
+		ContainerResource c = recovered.getEPs().get("node0");
+		assertNull(c.findDelegated("/t"));
+		assertNull(c.getChild("t"));
+		assertEquals("1", text(c.findDelegated("/u")));
+
+		// a new registration of the path is updated again
+		recovered.getStore().close();
+		File again = newDirectory();
+		writeLog(again, container("0", "node0"), create("/t"),
+				StoreRecord.remove("0", "/t"), update("/t", "21.5"),
+				create("/t"), update("/t", "23.0"));
+		DelegatedResource t = find(open(again), "node0", "/t");
+		assertNotNull(t);
+		assertEquals("23.0", text(t));
+	}
+
+	@Test
+	public void upToDateSnapshotIsRenamed() throws Exception {
+		File directory = newDirectory();
+		writeLog(directory, container("0", "node0"), create("/t"),
+				update("/t", "21.5"));
+
+		// the log is replayed and compacted, the last snapshot is taken on
+		// closing, followed by an empty segment
+		Proxy proxy = open(directory);
+		proxy.getStore().close();
+		File[] snapshots = snapshots(directory);
+		assertEquals(1, snapshots.length);
+		byte[] image = Files.readAllBytes(snapshots[0].toPath());
+		Thread.sleep(10);
+
+		Proxy recovered = open(directory);
+		assertEquals("21.5", text(find(recovered, "node0", "/t")));
+		File[] renamed = snapshots(directory);
+		assertEquals(1, renamed.length);
+		assertFalse(snapshots[0].exists());
+		assertTrue(renamed[0].getName().compareTo(
+				snapshots[0].getName()) > 0);
+		// the same image, not a new one taken at another time
+		assertArrayEquals(image, Files.readAllBytes(renamed[0].toPath()));
+
+		// the log goes on after the renamed snapshot
+		List<Long> segments = WriteAheadLog.segments(directory);
+		assertEquals(1, segments.size());
+		assertEquals(renamed[0].getName(), String.format(
+				"snapshot-%016d.bin", segments.get(0)));
+	}
+
+	private static File[] snapshots(File directory) {
+		return directory.listFiles(
+				(dir, name) -> name.startsWith("snapshot-")
+						&& name.endsWith(".bin"));
+	}
+
+	private static Request post(String ep, String links) {
+		Request request = Request.newPost();
+		request.getOptions().addUriQuery("ep=" + ep);
+		request.setSource(OWNER);
+		request.setSourcePort(5683);
+		request.setPayload(links);
+		return request;
+	}
+
+	/*
+	 * Sends a PUT to a resource of node0, from the given address
+	 */
+	private static void put(Proxy proxy, String path, String value,
+			InetAddress source, String... queries) {
+		DelegatedResource resource = find(proxy, "node0", path);
+		Request request = Request.newPut();
+		for (String query : queries) {
+			request.getOptions().addUriQuery(query);
+		}
+		request.getOptions().setContentFormat(MediaTypeRegistry.TEXT_PLAIN);
+		request.setSource(source);
+		request.setSourcePort(5683);
+		request.setPayload(value);
+		LocalExchange exchange = new LocalExchange(request, resource);
+		resource.handlePUT(exchange);
+		assertTrue(exchange.response.getCode().toString(),
+				CoAP.ResponseCode.isSuccess(exchange.response.getCode()));
+	}
+
+	/*
+	 * An exchange answered in memory, without an endpoint
+	 */
+	private static final class LocalExchange extends CoapExchange {
+		private Response response;
+
+		LocalExchange(Request request, CoapResource resource) {
+			super(new Exchange(request, Exchange.Origin.REMOTE), resource);
+		}
+
+		@Override
+		public void setLocationPath(String path) {
+			// the location is found in the EP map
+		}
+
+		@Override
+		public void respond(Response response) {
+			this.response = response;
+		}
+	}
+}
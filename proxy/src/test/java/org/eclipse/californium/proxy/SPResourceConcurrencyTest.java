@@ -0,0 +1,178 @@
+/******************************************************************************
+ * @title: SP Resource Concurrency Test
+ * 	Stress test of the concurrent registrations of the sleepy nodes
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.BitSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.server.resources.CoapExchange;
+import org.eclipse.californium.core.server.resources.Resource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Registers many end-points at once, each one twice from different threads,
+ * and checks that every end-point gets exactly one container and one
+ * identifier, the identifiers being 0..n-1. Also checks that a malformed
+ * registration changes nothing.
+ */
+public class SPResourceConcurrencyTest {
+
+	private static final int ENDPOINTS = 100000;
+
+	// More than the 4 protocol threads of the proxy
+	private static final int THREADS = 16;
+
+	private Proxy proxy;
+	private SPResource sp;
+
+	@Before
+	public void setUp() {
+		// one event per registration otherwise
+		ProxyLogger.setLevel(ProxyLogger.Level.WARN);
+		proxy = new Proxy();
+		sp = (SPResource) proxy.getRoot().getChild("sp");
+	}
+
+	@After
+	public void tearDown() {
+		proxy.destroy();
+		ProxyLogger.setLevel(ProxyLogger.Level.INFO);
+	}
+
+	@Test
+	public void concurrentRegistrations() throws Exception {
+		final String[] locations = new String[2 * ENDPOINTS];
+		final AtomicInteger next = new AtomicInteger();
+
+		ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+		Future<?>[] workers = new Future<?>[THREADS];
+		for (int t = 0; t < THREADS; t++) {
+			workers[t] = pool.submit(() -> {
+				int i;
+				// the two registrations of an end-point are taken in a row
+				while ((i = next.getAndIncrement()) < locations.length) {
+					LocalExchange exchange = register("node" + (i / 2));
+					assertEquals(CoAP.ResponseCode.CREATED,
+							exchange.response.getCode());
+					locations[i] = exchange.location;
+				}
+			});
+		}
+		for (Future<?> worker : workers) {
+			worker.get();
+		}
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+		assertEquals(ENDPOINTS, proxy.getEPs().size());
+		int containers = 0;
+		for (Resource child : sp.getChildren()) {
+			if (child instanceof ContainerResource) {
+				containers++;
+			}
+		}
+		assertEquals(ENDPOINTS, containers);
+		BitSet ids = new BitSet(ENDPOINTS);
+		for (int i = 0; i < ENDPOINTS; i++) {
+			ContainerResource c = proxy.getEPs().get("node" + i);
+			assertNotNull("node" + i, c);
+			assertEquals("node" + i, c.getEndPoint());
+			assertSame(c, sp.getChild(c.getName()));
+			assertNotNull(c.getChild("a"));
+			assertEquals(c.getURI(), locations[2 * i]);
+			assertEquals(c.getURI(), locations[2 * i + 1]);
+			ids.set(Integer.parseInt(c.getName()));
+		}
+		// no duplicate, no gap, and no identifier allocated by a loser
+		assertEquals(ENDPOINTS, ids.cardinality());
+		assertEquals(ENDPOINTS, ids.nextClearBit(0));
+		assertEquals(ENDPOINTS, proxy.newEPId());
+	}
+
+	@Test
+	public void malformedRegistrationChangesNothing() {
+		// the second link is malformed
+		LocalExchange exchange = register("node0",
+				"</a>;rt=\"t\",</b>;rt=\"open");
+		assertEquals(CoAP.ResponseCode.BAD_REQUEST,
+				exchange.response.getCode());
+		assertTrue(proxy.getEPs().isEmpty());
+		assertEquals(0, proxy.newEPId());
+
+		// a registered node adds nothing either
+		assertEquals(CoAP.ResponseCode.CREATED,
+				register("node0").response.getCode());
+		ContainerResource c = proxy.getEPs().get("node0");
+		exchange = register("node0", "</c>,</d>;rt=\"open");
+		assertEquals(CoAP.ResponseCode.BAD_REQUEST,
+				exchange.response.getCode());
+		assertNotNull(c.getChild("a"));
+		assertNull(c.getChild("c"));
+	}
+
+	private LocalExchange register(String ep) {
+		return register(ep, "</a>;rt=\"t\"");
+	}
+
+	private LocalExchange register(String ep, String links) {
+		Request request = Request.newPost();
+		request.getOptions().addUriQuery("ep=" + ep);
+		request.setSource(InetAddress.getLoopbackAddress());
+		request.setSourcePort(5683);
+		request.setPayload(links);
+		LocalExchange exchange = new LocalExchange(request, sp);
+		sp.handlePOST(exchange);
+		return exchange;
+	}
+
+	/*
+	 * An exchange answered in memory, without an endpoint
+	 */
+	private static final class LocalExchange extends CoapExchange {
+		private String location;
+		private Response response;
+
+		LocalExchange(Request request, SPResource sp) {
+			super(new Exchange(request, Exchange.Origin.REMOTE), sp);
+		}
+
+		@Override
+		public void setLocationPath(String path) {
+			location = path;
+		}
+
+		@Override
+		public void respond(Response response) {
+			this.response = response;
+		}
+	}
+}
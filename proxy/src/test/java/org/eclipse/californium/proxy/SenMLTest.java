@@ -0,0 +1,125 @@
+/******************************************************************************
+ * @title: SenML Test
+ * 	Tests of the decoding of SenML packs in JSON and CBOR
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.junit.Test;
+
+public class SenMLTest {
+
+	private static List<SenML.Record> json(String text) {
+		return SenML.decode(text.getBytes(StandardCharsets.UTF_8),
+				SenML.APPLICATION_SENML_JSON);
+	}
+
+	private static void assertMalformed(byte[] payload, int contentFormat) {
+		try {
+			SenML.decode(payload, contentFormat);
+			fail("decoded " + new String(payload, StandardCharsets.UTF_8));
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	private static void assertMalformed(String text) {
+		assertMalformed(text.getBytes(StandardCharsets.UTF_8),
+				SenML.APPLICATION_SENML_JSON);
+	}
+
+	@Test
+	public void baseNamesAndValues() {
+		List<SenML.Record> records = json("[{\"bn\":\"/s/\",\"n\":\"t\","
+				+ "\"v\":21.5,\"lt\":60},{\"n\":\"on\",\"vb\":true},"
+				+ "{\"bn\":\"/c/\",\"n\":\"f\",\"vd\":\"AP8\",\"ct\":\"42\"},"
+				+ "{\"vs\":\"x\"}]");
+		assertEquals(4, records.size());
+		assertEquals("/s/t", records.get(0).name);
+		assertEquals(21.5, records.get(0).value);
+		assertEquals(60, records.get(0).lifetime);
+		assertEquals("/s/on", records.get(1).name);
+		assertEquals(Boolean.TRUE, records.get(1).value);
+		assertEquals(MediaTypeRegistry.UNDEFINED,
+				records.get(1).contentFormat);
+		assertEquals("/c/f", records.get(2).name);
+		assertArrayEquals(new byte[] { 0, (byte) 0xFF },
+				(byte[]) records.get(2).value);
+		assertEquals(42, records.get(2).contentFormat);
+		assertEquals("/c/", records.get(3).name);
+		assertEquals("x", records.get(3).value);
+	}
+
+	@Test
+	public void roundTripInBothFormats() {
+		List<SenML.Record> records = Arrays.asList(
+				new SenML.Record("/s/t", 21.5, 60),
+				new SenML.Record("/s/n", 3L),
+				new SenML.Record("/s/f", new byte[] { 1, 2 }, -1, 42));
+		for (int format : new int[] { SenML.APPLICATION_SENML_JSON,
+				SenML.APPLICATION_SENML_CBOR }) {
+			List<SenML.Record> decoded = SenML.decode(
+					SenML.encode(records, format), format);
+			assertEquals(3, decoded.size());
+			assertEquals("/s/t", decoded.get(0).name);
+			assertEquals(21.5, decoded.get(0).value);
+			assertEquals(60, decoded.get(0).lifetime);
+			assertEquals(3L, decoded.get(1).value);
+			assertArrayEquals(new byte[] { 1, 2 },
+					(byte[]) decoded.get(2).value);
+			assertEquals(42, decoded.get(2).contentFormat);
+		}
+	}
+
+	@Test
+	public void malformedPacks() {
+		assertMalformed("{\"n\":\"t\"}");
+		assertMalformed("[1]");
+		assertMalformed("[{\"n\":1}]");
+		assertMalformed("[{\"n\":\"t\",\"v\":\"1\"}]");
+		assertMalformed("[{\"n\":\"t\",\"vb\":1}]");
+		assertMalformed("[{\"n\":\"t\",\"vd\":\"*\"}]");
+		assertMalformed("[{\"n\":\"t\",\"lt\":-1}]");
+		assertMalformed("[{\"n\":\"t\",\"ct\":\"x\"}]");
+		assertMalformed("[{\"n\":\"t\",\"v\":1}");
+
+		// CBOR: truncated, and a vd with a negative length
+		byte[] pack = SenML.encode(Arrays.asList(
+				new SenML.Record("/s/t", new byte[] { 1, 2, 3 })),
+				SenML.APPLICATION_SENML_CBOR);
+		for (int length = 0; length < pack.length; length++) {
+			assertMalformed(Arrays.copyOf(pack, length),
+					SenML.APPLICATION_SENML_CBOR);
+		}
+		Map<Object, Object> record = new LinkedHashMap<Object, Object>();
+		record.put(0L, "t");
+		byte[] head = Cbor.encode(Arrays.<Object> asList(record));
+		byte[] negative = Arrays.copyOf(head, head.length + 10);
+		negative[0] = (byte) 0x81;
+		negative[1] = (byte) 0xA2;
+		negative[head.length] = 0x08;
+		negative[head.length + 1] = (byte) (2 << 5 | 27);
+		Arrays.fill(negative, head.length + 2, negative.length, (byte) 0xFF);
+		assertMalformed(negative, SenML.APPLICATION_SENML_CBOR);
+	}
+}
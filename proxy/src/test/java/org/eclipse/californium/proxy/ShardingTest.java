@@ -0,0 +1,168 @@
+/******************************************************************************
+ * @title: Sharding Test
+ * 	Tests of several proxies splitting the end-points among them
+ *
+ * @authors:
+ * 	- Francesco Paolo Culcasi	<fpculcasi@gmail.com>
+ * 	- Alessandro Martinelli		<a.martinelli1990@gmail.com>
+ * 	- Nicola Messina			<nicola.messina93@gmail.com>
+ *
+ * @for: Advanced topics in Network Architectures and Wireless Systems
+ * 	UNIPI (2016/2017)
+ *
+ *****************************************************************************/
+
+package org.eclipse.californium.proxy;
+
+import static org.eclipse.californium.core.coap.MediaTypeRegistry.APPLICATION_LINK_FORMAT;
+import static org.eclipse.californium.core.coap.MediaTypeRegistry.TEXT_PLAIN;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Starts three proxies on consecutive ports of the loopback, configured with
+ * the same list of shards as by proxy.shards, and checks the redirection of
+ * the registrations and the discovery over all the shards.
+ */
+public class ShardingTest {
+
+	private static final String HOST = "127.0.0.1";
+	private static final int FIRST_PORT = 56830;
+	private static final int SHARDS = 3;
+
+	// Time waited for an answer, in milliseconds
+	private static final long TIMEOUT = 5000;
+
+	private final List<Proxy> proxies = new ArrayList<Proxy>();
+	private final List<String> uris = new ArrayList<String>();
+	private ShardRing ring;
+
+	@Before
+	public void setUp() {
+		StringBuilder shards = new StringBuilder();
+		for (int i = 0; i < SHARDS; i++) {
+			uris.add("coap://" + HOST + ":" + (FIRST_PORT + i));
+			shards.append(uris.get(i)).append(',');
+		}
+		for (int i = 0; i < SHARDS; i++) {
+			Proxy proxy = new Proxy();
+			proxy.addEndpoint(new CoapEndpoint(
+					new InetSocketAddress(HOST, FIRST_PORT + i)));
+			proxy.setShardRing(ShardRing.parse(shards.toString(),
+					uris.get(i)));
+			proxy.start();
+			proxies.add(proxy);
+		}
+		ring = proxies.get(0).getShardRing();
+	}
+
+	@After
+	public void tearDown() {
+		for (Proxy proxy : proxies) {
+			proxy.destroy();
+		}
+	}
+
+	/*
+	 * Returns an end-point owned by the given shard
+	 */
+	private String endPointOf(int shard) {
+		for (int i = 0;; i++) {
+			if (ring.ownerOf("node" + i).equals(uris.get(shard))) {
+				return "node" + i;
+			}
+		}
+	}
+
+	/*
+	 * Registers the end-point with the SP resource of the given URI
+	 */
+	private static CoapResponse register(String sp, String ep) {
+		CoapClient client = new CoapClient(sp + "?ep=" + ep);
+		client.setTimeout(TIMEOUT);
+		CoapResponse response = client.post("</t>;rt=\"temperature\"",
+				APPLICATION_LINK_FORMAT);
+		assertNotNull("no answer from " + sp, response);
+		return response;
+	}
+
+	@Test
+	public void registrationOnTheWrongShardIsRedirected() {
+		String ep = endPointOf(1);
+
+		CoapResponse wrong = register(uris.get(0) + "/sp", ep);
+		assertEquals(CoAP.ResponseCode.FORBIDDEN, wrong.getCode());
+		assertEquals(uris.get(1) + "/sp", wrong.getResponseText());
+		assertFalse(proxies.get(0).getEPs().containsKey(ep));
+
+		// the node registers again where it has been sent
+		CoapResponse right = register(wrong.getResponseText(), ep);
+		assertEquals(CoAP.ResponseCode.CREATED, right.getCode());
+		assertTrue(proxies.get(1).getEPs().containsKey(ep));
+		assertEquals(proxies.get(1).getEPs().get(ep).getURI(),
+				"/" + right.getOptions().getLocationPathString());
+		assertFalse(proxies.get(2).getEPs().containsKey(ep));
+	}
+
+	@Test
+	public void discoveryGathersAllTheShards() {
+		// one end-point per shard, each one with an initialized resource
+		Map<String, String> links = new HashMap<String, String>();
+		for (int i = 0; i < SHARDS; i++) {
+			String ep = endPointOf(i);
+			CoapResponse response = register(uris.get(i) + "/sp", ep);
+			assertEquals(CoAP.ResponseCode.CREATED, response.getCode());
+			String path = "/" + response.getOptions().getLocationPathString()
+					+ "/t";
+			CoapClient owner = new CoapClient(uris.get(i) + path);
+			owner.setTimeout(TIMEOUT);
+			CoapResponse put = owner.put("21.5", TEXT_PLAIN);
+			assertNotNull(put);
+			assertTrue(put.getCode().toString(), CoAP.ResponseCode
+					.isSuccess(put.getCode()));
+			links.put(ep, path);
+		}
+
+		for (int i = 0; i < SHARDS; i++) {
+			CoapClient client = new CoapClient(uris.get(i)
+					+ "/sp?rt=temperature");
+			client.setTimeout(TIMEOUT);
+			CoapResponse response = client.get();
+			assertNotNull(response);
+			assertEquals(CoAP.ResponseCode.CONTENT, response.getCode());
+			String payload = response.getResponseText();
+
+			List<String> found = Arrays.asList(payload.split(","));
+			assertEquals(payload, SHARDS, found.size());
+			for (int j = 0; j < SHARDS; j++) {
+				String ep = endPointOf(j);
+				// local links are relative, the others absolute
+				String target = (i == j) ? links.get(ep) : uris.get(j)
+						+ links.get(ep);
+				boolean listed = false;
+				for (String link : found) {
+					listed |= link.startsWith("<" + target + ">")
+							&& link.contains("ep=\"" + ep + "\"");
+				}
+				assertTrue(target + " missing in " + payload, listed);
+			}
+		}
+	}
+}